@@ -20,24 +20,32 @@
 package org.apache.directory.daemon;
 
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.AccessControlException;
+import java.util.Iterator;
 import java.util.Properties;
 import java.util.Random;
 
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
@@ -53,13 +61,22 @@ public class Bootstrapper
     static final String[] EMPTY_STRARRAY = new String[0];
     public static final String START_CLASS_PROP = "bootstrap.start.class";
     public static final String STOP_CLASS_PROP = "bootstrap.stop.class";
+    public static final String CONSOLE_REDIRECT_PROP = "bootstrap.console.redirect";
+    public static final String CONSOLE_NAME_PROP = "bootstrap.console.name";
+    public static final String CONSOLE_BUFFER_SIZE_PROP = "bootstrap.console.buffer.size";
+    public static final String CONSOLE_ROTATE_SIZE_PROP = "bootstrap.console.rotate.size";
+    public static final String CONSOLE_ROTATE_INTERVAL_PROP = "bootstrap.console.rotate.interval";
+    public static final String CONSOLE_ROTATE_COUNT_PROP = "bootstrap.console.rotate.count";
+    public static final String EVENTS_CAPACITY_PROP = "bootstrap.events.capacity";
 
     private static final Logger log = LoggerFactory.getLogger( Bootstrapper.class );
 
     /** Shutdown command to use for await() */
-    private static final String SHUTDOWN = "SHUTDOWN";
+    private static final String SHUTDOWN = ControlClient.SHUTDOWN;
 
-    private static final String SHUTDOWN_FILE = "shutdownPort";
+    private static final String SHUTDOWN_FILE = ControlClient.SHUTDOWN_FILE;
+    /** Fraction of a heap pool still in use after a collection that is recorded as a warning */
+    private static final double HEAP_WARNING_THRESHOLD = 0.9;
     /** The Port to Listen on for Shutdown commands */
     private int shutdownPort = -1;
     /** Random number generator */
@@ -70,9 +87,14 @@ public class Bootstrapper
     private ClassLoader parent;
     private String startClassName;
     private String stopClassName;
+    private Properties bootstrapProperties = new Properties();
     private Class startClass;
     private DaemonApplication start;
     private DaemonApplication stop;
+    private EventRing events;
+    private InstanceLock instanceLock;
+    /** the connection of a stop client waiting for the shutdown to complete */
+    private Socket controlConnection;
 
 
     public void setInstallationLayout( String installationBase )
@@ -95,6 +117,7 @@ public class Bootstrapper
             props.load( new FileInputStream( layout.getBootstrapperConfigurationFile() ) );
             startClassName = props.getProperty( START_CLASS_PROP );
             stopClassName = props.getProperty( STOP_CLASS_PROP );
+            bootstrapProperties = props;
         }
         catch ( Exception e )
         {
@@ -123,8 +146,316 @@ public class Bootstrapper
     }
 
 
+    /**
+     * Redirects System.out and System.err into rotating log files under the
+     * log directory when enabled in the bootstrapper configuration.  Output is
+     * buffered in memory and written by a background thread so chatty code
+     * does not stall on disk I/O.
+     */
+    public void redirectConsole()
+    {
+        if ( !Boolean.valueOf( bootstrapProperties.getProperty( CONSOLE_REDIRECT_PROP ) ).booleanValue() )
+        {
+            return;
+        }
+
+        String name = bootstrapProperties.getProperty( CONSOLE_NAME_PROP, "console" );
+        int bufferSize = ( int ) getLongProperty( CONSOLE_BUFFER_SIZE_PROP, 256 * 1024 );
+        long rotateSize = getLongProperty( CONSOLE_ROTATE_SIZE_PROP, 10 * 1024 * 1024 );
+        long rotateInterval = getLongProperty( CONSOLE_ROTATE_INTERVAL_PROP, 24 * 60 * 60 * 1000L );
+        int rotateCount = ( int ) getLongProperty( CONSOLE_ROTATE_COUNT_PROP, 10 );
+
+        try
+        {
+            final RotatingConsoleStream stdout = new RotatingConsoleStream( new File( layout.getLogDirectory(), name
+                + "-stdout.log" ), bufferSize, rotateSize, rotateInterval, rotateCount );
+            final RotatingConsoleStream stderr = new RotatingConsoleStream( new File( layout.getLogDirectory(), name
+                + "-stderr.log" ), bufferSize, rotateSize, rotateInterval, rotateCount );
+            System.setOut( new PrintStream( stdout, true ) );
+            System.setErr( new PrintStream( stderr, true ) );
+
+            // drain what is still buffered when the daemon goes down
+            Runtime.getRuntime().addShutdownHook( new Thread( "Console capture cleanup" )
+            {
+                public void run()
+                {
+                    // warn while the streams are open, a console appender writes to them
+                    if ( stdout.getDroppedBytes() > 0 || stderr.getDroppedBytes() > 0 )
+                    {
+                        log.warn( "Console capture dropped " + stdout.getDroppedBytes() + " bytes of stdout and "
+                            + stderr.getDroppedBytes() + " bytes of stderr" );
+                    }
+
+                    stdout.close();
+                    stderr.close();
+                }
+            } );
+
+            log.debug( "Redirected console output into " + layout.getLogDirectory() );
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to redirect console output into " + layout.getLogDirectory(), e );
+        }
+    }
+
+
+    private long getLongProperty( String key, long defaultValue )
+    {
+        String value = bootstrapProperties.getProperty( key );
+        if ( value == null )
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong( value.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            log.warn( "Ignoring bad value '" + value + "' for " + key + ": using " + defaultValue );
+            return defaultValue;
+        }
+    }
+
+
+    /**
+     * Opens the memory mapped event ring in the run directory which keeps a
+     * record of recent lifecycle transitions, control commands and memory
+     * warnings that survives a crash of the process.
+     */
+    public void openEventRing()
+    {
+        int capacity = ( int ) getLongProperty( EVENTS_CAPACITY_PROP, 1024 );
+        if ( capacity <= 0 || events != null )
+        {
+            return;
+        }
+
+        File ringFile = new File( layout.getRunDirectory(), EventRing.FILE_NAME );
+        try
+        {
+            events = new EventRing( ringFile, capacity );
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to open event ring " + ringFile + ": events will not be recorded", e );
+            return;
+        }
+
+        recordEvent( EventRing.LIFECYCLE, "boot " + ManagementFactory.getRuntimeMXBean().getName() );
+        Runtime.getRuntime().addShutdownHook( new Thread( "Event ring cleanup" )
+        {
+            public void run()
+            {
+                recordEvent( EventRing.LIFECYCLE, "jvm shutdown" );
+                events.close();
+            }
+        } );
+
+        watchMemory();
+    }
+
+
+    /**
+     * Records heap pools which are still nearly full right after a garbage
+     * collection into the event ring.
+     */
+    private void watchMemory()
+    {
+        for ( Iterator ii = ManagementFactory.getMemoryPoolMXBeans().iterator(); ii.hasNext(); /* */)
+        {
+            MemoryPoolMXBean pool = ( MemoryPoolMXBean ) ii.next();
+            long max = pool.getUsage().getMax();
+            if ( pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && max > 0 )
+            {
+                pool.setCollectionUsageThreshold( ( long ) ( max * HEAP_WARNING_THRESHOLD ) );
+            }
+        }
+
+        NotificationEmitter emitter = ( NotificationEmitter ) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener( new NotificationListener()
+        {
+            public void handleNotification( Notification notification, Object handback )
+            {
+                if ( !MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals( notification.getType() ) )
+                {
+                    return;
+                }
+
+                MemoryNotificationInfo info = MemoryNotificationInfo.from( ( CompositeData ) notification
+                    .getUserData() );
+                MemoryUsage usage = info.getUsage();
+                recordEvent( EventRing.MEMORY, info.getPoolName() + " " + ( usage.getUsed() >> 20 ) + "M of "
+                    + ( usage.getMax() >> 20 ) + "M used after gc, exceeded " + info.getCount() + " times" );
+            }
+        }, null, null );
+    }
+
+
+    /**
+     * Appends a record to the event ring if it is open.
+     */
+    protected void recordEvent( byte type, String message )
+    {
+        if ( events != null )
+        {
+            events.append( type, message );
+        }
+    }
+
+
+    private void exit( String phase, int exitCode )
+    {
+        recordEvent( EventRing.ERROR, phase + " failed: exit " + exitCode );
+        acknowledgeShutdown( exitCode );
+        System.exit( exitCode );
+    }
+
+
+    /**
+     * Reports a stop phase to the client which requested the shutdown.
+     */
+    protected void reportPhase( String phase )
+    {
+        sendControl( ControlClient.PHASE + " " + phase );
+    }
+
+
+    /**
+     * Sends the final status to the client which requested the shutdown and
+     * closes its connection.  The control endpoint and the instance lock are
+     * given up first so the client can start a new instance right away.  A
+     * shutdown not requested over the control port only gives them up, as
+     * does a shutdown already acknowledged.
+     *
+     * @param exitCode the exit code the daemon terminates with
+     */
+    public synchronized void acknowledgeShutdown( int exitCode )
+    {
+        releaseInstance();
+        if ( controlConnection == null )
+        {
+            return;
+        }
+
+        sendControl( ControlClient.DONE + " " + exitCode );
+        recordEvent( EventRing.CONTROL, "acknowledged " + SHUTDOWN + " with exit " + exitCode );
+        try
+        {
+            if ( controlConnection != null )
+            {
+                controlConnection.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Failed on socket close", e );
+        }
+        controlConnection = null;
+    }
+
+
+    private synchronized void sendControl( String line )
+    {
+        if ( controlConnection == null )
+        {
+            return;
+        }
+
+        try
+        {
+            OutputStream out = controlConnection.getOutputStream();
+            out.write( ( line + "\n" ).getBytes( "US-ASCII" ) );
+            out.flush();
+        }
+        catch ( IOException e )
+        {
+            // the client went away: carry on stopping without it
+            log.debug( "Lost control connection while sending " + line, e );
+            try
+            {
+                controlConnection.close();
+            }
+            catch ( IOException ioe )
+            {
+                log.debug( "Failed on socket close", ioe );
+            }
+            controlConnection = null;
+        }
+    }
+
+
+    /**
+     * Takes the exclusive lock on the run directory which marks this process
+     * as the running instance of the installation.  Exits if another process
+     * already holds it.
+     */
+    public void lockInstance()
+    {
+        if ( instanceLock != null )
+        {
+            return;
+        }
+
+        InstanceLock lock = new InstanceLock( layout.getRunDirectory() );
+        try
+        {
+            if ( !lock.acquire() )
+            {
+                String msg = "Another instance is already running on " + layout.getBaseDirectory();
+                System.err.println( msg );
+                log.error( msg );
+                System.exit( ExitCodes.ALREADY_RUNNING );
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to lock " + lock.getLockFile(), e );
+            System.exit( ExitCodes.ALREADY_RUNNING );
+        }
+
+        instanceLock = lock;
+
+        // holding the lock proves a left over control endpoint is stale
+        File shutdownPortFile = new File( layout.getRunDirectory(), SHUTDOWN_FILE );
+        if ( shutdownPortFile.exists() )
+        {
+            log.info( "Removing stale shutdown port file " + shutdownPortFile + " left by a previous run" );
+            shutdownPortFile.delete();
+        }
+    }
+
+
+    /**
+     * Deletes the shutdown port file and releases the instance lock, once:
+     * afterwards both may belong to a new instance.
+     */
+    private synchronized void releaseInstance()
+    {
+        if ( instanceLock == null )
+        {
+            return;
+        }
+
+        File shutdownPortFile = new File( layout.getRunDirectory(), SHUTDOWN_FILE );
+        if ( shutdownPortFile.exists() )
+        {
+            shutdownPortFile.delete();
+            log.info( "Deleted shutdown port file: " + shutdownPort );
+        }
+        instanceLock.release();
+        instanceLock = null;
+    }
+
+
     public void callInit( String[] args )
     {
+        lockInstance();
+        redirectConsole();
+        openEventRing();
+        recordEvent( EventRing.LIFECYCLE, "init " + startClassName );
         Thread.currentThread().setContextClassLoader( application );
         try
         {
@@ -133,7 +464,7 @@ public class Bootstrapper
         catch ( ClassNotFoundException e )
         {
             log.error( "Could not find " + startClassName, e );
-            System.exit( ExitCodes.CLASS_LOOKUP );
+            exit( "init", ExitCodes.CLASS_LOOKUP );
         }
 
         try
@@ -143,7 +474,7 @@ public class Bootstrapper
         catch ( Exception e )
         {
             log.error( "Could not instantiate " + startClassName, e );
-            System.exit( ExitCodes.INSTANTIATION );
+            exit( "init", ExitCodes.INSTANTIATION );
         }
 
         try
@@ -153,14 +484,16 @@ public class Bootstrapper
         catch ( Exception e )
         {
             log.error( "Failed on " + startClassName + ".init(InstallationLayout, String[])", e );
-            System.exit( ExitCodes.INITIALIZATION );
+            exit( "init", ExitCodes.INITIALIZATION );
         }
         Thread.currentThread().setContextClassLoader( parent );
+        recordEvent( EventRing.LIFECYCLE, "init done" );
     }
 
 
     public void callStart()
     {
+        recordEvent( EventRing.LIFECYCLE, "start" );
         Thread.currentThread().setContextClassLoader( application );
         try
         {
@@ -169,14 +502,17 @@ public class Bootstrapper
         catch ( Exception e )
         {
             log.error( "Failed on " + startClass.getName() + ".start()", e );
-            System.exit( ExitCodes.START );
+            exit( "start", ExitCodes.START );
         }
         Thread.currentThread().setContextClassLoader( parent );
+        recordEvent( EventRing.LIFECYCLE, "start done" );
     }
 
 
     public void callStop( String[] args )
     {
+        recordEvent( EventRing.LIFECYCLE, "stop" );
+        reportPhase( "stop" );
         Thread.currentThread().setContextClassLoader( application );
         Class clazz = null;
 
@@ -194,7 +530,7 @@ public class Bootstrapper
             catch ( ClassNotFoundException e )
             {
                 log.error( "Could not find " + stopClassName, e );
-                System.exit( ExitCodes.CLASS_LOOKUP );
+                exit( "stop", ExitCodes.CLASS_LOOKUP );
             }
 
             try
@@ -204,7 +540,7 @@ public class Bootstrapper
             catch ( Exception e )
             {
                 log.error( "Could not instantiate " + stopClassName, e );
-                System.exit( ExitCodes.INSTANTIATION );
+                exit( "stop", ExitCodes.INSTANTIATION );
             }
         }
 
@@ -215,14 +551,17 @@ public class Bootstrapper
         catch ( Exception e )
         {
             log.error( "Failed on " + stopClassName + ".stop()", e );
-            System.exit( ExitCodes.STOP );
+            exit( "stop", ExitCodes.STOP );
         }
         Thread.currentThread().setContextClassLoader( parent );
+        recordEvent( EventRing.LIFECYCLE, "stop done" );
     }
 
 
     public void callDestroy()
     {
+        recordEvent( EventRing.LIFECYCLE, "destroy" );
+        reportPhase( "destroy" );
         Thread.currentThread().setContextClassLoader( application );
         try
         {
@@ -231,9 +570,13 @@ public class Bootstrapper
         catch ( Exception e )
         {
             log.error( "Failed on " + stopClassName + ".destroy()", e );
-            System.exit( ExitCodes.STOP );
+            exit( "destroy", ExitCodes.STOP );
         }
         Thread.currentThread().setContextClassLoader( parent );
+        recordEvent( EventRing.LIFECYCLE, "destroy done" );
+
+        // the application has released its resources: let the client go on
+        acknowledgeShutdown( 0 );
     }
 
 
@@ -252,46 +595,14 @@ public class Bootstrapper
 
     public void sendShutdownCommand() throws IOException
     {
-        Socket socket = null;
-        OutputStream stream = null;
-
-        if ( shutdownPort == -1 )
-        {
-            File shutdownPortFile = new File( layout.getRunDirectory(), SHUTDOWN_FILE );
-            if ( shutdownPortFile.exists() )
-            {
-                BufferedReader in = new BufferedReader( new FileReader( shutdownPortFile ) );
-                shutdownPort = Integer.parseInt( in.readLine() );
-                in.close();
-            }
-            else
-            {
-                String msg = "The server does not seem to be running!  The shutdown port file\n";
-                msg += shutdownPortFile + " does not exist!";
-                log.error( msg );
-                throw new IllegalStateException( msg );
-            }
-        }
-
-        // this stops the main thread listening for shutdown requests
         try
         {
-            socket = new Socket( "127.0.0.1", shutdownPort );
-            stream = socket.getOutputStream();
-
-            for ( int i = 0; i < SHUTDOWN.length(); i++ )
-            {
-                stream.write( SHUTDOWN.charAt( i ) );
-            }
-
-            stream.flush();
+            new ControlClient( layout.getRunDirectory() ).sendShutdown();
         }
-        finally
+        catch ( IllegalStateException e )
         {
-            if ( stream != null )
-                stream.close();
-            if ( socket != null )
-                socket.close();
+            log.error( e.getMessage() );
+            throw e;
         }
     }
 
@@ -305,30 +616,16 @@ public class Bootstrapper
         {
             shutdownPort = AvailablePortFinder.getNextAvailable( 30003 );
             File shutdownPortFile = new File( layout.getRunDirectory(), SHUTDOWN_FILE );
-            if ( shutdownPortFile.exists() )
-            {
-                String msg = "Shutdown port file " + shutdownPortFile + " exists. ";
-                msg += "\nEither an instance is already running or a previous run existed abruptly.";
-                log.warn( msg );
-                shutdownPortFile.delete();
-            }
-            PrintWriter out = new PrintWriter( new FileWriter( shutdownPortFile ) );
-            out.println( shutdownPort );
-            out.flush();
-            out.close();
+            lockInstance();
+            instanceLock.publish( shutdownPortFile, shutdownPort );
 
-            // register shutdown hook in case we get shutdown abruptly without 
-            // cleaning up the shutdown file containing the shutdown port
+            // register shutdown hook to clean up the shutdown file containing 
+            // the shutdown port if the process exits without acknowledging
             Runtime.getRuntime().addShutdownHook( new Thread( "Bootstrapper cleanup" )
             {
                 public void run()
                 {
-                    File shutdownPortFile = new File( layout.getRunDirectory(), SHUTDOWN_FILE );
-                    if ( shutdownPortFile.exists() )
-                    {
-                        shutdownPortFile.delete();
-                        log.info( "Deleted shutdown port file: " + shutdownPort );
-                    }
+                    releaseInstance();
                 }
             } );
         }
@@ -344,6 +641,7 @@ public class Bootstrapper
         {
             serverSocket = new ServerSocket( shutdownPort, 1, InetAddress.getByName( "127.0.0.1" ) );
             log.debug( "waiting for shutdown command on port = " + shutdownPort );
+            recordEvent( EventRing.CONTROL, "listening on port " + shutdownPort );
         }
         catch ( IOException e )
         {
@@ -409,6 +707,19 @@ public class Bootstrapper
                 expected--;
             }
 
+            // Match against our command string
+            boolean match = command.toString().equals( SHUTDOWN );
+            if ( match )
+            {
+                // keep the connection to stream progress and the final status
+                recordEvent( EventRing.CONTROL, "received " + SHUTDOWN );
+                synchronized ( this )
+                {
+                    controlConnection = socket;
+                }
+                break;
+            }
+
             // Close the socket now that we are done with it
             try
             {
@@ -419,16 +730,8 @@ public class Bootstrapper
                 log.debug( "Failed on socket close", e );
             }
 
-            // Match against our command string
-            boolean match = command.toString().equals( SHUTDOWN );
-            if ( match )
-            {
-                break;
-            }
-            else
-            {
-                log.warn( "Server.await: Invalid command '" + command.toString() + "' received" );
-            }
+            log.warn( "Server.await: Invalid command '" + command.toString() + "' received" );
+            recordEvent( EventRing.CONTROL, "invalid command '" + command.toString() + "'" );
         }
 
         // Close the server socket and return
@@ -441,10 +744,7 @@ public class Bootstrapper
             log.debug( "Failed on socket close", e );
         }
 
-        File shutdownPortFile = new File( layout.getRunDirectory(), SHUTDOWN_FILE );
-        if ( shutdownPortFile.exists() )
-        {
-            shutdownPortFile.delete();
-        }
+        // the shutdown port file is left in place until the shutdown is 
+        // acknowledged so stop clients can tell when the daemon is done
     }
 }
@@ -0,0 +1,303 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+
+/**
+ * A lightweight client for the control port of a running daemon.  It only
+ * needs the run directory of the installation: the layout is not verified,
+ * no configuration is loaded and no application ClassLoader is built so the
+ * stop and status commands return as fast as possible.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ControlClient
+{
+    /** the file in the run directory holding the control port */
+    public static final String SHUTDOWN_FILE = "shutdownPort";
+    /** Shutdown command understood by the control port */
+    public static final String SHUTDOWN = "SHUTDOWN";
+    /** exit code returned when the daemon is not running, as used by LSB init scripts */
+    public static final int NOT_RUNNING = 3;
+    /** prefix of the lines reporting a stop phase back to the client */
+    public static final String PHASE = "PHASE";
+    /** prefix of the final line carrying the exit code of the daemon */
+    public static final String DONE = "DONE";
+
+    private static final long POLL_INTERVAL = 250;
+
+    private final File runDirectory;
+
+
+    public ControlClient( File runDirectory )
+    {
+        this.runDirectory = runDirectory;
+    }
+
+
+    public File getShutdownPortFile()
+    {
+        return new File( runDirectory, SHUTDOWN_FILE );
+    }
+
+
+    /**
+     * Gets the control port of the running daemon.
+     *
+     * @return the port or -1 if no daemon has published one
+     */
+    public int getControlPort() throws IOException
+    {
+        File shutdownPortFile = getShutdownPortFile();
+        if ( !shutdownPortFile.exists() )
+        {
+            return -1;
+        }
+
+        BufferedReader in = new BufferedReader( new FileReader( shutdownPortFile ) );
+        try
+        {
+            String line = in.readLine();
+            return line == null ? -1 : Integer.parseInt( line.trim() );
+        }
+        catch ( NumberFormatException e )
+        {
+            return -1;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Gets the process id published by the running daemon.
+     *
+     * @return the process id or null if no daemon has published one
+     */
+    public String getPid() throws IOException
+    {
+        File shutdownPortFile = getShutdownPortFile();
+        if ( !shutdownPortFile.exists() )
+        {
+            return null;
+        }
+
+        BufferedReader in = new BufferedReader( new FileReader( shutdownPortFile ) );
+        try
+        {
+            in.readLine();
+            String line = in.readLine();
+            return line == null ? null : line.trim();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Checks whether a daemon holds the instance lock of the installation.
+     * Files left behind by a crashed daemon do not matter since the lock is
+     * dropped by the operating system when the process goes away.
+     */
+    public boolean isRunning() throws IOException
+    {
+        return InstanceLock.isHeld( runDirectory );
+    }
+
+
+    /**
+     * Sends the shutdown command to the control port without waiting.
+     *
+     * @throws IllegalStateException if the daemon does not seem to be running
+     */
+    public void sendShutdown() throws IOException
+    {
+        int port = getControlPort();
+        if ( port == -1 )
+        {
+            String msg = "The server does not seem to be running!  The shutdown port file\n";
+            msg += getShutdownPortFile() + " does not exist!";
+            throw new IllegalStateException( msg );
+        }
+
+        // this stops the main thread listening for shutdown requests
+        Socket socket = new Socket( "127.0.0.1", port );
+        try
+        {
+            OutputStream stream = socket.getOutputStream();
+            stream.write( ( SHUTDOWN + "\n" ).getBytes( "US-ASCII" ) );
+            stream.flush();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+
+    /**
+     * Sends the shutdown command and waits for the daemon to complete its
+     * shutdown.  The daemon keeps the connection open, reports each stop phase
+     * and finally answers with its exit code once the application released its
+     * resources.  Should the connection close without a status the daemon is
+     * waited on until its process releases the instance lock.
+     *
+     * @param timeout the time to wait for the acknowledgement in milliseconds
+     * @param progress where to report progress, may be null
+     * @return the exit code of the daemon, {@link #NOT_RUNNING} if there
+     * was no daemon to stop or {@link ExitCodes#STOP} on timeout
+     */
+    public int stop( long timeout, PrintStream progress ) throws IOException
+    {
+        if ( !isRunning() )
+        {
+            report( progress, "not running\n" );
+            return NOT_RUNNING;
+        }
+
+        int port = getControlPort();
+        if ( port == -1 )
+        {
+            report( progress, "still starting: the control port is not open yet\n" );
+            return ExitCodes.STOP;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        if ( deadline < 0 )
+        {
+            // a timeout this large overflowed, it means no deadline
+            deadline = Long.MAX_VALUE;
+        }
+        Socket socket = new Socket( "127.0.0.1", port );
+
+        report( progress, "stopping" );
+        try
+        {
+            OutputStream out = socket.getOutputStream();
+            out.write( ( SHUTDOWN + "\n" ).getBytes( "US-ASCII" ) );
+            out.flush();
+
+            BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), "US-ASCII" ) );
+            while ( true )
+            {
+                // every read only gets what is left of the time so phases cannot extend it
+                long remaining = deadline - System.currentTimeMillis();
+                if ( remaining <= 0 )
+                {
+                    throw new SocketTimeoutException( "Stop timed out" );
+                }
+                socket.setSoTimeout( ( int ) Math.min( remaining, Integer.MAX_VALUE ) );
+
+                String line = in.readLine();
+                if ( line == null )
+                {
+                    break;
+                }
+
+                if ( line.startsWith( PHASE + " " ) )
+                {
+                    report( progress, " " + line.substring( PHASE.length() + 1 ) + "..." );
+                }
+                else if ( line.startsWith( DONE + " " ) )
+                {
+                    int exitCode = Integer.parseInt( line.substring( DONE.length() + 1 ).trim() );
+                    report( progress, exitCode == 0 ? " stopped\n" : " failed with exit code " + exitCode + "\n" );
+                    return exitCode;
+                }
+            }
+        }
+        catch ( SocketTimeoutException e )
+        {
+            report( progress, " timed out after " + ( timeout / 1000 ) + "s\n" );
+            return ExitCodes.STOP;
+        }
+        catch ( NumberFormatException e )
+        {
+            report( progress, " bad status from daemon: " + e.getMessage() + "\n" );
+            return ExitCodes.UNKNOWN;
+        }
+        finally
+        {
+            socket.close();
+        }
+
+        // the connection closed without a status: wait for the process to go
+        return awaitExit( deadline, timeout, progress );
+    }
+
+
+    private int awaitExit( long deadline, long timeout, PrintStream progress ) throws IOException
+    {
+        long lastDot = System.currentTimeMillis();
+        while ( isRunning() )
+        {
+            if ( System.currentTimeMillis() > deadline )
+            {
+                report( progress, " timed out after " + ( timeout / 1000 ) + "s\n" );
+                return ExitCodes.STOP;
+            }
+
+            if ( System.currentTimeMillis() - lastDot >= 1000 )
+            {
+                report( progress, "." );
+                lastDot = System.currentTimeMillis();
+            }
+
+            try
+            {
+                Thread.sleep( POLL_INTERVAL );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return ExitCodes.STOP;
+            }
+        }
+
+        report( progress, " stopped\n" );
+        return 0;
+    }
+
+
+    private static void report( PrintStream progress, String msg )
+    {
+        if ( progress != null )
+        {
+            progress.print( msg );
+            progress.flush();
+        }
+    }
+}
@@ -0,0 +1,587 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Upgrades an installation in place with a delta package made by the
+ * installers plugin from the image of the installed version and the image
+ * of the new one.  The package is a zip holding an index and the data of
+ * the files which were added or changed:
+ * <pre>
+ *   delta.index        the first line is "delta\t1", then one line per file:
+ *                      add\t&lt;new md5&gt;\t&lt;x|-&gt;\t&lt;path&gt;
+ *                      replace\t&lt;old md5&gt;\t&lt;new md5&gt;\t&lt;x|-&gt;\t&lt;path&gt;
+ *                      patch\t&lt;old md5&gt;\t&lt;new md5&gt;\t&lt;x|-&gt;\t&lt;path&gt;
+ *                      remove\t&lt;old md5&gt;\t&lt;path&gt;
+ *   data/&lt;path&gt;        the content of an added or replaced file or the patch of a changed one
+ * </pre>
+ * Paths are relative to the installation base and x marks executables.  A
+ * changed file goes in whole as a replace, which names its old content like
+ * a patch does.  An add is for files whose old content the delta does not
+ * know, most of them new to the version, and overwrites whatever is there.  A
+ * patch is a sequence of instructions, each a byte followed by its operands
+ * as written by DataOutputStream: {@link #COPY} with a long offset and an int
+ * length copies bytes of the installed file, {@link #LITERAL} with an int
+ * length is followed by that many new bytes and {@link #END} ends the patch.
+ * <p>
+ * Applying is all or nothing as far as the content goes.  Every installed
+ * file the delta changes is first checked against the hash of the version
+ * the delta was made for, then all new files are built next to the old ones
+ * and checked against their hashes, and only then are they moved into place
+ * and the removed files deleted.  Files which already have their new content
+ * are left alone so a delta can be applied again after an interruption.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class DeltaApplier
+{
+    private static final Logger log = LoggerFactory.getLogger( DeltaApplier.class );
+
+    /** the entry holding the index of the delta */
+    public static final String INDEX_ENTRY = "delta.index";
+    /** the prefix of the entries holding file contents and patches */
+    public static final String DATA_PREFIX = "data/";
+    /** the first line of the index */
+    public static final String FORMAT = "delta\t1";
+    public static final String ADD = "add";
+    public static final String REPLACE = "replace";
+    public static final String PATCH = "patch";
+    public static final String REMOVE = "remove";
+    public static final String EXECUTABLE = "x";
+    public static final String NOT_EXECUTABLE = "-";
+    /** copies bytes of the installed file: long offset, int length */
+    public static final int COPY = 'C';
+    /** new bytes: int length and the bytes */
+    public static final int LITERAL = 'L';
+    /** ends a patch */
+    public static final int END = 'E';
+
+    /** suffix of the new files while they are built */
+    private static final String NEW_SUFFIX = ".delta-new";
+
+    /** java.io.File.setExecutable(boolean, boolean) when running on Java 6 or later */
+    private static final Method SET_EXECUTABLE;
+
+    static
+    {
+        Method setExecutable = null;
+        try
+        {
+            setExecutable = File.class.getMethod( "setExecutable", new Class[]
+                { Boolean.TYPE, Boolean.TYPE } );
+        }
+        catch ( Exception e )
+        {
+            setExecutable = null;
+        }
+        SET_EXECUTABLE = setExecutable;
+    }
+
+    private final InstallationLayout layout;
+    private int changed = 0;
+    private int removed = 0;
+    private int upToDate = 0;
+
+
+    public DeltaApplier( InstallationLayout layout )
+    {
+        this.layout = layout;
+    }
+
+
+    /**
+     * Applies a delta package to the installation.
+     *
+     * @throws IOException if the package is broken, the installation is not
+     * the version the delta was made for or the files cannot be written
+     */
+    public void apply( File delta ) throws IOException
+    {
+        ZipFile zip = new ZipFile( delta );
+        try
+        {
+            List changes = readIndex( zip );
+            verify( changes );
+
+            List built = new ArrayList();
+            boolean done = false;
+            try
+            {
+                for ( int ii = 0; ii < changes.size(); ii++ )
+                {
+                    Change change = ( Change ) changes.get( ii );
+                    if ( !change.skip && !change.op.equals( REMOVE ) )
+                    {
+                        built.add( change );
+                        build( zip, change );
+                    }
+                }
+                done = true;
+            }
+            finally
+            {
+                if ( !done )
+                {
+                    for ( int ii = 0; ii < built.size(); ii++ )
+                    {
+                        ( ( Change ) built.get( ii ) ).getNewFile().delete();
+                    }
+                }
+            }
+
+            // nothing can go wrong with the content any more
+            for ( int ii = 0; ii < built.size(); ii++ )
+            {
+                commit( ( Change ) built.get( ii ) );
+                changed++;
+            }
+            for ( int ii = 0; ii < changes.size(); ii++ )
+            {
+                Change change = ( Change ) changes.get( ii );
+                if ( !change.skip && change.op.equals( REMOVE ) )
+                {
+                    if ( !change.file.delete() && change.file.exists() )
+                    {
+                        throw new IOException( "Failed to remove " + change.file );
+                    }
+                    removed++;
+                }
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+
+        log.info( "Applied " + delta + ": " + changed + " files written, " + removed + " removed, " + upToDate
+            + " already up to date" );
+    }
+
+
+    public int getChanged()
+    {
+        return changed;
+    }
+
+
+    public int getRemoved()
+    {
+        return removed;
+    }
+
+
+    public int getUpToDate()
+    {
+        return upToDate;
+    }
+
+
+    private List readIndex( ZipFile zip ) throws IOException
+    {
+        ZipEntry entry = zip.getEntry( INDEX_ENTRY );
+        if ( entry == null )
+        {
+            throw new IOException( zip.getName() + " is not a delta package: it has no " + INDEX_ENTRY );
+        }
+
+        List changes = new ArrayList();
+        BufferedReader in = new BufferedReader( new InputStreamReader( zip.getInputStream( entry ), "UTF-8" ) );
+        try
+        {
+            String line = in.readLine();
+            if ( !FORMAT.equals( line ) )
+            {
+                throw new IOException( "Unsupported delta format in " + zip.getName() + ": " + line );
+            }
+
+            while ( ( line = in.readLine() ) != null )
+            {
+                if ( line.length() == 0 )
+                {
+                    continue;
+                }
+
+                String[] fields = line.split( "\t" );
+                Change change = new Change();
+                change.op = fields[0];
+                if ( change.op.equals( ADD ) && fields.length == 4 )
+                {
+                    change.newHash = fields[1];
+                    change.executable = EXECUTABLE.equals( fields[2] );
+                    change.path = fields[3];
+                }
+                else if ( ( change.op.equals( PATCH ) || change.op.equals( REPLACE ) ) && fields.length == 5 )
+                {
+                    change.oldHash = fields[1];
+                    change.newHash = fields[2];
+                    change.executable = EXECUTABLE.equals( fields[3] );
+                    change.path = fields[4];
+                }
+                else if ( change.op.equals( REMOVE ) && fields.length == 3 )
+                {
+                    change.oldHash = fields[1];
+                    change.path = fields[2];
+                }
+                else
+                {
+                    throw new IOException( "Bad line in the index of " + zip.getName() + ": " + line );
+                }
+                change.file = resolve( change.path );
+                changes.add( change );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return changes;
+    }
+
+
+    /**
+     * Resolves a path of the index in the installation, refusing paths which
+     * would leave it.
+     */
+    private File resolve( String path ) throws IOException
+    {
+        String[] segments = path.split( "/" );
+        if ( path.startsWith( "/" ) || path.indexOf( '\\' ) != -1 || path.indexOf( ':' ) != -1 )
+        {
+            throw new IOException( "Illegal path in delta: " + path );
+        }
+
+        File file = layout.getBaseDirectory();
+        for ( int ii = 0; ii < segments.length; ii++ )
+        {
+            if ( segments[ii].length() == 0 || segments[ii].equals( "." ) || segments[ii].equals( ".." ) )
+            {
+                throw new IOException( "Illegal path in delta: " + path );
+            }
+            file = new File( file, segments[ii] );
+        }
+        return file;
+    }
+
+
+    /**
+     * Checks that the installation is the version the delta was made for,
+     * marking the files which already are as the delta makes them.
+     */
+    private void verify( List changes ) throws IOException
+    {
+        List mismatches = new ArrayList();
+        for ( int ii = 0; ii < changes.size(); ii++ )
+        {
+            Change change = ( Change ) changes.get( ii );
+            String hash = change.file.isFile() ? hash( change.file ) : null;
+            if ( change.op.equals( REMOVE ) )
+            {
+                change.skip = hash == null;
+            }
+            else
+            {
+                change.skip = change.newHash.equals( hash );
+            }
+
+            if ( change.skip )
+            {
+                upToDate++;
+            }
+            else if ( change.oldHash != null && !change.oldHash.equals( hash ) )
+            {
+                mismatches.add( change.path );
+            }
+        }
+
+        if ( !mismatches.isEmpty() )
+        {
+            StringBuffer buf = new StringBuffer();
+            buf.append( mismatches.size() ).append( " files of " ).append( layout.getBaseDirectory() );
+            buf.append( " differ from the version the delta was made for, nothing was changed:" );
+            for ( int ii = 0; ii < mismatches.size(); ii++ )
+            {
+                buf.append( "\n\t" ).append( mismatches.get( ii ) );
+            }
+            throw new IOException( buf.toString() );
+        }
+    }
+
+
+    /**
+     * Writes the new content of a file next to it and checks its hash.
+     */
+    private void build( ZipFile zip, Change change ) throws IOException
+    {
+        ZipEntry entry = zip.getEntry( DATA_PREFIX + change.path );
+        if ( entry == null )
+        {
+            throw new IOException( "Delta " + zip.getName() + " lacks the data of " + change.path );
+        }
+
+        File newFile = change.getNewFile();
+        newFile.getParentFile().mkdirs();
+        MessageDigest digest = newDigest();
+        OutputStream out = new DigestOutputStream( new BufferedOutputStream( new FileOutputStream( newFile ), 65536 ),
+            digest );
+        InputStream in = new BufferedInputStream( zip.getInputStream( entry ), 65536 );
+        try
+        {
+            if ( change.op.equals( ADD ) || change.op.equals( REPLACE ) )
+            {
+                copy( in, out, -1 );
+            }
+            else
+            {
+                patch( change.file, new DataInputStream( in ), out );
+            }
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+
+        String hash = toHex( digest.digest() );
+        if ( !hash.equals( change.newHash ) )
+        {
+            throw new IOException( "The new content of " + change.path + " has hash " + hash + " instead of "
+                + change.newHash );
+        }
+    }
+
+
+    private static void patch( File old, DataInputStream in, OutputStream out ) throws IOException
+    {
+        RandomAccessFile source = new RandomAccessFile( old, "r" );
+        try
+        {
+            byte[] buf = new byte[65536];
+            while ( true )
+            {
+                int op = in.read();
+                if ( op == END )
+                {
+                    return;
+                }
+                else if ( op == COPY )
+                {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    source.seek( offset );
+                    while ( length > 0 )
+                    {
+                        int read = source.read( buf, 0, Math.min( length, buf.length ) );
+                        if ( read == -1 )
+                        {
+                            throw new EOFException( "Patch copies beyond the end of " + old );
+                        }
+                        out.write( buf, 0, read );
+                        length -= read;
+                    }
+                }
+                else if ( op == LITERAL )
+                {
+                    copy( in, out, in.readInt() );
+                }
+                else
+                {
+                    throw new IOException( "Bad patch instruction " + op + " for " + old );
+                }
+            }
+        }
+        finally
+        {
+            source.close();
+        }
+    }
+
+
+    /**
+     * Copies a number of bytes or, with a negative length, all of them.
+     */
+    private static void copy( InputStream in, OutputStream out, long length ) throws IOException
+    {
+        byte[] buf = new byte[65536];
+        while ( length != 0 )
+        {
+            int read = in.read( buf, 0, length < 0 ? buf.length : ( int ) Math.min( length, buf.length ) );
+            if ( read == -1 )
+            {
+                if ( length < 0 )
+                {
+                    return;
+                }
+                throw new EOFException( "Delta data ends early" );
+            }
+            out.write( buf, 0, read );
+            if ( length > 0 )
+            {
+                length -= read;
+            }
+        }
+    }
+
+
+    /**
+     * Moves a new file into place, keeping it executable if it should be.
+     */
+    private void commit( Change change ) throws IOException
+    {
+        File newFile = change.getNewFile();
+        if ( change.executable && SET_EXECUTABLE != null )
+        {
+            try
+            {
+                SET_EXECUTABLE.invoke( newFile, new Object[]
+                    { Boolean.TRUE, Boolean.FALSE } );
+            }
+            catch ( Exception e )
+            {
+                log.warn( "Failed to make " + change.file + " executable", e );
+            }
+        }
+
+        // windows does not rename over existing files
+        if ( !newFile.renameTo( change.file ) && !( change.file.delete() && newFile.renameTo( change.file ) ) )
+        {
+            throw new IOException( "Failed to move " + newFile + " to " + change.file );
+        }
+    }
+
+
+    /**
+     * Gets the MD5 hash of the content of a file as hex.
+     */
+    public static String hash( File file ) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buf = new byte[65536];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                digest.update( buf, 0, read );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return toHex( digest.digest() );
+    }
+
+
+    /**
+     * Gets an MD5 digest, the hash of the files of deltas and images.
+     */
+    public static MessageDigest newDigest()
+    {
+        return newDigest( "MD5" );
+    }
+
+
+    /**
+     * Gets a digest of an algorithm every Java runtime has.
+     *
+     * @throws IllegalStateException if the runtime lacks it after all
+     */
+    public static MessageDigest newDigest( String algorithm )
+    {
+        try
+        {
+            return MessageDigest.getInstance( algorithm );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( algorithm + " is not available: " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     * Formats a hash as lower case hex.
+     */
+    public static String toHex( byte[] bytes )
+    {
+        StringBuffer buf = new StringBuffer( bytes.length * 2 );
+        for ( int ii = 0; ii < bytes.length; ii++ )
+        {
+            int value = bytes[ii] & 0xff;
+            if ( value < 0x10 )
+            {
+                buf.append( '0' );
+            }
+            buf.append( Integer.toHexString( value ) );
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * A file the delta adds, patches or removes.
+     */
+    private static class Change
+    {
+        String op;
+        String path;
+        File file;
+        String oldHash;
+        String newHash;
+        boolean executable;
+        /** whether the file already is as the delta makes it */
+        boolean skip;
+
+
+        File getNewFile()
+        {
+            return new File( file.getParentFile(), file.getName() + NEW_SUFFIX );
+        }
+    }
+}
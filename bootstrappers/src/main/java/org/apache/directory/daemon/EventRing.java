@@ -0,0 +1,247 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+
+/**
+ * A fixed size ring of compact binary event records kept in a memory mapped
+ * file.  Appending a record only writes into the mapped pages so there is no
+ * system call on the hot path, yet the records survive a kill -9 or an OOM
+ * kill of the process because the pages belong to the kernel's page cache.
+ * The last records can be decoded after a crash using {@link EventRingDump}.
+ * <p>
+ * The file starts with a header followed by <code>capacity</code> slots of
+ * {@link #RECORD_SIZE} bytes each.  A record is committed by writing its
+ * sequence number last so a record torn by a crash is simply ignored.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class EventRing
+{
+    public static final String FILE_NAME = "events.ring";
+
+    public static final byte LIFECYCLE = 1;
+    public static final byte CONTROL = 2;
+    public static final byte MEMORY = 3;
+    public static final byte ERROR = 4;
+
+    static final int MAGIC = 0x44455652; // "DEVR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_SIZE = 128;
+
+    private static final int TIME_OFFSET = 8;
+    private static final int TYPE_OFFSET = 16;
+    private static final int LENGTH_OFFSET = 18;
+    private static final int MESSAGE_OFFSET = 20;
+    private static final int MAX_MESSAGE = RECORD_SIZE - MESSAGE_OFFSET;
+    private static final String[] TYPE_NAMES = new String[]
+        { "?", "LIFECYCLE", "CONTROL", "MEMORY", "ERROR" };
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private long sequence;
+
+
+    /**
+     * Opens or creates the ring file.  Records of a previous run are kept and
+     * new records are appended after them as long as the file has the same
+     * geometry, otherwise the file is wiped.
+     *
+     * @param file the ring file
+     * @param capacity the number of records the ring holds
+     */
+    public EventRing( File file, int capacity ) throws IOException
+    {
+        this.capacity = capacity;
+        long size = HEADER_SIZE + ( long ) capacity * RECORD_SIZE;
+        boolean reuse = file.length() == size;
+
+        raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( size );
+        buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+
+        if ( reuse && buffer.getInt( 0 ) == MAGIC && buffer.getInt( 4 ) == VERSION
+            && buffer.getInt( 8 ) == RECORD_SIZE && buffer.getInt( 12 ) == capacity )
+        {
+            sequence = buffer.getLong( 24 );
+        }
+        else
+        {
+            for ( int ii = 0; ii < size; ii++ )
+            {
+                buffer.put( ii, ( byte ) 0 );
+            }
+
+            buffer.putInt( 0, MAGIC );
+            buffer.putInt( 4, VERSION );
+            buffer.putInt( 8, RECORD_SIZE );
+            buffer.putInt( 12, capacity );
+            sequence = 0;
+        }
+    }
+
+
+    /**
+     * Appends a record, overwriting the oldest one when the ring is full.
+     * Messages longer than a slot allows are truncated.
+     *
+     * @param type one of the type constants
+     * @param message a short description of the event
+     */
+    public synchronized void append( byte type, String message )
+    {
+        byte[] bytes = encode( message );
+        int length = Math.min( bytes.length, MAX_MESSAGE );
+        int offset = HEADER_SIZE + ( int ) ( sequence % capacity ) * RECORD_SIZE;
+
+        // invalidate the slot first so a torn write is never decoded
+        buffer.putLong( offset, 0 );
+        buffer.putLong( offset + TIME_OFFSET, System.currentTimeMillis() );
+        buffer.put( offset + TYPE_OFFSET, type );
+        buffer.putShort( offset + LENGTH_OFFSET, ( short ) length );
+        for ( int ii = 0; ii < length; ii++ )
+        {
+            buffer.put( offset + MESSAGE_OFFSET + ii, bytes[ii] );
+        }
+
+        sequence++;
+        buffer.putLong( offset, sequence );
+        buffer.putLong( 24, sequence );
+    }
+
+
+    /**
+     * Forces the records to disk and unmaps the file.
+     */
+    public synchronized void close()
+    {
+        try
+        {
+            buffer.force();
+            raf.close();
+        }
+        catch ( IOException e )
+        {
+            // nothing we can do about it while going down
+        }
+    }
+
+
+    /**
+     * Decodes the most recent records of a ring file, oldest first.
+     *
+     * @param file the ring file
+     * @param count the maximum number of records to return
+     * @return formatted records
+     */
+    public static List readLast( File file, int count ) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        List records = new ArrayList();
+
+        try
+        {
+            ByteBuffer buf = in.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, in.length() );
+            if ( in.length() < HEADER_SIZE || buf.getInt( 0 ) != MAGIC )
+            {
+                throw new IOException( file + " is not an event ring file" );
+            }
+
+            int recordSize = buf.getInt( 8 );
+            int slots = buf.getInt( 12 );
+            for ( int ii = 0; ii < slots; ii++ )
+            {
+                int offset = HEADER_SIZE + ii * recordSize;
+                long seq = buf.getLong( offset );
+                if ( seq == 0 || ( seq - 1 ) % slots != ii )
+                {
+                    continue;
+                }
+
+                int length = Math.min( buf.getShort( offset + LENGTH_OFFSET ), recordSize - MESSAGE_OFFSET );
+                byte[] message = new byte[Math.max( length, 0 )];
+                for ( int jj = 0; jj < message.length; jj++ )
+                {
+                    message[jj] = buf.get( offset + MESSAGE_OFFSET + jj );
+                }
+
+                records.add( new Object[]
+                    { new Long( seq ), new Long( buf.getLong( offset + TIME_OFFSET ) ),
+                        new Byte( buf.get( offset + TYPE_OFFSET ) ), new String( message, "UTF-8" ) } );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        Collections.sort( records, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                return ( ( Long ) ( ( Object[] ) o1 )[0] ).compareTo( ( Long ) ( ( Object[] ) o2 )[0] );
+            }
+        } );
+
+        SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS" );
+        List lines = new ArrayList();
+        for ( int ii = Math.max( 0, records.size() - count ); ii < records.size(); ii++ )
+        {
+            Object[] record = ( Object[] ) records.get( ii );
+            int type = ( ( Byte ) record[2] ).intValue();
+            String typeName = type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : TYPE_NAMES[0];
+            lines.add( "#" + record[0] + " " + format.format( new Date( ( ( Long ) record[1] ).longValue() ) ) + " "
+                + typeName + " " + record[3] );
+        }
+
+        return lines;
+    }
+
+
+    private static byte[] encode( String message )
+    {
+        try
+        {
+            return String.valueOf( message ).getBytes( "UTF-8" );
+        }
+        catch ( UnsupportedEncodingException e )
+        {
+            return String.valueOf( message ).getBytes();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.File;
+import java.util.List;
+
+
+/**
+ * Prints the last records of the event ring left behind by a daemon, for
+ * example after it was killed:
+ * <pre>
+ *   java -cp bootstrapper.jar org.apache.directory.daemon.EventRingDump &lt;app.home&gt; [count]
+ * </pre>
+ * The first argument may also point directly at a ring file.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class EventRingDump
+{
+    public static void main( String[] args )
+    {
+        if ( args.length < 1 )
+        {
+            System.err.println( "java -cp bootstrapper.jar " + EventRingDump.class.getName()
+                + " <app.home|ring.file> [count]" );
+            System.exit( ExitCodes.BAD_ARGUMENTS );
+        }
+
+        File file = new File( args[0] );
+        if ( file.isDirectory() )
+        {
+            file = new File( new InstallationLayout( file ).getRunDirectory(), EventRing.FILE_NAME );
+        }
+
+        int count = Integer.MAX_VALUE;
+        if ( args.length > 1 )
+        {
+            count = Integer.parseInt( args[1] );
+        }
+
+        try
+        {
+            List lines = EventRing.readLast( file, count );
+            for ( int ii = 0; ii < lines.size(); ii++ )
+            {
+                System.out.println( lines.get( ii ) );
+            }
+        }
+        catch ( Exception e )
+        {
+            System.err.println( "Failed to read " + file + ": " + e.getMessage() );
+            System.exit( ExitCodes.UNKNOWN );
+        }
+    }
+}
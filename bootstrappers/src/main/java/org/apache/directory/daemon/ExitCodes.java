@@ -41,4 +41,7 @@ public interface ExitCodes
     int BAD_COMMAND = 11;
     int UNKNOWN = 12;
     int INVOCATION = 13;
+    int ALREADY_RUNNING = 14;
+    int UPGRADE = 15;
+    int SWITCH = 16;
 }
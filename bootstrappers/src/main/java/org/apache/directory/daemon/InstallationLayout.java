@@ -22,6 +22,7 @@ package org.apache.directory.daemon;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -32,6 +33,13 @@ import org.slf4j.LoggerFactory;
 /**
  * Convenience class to encapsulate paths to various folders and files within
  * an installation.
+ * <p>
+ * An installation is either a single release or a side by side installation
+ * holding the releases below {@link #RELEASES_DIRECTORY} with a
+ * {@link #CURRENT_LINK} symbolic link to the one which runs.  The release is
+ * resolved through the link once when the layout is made, so a switch to
+ * another release only takes effect on the next start, while the var
+ * directory stays next to the releases and is shared by all of them.
  * 
  * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
  * @version $Rev$
@@ -40,6 +48,10 @@ public class InstallationLayout
 {
     private final static Logger log = LoggerFactory.getLogger( InstallationLayout.class );
     private final static FileFilter JAR_FILTER;
+    /** the directory of a side by side installation holding the releases */
+    public final static String RELEASES_DIRECTORY = "releases";
+    /** the link of a side by side installation to the release which runs */
+    public final static String CURRENT_LINK = "current";
 
     static
     {
@@ -53,6 +65,7 @@ public class InstallationLayout
     }
 
     protected final File baseDirectory;
+    private final File rootDirectory;
     private transient File[] dirs;
     private transient File[] files;
     private transient URL[] allJars = null;
@@ -62,22 +75,82 @@ public class InstallationLayout
 
     public InstallationLayout(File baseDirectory)
     {
-        this.baseDirectory = baseDirectory;
+        this.rootDirectory = baseDirectory;
+        this.baseDirectory = resolveRelease( baseDirectory );
     }
 
 
     public InstallationLayout(String baseDirectoryPath)
     {
-        this.baseDirectory = new File( baseDirectoryPath );
+        this( new File( baseDirectoryPath ) );
     }
 
 
+    /**
+     * Gets the directory of the release: the installation itself or, for a
+     * side by side installation, the release the current link pointed to.
+     */
     public File getBaseDirectory()
     {
         return baseDirectory;
     }
 
 
+    /**
+     * Gets the directory the layout was made for, which holds the var 
+     * directory.  It differs from the base directory only for side by side
+     * installations.
+     */
+    public File getRootDirectory()
+    {
+        return rootDirectory;
+    }
+
+
+    public boolean isSideBySide()
+    {
+        return isSideBySide( rootDirectory );
+    }
+
+
+    public File getReleasesDirectory()
+    {
+        return new File( rootDirectory, RELEASES_DIRECTORY );
+    }
+
+
+    public File getCurrentLink()
+    {
+        return new File( rootDirectory, CURRENT_LINK );
+    }
+
+
+    private static boolean isSideBySide( File root )
+    {
+        return new File( root, RELEASES_DIRECTORY ).isDirectory() && new File( root, CURRENT_LINK ).isDirectory();
+    }
+
+
+    private static File resolveRelease( File root )
+    {
+        if ( !isSideBySide( root ) )
+        {
+            return root;
+        }
+
+        File current = new File( root, CURRENT_LINK );
+        try
+        {
+            return current.getCanonicalFile();
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Failed to resolve " + current + ", following it on every access", e );
+            return current;
+        }
+    }
+
+
     public File getBinDirectory()
     {
         return new File( baseDirectory, "bin" );
@@ -90,9 +163,19 @@ public class InstallationLayout
     }
 
 
+    /**
+     * The Java runtime bundled with the installation, if any.  It is optional
+     * so it is neither made nor verified.
+     */
+    public File getRuntimeDirectory()
+    {
+        return new File( baseDirectory, "jre" );
+    }
+
+
     public File getVarDirectory()
     {
-        return new File( baseDirectory, "var" );
+        return new File( rootDirectory, "var" );
     }
 
 
@@ -0,0 +1,215 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+
+/**
+ * An advisory lock on a file in the run directory of an installation which a
+ * daemon holds for the life of its process.  The operating system drops the
+ * lock when the process goes away, however it terminates, so unlike the
+ * presence of a file the lock is never stale.  Once the control port is open
+ * the daemon publishes it along with its process id next to the lock.
+ * <p>
+ * Note that the lock must not be probed with {@link #isHeld(File)} from the
+ * process holding it: closing any other channel on the lock file releases
+ * the locks of the whole process on most platforms.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class InstanceLock
+{
+    /** the lock file in the run directory */
+    public static final String FILE_NAME = "server.lock";
+
+    private final File runDirectory;
+    private RandomAccessFile raf;
+    private FileLock lock;
+
+
+    public InstanceLock( File runDirectory )
+    {
+        this.runDirectory = runDirectory;
+    }
+
+
+    public File getLockFile()
+    {
+        return new File( runDirectory, FILE_NAME );
+    }
+
+
+    /**
+     * Tries to take the lock without waiting.
+     *
+     * @return true if the lock was taken, false if another process holds it
+     */
+    public synchronized boolean acquire() throws IOException
+    {
+        if ( lock != null )
+        {
+            return true;
+        }
+
+        raf = new RandomAccessFile( getLockFile(), "rw" );
+        try
+        {
+            lock = raf.getChannel().tryLock();
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            lock = null;
+        }
+
+        if ( lock == null )
+        {
+            raf.close();
+            raf = null;
+            return false;
+        }
+
+        // informational only: the lock and not the content marks the owner
+        raf.setLength( 0 );
+        raf.write( ( getPid() + "\n" ).getBytes( "US-ASCII" ) );
+        return true;
+    }
+
+
+    /**
+     * Writes the control port and process id of this process to the given
+     * file.  The content is written to a temporary file first which is then
+     * renamed so readers never see a partially written file.  Must only be
+     * called while holding the lock: any existing file is then stale.
+     *
+     * @param endpointFile the file to publish
+     * @param port the control port
+     */
+    public void publish( File endpointFile, int port ) throws IOException
+    {
+        File tmp = new File( endpointFile.getParentFile(), endpointFile.getName() + ".tmp" );
+        FileOutputStream out = new FileOutputStream( tmp );
+        try
+        {
+            out.write( ( port + "\n" + getPid() + "\n" ).getBytes( "US-ASCII" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // rename does not replace an existing file on all platforms
+        if ( endpointFile.exists() && !endpointFile.delete() )
+        {
+            throw new IOException( "Failed to delete stale " + endpointFile );
+        }
+
+        if ( !tmp.renameTo( endpointFile ) )
+        {
+            tmp.delete();
+            throw new IOException( "Failed to rename " + tmp + " to " + endpointFile );
+        }
+    }
+
+
+    /**
+     * Releases the lock.  This normally happens implicitly when the process
+     * exits.
+     */
+    public synchronized void release()
+    {
+        if ( lock == null )
+        {
+            return;
+        }
+
+        try
+        {
+            lock.release();
+            raf.close();
+        }
+        catch ( IOException e )
+        {
+            // the lock goes away with the process anyway
+        }
+
+        lock = null;
+        raf = null;
+    }
+
+
+    /**
+     * Checks whether some process holds the lock of an installation.  This
+     * only takes a shared lock for a moment and so does not disturb a daemon
+     * which is starting at the same time.
+     *
+     * @param runDirectory the run directory of the installation
+     * @return true if a daemon holds the lock
+     */
+    public static boolean isHeld( File runDirectory ) throws IOException
+    {
+        File file = new File( runDirectory, FILE_NAME );
+        if ( !file.exists() )
+        {
+            return false;
+        }
+
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try
+        {
+            FileLock probe = in.getChannel().tryLock( 0, Long.MAX_VALUE, true );
+            if ( probe == null )
+            {
+                return true;
+            }
+
+            probe.release();
+            return false;
+        }
+        catch ( OverlappingFileLockException e )
+        {
+            return true;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Gets the process id of this JVM from the name of its runtime bean which
+     * is "pid@host" on the common JVMs.
+     */
+    public static String getPid()
+    {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf( '@' );
+        return at > 0 ? name.substring( 0, at ) : name;
+    }
+}
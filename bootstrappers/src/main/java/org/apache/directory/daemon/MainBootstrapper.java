@@ -20,6 +20,8 @@
 package org.apache.directory.daemon;
 
 
+import java.io.File;
+
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
@@ -34,6 +36,8 @@ import org.slf4j.Logger;
 public class MainBootstrapper extends Bootstrapper
 {
     private static final Logger log = LoggerFactory.getLogger( MainBootstrapper.class );
+    /** system property with the number of seconds stop waits for the server to go away */
+    public static final String STOP_TIMEOUT_PROP = "bootstrap.stop.timeout";
 
 
     // ------------------------------------------------------------------------
@@ -53,15 +57,7 @@ public class MainBootstrapper extends Bootstrapper
             }
         }
 
-        MainBootstrapper instance = new MainBootstrapper();
-        if ( args.length > 1 )
-        {
-            log.debug( "main(String[]) initializing Bootstrapper ... )" );
-            instance.setInstallationLayout( args[0] );
-            instance.setParentLoader( Bootstrapper.class.getClassLoader() );
-            log.debug( "Bootstrapper initialized" );
-        }
-        else
+        if ( args.length < 2 )
         {
             String msg = "Server exiting without required installation.home or command.name.";
             System.err.println( msg );
@@ -71,6 +67,33 @@ public class MainBootstrapper extends Bootstrapper
         }
 
         String command = args[args.length - 1];
+
+        // stop and status only talk to the control port of a running server
+        // so they do not need a verified layout or an application ClassLoader
+        if ( command.equalsIgnoreCase( "stop" ) || command.equalsIgnoreCase( "status" ) )
+        {
+            System.exit( control( args[0], command ) );
+        }
+
+        // upgrading only replaces files of a stopped installation or a new release
+        if ( command.equalsIgnoreCase( "upgrade" ) )
+        {
+            System.exit( upgrade( args ) );
+        }
+
+        // switching releases only moves links, the server picks them up on its next start
+        if ( command.equalsIgnoreCase( "switch" ) || command.equalsIgnoreCase( "rollback" )
+            || command.equalsIgnoreCase( "releases" ) )
+        {
+            System.exit( release( args ) );
+        }
+
+        MainBootstrapper instance = new MainBootstrapper();
+        log.debug( "main(String[]) initializing Bootstrapper ... )" );
+        instance.setInstallationLayout( args[0] );
+        instance.setParentLoader( Bootstrapper.class.getClassLoader() );
+        log.debug( "Bootstrapper initialized" );
+
         try
         {
             if ( command.equalsIgnoreCase( "start" ) )
@@ -87,10 +110,6 @@ public class MainBootstrapper extends Bootstrapper
                 log.debug( "calling callDestroy() from main(String[])" );
                 instance.callDestroy();
             }
-            else if ( command.equalsIgnoreCase( "stop" ) )
-            {
-                instance.sendShutdownCommand();
-            }
             else
             {
                 log.error( "Unrecognized command " + command );
@@ -102,13 +121,200 @@ public class MainBootstrapper extends Bootstrapper
         {
             log.error( "Encountered error while processing command: " + command );
             t.printStackTrace();
+            instance.acknowledgeShutdown( ExitCodes.UNKNOWN );
             System.exit( ExitCodes.UNKNOWN );
         }
     }
 
 
+    /**
+     * Handles the stop and status commands using only the run directory.
+     *
+     * @return the exit code for the process
+     */
+    private static int control( String installationBase, String command )
+    {
+        ControlClient client = new ControlClient( new InstallationLayout( installationBase ).getRunDirectory() );
+
+        try
+        {
+            if ( command.equalsIgnoreCase( "stop" ) )
+            {
+                return client.stop( getStopTimeout(), System.out );
+            }
+
+            if ( client.isRunning() )
+            {
+                int port = client.getControlPort();
+                System.out.println( port == -1 ? "running, still starting" : "running with pid " + client.getPid()
+                    + " and control port " + port );
+                return 0;
+            }
+
+            System.out.println( "not running" );
+            return ControlClient.NOT_RUNNING;
+        }
+        catch ( Throwable t )
+        {
+            log.error( "Encountered error while processing command: " + command, t );
+            return ExitCodes.UNKNOWN;
+        }
+    }
+
+
+    /**
+     * Handles the upgrade command applying a delta package: the arguments are
+     * the installation base, the delta and the command.  A side by side 
+     * installation gets a new release instead, named by an argument before
+     * the command, which is a copy of the current one the delta is applied
+     * to and which is then switched to.  Only the upgrade of a single release
+     * in place needs the server to be stopped.
+     *
+     * @return the exit code for the process
+     */
+    private static int upgrade( String[] args )
+    {
+        InstallationLayout layout = new InstallationLayout( args[0] );
+        if ( args.length != ( layout.isSideBySide() ? 4 : 3 ) )
+        {
+            printHelp();
+            return ExitCodes.BAD_ARGUMENTS;
+        }
+
+        ReleaseSwitch releases = new ReleaseSwitch( layout );
+        File staged = null;
+        try
+        {
+            boolean running = InstanceLock.isHeld( layout.getRunDirectory() );
+            InstallationLayout release = layout;
+            if ( layout.isSideBySide() )
+            {
+                staged = releases.stage( args[2] );
+                release = new InstallationLayout( staged );
+            }
+            else if ( running )
+            {
+                System.err.println( "Stop the server before upgrading it." );
+                return ExitCodes.ALREADY_RUNNING;
+            }
+
+            DeltaApplier applier = new DeltaApplier( release );
+            applier.apply( new File( args[1] ) );
+            System.out.println( "upgraded: " + applier.getChanged() + " files written, " + applier.getRemoved()
+                + " removed, " + applier.getUpToDate() + " already up to date" );
+
+            if ( staged != null )
+            {
+                releases.switchTo( args[2] );
+                System.out.println( "switched to release " + args[2]
+                    + ( running ? ", restart the server to run it" : "" ) );
+            }
+            return 0;
+        }
+        catch ( Throwable t )
+        {
+            if ( staged != null )
+            {
+                releases.discard( staged );
+            }
+            log.error( "Failed to upgrade " + args[0] + " with " + args[1], t );
+            System.err.println( "Failed to upgrade: " + t.getMessage() );
+            return ExitCodes.UPGRADE;
+        }
+    }
+
+
+    /**
+     * Handles the commands of side by side installations: switch, which
+     * takes the release before the command, rollback and releases.
+     *
+     * @return the exit code for the process
+     */
+    private static int release( String[] args )
+    {
+        String command = args[args.length - 1];
+        if ( args.length != ( command.equalsIgnoreCase( "switch" ) ? 3 : 2 ) )
+        {
+            printHelp();
+            return ExitCodes.BAD_ARGUMENTS;
+        }
+
+        InstallationLayout layout = new InstallationLayout( args[0] );
+        if ( !layout.getReleasesDirectory().isDirectory() )
+        {
+            System.err.println( args[0] + " is not a side by side installation: it has no "
+                + InstallationLayout.RELEASES_DIRECTORY + " directory" );
+            return ExitCodes.BAD_ARGUMENTS;
+        }
+
+        ReleaseSwitch releases = new ReleaseSwitch( layout );
+        try
+        {
+            if ( command.equalsIgnoreCase( "releases" ) )
+            {
+                String current = releases.getCurrent();
+                String previous = releases.getPrevious();
+                String[] names = releases.getReleases();
+                for ( int ii = 0; ii < names.length; ii++ )
+                {
+                    String mark = names[ii].equals( current ) ? " (current)" : names[ii].equals( previous )
+                        ? " (previous)" : "";
+                    System.out.println( names[ii] + mark );
+                }
+                return 0;
+            }
+
+            String release;
+            if ( command.equalsIgnoreCase( "switch" ) )
+            {
+                release = args[1];
+                if ( !releases.switchTo( release ) )
+                {
+                    System.out.println( "already on release " + release );
+                    return 0;
+                }
+            }
+            else
+            {
+                release = releases.rollback();
+            }
+
+            boolean running = InstanceLock.isHeld( layout.getRunDirectory() );
+            System.out.println( "switched to release " + release
+                + ( running ? ", restart the server to run it" : "" ) );
+            return 0;
+        }
+        catch ( Throwable t )
+        {
+            log.error( "Failed to " + command + " " + args[0], t );
+            System.err.println( "Failed to " + command + ": " + t.getMessage() );
+            return ExitCodes.SWITCH;
+        }
+    }
+
+
+    /**
+     * Gets the time to wait for a stopping server in milliseconds from the 
+     * bootstrap.stop.timeout system property given in seconds.
+     */
+    static long getStopTimeout()
+    {
+        try
+        {
+            return Long.parseLong( System.getProperty( STOP_TIMEOUT_PROP, "60" ) ) * 1000;
+        }
+        catch ( NumberFormatException e )
+        {
+            return 60 * 1000;
+        }
+    }
+
+
     private static void printHelp()
     {
-        System.err.println( "java -jar bootstrap.jar <app.home> <command.name>" );
+        System.err.println( "java -jar bootstrap.jar <app.home> <start|stop|status>" );
+        System.err.println( "java -jar bootstrap.jar <app.home> <delta> [release] upgrade" );
+        System.err.println( "java -jar bootstrap.jar <app.home> <release> switch" );
+        System.err.println( "java -jar bootstrap.jar <app.home> <rollback|releases>" );
     }
 }
@@ -54,10 +54,11 @@ public class ProcrunBootstrapper extends Bootstrapper
             }
         }
 
+        ProcrunBootstrapper instance = null;
         try
         {
             log.debug( "prunsrvStart(String[]) initializing Bootstrapper ... )" );
-            ProcrunBootstrapper instance = new ProcrunBootstrapper();
+            instance = new ProcrunBootstrapper();
             instance.setInstallationLayout( args[0] );
             instance.setParentLoader( Bootstrapper.class.getClassLoader() );
 
@@ -78,6 +79,10 @@ public class ProcrunBootstrapper extends Bootstrapper
         catch ( Throwable t )
         {
             log.error( "Encountered error in prunsrvStart(String[])", t );
+            if ( instance != null )
+            {
+                instance.acknowledgeShutdown( ExitCodes.UNKNOWN );
+            }
             System.exit( ExitCodes.UNKNOWN );
         }
     }
@@ -97,11 +102,9 @@ public class ProcrunBootstrapper extends Bootstrapper
 
         try
         {
-            log.debug( "prunsrvStop(String[]) initializing Bootstrapper ... )" );
-            ProcrunBootstrapper instance = new ProcrunBootstrapper();
-            instance.setInstallationLayout( args[0] );
-            instance.setParentLoader( Bootstrapper.class.getClassLoader() );
-            instance.sendShutdownCommand();
+            // only the run directory is needed to reach the control port; no
+            // waiting here since procrun may call us inside the server's own JVM
+            new ControlClient( new InstallationLayout( args[0] ).getRunDirectory() ).sendShutdown();
         }
         catch ( Throwable t )
         {
@@ -0,0 +1,442 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Switches the release a side by side installation runs.  The
+ * {@link InstallationLayout#CURRENT_LINK current} link is replaced by
+ * renaming a new link over it, so it always points to a complete release
+ * and a switch is a single atomic rename.  The release switched away from is
+ * remembered by a {@link #PREVIOUS_LINK previous} link the same way, which
+ * makes a rollback just another switch.
+ * <p>
+ * The var directory is not part of any release so the data, logs and run
+ * files carry over.  A running server keeps the release it was started from
+ * until it is restarted.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ReleaseSwitch
+{
+    private static final Logger log = LoggerFactory.getLogger( ReleaseSwitch.class );
+
+    /** the link to the release which ran before the last switch */
+    public static final String PREVIOUS_LINK = "previous";
+    /** the suffix of the links made next to the ones they replace */
+    public static final String NEW_SUFFIX = ".new";
+
+    /** java.io.File.toPath() when running on Java 7 or later */
+    private static final Method TO_PATH;
+    /** java.nio.file.Files.createSymbolicLink(Path, Path, FileAttribute...) */
+    private static final Method CREATE_SYMBOLIC_LINK;
+    private static final Object NO_ATTRIBUTES;
+    /** java.io.File.canExecute() and setExecutable(boolean, boolean) on Java 6 or later */
+    private static final Method CAN_EXECUTE;
+    private static final Method SET_EXECUTABLE;
+
+    static
+    {
+        Method toPath = null;
+        Method createSymbolicLink = null;
+        Object noAttributes = null;
+        try
+        {
+            Class pathClass = Class.forName( "java.nio.file.Path" );
+            Class attributeClass = Class.forName( "java.nio.file.attribute.FileAttribute" );
+            noAttributes = Array.newInstance( attributeClass, 0 );
+            toPath = File.class.getMethod( "toPath", new Class[0] );
+            createSymbolicLink = Class.forName( "java.nio.file.Files" ).getMethod( "createSymbolicLink", new Class[]
+                { pathClass, pathClass, noAttributes.getClass() } );
+        }
+        catch ( Exception e )
+        {
+            toPath = null;
+            createSymbolicLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_SYMBOLIC_LINK = createSymbolicLink;
+        NO_ATTRIBUTES = noAttributes;
+
+        Method canExecute = null;
+        Method setExecutable = null;
+        try
+        {
+            canExecute = File.class.getMethod( "canExecute", new Class[0] );
+            setExecutable = File.class.getMethod( "setExecutable", new Class[]
+                { Boolean.TYPE, Boolean.TYPE } );
+        }
+        catch ( Exception e )
+        {
+            canExecute = null;
+            setExecutable = null;
+        }
+        CAN_EXECUTE = canExecute;
+        SET_EXECUTABLE = setExecutable;
+    }
+
+    private final InstallationLayout layout;
+
+
+    public ReleaseSwitch( InstallationLayout layout )
+    {
+        this.layout = layout;
+    }
+
+
+    /**
+     * Lists the releases of the installation.
+     *
+     * @return the names of the releases, sorted
+     */
+    public String[] getReleases()
+    {
+        File[] children = layout.getReleasesDirectory().listFiles();
+        if ( children == null )
+        {
+            return new String[0];
+        }
+
+        List releases = new ArrayList();
+        for ( int ii = 0; ii < children.length; ii++ )
+        {
+            if ( children[ii].isDirectory() )
+            {
+                releases.add( children[ii].getName() );
+            }
+        }
+        String[] names = ( String[] ) releases.toArray( new String[releases.size()] );
+        Arrays.sort( names );
+        return names;
+    }
+
+
+    /**
+     * @return the release the current link points to or null if there is none
+     */
+    public String getCurrent() throws IOException
+    {
+        return readLink( layout.getCurrentLink() );
+    }
+
+
+    /**
+     * @return the release which ran before the last switch or null if none did
+     */
+    public String getPrevious() throws IOException
+    {
+        return readLink( new File( layout.getRootDirectory(), PREVIOUS_LINK ) );
+    }
+
+
+    /**
+     * Makes a release the one which runs.
+     *
+     * @param release the name of the release below the releases directory
+     * @return false if the release already was the current one
+     * @throws IOException if the release is incomplete or a link cannot be made
+     */
+    public boolean switchTo( String release ) throws IOException
+    {
+        File dir = getRelease( release );
+        if ( !new InstallationLayout( dir ).getBootstrapper().isFile() )
+        {
+            throw new IOException( dir + " is not a complete release: it has no bootstrapper" );
+        }
+
+        String current = getCurrent();
+        if ( release.equals( current ) )
+        {
+            return false;
+        }
+
+        // a crash between the two renames leaves previous equal to current, never a wrong release
+        if ( current != null )
+        {
+            link( PREVIOUS_LINK, current );
+        }
+        link( InstallationLayout.CURRENT_LINK, release );
+        log.info( "Switched " + layout.getRootDirectory() + " from release " + current + " to " + release );
+        return true;
+    }
+
+
+    /**
+     * Switches back to the release which ran before the last switch.
+     *
+     * @return the release now current
+     * @throws IOException if there is no previous release or it cannot be switched to
+     */
+    public String rollback() throws IOException
+    {
+        String previous = getPrevious();
+        if ( previous == null || !getRelease( previous ).isDirectory() )
+        {
+            throw new IOException( "There is no previous release of " + layout.getRootDirectory()
+                + " to roll back to" );
+        }
+
+        switchTo( previous );
+        return previous;
+    }
+
+
+    /**
+     * Copies the current release to a new release so it can be upgraded
+     * without touching the one which runs.
+     *
+     * @return the directory of the new release
+     */
+    public File stage( String release ) throws IOException
+    {
+        String current = getCurrent();
+        if ( current == null )
+        {
+            throw new IOException( layout.getRootDirectory() + " has no current release to upgrade" );
+        }
+
+        File dir = getRelease( release );
+        if ( dir.exists() )
+        {
+            throw new IOException( "The release " + dir + " already exists" );
+        }
+
+        try
+        {
+            copy( getRelease( current ), dir );
+        }
+        catch ( IOException e )
+        {
+            discard( dir );
+            throw e;
+        }
+        return dir;
+    }
+
+
+    /**
+     * Removes a staged release which could not be completed.
+     */
+    public void discard( File dir )
+    {
+        File[] children = dir.listFiles();
+        for ( int ii = 0; children != null && ii < children.length; ii++ )
+        {
+            // never follow a link out of the release
+            if ( isLink( children[ii] ) || !children[ii].isDirectory() )
+            {
+                children[ii].delete();
+            }
+            else
+            {
+                discard( children[ii] );
+            }
+        }
+        dir.delete();
+    }
+
+
+    private File getRelease( String release ) throws IOException
+    {
+        if ( release.length() == 0 || release.equals( "." ) || release.equals( ".." ) || release.indexOf( '/' ) != -1
+            || release.indexOf( File.separatorChar ) != -1 )
+        {
+            throw new IOException( "Bad release name: " + release );
+        }
+        return new File( layout.getReleasesDirectory(), release );
+    }
+
+
+    /**
+     * Gets the release a link points to by resolving it.
+     */
+    private String readLink( File link ) throws IOException
+    {
+        if ( !link.exists() )
+        {
+            return null;
+        }
+
+        File target = link.getCanonicalFile();
+        if ( !target.getParentFile().equals( layout.getReleasesDirectory().getCanonicalFile() ) )
+        {
+            throw new IOException( link + " points to " + target + " which is not a release below "
+                + layout.getReleasesDirectory() );
+        }
+        return target.getName();
+    }
+
+
+    /**
+     * Points a link to a release by making a new link next to it and renaming
+     * it over the old one.
+     */
+    private void link( String name, String release ) throws IOException
+    {
+        File link = new File( layout.getRootDirectory(), name );
+        File newLink = new File( layout.getRootDirectory(), name + NEW_SUFFIX );
+        newLink.delete();
+        createLink( newLink, InstallationLayout.RELEASES_DIRECTORY + "/" + release );
+        if ( !newLink.renameTo( link ) )
+        {
+            newLink.delete();
+            throw new IOException( "Failed to rename " + newLink + " to " + link );
+        }
+    }
+
+
+    /**
+     * Makes a relative symbolic link, with java.nio.file where available and
+     * with ln everywhere else.
+     */
+    private static void createLink( File link, String target ) throws IOException
+    {
+        if ( CREATE_SYMBOLIC_LINK != null )
+        {
+            try
+            {
+                CREATE_SYMBOLIC_LINK.invoke( null, new Object[]
+                    { TO_PATH.invoke( link, new Object[0] ), TO_PATH.invoke( new File( target ), new Object[0] ),
+                        NO_ATTRIBUTES } );
+                return;
+            }
+            catch ( Exception e )
+            {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                IOException ioe = new IOException( "Failed to link " + link + " to " + target + ": " + cause );
+                ioe.initCause( cause );
+                throw ioe;
+            }
+        }
+
+        Process process = Runtime.getRuntime().exec( new String[]
+            { "ln", "-s", target, link.getPath() } );
+        try
+        {
+            if ( process.waitFor() != 0 )
+            {
+                throw new IOException( "ln failed to link " + link + " to " + target );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            throw new IOException( "Interrupted while linking " + link + " to " + target );
+        }
+    }
+
+
+    private static boolean isLink( File file )
+    {
+        try
+        {
+            File parent = file.getParentFile().getCanonicalFile();
+            return !new File( parent, file.getName() ).getCanonicalFile().equals( new File( parent, file.getName() ) );
+        }
+        catch ( IOException e )
+        {
+            return true;
+        }
+    }
+
+
+    /**
+     * Copies a release keeping the times and executable bits of its files.
+     */
+    private static void copy( File from, File to ) throws IOException
+    {
+        if ( !to.mkdirs() )
+        {
+            throw new IOException( "Failed to create " + to );
+        }
+
+        File[] children = from.listFiles();
+        if ( children == null )
+        {
+            throw new IOException( "Failed to list " + from );
+        }
+
+        byte[] buf = new byte[65536];
+        for ( int ii = 0; ii < children.length; ii++ )
+        {
+            File target = new File( to, children[ii].getName() );
+            if ( children[ii].isDirectory() )
+            {
+                copy( children[ii], target );
+                continue;
+            }
+
+            InputStream in = new FileInputStream( children[ii] );
+            try
+            {
+                OutputStream out = new FileOutputStream( target );
+                try
+                {
+                    int read;
+                    while ( ( read = in.read( buf ) ) != -1 )
+                    {
+                        out.write( buf, 0, read );
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            target.setLastModified( children[ii].lastModified() );
+            if ( CAN_EXECUTE != null )
+            {
+                try
+                {
+                    if ( ( ( Boolean ) CAN_EXECUTE.invoke( children[ii], new Object[0] ) ).booleanValue() )
+                    {
+                        SET_EXECUTABLE.invoke( target, new Object[]
+                            { Boolean.TRUE, Boolean.FALSE } );
+                    }
+                }
+                catch ( Exception e )
+                {
+                    log.warn( "Failed to make " + target + " executable", e );
+                }
+            }
+        }
+    }
+}
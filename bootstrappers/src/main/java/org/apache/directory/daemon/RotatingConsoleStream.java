@@ -0,0 +1,447 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon;
+
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An output stream used to capture System.out and System.err of the daemon.
+ * Writers only copy their bytes into a bounded ring buffer and never touch
+ * the disk.  A background thread drains the buffer in batches into a log
+ * file which is rolled over by size or age.  Rolled files are gzipped and
+ * only a limited number of them are kept around.  When the buffer is full
+ * the write is dropped and counted rather than blocking the caller.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class RotatingConsoleStream extends OutputStream implements Runnable
+{
+    private static final Logger log = LoggerFactory.getLogger( RotatingConsoleStream.class );
+
+    /** how long the writer thread waits for more output before flushing */
+    private static final long FLUSH_INTERVAL = 1000;
+    /** the suffix format used to name rolled over files */
+    private static final String ROLL_SUFFIX = "yyyyMMdd-HHmmss";
+
+    private final File file;
+    private final long rotateSize;
+    private final long rotateInterval;
+    private final int rotateCount;
+    private final Object lock = new Object();
+    private final byte[] ring;
+    private final Thread writer;
+
+    /** index of the oldest pending byte in the ring */
+    private int start = 0;
+    /** number of pending bytes in the ring */
+    private int count = 0;
+    /** writes dropped since the last batch was drained */
+    private long droppedWrites = 0;
+    /** bytes dropped since the last batch was drained */
+    private long droppedBytes = 0;
+    /** total bytes dropped over the life of this stream */
+    private long totalDroppedBytes = 0;
+    private boolean closed = false;
+
+    private FileOutputStream out;
+    private long fileSize;
+    private long fileOpened;
+    /** the size at which the file is rolled over next, pushed back when rolling over failed */
+    private long rotateAt;
+
+
+    /**
+     * Creates a capturing stream and starts its writer thread.
+     *
+     * @param file the active log file output is appended to
+     * @param bufferSize the size of the ring buffer in bytes
+     * @param rotateSize the size in bytes after which the file is rolled over or 0 to disable
+     * @param rotateInterval the age in milliseconds after which the file is rolled over or 0 to disable
+     * @param rotateCount the number of compressed rolled over files to keep
+     */
+    public RotatingConsoleStream( File file, int bufferSize, long rotateSize, long rotateInterval, int rotateCount )
+        throws IOException
+    {
+        this.file = file;
+        this.ring = new byte[bufferSize];
+        this.rotateSize = rotateSize;
+        this.rotateInterval = rotateInterval;
+        this.rotateCount = rotateCount;
+        open();
+
+        writer = new Thread( this, "Console writer " + file.getName() );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+
+    public void write( int b )
+    {
+        synchronized ( lock )
+        {
+            if ( closed || count == ring.length )
+            {
+                drop( 1 );
+                return;
+            }
+
+            ring[( start + count ) % ring.length] = ( byte ) b;
+            count++;
+            signal();
+        }
+    }
+
+
+    public void write( byte[] b, int off, int len )
+    {
+        synchronized ( lock )
+        {
+            if ( closed || len > ring.length - count )
+            {
+                drop( len );
+                return;
+            }
+
+            int end = ( start + count ) % ring.length;
+            int first = Math.min( len, ring.length - end );
+            System.arraycopy( b, off, ring, end, first );
+            System.arraycopy( b, off + first, ring, 0, len - first );
+            count += len;
+            signal();
+        }
+    }
+
+
+    /**
+     * Does not wait for the disk: the writer thread flushes on its own.
+     */
+    public void flush()
+    {
+    }
+
+
+    /**
+     * Drains whatever is still buffered, closes the log file and stops the
+     * writer thread.
+     */
+    public void close()
+    {
+        synchronized ( lock )
+        {
+            if ( closed )
+            {
+                return;
+            }
+
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try
+        {
+            writer.join( 5 * FLUSH_INTERVAL );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Gets the number of bytes discarded because the buffer was full.
+     */
+    public long getDroppedBytes()
+    {
+        synchronized ( lock )
+        {
+            return totalDroppedBytes;
+        }
+    }
+
+
+    public void run()
+    {
+        byte[] batch = new byte[ring.length];
+
+        while ( true )
+        {
+            int length;
+            long writes;
+            long bytes;
+            boolean done;
+
+            synchronized ( lock )
+            {
+                // sleep until the flush interval passes or the buffer fills up
+                if ( count < ring.length / 2 && !closed )
+                {
+                    try
+                    {
+                        lock.wait( FLUSH_INTERVAL );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        closed = true;
+                    }
+                }
+
+                length = count;
+                int first = Math.min( count, ring.length - start );
+                System.arraycopy( ring, start, batch, 0, first );
+                System.arraycopy( ring, 0, batch, first, count - first );
+                start = ( start + count ) % ring.length;
+                count = 0;
+
+                writes = droppedWrites;
+                bytes = droppedBytes;
+                droppedWrites = 0;
+                droppedBytes = 0;
+                done = closed;
+            }
+
+            try
+            {
+                if ( writes > 0 )
+                {
+                    String msg = "[console buffer full: dropped " + writes + " writes (" + bytes + " bytes)]\n";
+                    append( msg.getBytes(), msg.length() );
+                }
+
+                if ( length > 0 )
+                {
+                    append( batch, length );
+                }
+
+                if ( isRotationDue() )
+                {
+                    rotate();
+                }
+            }
+            catch ( IOException e )
+            {
+                log.error( "Failed to write captured console output to " + file, e );
+            }
+
+            if ( done )
+            {
+                break;
+            }
+        }
+
+        try
+        {
+            out.close();
+        }
+        catch ( IOException e )
+        {
+            log.debug( "Failed to close " + file, e );
+        }
+    }
+
+
+    private void drop( int len )
+    {
+        droppedWrites++;
+        droppedBytes += len;
+        totalDroppedBytes += len;
+    }
+
+
+    /**
+     * Wakes up the writer once the buffer is half full so bursts get drained
+     * before they overflow.  Must be called while holding the lock.
+     */
+    private void signal()
+    {
+        if ( count >= ring.length / 2 )
+        {
+            lock.notifyAll();
+        }
+    }
+
+
+    private void open() throws IOException
+    {
+        out = new FileOutputStream( file, true );
+        fileSize = file.length();
+        fileOpened = System.currentTimeMillis();
+        rotateAt = rotateSize;
+    }
+
+
+    private void append( byte[] data, int length ) throws IOException
+    {
+        out.write( data, 0, length );
+        fileSize += length;
+    }
+
+
+    private boolean isRotationDue()
+    {
+        if ( rotateSize > 0 && fileSize >= rotateAt )
+        {
+            return true;
+        }
+
+        return rotateInterval > 0 && fileSize > 0 && System.currentTimeMillis() - fileOpened >= rotateInterval;
+    }
+
+
+    private void rotate() throws IOException
+    {
+        out.close();
+
+        String suffix = new SimpleDateFormat( ROLL_SUFFIX ).format( new Date() );
+        File candidate = new File( file.getParentFile(), file.getName() + "." + suffix );
+        for ( int ii = 1; candidate.exists() || new File( candidate.getPath() + ".gz" ).exists(); ii++ )
+        {
+            // rolled over more than once within the same second
+            candidate = new File( file.getParentFile(), file.getName() + "." + suffix + "-" + ii );
+        }
+
+        final File rolled = candidate;
+        if ( !file.renameTo( rolled ) )
+        {
+            log.warn( "Failed to roll over " + file + " to " + rolled + ": appending to it instead" );
+            open();
+
+            // retry once the file grew by another rotation size or the next interval passed
+            rotateAt = fileSize + rotateSize;
+            return;
+        }
+
+        open();
+
+        // compress off the writer thread so captured output keeps draining
+        Thread compressor = new Thread( "Console compressor " + rolled.getName() )
+        {
+            public void run()
+            {
+                compress( rolled );
+                prune();
+            }
+        };
+        compressor.setDaemon( true );
+        compressor.start();
+    }
+
+
+    private void compress( File rolled )
+    {
+        File gzipped = new File( rolled.getParentFile(), rolled.getName() + ".gz" );
+        InputStream in = null;
+        OutputStream gz = null;
+
+        try
+        {
+            in = new FileInputStream( rolled );
+            gz = new GZIPOutputStream( new FileOutputStream( gzipped ) );
+            byte[] buf = new byte[8192];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                gz.write( buf, 0, read );
+            }
+            gz.close();
+            gz = null;
+            in.close();
+            in = null;
+            rolled.delete();
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to compress rolled over console log " + rolled, e );
+            gzipped.delete();
+        }
+        finally
+        {
+            try
+            {
+                if ( in != null )
+                {
+                    in.close();
+                }
+                if ( gz != null )
+                {
+                    gz.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                log.debug( "Failed to close streams for " + rolled, e );
+            }
+        }
+    }
+
+
+    /**
+     * Removes the oldest compressed files beyond the configured count.
+     */
+    private void prune()
+    {
+        final String prefix = file.getName() + ".";
+        File[] rolled = file.getParentFile().listFiles( new FileFilter()
+        {
+            public boolean accept( File pathname )
+            {
+                return pathname.getName().startsWith( prefix ) && pathname.getName().endsWith( ".gz" );
+            }
+        } );
+
+        if ( rolled == null || rolled.length <= rotateCount )
+        {
+            return;
+        }
+
+        Arrays.sort( rolled, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                long diff = ( ( File ) o1 ).lastModified() - ( ( File ) o2 ).lastModified();
+                return diff < 0 ? -1 : ( diff > 0 ? 1 : 0 );
+            }
+        } );
+        for ( int ii = 0; ii < rolled.length - rotateCount; ii++ )
+        {
+            if ( !rolled[ii].delete() )
+            {
+                log.warn( "Failed to delete old console log " + rolled[ii] );
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * Writes a common ar archive as used by Debian packages.  Members are owned
+ * by root and their names are limited to 16 characters.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ArWriter
+{
+    private final OutputStream out;
+
+
+    public ArWriter( OutputStream out ) throws IOException
+    {
+        this.out = out;
+        out.write( "!<arch>\n".getBytes( "US-ASCII" ) );
+    }
+
+
+    /**
+     * Adds a member from memory.
+     *
+     * @param name the name of the member
+     * @param mtime the modification time in milliseconds
+     * @param content the content of the member
+     */
+    public void addMember( String name, long mtime, byte[] content ) throws IOException
+    {
+        writeHeader( name, mtime, content.length );
+        out.write( content );
+        if ( content.length % 2 != 0 )
+        {
+            out.write( '\n' );
+        }
+    }
+
+
+    /**
+     * Adds a member from a file.
+     *
+     * @param name the name of the member
+     * @param mtime the modification time in milliseconds
+     * @param content the file holding the content of the member
+     */
+    public void addMember( String name, long mtime, File content ) throws IOException
+    {
+        long size = content.length();
+        writeHeader( name, mtime, size );
+        out.flush();
+
+        BuildReport.read( size );
+        FileChannel in = new FileInputStream( content ).getChannel();
+        try
+        {
+            WritableByteChannel channel = Channels.newChannel( out );
+            long position = 0;
+            while ( position < size )
+            {
+                position += in.transferTo( position, size - position, channel );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if ( size % 2 != 0 )
+        {
+            out.write( '\n' );
+        }
+    }
+
+
+    private void writeHeader( String name, long mtime, long size ) throws IOException
+    {
+        if ( name.length() > 16 )
+        {
+            throw new IOException( "ar member names are limited to 16 characters: " + name );
+        }
+
+        StringBuffer header = new StringBuffer( 60 );
+        append( header, name, 16 );
+        append( header, String.valueOf( mtime / 1000 ), 12 );
+        append( header, "0", 6 ); // uid
+        append( header, "0", 6 ); // gid
+        append( header, "100644", 8 );
+        append( header, String.valueOf( size ), 10 );
+        header.append( "`\n" );
+        out.write( header.toString().getBytes( "US-ASCII" ) );
+    }
+
+
+    private static void append( StringBuffer header, String value, int width )
+    {
+        header.append( value );
+        for ( int ii = value.length(); ii < width; ii++ )
+        {
+            header.append( ' ' );
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+
+
+/**
+ * A Log which holds on to the messages of a target built on a worker thread
+ * so they can be written out in one piece once the target is done rather
+ * than interleaved with the output of other targets.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+class BufferedLog implements Log
+{
+    private static final int DEBUG = 0;
+    private static final int INFO = 1;
+    private static final int WARN = 2;
+    private static final int ERROR = 3;
+
+    private final Log delegate;
+    private final List entries = new ArrayList();
+
+
+    BufferedLog( Log delegate )
+    {
+        this.delegate = delegate;
+    }
+
+
+    /**
+     * Writes all buffered messages to the wrapped Log and forgets them.
+     */
+    synchronized void flush()
+    {
+        for ( int ii = 0; ii < entries.size(); ii++ )
+        {
+            Object[] entry = ( Object[] ) entries.get( ii );
+            CharSequence content = ( CharSequence ) entry[1];
+            Throwable error = ( Throwable ) entry[2];
+
+            // not every Log accepts a null error, SystemStreamLog for one
+            switch ( ( ( Integer ) entry[0] ).intValue() )
+            {
+                case DEBUG:
+                    if ( error == null )
+                        delegate.debug( content );
+                    else
+                        delegate.debug( content, error );
+                    break;
+                case INFO:
+                    if ( error == null )
+                        delegate.info( content );
+                    else
+                        delegate.info( content, error );
+                    break;
+                case WARN:
+                    if ( error == null )
+                        delegate.warn( content );
+                    else
+                        delegate.warn( content, error );
+                    break;
+                default:
+                    if ( error == null )
+                        delegate.error( content );
+                    else
+                        delegate.error( content, error );
+            }
+        }
+
+        entries.clear();
+    }
+
+
+    private synchronized void add( int level, CharSequence content, Throwable error )
+    {
+        // debug messages are the bulk of a target's output, only keep them if they will be written
+        if ( level == DEBUG && !delegate.isDebugEnabled() )
+        {
+            return;
+        }
+
+        entries.add( new Object[]
+            { new Integer( level ), content == null ? "" : content, error } );
+    }
+
+
+    public boolean isDebugEnabled()
+    {
+        return delegate.isDebugEnabled();
+    }
+
+
+    public void debug( CharSequence content )
+    {
+        add( DEBUG, content, null );
+    }
+
+
+    public void debug( CharSequence content, Throwable error )
+    {
+        add( DEBUG, content, error );
+    }
+
+
+    public void debug( Throwable error )
+    {
+        add( DEBUG, null, error );
+    }
+
+
+    public boolean isInfoEnabled()
+    {
+        return delegate.isInfoEnabled();
+    }
+
+
+    public void info( CharSequence content )
+    {
+        add( INFO, content, null );
+    }
+
+
+    public void info( CharSequence content, Throwable error )
+    {
+        add( INFO, content, error );
+    }
+
+
+    public void info( Throwable error )
+    {
+        add( INFO, null, error );
+    }
+
+
+    public boolean isWarnEnabled()
+    {
+        return delegate.isWarnEnabled();
+    }
+
+
+    public void warn( CharSequence content )
+    {
+        add( WARN, content, null );
+    }
+
+
+    public void warn( CharSequence content, Throwable error )
+    {
+        add( WARN, content, error );
+    }
+
+
+    public void warn( Throwable error )
+    {
+        add( WARN, null, error );
+    }
+
+
+    public boolean isErrorEnabled()
+    {
+        return delegate.isErrorEnabled();
+    }
+
+
+    public void error( CharSequence content )
+    {
+        add( ERROR, content, null );
+    }
+
+
+    public void error( CharSequence content, Throwable error )
+    {
+        add( ERROR, content, error );
+    }
+
+
+    public void error( Throwable error )
+    {
+        add( ERROR, null, error );
+    }
+}
@@ -0,0 +1,608 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.maven.artifact.Artifact;
+import org.codehaus.plexus.util.FileUtils;
+
+
+/**
+ * Keeps the installers of targets by a fingerprint of everything they are
+ * built from so a target whose inputs did not change is restored instead of
+ * being built again.  The fingerprint covers the plugin itself with its
+ * bundled templates, the configuration of the target and the mojo, the
+ * project properties used for filtering, the content of the artifacts, of
+ * the project installer sources and of every file the target refers to.
+ * Paths below the project base directory are taken relative to it and the
+ * system properties are left out so agents building the same sources agree
+ * on fingerprints and can share a cache directory.
+ * <p>
+ * Each cache entry is a directory named after the fingerprint holding the
+ * installers, a list of them with their hashes and the description of the
+ * inputs the fingerprint was computed from.  Entries are written to a
+ * temporary directory and renamed into place so concurrent builds never see
+ * half written entries.  Only targets which recorded their installers with
+ * {@link Target#addOutputFile(File)} are cached.  Restoring an entry marks
+ * it as used so {@link #prune(long, long)} removes the entries which were
+ * not used for the longest time first.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class BuildCache
+{
+    /** changes whenever the way fingerprints are computed changes */
+    private static final String VERSION = "1";
+    private static final String OUTPUTS_FILE = "outputs";
+    private static final String INPUTS_FILE = "inputs";
+    private static final String FILES_DIRECTORY = "files";
+    private static final String SEPARATOR = "\t";
+
+    private final File directory;
+    private final File outputDirectory;
+    private final File sourceDirectory;
+    private final File baseDirectory;
+    private final StagingStore store;
+
+
+    /**
+     * @param directory the directory of the cache, possibly shared
+     * @param outputDirectory the directory installers are written to
+     * @param sourceDirectory the installer sources of the project
+     * @param baseDirectory the base directory of the project
+     * @param store hashes files, remembering the hashes of unchanged files
+     */
+    public BuildCache( File directory, File outputDirectory, File sourceDirectory, File baseDirectory,
+        StagingStore store )
+    {
+        this.directory = directory;
+        this.outputDirectory = outputDirectory;
+        this.sourceDirectory = sourceDirectory;
+        this.baseDirectory = baseDirectory;
+        this.store = store;
+    }
+
+
+    /**
+     * Computes the fingerprint of the inputs of a target.
+     *
+     * @param inputs the description of the inputs
+     * @return the fingerprint as a hex string
+     * @see #describe(Target, Map, Collection)
+     */
+    public static String getFingerprint( String inputs ) throws IOException
+    {
+        return hash( inputs );
+    }
+
+
+    /**
+     * Copies the installers cached for a fingerprint into the output
+     * directory, skipping those which are already there, and records them as
+     * the outputs of the target.
+     *
+     * @return true if the cache had all installers of the target
+     */
+    public boolean restore( Target target, String fingerprint ) throws IOException
+    {
+        File entry = new File( directory, fingerprint );
+        File outputs = new File( entry, OUTPUTS_FILE );
+        if ( !outputs.exists() )
+        {
+            return false;
+        }
+
+        List lines = readLines( outputs );
+        for ( int ii = 0; ii < lines.size(); ii++ )
+        {
+            String[] fields = ( ( String ) lines.get( ii ) ).split( SEPARATOR );
+            if ( fields.length != 2 || !new File( new File( entry, FILES_DIRECTORY ), fields[0] ).exists() )
+            {
+                return false;
+            }
+        }
+
+        entry.setLastModified( System.currentTimeMillis() );
+        for ( int ii = 0; ii < lines.size(); ii++ )
+        {
+            String[] fields = ( ( String ) lines.get( ii ) ).split( SEPARATOR );
+            File cached = new File( new File( entry, FILES_DIRECTORY ), fields[0] );
+            File dest = new File( outputDirectory, fields[0] );
+            if ( !dest.exists() || !store.hash( dest ).equals( fields[1] ) )
+            {
+                dest.delete();
+                MojoHelperUtils.copyFile( cached, dest );
+            }
+            target.addOutputFile( dest );
+        }
+        return true;
+    }
+
+
+    /**
+     * Adds the installers recorded by a target to the cache.
+     *
+     * @param inputs the description of the inputs the fingerprint was computed from
+     * @return false if the target recorded no installers or some outside
+     * the output directory so nothing was cached
+     */
+    public boolean save( Target target, String fingerprint, String inputs ) throws IOException
+    {
+        List outputFiles = target.getOutputFiles();
+        if ( outputFiles.isEmpty() )
+        {
+            return false;
+        }
+
+        String[] paths = new String[outputFiles.size()];
+        for ( int ii = 0; ii < paths.length; ii++ )
+        {
+            paths[ii] = getRelativePath( outputDirectory, ( File ) outputFiles.get( ii ) );
+            if ( paths[ii] == null || !( ( File ) outputFiles.get( ii ) ).isFile() )
+            {
+                return false;
+            }
+        }
+
+        File entry = new File( directory, fingerprint );
+        if ( entry.exists() )
+        {
+            return true;
+        }
+
+        directory.mkdirs();
+        File tmp = File.createTempFile( fingerprint, ".tmp", directory );
+        tmp.delete();
+        tmp.mkdirs();
+        try
+        {
+            PrintWriter out = new PrintWriter( new FileWriter( new File( tmp, INPUTS_FILE ) ) );
+            try
+            {
+                out.print( inputs );
+            }
+            finally
+            {
+                out.close();
+            }
+
+            StringBuffer buf = new StringBuffer();
+            for ( int ii = 0; ii < paths.length; ii++ )
+            {
+                File output = ( File ) outputFiles.get( ii );
+                MojoHelperUtils.copyFile( output, new File( new File( tmp, FILES_DIRECTORY ), paths[ii] ) );
+                buf.append( paths[ii] ).append( SEPARATOR ).append( store.hash( output ) ).append( "\n" );
+            }
+
+            // written last: an entry without it is ignored
+            out = new PrintWriter( new FileWriter( new File( tmp, OUTPUTS_FILE ) ) );
+            try
+            {
+                out.print( buf );
+            }
+            finally
+            {
+                out.close();
+            }
+
+            // another build may have cached the same fingerprint meanwhile
+            if ( !tmp.renameTo( entry ) && !entry.exists() )
+            {
+                throw new IOException( "Failed to move " + tmp + " to " + entry );
+            }
+        }
+        finally
+        {
+            if ( tmp.exists() )
+            {
+                FileUtils.deleteDirectory( tmp );
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Removes the entries which were not saved or restored within the 
+     * maximum age and then the least recently used entries until the rest
+     * fit the maximum size.  Entries are renamed before they are deleted so
+     * builds sharing the cache never restore a partly deleted entry.  The
+     * temporary directories of builds which died while saving are removed
+     * once they are older than the maximum age as well.
+     *
+     * @param maxSize the bytes all entries may take, 0 for no limit
+     * @param maxAge the milliseconds an entry is kept after it was last used, 0 for no limit
+     * @return the number of entries removed
+     */
+    public int prune( long maxSize, long maxAge ) throws IOException
+    {
+        File[] children = directory.listFiles();
+        if ( children == null )
+        {
+            return 0;
+        }
+
+        // most recently used first
+        Arrays.sort( children, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                long m1 = ( ( File ) o1 ).lastModified();
+                long m2 = ( ( File ) o2 ).lastModified();
+                return m1 > m2 ? -1 : m1 < m2 ? 1 : 0;
+            }
+        } );
+
+        long now = System.currentTimeMillis();
+        long size = 0;
+        boolean full = false;
+        int removed = 0;
+        for ( int ii = 0; ii < children.length; ii++ )
+        {
+            if ( !children[ii].isDirectory() )
+            {
+                continue;
+            }
+
+            boolean expired = maxAge > 0 && now - children[ii].lastModified() > maxAge;
+            if ( children[ii].getName().endsWith( ".tmp" ) )
+            {
+                if ( expired )
+                {
+                    FileUtils.deleteDirectory( children[ii] );
+                }
+                continue;
+            }
+            if ( !new File( children[ii], OUTPUTS_FILE ).exists() )
+            {
+                continue;
+            }
+
+            // once an entry does not fit all entries used before it go too
+            long entrySize = FileUtils.sizeOfDirectory( children[ii] );
+            full = full || ( maxSize > 0 && size + entrySize > maxSize );
+            if ( !expired && !full )
+            {
+                size += entrySize;
+                continue;
+            }
+
+            File tmp = File.createTempFile( children[ii].getName(), ".tmp", directory );
+            tmp.delete();
+            if ( children[ii].renameTo( tmp ) )
+            {
+                FileUtils.deleteDirectory( tmp );
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+
+    /**
+     * Describes the inputs of a target one per line, in a stable order.
+     *
+     * @param target the target to describe before its image is created
+     * @param settings the settings of the mojo affecting the installers
+     * @param artifacts the {@link Artifact}s which may go into the image
+     */
+    public String describe( Target target, Map settings, Collection artifacts ) throws IOException
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append( "version=" ).append( VERSION ).append( "\n" );
+
+        File plugin = getPluginLocation();
+        buf.append( "plugin=" ).append( plugin == null ? "unknown" : hashFile( plugin ) ).append( "\n" );
+
+        String epoch = System.getenv( "SOURCE_DATE_EPOCH" );
+        buf.append( "SOURCE_DATE_EPOCH=" ).append( epoch ).append( "\n" );
+
+        describeObject( "mojo", new TreeMap( settings ), buf );
+        buf.append( "sourceDirectory=" ).append( describeFile( sourceDirectory ) ).append( "\n" );
+
+        List sorted = new ArrayList( artifacts );
+        Collections.sort( sorted, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                return getId( ( Artifact ) o1 ).compareTo( getId( ( Artifact ) o2 ) );
+            }
+        } );
+        for ( int ii = 0; ii < sorted.size(); ii++ )
+        {
+            Artifact artifact = ( Artifact ) sorted.get( ii );
+            buf.append( "artifact." ).append( getId( artifact ) ).append( "=" );
+            buf.append( artifact.getFile() == null ? "unresolved" : hashFile( artifact.getFile() ) ).append( "\n" );
+        }
+
+        describeObject( "target", target, buf );
+        return buf.toString();
+    }
+
+
+    private void describeObject( String name, Object value, StringBuffer buf ) throws IOException
+    {
+        if ( value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+            || value instanceof Character )
+        {
+            buf.append( name ).append( "=" ).append( value ).append( "\n" );
+        }
+        else if ( value instanceof File )
+        {
+            buf.append( name ).append( "=" ).append( describeFile( ( File ) value ) ).append( "\n" );
+        }
+        else if ( value instanceof Object[] )
+        {
+            Object[] array = ( Object[] ) value;
+            for ( int ii = 0; ii < array.length; ii++ )
+            {
+                describeObject( name + "[" + ii + "]", array[ii], buf );
+            }
+        }
+        else if ( value instanceof Map )
+        {
+            Map sorted = new TreeMap();
+            for ( Iterator ii = ( ( Map ) value ).entrySet().iterator(); ii.hasNext(); /* */)
+            {
+                Map.Entry entry = ( Map.Entry ) ii.next();
+                sorted.put( String.valueOf( entry.getKey() ), entry.getValue() );
+            }
+            for ( Iterator ii = sorted.entrySet().iterator(); ii.hasNext(); /* */)
+            {
+                Map.Entry entry = ( Map.Entry ) ii.next();
+                describeObject( name + "." + entry.getKey(), entry.getValue(), buf );
+            }
+        }
+        else if ( value instanceof Collection )
+        {
+            // sets have no order and lists of strings are compared as sets too
+            List elements = new ArrayList();
+            for ( Iterator ii = ( ( Collection ) value ).iterator(); ii.hasNext(); /* */)
+            {
+                elements.add( String.valueOf( ii.next() ) );
+            }
+            Collections.sort( elements );
+            buf.append( name ).append( "=" ).append( elements ).append( "\n" );
+        }
+        else if ( value.getClass().getName().startsWith( "org.apache.directory." ) )
+        {
+            buf.append( name ).append( ".class=" ).append( value.getClass().getName() ).append( "\n" );
+            for ( Class type = value.getClass(); type != Object.class; type = type.getSuperclass() )
+            {
+                Field[] fields = type.getDeclaredFields();
+                Arrays.sort( fields, new Comparator()
+                {
+                    public int compare( Object o1, Object o2 )
+                    {
+                        return ( ( Field ) o1 ).getName().compareTo( ( ( Field ) o2 ).getName() );
+                    }
+                } );
+                for ( int ii = 0; ii < fields.length; ii++ )
+                {
+                    int modifiers = fields[ii].getModifiers();
+                    if ( Modifier.isStatic( modifiers ) || Modifier.isTransient( modifiers ) )
+                    {
+                        continue;
+                    }
+
+                    fields[ii].setAccessible( true );
+                    try
+                    {
+                        describeObject( name + "." + fields[ii].getName(), fields[ii].get( value ), buf );
+                    }
+                    catch ( IllegalAccessException e )
+                    {
+                        throw new IOException( "Cannot read " + fields[ii] + ": " + e.getMessage() );
+                    }
+                }
+            }
+
+            if ( value instanceof PackagedFile )
+            {
+                describePackagedFile( name, ( PackagedFile ) value, buf );
+            }
+        }
+        else
+        {
+            buf.append( name ).append( "=" ).append( value ).append( "\n" );
+        }
+    }
+
+
+    /**
+     * Adds the content of a packaged file which is not a dependency, found
+     * the way {@link MojoCommand#processPackagedFiles(Target, PackagedFile[])}
+     * finds it.  Dependencies are covered by the artifacts.
+     */
+    private void describePackagedFile( String name, PackagedFile packagedFile, StringBuffer buf ) throws IOException
+    {
+        if ( packagedFile.isDependency() || packagedFile.getSource() == null )
+        {
+            return;
+        }
+
+        File source = new File( packagedFile.getSource() );
+        if ( !source.isAbsolute() )
+        {
+            File sourceDirectoryRelative = new File( sourceDirectory, packagedFile.getSource() );
+            File baseRelative = new File( baseDirectory, packagedFile.getSource() );
+            if ( sourceDirectoryRelative.exists() )
+            {
+                source = sourceDirectoryRelative;
+            }
+            else if ( baseRelative.exists() )
+            {
+                source = baseRelative;
+            }
+        }
+        buf.append( name ).append( ".content=" ).append( describeFile( source ) ).append( "\n" );
+    }
+
+
+    /**
+     * Describes a file by its path, relative to the project if it is in it,
+     * and the hash of its content or of the content of the tree below it.
+     */
+    private String describeFile( File file ) throws IOException
+    {
+        String path = getRelativePath( baseDirectory, file );
+        if ( path == null )
+        {
+            path = file.getAbsolutePath().replace( File.separatorChar, '/' );
+        }
+
+        if ( file.isFile() )
+        {
+            return path + ":" + store.hash( file );
+        }
+        if ( file.isDirectory() )
+        {
+            return path + ":" + hashFile( file );
+        }
+        return path + ":missing";
+    }
+
+
+    /**
+     * Hashes the content of a file or of all files below a directory with
+     * their paths relative to it.
+     */
+    private String hashFile( File file ) throws IOException
+    {
+        if ( !file.isDirectory() )
+        {
+            return store.hash( file );
+        }
+
+        StringBuffer buf = new StringBuffer();
+        List pending = new ArrayList();
+        pending.add( file );
+        while ( !pending.isEmpty() )
+        {
+            File dir = ( File ) pending.remove( pending.size() - 1 );
+            File[] children = dir.listFiles();
+            if ( children == null )
+            {
+                continue;
+            }
+            Arrays.sort( children );
+
+            for ( int ii = 0; ii < children.length; ii++ )
+            {
+                if ( children[ii].isDirectory() )
+                {
+                    pending.add( children[ii] );
+                }
+                else
+                {
+                    buf.append( getRelativePath( file, children[ii] ) ).append( SEPARATOR );
+                    buf.append( store.hash( children[ii] ) ).append( "\n" );
+                }
+            }
+        }
+        return hash( buf.toString() );
+    }
+
+
+    /**
+     * Gets the jar or class directory the plugin was loaded from, which
+     * holds the bundled templates as well.
+     */
+    private static File getPluginLocation()
+    {
+        try
+        {
+            File location = new File( BuildCache.class.getProtectionDomain().getCodeSource().getLocation().getPath() );
+            return location.exists() ? location : null;
+        }
+        catch ( RuntimeException e )
+        {
+            return null;
+        }
+    }
+
+
+    private static String getId( Artifact artifact )
+    {
+        return artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getType() + ":"
+            + artifact.getClassifier() + ":" + artifact.getVersion();
+    }
+
+
+    /**
+     * Gets the path of a file relative to a directory with forward slashes
+     * or null if the file is not below the directory.
+     */
+    private static String getRelativePath( File directory, File file )
+    {
+        String base = directory.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        if ( !path.startsWith( base ) )
+        {
+            return null;
+        }
+        return path.substring( base.length() ).replace( File.separatorChar, '/' );
+    }
+
+
+    private static List readLines( File file ) throws IOException
+    {
+        List lines = new ArrayList();
+        BufferedReader in = new BufferedReader( new FileReader( file ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                lines.add( line );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return lines;
+    }
+
+
+    private static String hash( String text ) throws IOException
+    {
+        return ImageManifest.toHex( ImageManifest.newDigest().digest( text.getBytes( "UTF-8" ) ) );
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+
+/**
+ * Records the wall time, the bytes read and written and the number of files
+ * handled by each step of building the installers.  Steps nest: a step begun
+ * while another one is running on the same thread becomes its child, and the
+ * numbers of a step include those of its children.
+ * <p>
+ * The current step is kept per thread.  The places doing the actual work
+ * report their I/O to whatever step is current through the static methods,
+ * so they need not know about reports at all, and work handed to other
+ * threads is {@link #bind(Callable) bound} to the step submitting it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class BuildReport
+{
+    /** the step running on the current thread */
+    private static final ThreadLocal CURRENT = new ThreadLocal();
+
+    private final long start = System.currentTimeMillis();
+    /** all steps in the order they began */
+    private final List steps = new ArrayList();
+    private long millis = -1;
+
+
+    /**
+     * Begins a step of a target on the calling thread.  The step becomes a
+     * child of the step already running on the thread, if any.
+     *
+     * @param target the id of the target or null for steps of the whole build
+     * @param name the name of the step
+     */
+    public Step begin( String target, String name )
+    {
+        Step parent = ( Step ) CURRENT.get();
+        Step step = new Step( this, parent != null && parent.report == this ? parent : null, target, name );
+        synchronized ( this )
+        {
+            steps.add( step );
+        }
+        CURRENT.set( step );
+        return step;
+    }
+
+
+    /**
+     * Begins a child of the step running on the calling thread.  Without a
+     * running step the returned step is not recorded anywhere.
+     *
+     * @param name the name of the step
+     */
+    public static Step beginStep( String name )
+    {
+        Step parent = ( Step ) CURRENT.get();
+        if ( parent == null )
+        {
+            return new Step( null, null, null, name );
+        }
+        return parent.report.begin( parent.target, name );
+    }
+
+
+    /**
+     * Adds bytes read to the step running on the calling thread.
+     */
+    public static void read( long bytes )
+    {
+        Step step = ( Step ) CURRENT.get();
+        if ( step != null )
+        {
+            step.add( bytes, 0, 0 );
+        }
+    }
+
+
+    /**
+     * Adds bytes written to the step running on the calling thread.
+     */
+    public static void written( long bytes )
+    {
+        Step step = ( Step ) CURRENT.get();
+        if ( step != null )
+        {
+            step.add( 0, bytes, 0 );
+        }
+    }
+
+
+    /**
+     * Adds a file handled by the step running on the calling thread, counting
+     * the bytes it read and wrote for it.
+     */
+    public static void file( long read, long written )
+    {
+        Step step = ( Step ) CURRENT.get();
+        if ( step != null )
+        {
+            step.add( read, written, 1 );
+        }
+    }
+
+
+    /**
+     * Wraps a task so it counts towards the step running on the calling
+     * thread whichever thread it runs on.
+     */
+    public static Callable bind( final Callable task )
+    {
+        final Step step = ( Step ) CURRENT.get();
+        if ( step == null )
+        {
+            return task;
+        }
+
+        return new Callable()
+        {
+            public Object call() throws Exception
+            {
+                Object previous = CURRENT.get();
+                CURRENT.set( step );
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    CURRENT.set( previous );
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Ends the build the report is about.
+     */
+    public synchronized void finish()
+    {
+        millis = System.currentTimeMillis() - start;
+    }
+
+
+    /**
+     * Formats the steps as a table grouped by target.
+     */
+    public synchronized List format()
+    {
+        List lines = new ArrayList();
+        String row = "%-20s %-32s %10s %10s %10s %8s";
+        lines.add( String.format( row, new Object[]
+            { "target", "step", "time", "read", "written", "files" } ) );
+
+        for ( Iterator ii = getStepsByTarget().entrySet().iterator(); ii.hasNext(); /* */)
+        {
+            Map.Entry entry = ( Map.Entry ) ii.next();
+            List targetSteps = ( List ) entry.getValue();
+            for ( int jj = 0; jj < targetSteps.size(); jj++ )
+            {
+                Step step = ( Step ) targetSteps.get( jj );
+                StringBuffer name = new StringBuffer();
+                for ( int kk = 0; kk < step.depth; kk++ )
+                {
+                    name.append( "  " );
+                }
+                name.append( step.name );
+                lines.add( String.format( row, new Object[]
+                    { jj == 0 ? entry.getKey() : "", name, formatMillis( step.getMillis() ),
+                        formatBytes( step.read ), formatBytes( step.written ), String.valueOf( step.files ) } ) );
+            }
+        }
+
+        if ( millis >= 0 )
+        {
+            lines.add( "total " + formatMillis( millis ) );
+        }
+        return lines;
+    }
+
+
+    /**
+     * Writes the report as JSON.
+     */
+    public synchronized void write( File file, String project ) throws IOException
+    {
+        PrintWriter out = new PrintWriter( new OutputStreamWriter( new FileOutputStream( file ), "UTF-8" ) );
+        try
+        {
+            out.println( "{" );
+            out.println( "  \"project\": " + quote( project ) + "," );
+            out.println( "  \"millis\": " + ( millis >= 0 ? millis : System.currentTimeMillis() - start ) + "," );
+            out.println( "  \"steps\": [" );
+            for ( int ii = 0; ii < steps.size(); ii++ )
+            {
+                Step step = ( Step ) steps.get( ii );
+                out.print( "    { \"id\": " + ii );
+                String parent = step.parent == null ? "null" : String.valueOf( steps.indexOf( step.parent ) );
+                out.print( ", \"parent\": " + parent );
+                out.print( ", \"target\": " + quote( step.target ) );
+                out.print( ", \"step\": " + quote( step.name ) );
+                out.print( ", \"start\": " + ( step.start - start ) );
+                out.print( ", \"millis\": " + step.getMillis() );
+                out.print( ", \"bytesRead\": " + step.read );
+                out.print( ", \"bytesWritten\": " + step.written );
+                out.print( ", \"files\": " + step.files );
+                out.println( ii + 1 < steps.size() ? " }," : " }" );
+            }
+            out.println( "  ]" );
+            out.println( "}" );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Groups the steps by target, the steps of the whole build first and the
+     * targets in the order they started.
+     */
+    private Map getStepsByTarget()
+    {
+        Map byTarget = new LinkedHashMap();
+        byTarget.put( "-", new ArrayList() );
+        for ( int ii = 0; ii < steps.size(); ii++ )
+        {
+            Step step = ( Step ) steps.get( ii );
+            String key = step.target == null ? "-" : step.target;
+            List targetSteps = ( List ) byTarget.get( key );
+            if ( targetSteps == null )
+            {
+                targetSteps = new ArrayList();
+                byTarget.put( key, targetSteps );
+            }
+            targetSteps.add( step );
+        }
+
+        if ( ( ( List ) byTarget.get( "-" ) ).isEmpty() )
+        {
+            byTarget.remove( "-" );
+        }
+        return byTarget;
+    }
+
+
+    private static String formatMillis( long millis )
+    {
+        if ( millis < 0 )
+        {
+            return "running";
+        }
+        if ( millis < 1000 )
+        {
+            return millis + " ms";
+        }
+        return String.format( "%.1f s", new Object[]
+            { new Double( millis / 1000.0 ) } );
+    }
+
+
+    private static String formatBytes( long bytes )
+    {
+        if ( bytes < 1024 )
+        {
+            return bytes + " B";
+        }
+        if ( bytes < 1024 * 1024 )
+        {
+            return String.format( "%.1f KB", new Object[]
+                { new Double( bytes / 1024.0 ) } );
+        }
+        return String.format( "%.1f MB", new Object[]
+            { new Double( bytes / ( 1024.0 * 1024 ) ) } );
+    }
+
+
+    private static String quote( String text )
+    {
+        if ( text == null )
+        {
+            return "null";
+        }
+
+        StringBuffer buf = new StringBuffer( text.length() + 2 );
+        buf.append( '"' );
+        for ( int ii = 0; ii < text.length(); ii++ )
+        {
+            char ch = text.charAt( ii );
+            if ( ch == '"' || ch == '\\' )
+            {
+                buf.append( '\\' ).append( ch );
+            }
+            else if ( ch < 0x20 )
+            {
+                buf.append( String.format( "\\u%04x", new Object[]
+                    { new Integer( ch ) } ) );
+            }
+            else
+            {
+                buf.append( ch );
+            }
+        }
+        return buf.append( '"' ).toString();
+    }
+
+
+    /**
+     * A step of the build.  Its numbers include those of its children.
+     */
+    public static class Step
+    {
+        private final BuildReport report;
+        private final Step parent;
+        private final String target;
+        private final String name;
+        private final int depth;
+        private final long start = System.currentTimeMillis();
+        private long millis = -1;
+        private long read;
+        private long written;
+        private long files;
+
+
+        Step( BuildReport report, Step parent, String target, String name )
+        {
+            this.report = report;
+            this.parent = parent;
+            this.target = target;
+            this.name = name;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+
+        /**
+         * Ends the step, making its parent the current step of the thread.
+         */
+        public void end()
+        {
+            synchronized ( this )
+            {
+                millis = System.currentTimeMillis() - start;
+            }
+            if ( CURRENT.get() == this )
+            {
+                CURRENT.set( parent );
+            }
+        }
+
+
+        /**
+         * Adds the bytes of a file written by a tool to the step.
+         */
+        public void addOutput( File file )
+        {
+            add( 0, file.length(), 1 );
+        }
+
+
+        synchronized long getMillis()
+        {
+            return millis;
+        }
+
+
+        private void add( long read, long written, int files )
+        {
+            for ( Step step = this; step != null; step = step.parent )
+            {
+                synchronized ( step )
+                {
+                    step.read += read;
+                    step.written += written;
+                    step.files += files;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Writes a cpio archive in the "new ascii" (newc) format used by rpm
+ * payloads or the "old portable" (odc) format used by SVR4 package 
+ * datastreams.  Entries are streamed so archives of any size can be written
+ * without holding file contents in memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class CpioWriter
+{
+    public static final String NEWC_MAGIC = "070701";
+    public static final String ODC_MAGIC = "070707";
+    public static final String TRAILER = "TRAILER!!!";
+
+    private final OutputStream out;
+    private final boolean newc;
+    private final byte[] buffer = new byte[65536];
+    private long length;
+
+
+    public CpioWriter( OutputStream out )
+    {
+        this( out, NEWC_MAGIC );
+    }
+
+
+    /**
+     * @param out the stream to write to
+     * @param magic the format: {@link #NEWC_MAGIC} or {@link #ODC_MAGIC}
+     */
+    public CpioWriter( OutputStream out, String magic )
+    {
+        this.out = out;
+        this.newc = NEWC_MAGIC.equals( magic );
+    }
+
+
+    /**
+     * Writes an entry.
+     *
+     * @param name the name of the entry, for rpm payloads a path starting with "./"
+     * @param mode the type and permission bits
+     * @param mtime the modification time in milliseconds
+     * @param inode the inode number, unique within the archive
+     * @param source the content or null for directories and empty files
+     * @param digest updated with the content if not null
+     */
+    public void writeEntry( String name, int mode, long mtime, int inode, File source, MessageDigest digest )
+        throws IOException
+    {
+        boolean directory = ( mode & ImageContents.DIRECTORY_TYPE ) != 0;
+        long size = source == null ? 0 : source.length();
+        if ( size > 0xffffffffL )
+        {
+            throw new IOException( "cpio entries are limited to 4GB: " + source );
+        }
+
+        writeHeader( name, inode, mode, directory ? 2 : 1, mtime / 1000, size );
+        if ( source != null )
+        {
+            BuildReport.read( size );
+            InputStream in = new FileInputStream( source );
+            try
+            {
+                long remaining = size;
+                while ( remaining > 0 )
+                {
+                    int read = in.read( buffer, 0, ( int ) Math.min( buffer.length, remaining ) );
+                    if ( read < 0 )
+                    {
+                        throw new IOException( source + " was truncated while being archived" );
+                    }
+                    out.write( buffer, 0, read );
+                    if ( digest != null )
+                    {
+                        digest.update( buffer, 0, read );
+                    }
+                    remaining -= read;
+                }
+            }
+            finally
+            {
+                IOUtil.close( in );
+            }
+            length += size;
+            pad();
+        }
+    }
+
+
+    /**
+     * Writes a symbolic link entry: its content is what it points to.
+     *
+     * @param name the name of the entry, for rpm payloads a path starting with "./"
+     * @param mtime the modification time in milliseconds
+     * @param inode the inode number, unique within the archive
+     * @param target what the link points to
+     */
+    public void writeLink( String name, long mtime, int inode, String target ) throws IOException
+    {
+        byte[] content = target.getBytes( "UTF-8" );
+        writeHeader( name, inode, ImageContents.LINK_TYPE | 0777, 1, mtime / 1000, content.length );
+        out.write( content );
+        length += content.length;
+        pad();
+    }
+
+
+    /**
+     * Writes the trailer entry.  The underlying stream is left open.
+     */
+    public void finish() throws IOException
+    {
+        finish( 1 );
+    }
+
+
+    /**
+     * Writes the trailer entry and pads the archive to a multiple of the 
+     * block size.  The underlying stream is left open.
+     */
+    public void finish( int blockSize ) throws IOException
+    {
+        writeHeader( TRAILER, 0, 0, 1, 0, 0 );
+        while ( length % blockSize != 0 )
+        {
+            out.write( 0 );
+            length++;
+        }
+        out.flush();
+    }
+
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+
+    private void writeHeader( String name, int inode, int mode, int links, long mtime, long size )
+        throws IOException
+    {
+        byte[] nameBytes = name.getBytes( "UTF-8" );
+        if ( !newc )
+        {
+            writeOdcHeader( nameBytes, inode, mode, links, mtime, size );
+            return;
+        }
+
+        StringBuffer header = new StringBuffer( 110 );
+        header.append( NEWC_MAGIC );
+        appendHex( header, inode );
+        appendHex( header, mode );
+        appendHex( header, 0 ); // uid
+        appendHex( header, 0 ); // gid
+        appendHex( header, links );
+        appendHex( header, mtime );
+        appendHex( header, size );
+        appendHex( header, 0 ); // dev major
+        appendHex( header, 0 ); // dev minor
+        appendHex( header, 0 ); // rdev major
+        appendHex( header, 0 ); // rdev minor
+        appendHex( header, nameBytes.length + 1 );
+        appendHex( header, 0 ); // check
+
+        out.write( header.toString().getBytes( "US-ASCII" ) );
+        out.write( nameBytes );
+        out.write( 0 );
+        length += header.length() + nameBytes.length + 1;
+        pad();
+    }
+
+
+    private void writeOdcHeader( byte[] nameBytes, int inode, int mode, int links, long mtime, long size )
+        throws IOException
+    {
+        if ( inode > 0777777 || size > 077777777777L )
+        {
+            throw new IOException( "entry does not fit the odc format: inode " + inode + ", size " + size );
+        }
+
+        StringBuffer header = new StringBuffer( 76 );
+        header.append( ODC_MAGIC );
+        appendOctal( header, 0, 6 ); // dev
+        appendOctal( header, inode, 6 );
+        appendOctal( header, mode, 6 );
+        appendOctal( header, 0, 6 ); // uid
+        appendOctal( header, 0, 6 ); // gid
+        appendOctal( header, links, 6 );
+        appendOctal( header, 0, 6 ); // rdev
+        appendOctal( header, mtime, 11 );
+        appendOctal( header, nameBytes.length + 1, 6 );
+        appendOctal( header, size, 11 );
+
+        out.write( header.toString().getBytes( "US-ASCII" ) );
+        out.write( nameBytes );
+        out.write( 0 );
+        length += header.length() + nameBytes.length + 1;
+    }
+
+
+    private void pad() throws IOException
+    {
+        // odc has no alignment
+        while ( newc && length % 4 != 0 )
+        {
+            out.write( 0 );
+            length++;
+        }
+    }
+
+
+    private static void appendOctal( StringBuffer buf, long value, int width )
+    {
+        String octal = Long.toOctalString( value );
+        for ( int ii = octal.length(); ii < width; ii++ )
+        {
+            buf.append( '0' );
+        }
+        buf.append( octal );
+    }
+
+
+    private static void appendHex( StringBuffer buf, long value )
+    {
+        String hex = Long.toHexString( value & 0xffffffffL );
+        for ( int ii = hex.length(); ii < 8; ii++ )
+        {
+            buf.append( '0' );
+        }
+        buf.append( hex );
+    }
+}
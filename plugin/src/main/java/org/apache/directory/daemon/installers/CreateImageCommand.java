@@ -21,13 +21,25 @@ package org.apache.directory.daemon.installers;
 
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.directory.daemon.Bootstrapper;
 import org.apache.directory.daemon.InstallationLayout;
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.codehaus.plexus.util.FileUtils;
@@ -41,9 +53,12 @@ import org.codehaus.plexus.util.FileUtils;
  */
 public class CreateImageCommand extends MojoCommand
 {
-    private final Properties filterProperties = new Properties( System.getProperties() );
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
     private final Target target;
     private InstallationLayout layout;
+    private ImageManifest manifest;
+    /** trimmed copies of dependency jars by the original jar */
+    private final Map trimmedJars = new HashMap();
 
 
     public CreateImageCommand( ServiceInstallersMojo mojo, Target target )
@@ -88,13 +103,26 @@ public class CreateImageCommand extends MojoCommand
         target.setLayout( layout );
         layout.mkdirs();
 
+        // only copy what changed since the last run
+        manifest = new ImageManifest( new File( mymojo.getOutputDirectory(), target.getId() + ".manifest" ), layout
+            .getBaseDirectory() );
+        manifest.setStagingStore( mymojo.getStagingStore() );
+        try
+        {
+            manifest.load();
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Failed to read image manifest: the whole image will be copied", e );
+        }
+
         // copy over the read me file if present otherwise use the bundled copy
         if ( target.getApplication().getReadme() != null && target.getApplication().getReadme().exists() )
         {
             File readmeTarget = layout.getReadmeFile( target.getApplication().getReadme().getName() );
             try
             {
-                FileUtils.copyFile( target.getApplication().getReadme(), readmeTarget );
+                copyFile( target.getApplication().getReadme(), readmeTarget );
             }
             catch ( IOException e )
             {
@@ -109,7 +137,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                FileUtils.copyFile( target.getApplication().getLicense(), licenseTarget );
+                copyFile( target.getApplication().getLicense(), licenseTarget );
             }
             catch ( IOException e )
             {
@@ -123,6 +151,7 @@ public class CreateImageCommand extends MojoCommand
             {
                 MojoHelperUtils.copyAsciiFile( mymojo, filterProperties,
                     getClass().getResourceAsStream( "LICENSE.txt" ), licenseTarget, false );
+                fileGenerated( licenseTarget );
             }
             catch ( IOException e )
             {
@@ -137,7 +166,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                FileUtils.copyFile( target.getApplication().getIcon(), iconTarget );
+                copyFile( target.getApplication().getIcon(), iconTarget );
             }
             catch ( IOException e )
             {
@@ -149,7 +178,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "logo.ico" ), iconTarget );
+                copyResource( "logo.ico", iconTarget );
             }
             catch ( IOException e )
             {
@@ -161,7 +190,7 @@ public class CreateImageCommand extends MojoCommand
         // copy over the REQUIRED bootstrapper.jar file 
         try
         {
-            FileUtils.copyFile( mymojo.getBootstrapper().getFile(), layout.getBootstrapper() );
+            copyFile( mymojo.getBootstrapper().getFile(), layout.getBootstrapper() );
         }
         catch ( IOException e )
         {
@@ -172,7 +201,7 @@ public class CreateImageCommand extends MojoCommand
         // copy over the REQUIRED logger artifact
         try
         {
-            FileUtils.copyFile( mymojo.getLogger().getFile(), layout.getLogger() );
+            copyFile( mymojo.getLogger().getFile(), layout.getLogger() );
         }
         catch ( IOException e )
         {
@@ -183,7 +212,7 @@ public class CreateImageCommand extends MojoCommand
         // copy over the REQUIRED daemon.jar file 
         try
         {
-            FileUtils.copyFile( mymojo.getDaemon().getFile(), layout.getDaemon() );
+            copyFile( mymojo.getDaemon().getFile(), layout.getDaemon() );
         }
         catch ( IOException e )
         {
@@ -214,7 +243,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                FileUtils.copyFile( target.getBootstrapperConfiguraitonFile(), layout
+                copyFile( target.getBootstrapperConfiguraitonFile(), layout
                     .getBootstrapperConfigurationFile() );
             }
             catch ( IOException e )
@@ -230,7 +259,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                FileUtils.copyFile( target.getLoggerConfigurationFile(), layout.getLoggerConfigurationFile() );
+                copyFile( target.getLoggerConfigurationFile(), layout.getLoggerConfigurationFile() );
             }
             catch ( IOException e )
             {
@@ -244,7 +273,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                FileUtils.copyFile( target.getServerConfigurationFile(), layout.getConfigurationFile() );
+                copyFile( target.getServerConfigurationFile(), layout.getConfigurationFile() );
             }
             catch ( IOException e )
             {
@@ -263,7 +292,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_linux_i386" ), executable );
+                copyResource( "jsvc_linux_i386", executable );
             }
             catch ( IOException e )
             {
@@ -278,7 +307,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_linux_ppc" ), executable );
+                copyResource( "jsvc_linux_ppc", executable );
             }
             catch ( IOException e )
             {
@@ -293,7 +322,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_linux_x86_64" ), executable );
+                copyResource( "jsvc_linux_x86_64", executable );
             }
             catch ( IOException e )
             {
@@ -308,7 +337,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_solaris_sparc" ), executable );
+                copyResource( "jsvc_solaris_sparc", executable );
             }
             catch ( IOException e )
             {
@@ -322,7 +351,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_solaris_i386" ), executable );
+                copyResource( "jsvc_solaris_i386", executable );
             }
             catch ( IOException e )
             {
@@ -337,7 +366,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_macosx_ppc" ), executable );
+                copyResource( "jsvc_macosx_ppc", executable );
             }
             catch ( IOException e )
             {
@@ -352,7 +381,7 @@ public class CreateImageCommand extends MojoCommand
             File executable = new File( layout.getBinDirectory(), target.getApplication().getName() );
             try
             {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( "jsvc_macosx_i386" ), executable );
+                copyResource( "jsvc_macosx_i386", executable );
             }
             catch ( IOException e )
             {
@@ -361,7 +390,29 @@ public class CreateImageCommand extends MojoCommand
             }
         }
 
-        target.setLibArtifacts( MojoHelperUtils.copyDependencies( mymojo, layout ) );
+        Set unreachable = Collections.EMPTY_SET;
+        if ( target.isShrinkDependencies() )
+        {
+            BuildReport.Step step = BuildReport.beginStep( "shrinking" );
+            try
+            {
+                unreachable = shrinkDependencies();
+            }
+            finally
+            {
+                step.end();
+            }
+        }
+
+        BuildReport.Step step = BuildReport.beginStep( "dependencies" );
+        try
+        {
+            target.setLibArtifacts( MojoHelperUtils.copyDependencies( mymojo, layout, this, unreachable ) );
+        }
+        finally
+        {
+            step.end();
+        }
 
         // -- copy sources if set --
 
@@ -370,7 +421,7 @@ public class CreateImageCommand extends MojoCommand
             File sourcesDirectory = new File( layout.getBaseDirectory(), target.getSourcesTargetPath() );
             try
             {
-                FileUtils.copyDirectoryStructure( target.getSourcesDirectory(), sourcesDirectory );
+                copyDirectory( target.getSourcesDirectory(), sourcesDirectory );
             }
             catch ( IOException e )
             {
@@ -386,7 +437,7 @@ public class CreateImageCommand extends MojoCommand
             File docsDirectory = new File( layout.getBaseDirectory(), target.getDocsTargetPath() );
             try
             {
-                FileUtils.copyDirectoryStructure( target.getDocsDirectory(), docsDirectory );
+                copyDirectory( target.getDocsDirectory(), docsDirectory );
             }
             catch ( IOException e )
             {
@@ -403,7 +454,7 @@ public class CreateImageCommand extends MojoCommand
         {
             try
             {
-                FileUtils.copyFile( noticeFile, noticeFileTarget );
+                copyFile( noticeFile, noticeFileTarget );
             }
             catch ( IOException e )
             {
@@ -413,5 +464,184 @@ public class CreateImageCommand extends MojoCommand
         }
         
         processPackagedFiles( target, mymojo.getPackagedFiles() );
+
+        // -- link the runtime last so jdeps sees every jar of the image --
+
+        File runtimeMarker = new File( mymojo.getOutputDirectory(), target.getId() + ".runtime" );
+        if ( target.isBundleRuntime() )
+        {
+            step = BuildReport.beginStep( "runtime" );
+            try
+            {
+                new RuntimeImageBuilder( target, runtimeMarker, log ).build();
+            }
+            finally
+            {
+                step.end();
+            }
+        }
+        else if ( layout.getRuntimeDirectory().exists() )
+        {
+            // the manifest does not cover the runtime so it goes here when no longer wanted
+            runtimeMarker.delete();
+            try
+            {
+                FileUtils.deleteDirectory( layout.getRuntimeDirectory() );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoFailureException( "Failed to remove the runtime " + layout.getRuntimeDirectory()
+                    + " no longer bundled: " + e.getMessage() );
+            }
+        }
+
+        int removed = manifest.removeStale();
+        try
+        {
+            manifest.save();
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Failed to save image manifest: the next run will copy the whole image", e );
+        }
+        log.info( "Image created: " + manifest.getCopied() + " files copied, " + manifest.getSkipped()
+            + " up to date, " + removed + " stale files removed" );
+    }
+
+
+    protected void copyFile( File source, File dest ) throws IOException
+    {
+        // dependencies trimmed by shrinking go into the image in place of the originals
+        File trimmed = ( File ) trimmedJars.get( source );
+        manifest.copyFile( trimmed != null ? trimmed : source, dest );
+    }
+
+
+    /**
+     * Finds the runtime dependencies the application never reaches and, if
+     * the target asks for it, writes trimmed copies of the others to be
+     * copied into the image instead.
+     *
+     * @return the groupId:artifactId of the unreachable dependencies
+     */
+    private Set shrinkDependencies() throws MojoFailureException
+    {
+        DependencyShrinker shrinker = new DependencyShrinker();
+        Set keep = new HashSet();
+        if ( target.getKeepArtifacts() != null )
+        {
+            keep.addAll( Arrays.asList( target.getKeepArtifacts() ) );
+        }
+
+        List artifacts = new ArrayList();
+        try
+        {
+            for ( Iterator ii = mymojo.getProject().getRuntimeArtifacts().iterator(); ii.hasNext(); /* */)
+            {
+                Artifact artifact = ( Artifact ) ii.next();
+                if ( artifact.getFile() == null || !artifact.getFile().isFile() )
+                {
+                    continue;
+                }
+
+                // the launcher loads these itself
+                String key = artifact.getGroupId() + ":" + artifact.getArtifactId();
+                boolean launcher = artifact.equals( mymojo.getBootstrapper() ) || artifact.equals( mymojo.getDaemon() )
+                    || artifact.equals( mymojo.getLogger() );
+                shrinker.addJar( key, artifact.getFile(), launcher || keep.contains( key ) );
+                artifacts.add( artifact );
+            }
+
+            shrinker.addRoot( mymojo.getApplicationClass() );
+            File bootstrapperConfiguration = target.getBootstrapperConfiguraitonFile();
+            if ( bootstrapperConfiguration != null && bootstrapperConfiguration.exists() )
+            {
+                Properties props = new Properties();
+                InputStream in = new FileInputStream( bootstrapperConfiguration );
+                try
+                {
+                    props.load( in );
+                }
+                finally
+                {
+                    in.close();
+                }
+                shrinker.addRoot( props.getProperty( Bootstrapper.START_CLASS_PROP ) );
+                shrinker.addRoot( props.getProperty( Bootstrapper.STOP_CLASS_PROP ) );
+            }
+
+            if ( target.getServerConfigurationFile() != null && target.getServerConfigurationFile().exists() )
+            {
+                shrinker.addRootsFrom( target.getServerConfigurationFile() );
+            }
+
+            String[] keepClasses = target.getKeepClasses();
+            for ( int ii = 0; keepClasses != null && ii < keepClasses.length; ii++ )
+            {
+                shrinker.addKeepRule( keepClasses[ii] );
+            }
+
+            shrinker.analyze();
+        }
+        catch ( IOException e )
+        {
+            throw new MojoFailureException( "Failed to analyze the dependencies of target " + target.getId() + ": "
+                + e.getMessage() );
+        }
+
+        Set unreachable = new HashSet();
+        int trimmed = 0;
+        for ( int ii = 0; ii < artifacts.size(); ii++ )
+        {
+            Artifact artifact = ( Artifact ) artifacts.get( ii );
+            String key = artifact.getGroupId() + ":" + artifact.getArtifactId();
+            if ( !shrinker.isReached( key ) )
+            {
+                unreachable.add( key );
+                continue;
+            }
+
+            if ( target.isTrimDependencies() )
+            {
+                File copy = new File( new File( mymojo.getOutputDirectory(), target.getId() + ".trimmed" ), artifact
+                    .getFile().getName() );
+                try
+                {
+                    int removed = shrinker.trim( key, copy );
+                    if ( removed > 0 )
+                    {
+                        trimmedJars.put( artifact.getFile(), copy );
+                        trimmed += removed;
+                    }
+                }
+                catch ( IOException e )
+                {
+                    throw new MojoFailureException( "Failed to trim dependency " + artifact + ": " + e.getMessage() );
+                }
+            }
+        }
+
+        log.info( "Shrinking: " + shrinker.getReachedCount() + " of " + shrinker.getClassCount()
+            + " classes reached, " + unreachable.size() + " of " + artifacts.size() + " dependencies unreachable, "
+            + trimmed + " classes trimmed" );
+        return unreachable;
+    }
+
+
+    protected void copyDirectory( File source, File dest ) throws IOException
+    {
+        manifest.copyDirectory( source, dest );
+    }
+
+
+    protected void fileGenerated( File dest )
+    {
+        manifest.addGenerated( dest );
+    }
+
+
+    private void copyResource( String name, File dest ) throws IOException
+    {
+        manifest.copyResource( getClass().getResource( name ), dest );
     }
 }
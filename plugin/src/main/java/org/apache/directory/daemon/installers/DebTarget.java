@@ -28,5 +28,21 @@ package org.apache.directory.daemon.installers;
  */
 public class DebTarget extends Target
 {
+    private String depends;
 
+
+    /**
+     * Sets the Depends field of the package, for example the java runtime
+     * package of the distribution.
+     */
+    public void setDepends( String depends )
+    {
+        this.depends = depends;
+    }
+
+
+    public String getDepends()
+    {
+        return depends;
+    }
 }
@@ -0,0 +1,577 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Finds the dependency jars an application never reaches.  Starting from
+ * root classes, such as the start and stop classes of the bootstrapper, the
+ * constant pools of the reached classes are followed to every class they
+ * name.  Since classes loaded by reflection cannot be found this way, any
+ * string in a reached class naming a known class is followed as well, the
+ * providers of services whose interface is reached or not part of the
+ * dependencies are roots, and further roots can be given as keep rules.
+ * <p>
+ * The analysis errs on the side of keeping: a jar is only reported as
+ * unreachable when none of its classes is reached, and jars without classes
+ * are always kept.  Jars which are kept can be trimmed down to their reached
+ * classes and all of their resources.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class DependencyShrinker
+{
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String SERVICES = "META-INF/services/";
+    private static final String VERSIONS = "META-INF/versions/";
+
+    /** jar files by key */
+    private final Map jars = new HashMap();
+    /** key of the first jar holding a class by internal class name */
+    private final Map classes = new HashMap();
+    /** provider class names by service interface name */
+    private final Map services = new HashMap();
+    /** keys of jars whose classes are all roots */
+    private final Set keptJars = new HashSet();
+    private final List keepPatterns = new ArrayList();
+    private final Set roots = new HashSet();
+    private final Set reached = new HashSet();
+    /** keys of the jars holding reached classes */
+    private final Set reachedJars = new HashSet();
+    private final Map openJars = new HashMap();
+
+
+    /**
+     * Adds a jar to the class path of the application.
+     *
+     * @param key the key of the jar, for example groupId:artifactId
+     * @param jar the jar file
+     * @param keep true to keep the jar whole whatever is reached
+     */
+    public void addJar( String key, File jar, boolean keep ) throws IOException
+    {
+        jars.put( key, jar );
+        if ( keep )
+        {
+            keptJars.add( key );
+        }
+
+        ZipFile zip = new ZipFile( jar );
+        try
+        {
+            for ( Enumeration ii = zip.entries(); ii.hasMoreElements(); /* */)
+            {
+                ZipEntry entry = ( ZipEntry ) ii.nextElement();
+                String className = getClassName( entry );
+                if ( className != null )
+                {
+                    if ( !classes.containsKey( className ) )
+                    {
+                        classes.put( className, key );
+                    }
+                    if ( keep )
+                    {
+                        roots.add( className );
+                    }
+                }
+                else if ( entry.getName().startsWith( SERVICES ) && !entry.isDirectory() )
+                {
+                    readServices( zip, entry );
+                }
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+
+
+    /**
+     * Adds a root class by its binary name, for example org.example.Server.
+     */
+    public void addRoot( String className )
+    {
+        if ( className != null && className.trim().length() > 0 )
+        {
+            roots.add( className.trim().replace( '.', '/' ) );
+        }
+    }
+
+
+    /**
+     * Adds the classes matching a pattern as roots.  A pattern is a class
+     * name, a package name followed by .* for the classes of the package or
+     * followed by .** for the classes of the package and its subpackages.
+     */
+    public void addKeepRule( String pattern )
+    {
+        if ( pattern != null && pattern.trim().length() > 0 )
+        {
+            keepPatterns.add( pattern.trim().replace( '.', '/' ) );
+        }
+    }
+
+
+    /**
+     * Adds every known class named in a text file, such as the server
+     * configuration naming the classes it instantiates, as a root.
+     */
+    public void addRootsFrom( File file ) throws IOException
+    {
+        BufferedReader in = new BufferedReader( new FileReader( file ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                StringBuffer token = new StringBuffer();
+                for ( int ii = 0; ii <= line.length(); ii++ )
+                {
+                    char ch = ii < line.length() ? line.charAt( ii ) : ' ';
+                    if ( Character.isJavaIdentifierPart( ch ) || ch == '.' )
+                    {
+                        token.append( ch );
+                    }
+                    else if ( token.length() > 0 )
+                    {
+                        String name = token.toString().replace( '.', '/' );
+                        if ( classes.containsKey( name ) )
+                        {
+                            roots.add( name );
+                        }
+                        token.setLength( 0 );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Follows the references from the roots to every reachable class.
+     */
+    public void analyze() throws IOException
+    {
+        LinkedList queue = new LinkedList( roots );
+        for ( Iterator ii = classes.keySet().iterator(); ii.hasNext(); /* */)
+        {
+            String className = ( String ) ii.next();
+            if ( isKept( className ) )
+            {
+                queue.add( className );
+            }
+        }
+
+        // providers of services from outside the dependencies may be looked up at any time
+        for ( Iterator ii = services.keySet().iterator(); ii.hasNext(); /* */)
+        {
+            String service = ( String ) ii.next();
+            if ( !classes.containsKey( service ) )
+            {
+                queue.addAll( ( List ) services.get( service ) );
+            }
+        }
+
+        try
+        {
+            while ( !queue.isEmpty() )
+            {
+                String className = ( String ) queue.removeFirst();
+                if ( !classes.containsKey( className ) || !reached.add( className ) )
+                {
+                    continue;
+                }
+
+                List providers = ( List ) services.get( className );
+                if ( providers != null )
+                {
+                    queue.addAll( providers );
+                }
+
+                reachedJars.add( classes.get( className ) );
+                byte[] bytes = readClass( className );
+                if ( bytes != null )
+                {
+                    queue.addAll( getReferences( bytes ) );
+                }
+            }
+        }
+        finally
+        {
+            for ( Iterator ii = openJars.values().iterator(); ii.hasNext(); /* */)
+            {
+                ( ( ZipFile ) ii.next() ).close();
+            }
+            openJars.clear();
+        }
+    }
+
+
+    /**
+     * Tells whether any class of a jar was reached or the jar has to be kept
+     * anyway.
+     */
+    public boolean isReached( String key )
+    {
+        return reachedJars.contains( key ) || keptJars.contains( key ) || !classes.containsValue( key );
+    }
+
+
+    /**
+     * Gets the number of classes reached.
+     */
+    public int getReachedCount()
+    {
+        return reached.size();
+    }
+
+
+    /**
+     * Gets the number of classes found in all jars.
+     */
+    public int getClassCount()
+    {
+        return classes.size();
+    }
+
+
+    /**
+     * Writes a copy of a jar without the classes which were not reached.
+     * Signed jars and jars kept whole are not trimmed.
+     *
+     * @return the number of classes left out, 0 if the jar was not written
+     */
+    public int trim( String key, File dest ) throws IOException
+    {
+        if ( keptJars.contains( key ) )
+        {
+            return 0;
+        }
+
+        File jar = ( File ) jars.get( key );
+        ZipFile zip = new ZipFile( jar );
+        try
+        {
+            int removed = 0;
+            for ( Enumeration ii = zip.entries(); ii.hasMoreElements(); /* */)
+            {
+                ZipEntry entry = ( ZipEntry ) ii.nextElement();
+                String name = entry.getName().toUpperCase();
+                if ( name.startsWith( "META-INF/" ) && ( name.endsWith( ".SF" ) || name.endsWith( ".RSA" )
+                    || name.endsWith( ".DSA" ) || name.endsWith( ".EC" ) ) )
+                {
+                    // removing classes would break the signature
+                    return 0;
+                }
+
+                String className = getClassName( entry );
+                if ( className != null && !reached.contains( className ) )
+                {
+                    removed++;
+                }
+            }
+
+            if ( removed == 0 )
+            {
+                return 0;
+            }
+
+            dest.getParentFile().mkdirs();
+            dest.delete();
+            ZipOutputStream out = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( dest ),
+                65536 ) );
+            try
+            {
+                byte[] buf = new byte[65536];
+                for ( Enumeration ii = zip.entries(); ii.hasMoreElements(); /* */)
+                {
+                    ZipEntry entry = ( ZipEntry ) ii.nextElement();
+                    String className = getClassName( entry );
+                    if ( className != null && !reached.contains( className ) )
+                    {
+                        continue;
+                    }
+
+                    ZipEntry copy = new ZipEntry( entry.getName() );
+                    copy.setTime( entry.getTime() );
+                    out.putNextEntry( copy );
+                    InputStream in = zip.getInputStream( entry );
+                    try
+                    {
+                        int read;
+                        while ( ( read = in.read( buf ) ) != -1 )
+                        {
+                            out.write( buf, 0, read );
+                        }
+                    }
+                    finally
+                    {
+                        IOUtil.close( in );
+                    }
+                    out.closeEntry();
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            return removed;
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+
+
+    private boolean isKept( String className )
+    {
+        for ( int ii = 0; ii < keepPatterns.size(); ii++ )
+        {
+            String pattern = ( String ) keepPatterns.get( ii );
+            if ( pattern.endsWith( "/**" ) )
+            {
+                if ( className.startsWith( pattern.substring( 0, pattern.length() - 2 ) ) )
+                {
+                    return true;
+                }
+            }
+            else if ( pattern.endsWith( "/*" ) )
+            {
+                String pkg = pattern.substring( 0, pattern.length() - 1 );
+                if ( className.startsWith( pkg ) && className.indexOf( '/', pkg.length() ) < 0 )
+                {
+                    return true;
+                }
+            }
+            else if ( className.equals( pattern ) || className.startsWith( pattern + "$" ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private byte[] readClass( String className ) throws IOException
+    {
+        String key = ( String ) classes.get( className );
+        ZipFile zip = ( ZipFile ) openJars.get( key );
+        if ( zip == null )
+        {
+            zip = new ZipFile( ( File ) jars.get( key ) );
+            openJars.put( key, zip );
+        }
+
+        ZipEntry entry = zip.getEntry( className + CLASS_SUFFIX );
+        if ( entry == null )
+        {
+            return null;
+        }
+
+        InputStream in = zip.getInputStream( entry );
+        try
+        {
+            return IOUtil.toByteArray( in );
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+
+    /**
+     * Gets the class names a class file refers to: those of its class
+     * constants, those in the descriptors and signatures of its members and
+     * strings which happen to be class names.  Names of classes outside the
+     * jars are harmless and ignored later.
+     */
+    private Set getReferences( byte[] bytes ) throws IOException
+    {
+        Set references = new HashSet();
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+        if ( in.readInt() != 0xCAFEBABE )
+        {
+            return references;
+        }
+        in.readUnsignedShort(); // minor version
+        in.readUnsignedShort(); // major version
+
+        int count = in.readUnsignedShort();
+        for ( int ii = 1; ii < count; ii++ )
+        {
+            int tag = in.readUnsignedByte();
+            switch ( tag )
+            {
+                case 1: // Utf8
+                    addReferences( in.readUTF(), references );
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    in.skipBytes( 2 );
+                    break;
+                case 15: // MethodHandle
+                    in.skipBytes( 3 );
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    in.skipBytes( 4 );
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    in.skipBytes( 8 );
+                    ii++;
+                    break;
+                default:
+                    throw new IOException( "Unknown constant pool tag " + tag );
+            }
+        }
+        return references;
+    }
+
+
+    private void addReferences( String text, Set references )
+    {
+        String name = text.replace( '.', '/' );
+        if ( classes.containsKey( name ) )
+        {
+            references.add( name );
+        }
+
+        // descriptors and signatures: Lpackage/Name; possibly with type arguments
+        int start = text.indexOf( 'L' );
+        while ( start >= 0 )
+        {
+            int end = start + 1;
+            while ( end < text.length() && ";<".indexOf( text.charAt( end ) ) < 0 )
+            {
+                end++;
+            }
+            if ( end < text.length() && end > start + 1 )
+            {
+                references.add( text.substring( start + 1, end ) );
+            }
+            start = text.indexOf( 'L', start + 1 );
+        }
+    }
+
+
+    private void readServices( ZipFile zip, ZipEntry entry ) throws IOException
+    {
+        String service = entry.getName().substring( SERVICES.length() ).replace( '.', '/' );
+        List providers = ( List ) services.get( service );
+        if ( providers == null )
+        {
+            providers = new ArrayList();
+            services.put( service, providers );
+        }
+
+        BufferedReader in = new BufferedReader( new InputStreamReader( zip.getInputStream( entry ), "UTF-8" ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                int comment = line.indexOf( '#' );
+                if ( comment >= 0 )
+                {
+                    line = line.substring( 0, comment );
+                }
+                if ( line.trim().length() > 0 )
+                {
+                    providers.add( line.trim().replace( '.', '/' ) );
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Gets the internal name of the class an entry holds, null for resources
+     * as well as module and package descriptors.
+     */
+    private static String getClassName( ZipEntry entry )
+    {
+        String name = entry.getName();
+        if ( entry.isDirectory() || !name.endsWith( CLASS_SUFFIX ) )
+        {
+            return null;
+        }
+
+        if ( name.startsWith( VERSIONS ) )
+        {
+            int slash = name.indexOf( '/', VERSIONS.length() );
+            if ( slash < 0 )
+            {
+                return null;
+            }
+            name = name.substring( slash + 1 );
+        }
+
+        name = name.substring( 0, name.length() - CLASS_SUFFIX.length() );
+        return name.indexOf( '-' ) >= 0 ? null : name;
+    }
+}
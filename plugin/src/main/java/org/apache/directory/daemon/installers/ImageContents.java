@@ -0,0 +1,434 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.directory.daemon.InstallationLayout;
+
+
+/**
+ * The files of an image as a unix package installs them: the image is
+ * installed into an installation base directory and the init script goes
+ * into /etc/init.d.  Modes follow what the bundled rpm spec file always
+ * used: directories get 755, the daemon executable and executable packaged
+ * files 755, the init script 744, the server configuration 600 and all other
+ * files 644.  Ownership is left to the package formats which install
+ * everything as root.  The logs of the daemon are {@link Entry#isGhost()
+ * ghost} entries: the package owns them but they are empty and grow in place.
+ * A bundled runtime gets the {@link RuntimeImageBuilder#getJvmAlias(Target)
+ * alias} jsvc needs as a symbolic link entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ImageContents
+{
+    /** the type bits of a regular file as used by cpio, tar and rpm */
+    public static final int FILE_TYPE = 0100000;
+    /** the type bits of a directory as used by cpio, tar and rpm */
+    public static final int DIRECTORY_TYPE = 040000;
+    /** the type bits of a symbolic link as used by cpio, tar and rpm */
+    public static final int LINK_TYPE = 0120000;
+    /** the mask of the type bits */
+    private static final int TYPE_MASK = 0170000;
+
+    private final Target target;
+    private final String installBase;
+    private final List entries = new ArrayList();
+    private long timestamp = -1;
+    private boolean installInitScript = true;
+    private String varBase;
+    private File imageVar;
+
+
+    /**
+     * @param target the target of the image
+     * @param installBase the absolute directory the image is installed into or
+     * the relative directory an archive unpacks it into
+     */
+    public ImageContents( Target target, String installBase )
+    {
+        this.target = target;
+        this.installBase = installBase;
+    }
+
+
+    /**
+     * Uses a fixed modification time for all entries instead of the times of
+     * the image files so the package does not depend on when it was built.
+     *
+     * @param timestamp the time in milliseconds or -1 to use the file times
+     */
+    public void setTimestamp( long timestamp )
+    {
+        this.timestamp = timestamp;
+    }
+
+
+    /**
+     * Gets the time to give all entries of a reproducible package: 
+     * SOURCE_DATE_EPOCH if it is set or else the epoch, so the package only
+     * depends on the content of the image.
+     *
+     * @return the time in milliseconds
+     */
+    public static long getDefaultTimestamp()
+    {
+        String epoch = System.getenv( "SOURCE_DATE_EPOCH" );
+        if ( epoch != null )
+        {
+            try
+            {
+                return Long.parseLong( epoch.trim() ) * 1000;
+            }
+            catch ( NumberFormatException e )
+            {
+                // fall back to the epoch
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Sets whether the init script is moved to /etc/init.d.  Archives leave
+     * it in the image as an executable so nothing lands outside the install
+     * base.
+     */
+    public void setInstallInitScript( boolean installInitScript )
+    {
+        this.installInitScript = installInitScript;
+    }
+
+
+    /**
+     * Installs the var directory of the image elsewhere than below the 
+     * install base, so the releases of a side by side installation share it.
+     *
+     * @param varBase the absolute directory var is installed as or null to
+     * keep it below the install base
+     */
+    public void setVarBase( String varBase )
+    {
+        this.varBase = varBase;
+    }
+
+
+    public String getInstallBase()
+    {
+        return installBase;
+    }
+
+
+    /**
+     * Walks the image and collects its entries.
+     *
+     * @return the {@link Entry}s sorted by path, directories before their content
+     */
+    public List scan()
+    {
+        entries.clear();
+        InstallationLayout layout = target.getLayout();
+        String app = target.getApplication().getName();
+        File base = layout.getBaseDirectory();
+        imageVar = layout.getVarDirectory().getAbsoluteFile();
+
+        Set executables = new HashSet();
+        executables.add( new File( layout.getBinDirectory(), app ).getAbsoluteFile() );
+        PackagedFile[] packagedFiles = target.getPackagedFiles();
+        for ( int ii = 0; packagedFiles != null && ii < packagedFiles.length; ii++ )
+        {
+            if ( packagedFiles[ii].isExecutable() && packagedFiles[ii].getDestinationPath() != null )
+            {
+                executables.add( new File( base, packagedFiles[ii].getDestinationPath() ).getAbsoluteFile() );
+            }
+        }
+        File runtime = layout.getRuntimeDirectory().getAbsoluteFile();
+        File initScript = layout.getInitScript().getAbsoluteFile();
+        File serverConfiguration = layout.getConfigurationFile().getAbsoluteFile();
+        Set docs = new HashSet();
+        docs.add( layout.getLicenseFile().getAbsoluteFile() );
+        docs.add( layout.getReadmeFile().getAbsoluteFile() );
+        File[] logs = new File[]
+            { new File( layout.getLogDirectory(), app + "-stderr.log" ).getAbsoluteFile(),
+                new File( layout.getLogDirectory(), app + "-stdout.log" ).getAbsoluteFile() };
+        Set logFiles = new HashSet( Arrays.asList( logs ) );
+
+        Set paths = new HashSet();
+        addDirectory( installBase, base, paths );
+
+        // walk the image without recursion, keeping the order stable
+        List pending = new ArrayList();
+        pending.add( base );
+        while ( !pending.isEmpty() )
+        {
+            File dir = ( File ) pending.remove( pending.size() - 1 );
+            File[] children = dir.listFiles();
+            if ( children == null )
+            {
+                continue;
+            }
+            Arrays.sort( children );
+
+            for ( int ii = 0; ii < children.length; ii++ )
+            {
+                File child = children[ii].getAbsoluteFile();
+                String path = getInstallPath( base, child );
+                if ( child.isDirectory() )
+                {
+                    addDirectory( path, child, paths );
+                    pending.add( child );
+                }
+                else if ( logFiles.contains( child ) )
+                {
+                    // added below as ghosts whatever the image holds
+                    continue;
+                }
+                else if ( child.equals( initScript ) && installInitScript )
+                {
+                    add( new Entry( "/etc/init.d/" + app, child, FILE_TYPE | 0744, child.length(),
+                        getTime( child ), false, false ), paths );
+                }
+                else
+                {
+                    int mode = 0644;
+                    if ( executables.contains( child ) || child.equals( initScript )
+                        || RuntimeImageBuilder.isExecutable( runtime, child ) )
+                    {
+                        mode = 0755;
+                    }
+                    else if ( child.equals( serverConfiguration ) )
+                    {
+                        mode = 0600;
+                    }
+                    add( new Entry( path, child, FILE_TYPE | mode, child.length(), getTime( child ),
+                        docs.contains( child ), false ), paths );
+                }
+            }
+        }
+
+        // the directories and logs the daemon expects even if the image lacks them
+        File[] dirs = new File[]
+            { layout.getBinDirectory(), layout.getConfigurationDirectory(), layout.getLibDirectory(),
+                layout.getExtensionsDirectory(), layout.getVarDirectory(), layout.getLogDirectory(),
+                layout.getRunDirectory(), layout.getPartitionsDirectory() };
+        for ( int ii = 0; ii < dirs.length; ii++ )
+        {
+            addDirectory( getInstallPath( base, dirs[ii].getAbsoluteFile() ), null, paths );
+        }
+
+        String jvmAlias = RuntimeImageBuilder.getJvmAlias( target );
+        if ( jvmAlias != null && new File( runtime, RuntimeImageBuilder.JVM_DIRECTORY ).isDirectory() )
+        {
+            File alias = new File( runtime, jvmAlias );
+            addDirectory( getInstallPath( base, alias.getParentFile() ), null, paths );
+            add( new Entry( getInstallPath( base, alias ), RuntimeImageBuilder.JVM_ALIAS_TARGET, getTime( null ) ),
+                paths );
+        }
+
+        for ( int ii = 0; ii < logs.length; ii++ )
+        {
+            add( new Entry( getInstallPath( base, logs[ii] ), null, FILE_TYPE | 0644, 0, getTime( null ), false,
+                true ), paths );
+        }
+
+        Collections.sort( entries, new Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                return ( ( Entry ) o1 ).getPath().compareTo( ( ( Entry ) o2 ).getPath() );
+            }
+        } );
+        return entries;
+    }
+
+
+    public List getEntries()
+    {
+        return entries;
+    }
+
+
+    private String getInstallPath( File base, File file )
+    {
+        if ( varBase != null
+            && ( file.equals( imageVar ) || file.getPath().startsWith( imageVar.getPath() + File.separator ) ) )
+        {
+            String relative = file.getPath().substring( imageVar.getPath().length() );
+            return varBase + relative.replace( File.separatorChar, '/' );
+        }
+
+        String relative = file.getPath().substring( base.getAbsolutePath().length() );
+        return installBase + relative.replace( File.separatorChar, '/' );
+    }
+
+
+    private void addDirectory( String path, File dir, Set paths )
+    {
+        add( new Entry( path, null, DIRECTORY_TYPE | 0755, 0, getTime( dir ), false, false ), paths );
+    }
+
+
+    private void add( Entry entry, Set paths )
+    {
+        if ( paths.add( entry.getPath() ) )
+        {
+            entries.add( entry );
+        }
+    }
+
+
+    private long getTime( File file )
+    {
+        if ( timestamp != -1 )
+        {
+            return timestamp;
+        }
+        return file == null ? System.currentTimeMillis() : file.lastModified();
+    }
+
+
+    /**
+     * A file or directory as installed by the package.
+     */
+    public static class Entry
+    {
+        private final String path;
+        private final File source;
+        private final int mode;
+        private final long size;
+        private final long lastModified;
+        private final boolean documentation;
+        private final boolean ghost;
+        private final String linkTarget;
+
+
+        Entry( String path, File source, int mode, long size, long lastModified, boolean documentation,
+            boolean ghost )
+        {
+            this.path = path;
+            this.source = source;
+            this.mode = mode;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.documentation = documentation;
+            this.ghost = ghost;
+            this.linkTarget = null;
+        }
+
+
+        Entry( String path, String linkTarget, long lastModified )
+        {
+            this.path = path;
+            this.source = null;
+            this.mode = LINK_TYPE | 0777;
+            this.size = linkTarget.length();
+            this.lastModified = lastModified;
+            this.documentation = false;
+            this.ghost = false;
+            this.linkTarget = linkTarget;
+        }
+
+
+        /**
+         * @return the install path without a trailing slash
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+
+        /**
+         * @return the file in the image or null for directories, links and empty files
+         */
+        public File getSource()
+        {
+            return source;
+        }
+
+
+        /**
+         * @return the type and permission bits
+         */
+        public int getMode()
+        {
+            return mode;
+        }
+
+
+        public long getSize()
+        {
+            return size;
+        }
+
+
+        public long getLastModified()
+        {
+            return lastModified;
+        }
+
+
+        public boolean isDirectory()
+        {
+            return ( mode & TYPE_MASK ) == DIRECTORY_TYPE;
+        }
+
+
+        public boolean isLink()
+        {
+            return ( mode & TYPE_MASK ) == LINK_TYPE;
+        }
+
+
+        /**
+         * @return what a link points to or null if the entry is no link
+         */
+        public String getLinkTarget()
+        {
+            return linkTarget;
+        }
+
+
+        public boolean isDocumentation()
+        {
+            return documentation;
+        }
+
+
+        /**
+         * @return true for files the package owns without installing them,
+         * such as logs which an upgrade must not empty
+         */
+        public boolean isGhost()
+        {
+            return ghost;
+        }
+    }
+}
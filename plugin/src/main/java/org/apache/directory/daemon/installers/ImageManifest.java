@@ -0,0 +1,441 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.directory.daemon.DeltaApplier;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Remembers where each file of an installation image came from so the image
+ * can be brought up to date incrementally.  For every image file the source
+ * path, its size and modification time, the modification time of the image 
+ * file and the MD5 hash of the content are recorded.  A file is copied again 
+ * only if its source or the image file itself changed.  Files recorded by the 
+ * previous run which were not produced again are deleted from the image.
+ * <p>
+ * The manifest is kept next to the image directory so it never ends up in
+ * the installers.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ImageManifest
+{
+    private static final String SEPARATOR = "\t";
+
+    private final File manifestFile;
+    private final File baseDirectory;
+    /** entries of the previous run by image relative path */
+    private final Map previous = new HashMap();
+    /** entries of this run by image relative path */
+    private final Map current = new TreeMap();
+    /** image relative paths of generated files which are rewritten each run */
+    private final Set generated = new HashSet();
+    private StagingStore store;
+    private int copied = 0;
+    private int skipped = 0;
+
+
+    public ImageManifest( File manifestFile, File baseDirectory )
+    {
+        this.manifestFile = manifestFile;
+        this.baseDirectory = baseDirectory;
+    }
+
+
+    /**
+     * Sets the store image files are linked from instead of being copied.
+     */
+    public void setStagingStore( StagingStore store )
+    {
+        this.store = store;
+    }
+
+
+    /**
+     * Loads the manifest of the previous run if there is one.
+     */
+    public void load() throws IOException
+    {
+        if ( !manifestFile.exists() )
+        {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader( new FileReader( manifestFile ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                String[] fields = line.split( SEPARATOR );
+                if ( fields.length != 6 )
+                {
+                    continue;
+                }
+
+                try
+                {
+                    Entry entry = new Entry( fields[1], Long.parseLong( fields[2] ), Long.parseLong( fields[3] ), Long
+                        .parseLong( fields[4] ), fields[5] );
+                    previous.put( fields[0], entry );
+                }
+                catch ( NumberFormatException e )
+                {
+                    // a corrupt entry only costs us a copy
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Copies a file into the image unless the image already has an identical
+     * copy of it.
+     *
+     * @param source the file to copy
+     * @param dest the destination in the image
+     * @return true if the file was copied, false if it was up to date
+     */
+    public boolean copyFile( File source, File dest ) throws IOException
+    {
+        String path = getPath( dest );
+        Entry old = ( Entry ) previous.get( path );
+        long sourceSize = source.length();
+        long sourceModified = source.lastModified();
+
+        if ( isIntact( old, dest ) && old.source.equals( source.getAbsolutePath() ) )
+        {
+            if ( old.sourceSize == sourceSize && old.sourceModified == sourceModified )
+            {
+                record( path, old, false );
+                return false;
+            }
+
+            // touched but maybe not changed: the hash tells
+            String hash = hash( source );
+            if ( hash.equals( old.hash ) )
+            {
+                record( path, new Entry( old.source, sourceSize, sourceModified, old.destModified, hash ), false );
+                return false;
+            }
+        }
+
+        String hash;
+        if ( store != null )
+        {
+            hash = store.link( source, dest );
+        }
+        else
+        {
+            MojoHelperUtils.copyFile( source, dest );
+            hash = hash( dest );
+        }
+        record( path, new Entry( source.getAbsolutePath(), sourceSize, sourceModified, dest.lastModified(), hash ),
+            true );
+        return true;
+    }
+
+
+    /**
+     * Copies a resource, such as one bundled with this plugin, into the image
+     * unless the image already has an identical copy of it.
+     *
+     * @param resource the resource to copy
+     * @param dest the destination in the image
+     * @return true if the resource was copied, false if it was up to date
+     */
+    public boolean copyResource( URL resource, File dest ) throws IOException
+    {
+        String path = getPath( dest );
+        Entry old = ( Entry ) previous.get( path );
+        URLConnection connection = resource.openConnection();
+        long size = connection.getContentLength();
+        long modified = connection.getLastModified();
+
+        if ( isIntact( old, dest ) && old.source.equals( resource.toString() ) && size >= 0 && old.sourceSize == size
+            && old.sourceModified == modified )
+        {
+            record( path, old, false );
+            return false;
+        }
+
+        String hash = copy( connection.getInputStream(), dest );
+        record( path, new Entry( resource.toString(), dest.length(), modified, dest.lastModified(), hash ), true );
+        return true;
+    }
+
+
+    /**
+     * Copies a directory tree into the image, several files at a time.
+     */
+    public void copyDirectory( File source, File dest ) throws IOException
+    {
+        MojoHelperUtils.copyDirectory( source, dest, new FileCopier()
+        {
+            public void copyFile( File source, File dest ) throws IOException
+            {
+                ImageManifest.this.copyFile( source, dest );
+            }
+        } );
+    }
+
+
+    /**
+     * Records an image file which is generated rather than copied, for example
+     * a filtered file, so it is not removed as stale.
+     */
+    public synchronized void addGenerated( File dest )
+    {
+        generated.add( getPath( dest ) );
+    }
+
+
+    /**
+     * Deletes the image files of the previous run which were not produced by 
+     * this run.
+     *
+     * @return the number of deleted files
+     */
+    public synchronized int removeStale()
+    {
+        int removed = 0;
+        for ( Iterator ii = previous.keySet().iterator(); ii.hasNext(); /* */)
+        {
+            String path = ( String ) ii.next();
+            if ( !current.containsKey( path ) && !generated.contains( path ) )
+            {
+                if ( new File( baseDirectory, path ).delete() )
+                {
+                    removed++;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+
+    /**
+     * Writes the entries of this run out for the next one.
+     */
+    public synchronized void save() throws IOException
+    {
+        PrintWriter out = new PrintWriter( new FileWriter( manifestFile ) );
+        try
+        {
+            for ( Iterator ii = current.entrySet().iterator(); ii.hasNext(); /* */)
+            {
+                Map.Entry mapEntry = ( Map.Entry ) ii.next();
+                Entry entry = ( Entry ) mapEntry.getValue();
+                out.print( mapEntry.getKey() );
+                out.print( SEPARATOR );
+                out.print( entry.source );
+                out.print( SEPARATOR );
+                out.print( entry.sourceSize );
+                out.print( SEPARATOR );
+                out.print( entry.sourceModified );
+                out.print( SEPARATOR );
+                out.print( entry.destModified );
+                out.print( SEPARATOR );
+                out.println( entry.hash );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    public synchronized int getCopied()
+    {
+        return copied;
+    }
+
+
+    public synchronized int getSkipped()
+    {
+        return skipped;
+    }
+
+
+    /**
+     * Reads the content hashes of the files a saved manifest lists.
+     *
+     * @param manifestFile the manifest of an image
+     * @return the hashes as strings
+     */
+    public static Set readHashes( File manifestFile ) throws IOException
+    {
+        ImageManifest manifest = new ImageManifest( manifestFile, null );
+        manifest.load();
+        Set hashes = new HashSet();
+        for ( Iterator ii = manifest.previous.values().iterator(); ii.hasNext(); /* */)
+        {
+            hashes.add( ( ( Entry ) ii.next() ).hash );
+        }
+        return hashes;
+    }
+
+
+    private synchronized void record( String path, Entry entry, boolean copy )
+    {
+        current.put( path, entry );
+        if ( copy )
+        {
+            copied++;
+        }
+        else
+        {
+            skipped++;
+        }
+    }
+
+
+    /**
+     * Checks that the image file is still the one written by the previous run.
+     */
+    private static boolean isIntact( Entry old, File dest )
+    {
+        return old != null && dest.isFile() && dest.lastModified() == old.destModified
+            && dest.length() == old.sourceSize;
+    }
+
+
+    private String getPath( File dest )
+    {
+        String base = baseDirectory.getAbsolutePath();
+        String path = dest.getAbsolutePath();
+        if ( path.startsWith( base + File.separator ) )
+        {
+            path = path.substring( base.length() + 1 );
+        }
+        return path.replace( File.separatorChar, '/' );
+    }
+
+
+    private static String copy( InputStream in, File dest ) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        OutputStream out = null;
+        try
+        {
+            // never write through a link into the staging store
+            dest.getParentFile().mkdirs();
+            dest.delete();
+            out = new FileOutputStream( dest );
+            byte[] buf = new byte[65536];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                digest.update( buf, 0, read );
+                out.write( buf, 0, read );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+            IOUtil.close( out );
+        }
+        BuildReport.file( 0, dest.length() );
+
+        return toHex( digest.digest() );
+    }
+
+
+    /**
+     * Gets the MD5 hash of a file as hex, counting what it read for the 
+     * build report.
+     */
+    public static String hash( File file ) throws IOException
+    {
+        String hash = DeltaApplier.hash( file );
+        BuildReport.read( file.length() );
+        return hash;
+    }
+
+
+    /**
+     * Gets an MD5 digest.  The helpers are those of the bootstrapper, which
+     * hashes installed files the same way when it applies a delta.
+     */
+    public static MessageDigest newDigest()
+    {
+        return DeltaApplier.newDigest();
+    }
+
+
+    public static MessageDigest newDigest( String algorithm )
+    {
+        return DeltaApplier.newDigest( algorithm );
+    }
+
+
+    public static String toHex( byte[] bytes )
+    {
+        return DeltaApplier.toHex( bytes );
+    }
+
+
+    private static class Entry
+    {
+        final String source;
+        final long sourceSize;
+        final long sourceModified;
+        final long destModified;
+        final String hash;
+
+
+        Entry( String source, long sourceSize, long sourceModified, long destModified, String hash )
+        {
+            this.source = source;
+            this.sourceSize = sourceSize;
+            this.sourceModified = sourceModified;
+            this.destModified = destModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -22,17 +22,24 @@ package org.apache.directory.daemon.installers;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
-import org.codehaus.plexus.util.Expand;
-import org.codehaus.plexus.util.FileUtils;
 
 
 /**
@@ -77,137 +84,327 @@ public abstract class MojoCommand
     }
     
     
+    /**
+     * Copies, filters and expands packaged files into the image of a target.
+     * Files whose destinations do not overlap are processed concurrently while
+     * files writing into the same subtree are processed in the order they are
+     * declared.  All failures are collected and reported together once every
+     * file which could be processed was.
+     */
     public void processPackagedFiles( Target target, PackagedFile[] packagedFiles ) throws MojoFailureException
     {
-        if ( packagedFiles == null )
+        if ( packagedFiles == null || packagedFiles.length == 0 )
         {
             return;
         }
-        
+
+        BuildReport.Step step = BuildReport.beginStep( "packaged files" );
+        try
+        {
+            processConcurrently( target, packagedFiles );
+        }
+        finally
+        {
+            step.end();
+        }
+    }
+
+
+    private void processConcurrently( Target target, PackagedFile[] packagedFiles ) throws MojoFailureException
+    {
         if ( log.isInfoEnabled() )
         {
             log.info( "\tProcessing " + packagedFiles.length + " packagedFiles: " );
         }
-        
+
+        // each file waits for the earlier ones writing into its subtree
+        String[] destinations = new String[packagedFiles.length];
+        final int[] waitingFor = new int[packagedFiles.length];
+        final List[] successors = new List[packagedFiles.length];
         for ( int ii = 0; ii < packagedFiles.length; ii++ )
         {
-            File source = null;
-            reportProcessing( packagedFiles[ii ] );
-
-            try
+            reportProcessing( packagedFiles[ii] );
+            destinations[ii] = getDestinationPath( target, packagedFiles[ii] );
+            successors[ii] = new ArrayList();
+            for ( int jj = 0; jj < ii; jj++ )
             {
-                if ( packagedFiles[ii].isDependency() )
+                if ( isOverlapping( destinations[ii], destinations[jj] ) )
                 {
-                    Artifact artifact = ( Artifact ) dependencyMap.get( packagedFiles[ii].getSource() );
-                    
-                    if ( artifact == null )
-                    {
-                        throw new MojoFailureException( "The packaged file setup as a dependency on artifact "
-                            + packagedFiles[ii].getSource() + " has not been found in the project.  " +
-                                    "Check your <dependencies> in the project pom." );
-                    }
-                    source = artifact.getFile().getAbsoluteFile();
+                    successors[jj].add( new Integer( ii ) );
+                    waitingFor[ii]++;
                 }
-                else
+            }
+        }
+
+        int threads = mymojo.getPackagedFileThreads();
+        if ( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, packagedFiles.length ),
+            new ThreadFactory()
+            {
+                public Thread newThread( Runnable runnable )
                 {
-                    source = new File( packagedFiles[ii].getSource() );
+                    Thread thread = new Thread( runnable, "packaged-file" );
+                    thread.setDaemon( true );
+                    return thread;
                 }
-                
-                if ( ! source.isAbsolute() )
+            } );
+        CompletionService completion = new ExecutorCompletionService( executor );
+        final Exception[] failures = new Exception[packagedFiles.length];
+
+        try
+        {
+            int running = 0;
+            for ( int ii = 0; ii < packagedFiles.length; ii++ )
+            {
+                if ( waitingFor[ii] == 0 )
                 {
-                    File sourceDirectoryRelative = new File( mymojo.getSourceDirectory(), packagedFiles[ii].getSource() );
-                    File baseRelative = new File( mymojo.getProject().getBasedir(), packagedFiles[ii].getSource() );
-                    if ( sourceDirectoryRelative.exists() )
-                    {
-                        source = sourceDirectoryRelative;
-                    }
-                    else if ( baseRelative.exists() )
-                    {
-                        source = baseRelative;
-                    }
-                    else if ( ! source.exists() )
-                    {
-                        throw new MojoFailureException( "Failed to copy packagedFile. Cannot locate source: " + source );
-                    }
-                    
-                    source = source.getAbsoluteFile();
+                    submit( completion, target, packagedFiles, ii, failures );
+                    running++;
                 }
-                
-                if ( packagedFiles[ii].isExpandable() )
+            }
+
+            while ( running > 0 )
+            {
+                int done = ( ( Integer ) completion.take().get() ).intValue();
+                running--;
+                for ( Iterator ii = successors[done].iterator(); ii.hasNext(); /* */)
                 {
-                    File dest = new File( target.getLayout().getBaseDirectory(), packagedFiles[ii].getDestinationPath() );
-                    if ( ! dest.exists() )
-                    {
-                        dest.mkdirs();
-                    }
-                    
-                    String fileExtension = source.getName().substring( source.getName().lastIndexOf( '.' ) );
-                    if ( fileExtension.equalsIgnoreCase( ".jar" ) || fileExtension.equalsIgnoreCase( ".zip" ) 
-                        || fileExtension.equalsIgnoreCase( ".war" ) || fileExtension.equalsIgnoreCase( ".sar" ) )
+                    int next = ( ( Integer ) ii.next() ).intValue();
+                    if ( --waitingFor[next] == 0 )
                     {
-                        log.info( "\t\t\t ... expanding " + source  + "\n\t\t\t => to " + dest );
-                        Expand expand = new Expand();
-                        expand.setSrc( source );
-                        expand.setOverwrite( true );
-                        expand.setDest( dest );
-                        try
-                        {
-                            expand.execute();
-                            continue;
-                        }
-                        catch ( Exception e )
-                        {
-                            throw new MojoFailureException( "Failed to expaned packagedFile " + source + ": " + e.getMessage() );
-                        }
+                        submit( completion, target, packagedFiles, next, failures );
+                        running++;
                     }
-                    
-                    throw new MojoFailureException( "Failed to expand packagedFile: " + source 
-                        + ". It does not have a jar, war or zip extension" );
                 }
-                
-                File dest = new File( target.getLayout().getBaseDirectory(), packagedFiles[ii].getDestinationPath() );
-                
-                if ( packagedFiles[ii].isDirectory() )
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException( "Interrupted while processing packagedFiles" );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new MojoFailureException( "Failed while processing packagedFiles: " + e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        List messages = new ArrayList();
+        for ( int ii = 0; ii < failures.length; ii++ )
+        {
+            if ( failures[ii] != null )
+            {
+                log.error( "Failed while processing packagedFile " + packagedFiles[ii].getSource(), failures[ii] );
+                messages.add( failures[ii].getMessage() );
+            }
+        }
+
+        if ( !messages.isEmpty() )
+        {
+            StringBuffer buf = new StringBuffer();
+            buf.append( "Failed to process " ).append( messages.size() ).append( " of " );
+            buf.append( packagedFiles.length ).append( " packagedFiles:" );
+            for ( int ii = 0; ii < messages.size(); ii++ )
+            {
+                buf.append( "\n\t" ).append( messages.get( ii ) );
+            }
+            throw new MojoFailureException( buf.toString() );
+        }
+    }
+
+
+    private void submit( CompletionService completion, final Target target, final PackagedFile[] packagedFiles,
+        final int index, final Exception[] failures )
+    {
+        completion.submit( BuildReport.bind( new Callable()
+        {
+            public Object call()
+            {
+                try
                 {
-                    try
-                    {
-                        FileUtils.copyDirectoryStructure( source, dest );
-                    }
-                    catch ( IOException e )
-                    {
-                        throw new MojoFailureException( "Failed to copy packagedFile [directory=true] from source " 
-                            + source + " to destination " + dest );
-                    }
-                    continue;
+                    processPackagedFile( target, packagedFiles[index] );
                 }
-                else if ( packagedFiles[ii].isFiltered() )
+                catch ( Exception e )
                 {
-                    try
-                    {
-                        MojoHelperUtils.copyAsciiFile( mymojo, getFilterProperties(), source, dest, true );
-                    }
-                    catch ( IOException e )
-                    {
-                        throw new MojoFailureException( "Failed to copy packagedFile from source " + source +
-                            " to destination " + dest );
-                    }
-                    continue;
+                    // read back only after the completion of this file
+                    failures[index] = e;
                 }
-                
+                return new Integer( index );
+            }
+        } ) );
+    }
+
+
+    private String getDestinationPath( Target target, PackagedFile packagedFile )
+    {
+        File dest = new File( target.getLayout().getBaseDirectory(), String.valueOf( packagedFile
+            .getDestinationPath() ) );
+        try
+        {
+            return dest.getCanonicalPath();
+        }
+        catch ( IOException e )
+        {
+            return dest.getAbsolutePath();
+        }
+    }
+
+
+    private static boolean isOverlapping( String path, String other )
+    {
+        return path.equals( other ) || path.startsWith( other + File.separator )
+            || other.startsWith( path + File.separator );
+    }
+
+
+    private void processPackagedFile( Target target, PackagedFile packagedFile ) throws MojoFailureException
+    {
+        if ( packagedFile.getSource() == null || packagedFile.getDestinationPath() == null )
+        {
+            throw new MojoFailureException( "The packaged file with source " + packagedFile.getSource()
+                + " and destination " + packagedFile.getDestinationPath() + " is missing one of them" );
+        }
+
+        File source = null;
+        if ( packagedFile.isDependency() )
+        {
+            Artifact artifact = ( Artifact ) dependencyMap.get( packagedFile.getSource() );
+            
+            if ( artifact == null )
+            {
+                throw new MojoFailureException( "The packaged file setup as a dependency on artifact "
+                    + packagedFile.getSource() + " has not been found in the project.  " +
+                            "Check your <dependencies> in the project pom." );
+            }
+            source = artifact.getFile().getAbsoluteFile();
+        }
+        else
+        {
+            source = new File( packagedFile.getSource() );
+        }
+        
+        if ( ! source.isAbsolute() )
+        {
+            File sourceDirectoryRelative = new File( mymojo.getSourceDirectory(), packagedFile.getSource() );
+            File baseRelative = new File( mymojo.getProject().getBasedir(), packagedFile.getSource() );
+            if ( sourceDirectoryRelative.exists() )
+            {
+                source = sourceDirectoryRelative;
+            }
+            else if ( baseRelative.exists() )
+            {
+                source = baseRelative;
+            }
+            else if ( ! source.exists() )
+            {
+                throw new MojoFailureException( "Failed to copy packagedFile. Cannot locate source: " + source );
+            }
+            
+            source = source.getAbsoluteFile();
+        }
+        
+        File dest = new File( target.getLayout().getBaseDirectory(), packagedFile.getDestinationPath() );
+        if ( packagedFile.isExpandable() )
+        {
+            if ( ! dest.exists() )
+            {
+                dest.mkdirs();
+            }
+            
+            String fileExtension = source.getName().substring( source.getName().lastIndexOf( '.' ) + 1 );
+            if ( fileExtension.equalsIgnoreCase( "jar" ) || fileExtension.equalsIgnoreCase( "zip" ) 
+                || fileExtension.equalsIgnoreCase( "war" ) || fileExtension.equalsIgnoreCase( "sar" ) )
+            {
+                log.info( "\t\t\t ... expanding " + source  + "\n\t\t\t => to " + dest );
+                ZipExpander expander = new ZipExpander( new File( mymojo.getOutputDirectory(), target.getId()
+                    + ".expanded" ), mymojo.getExpandThreads() );
                 try
                 {
-                    FileUtils.copyFile( source, dest );
+                    expander.expand( source, dest );
+                    log.info( "\t\t\t ... " + expander.getExtracted() + " entries extracted, "
+                        + expander.getSkipped() + " up to date, " + expander.getRemoved() + " removed" );
+                    return;
                 }
                 catch ( IOException e )
                 {
-                    throw new MojoFailureException( "Failed to copy packagedFile from source " + source +
-                        " to destination " + dest );
+                    throw new MojoFailureException( "Failed to expand packagedFile " + source + ": " + e.getMessage() );
                 }
             }
-            catch ( Exception e ) 
+            
+            throw new MojoFailureException( "Failed to expand packagedFile: " + source 
+                + ". It does not have a jar, war or zip extension" );
+        }
+        
+        if ( packagedFile.isDirectory() )
+        {
+            try
+            {
+                copyDirectory( source, dest );
+            }
+            catch ( IOException e )
             {
-                log.error( "Failed while processing " + source, e );
+                throw new MojoFailureException( "Failed to copy packagedFile [directory=true] from source " 
+                    + source + " to destination " + dest + ": " + e.getMessage() );
             }
+            return;
+        }
+        else if ( packagedFile.isFiltered() )
+        {
+            try
+            {
+                MojoHelperUtils.copyAsciiFile( mymojo, getFilterProperties(), source, dest, true );
+                fileGenerated( dest );
+            }
+            catch ( IOException e )
+            {
+                throw new MojoFailureException( "Failed to copy packagedFile from source " + source +
+                    " to destination " + dest + ": " + e.getMessage() );
+            }
+            return;
         }
+        
+        try
+        {
+            copyFile( source, dest );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoFailureException( "Failed to copy packagedFile from source " + source +
+                " to destination " + dest + ": " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     * Copies a file into an image.  Commands keeping track of the files they
+     * put into an image override this.
+     */
+    protected void copyFile( File source, File dest ) throws IOException
+    {
+        MojoHelperUtils.copyFile( source, dest );
+    }
+
+
+    /**
+     * Copies a directory tree into an image.
+     */
+    protected void copyDirectory( File source, File dest ) throws IOException
+    {
+        MojoHelperUtils.copyDirectory( source, dest );
+    }
+
+
+    /**
+     * Notifies the command about a file it generated in an image rather than 
+     * copied.
+     */
+    protected void fileGenerated( File dest )
+    {
     }
 }
@@ -20,29 +20,41 @@
 package org.apache.directory.daemon.installers;
 
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.directory.daemon.InstallationLayout;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.MojoFailureException;
-import org.apache.tools.ant.taskdefs.Execute;
-import org.codehaus.plexus.util.FileUtils;
+import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.util.IOUtil;
-import org.codehaus.plexus.util.InterpolationFilterReader;
 
 
 /**
@@ -53,13 +65,46 @@ import org.codehaus.plexus.util.InterpolationFilterReader;
  */
 public class MojoHelperUtils
 {
+    /** 1980-01-01 UTC, the earliest time a zip entry can have */
+    private static final long DOS_EPOCH = 315532800000L;
+    /** the most bytes handed to the kernel in one transfer so huge files stay within platform limits */
+    private static final long TRANSFER_CHUNK = 64 * 1024 * 1024;
+    /** below this many files a directory is copied by the calling thread */
+    private static final int PARALLEL_COPY_THRESHOLD = 8;
+
+    private static ExecutorService copyExecutor;
+
+
     public static void copyBinaryFile( InputStream from, File to ) throws IOException
     {
+        if ( from instanceof FileInputStream )
+        {
+            try
+            {
+                transfer( ( ( FileInputStream ) from ).getChannel(), to );
+            }
+            finally
+            {
+                IOUtil.close( from );
+            }
+            return;
+        }
+
         FileOutputStream out = null;
         try
         {
+            // the file may be a hard link into the staging store
+            to.delete();
             out = new FileOutputStream( to );
-            IOUtil.copy( from, out );
+            ReadableByteChannel in = Channels.newChannel( from );
+            FileChannel channel = out.getChannel();
+            long position = 0;
+            long transferred;
+            while ( ( transferred = channel.transferFrom( in, position, TRANSFER_CHUNK ) ) > 0 )
+            {
+                position += transferred;
+            }
+            BuildReport.file( position, position );
         }
         finally
         {
@@ -69,53 +114,300 @@ public class MojoHelperUtils
     }
 
 
-    public static void copyAsciiFile( ServiceInstallersMojo mymojo, Properties filterProperties, InputStream from,
-        File to, boolean filtering ) throws IOException
+    /**
+     * Copies a file letting the kernel move the bytes from one file to the
+     * other without passing them through the heap.  Files of any size are
+     * copied in chunks.  An existing destination is replaced rather than 
+     * overwritten in place.
+     */
+    public static void copyFile( File from, File to ) throws IOException
     {
-        // buffer so it isn't reading a byte at a time!
-        Reader fileReader = null;
-        Writer fileWriter = null;
+        FileInputStream in = new FileInputStream( from );
         try
         {
-            if ( mymojo.getEncoding() == null || mymojo.getEncoding().length() < 1 )
+            transfer( in.getChannel(), to );
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+
+    /**
+     * Rewrites a zip or jar file giving all entries the same modification
+     * time so the archive only depends on its content.  Entries keep their
+     * order and compression method, comments and extra fields are dropped.
+     *
+     * @param timestamp the time in milliseconds
+     */
+    public static void normalizeZip( File file, long timestamp ) throws IOException
+    {
+        // zip times are local times starting in 1980: shift them so the same time is written on any host
+        long time = Math.max( timestamp, DOS_EPOCH );
+        time -= TimeZone.getDefault().getOffset( time );
+        File tmp = new File( file.getPath() + ".tmp" );
+        ZipFile zip = new ZipFile( file );
+        ZipOutputStream out = null;
+        try
+        {
+            out = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ), 65536 ) );
+            byte[] buf = new byte[65536];
+            for ( Enumeration entries = zip.entries(); entries.hasMoreElements(); /* */)
             {
-                fileReader = new BufferedReader( new InputStreamReader( from ) );
-                fileWriter = new FileWriter( to );
+                ZipEntry entry = ( ZipEntry ) entries.nextElement();
+                ZipEntry copy = new ZipEntry( entry.getName() );
+                copy.setTime( time );
+                copy.setMethod( entry.getMethod() );
+                if ( entry.getMethod() == ZipEntry.STORED )
+                {
+                    copy.setSize( entry.getSize() );
+                    copy.setCompressedSize( entry.getSize() );
+                    copy.setCrc( entry.getCrc() );
+                }
+
+                out.putNextEntry( copy );
+                InputStream in = zip.getInputStream( entry );
+                try
+                {
+                    int read;
+                    while ( ( read = in.read( buf ) ) != -1 )
+                    {
+                        out.write( buf, 0, read );
+                    }
+                }
+                finally
+                {
+                    IOUtil.close( in );
+                }
+                out.closeEntry();
+            }
+            out.close();
+            out = null;
+        }
+        finally
+        {
+            IOUtil.close( out );
+            zip.close();
+        }
+
+        if ( !file.delete() || !tmp.renameTo( file ) )
+        {
+            tmp.delete();
+            throw new IOException( "Failed to replace " + file + " with its normalized copy" );
+        }
+    }
+
+
+    private static void transfer( FileChannel in, File to ) throws IOException
+    {
+        // the file may be a hard link into the staging store
+        to.delete();
+        if ( to.getParentFile() != null )
+        {
+            to.getParentFile().mkdirs();
+        }
+
+        FileOutputStream out = new FileOutputStream( to );
+        try
+        {
+            FileChannel channel = out.getChannel();
+            long size = in.size();
+            long start = in.position();
+            long position = start;
+            while ( position < size )
+            {
+                long transferred = in.transferTo( position, Math.min( TRANSFER_CHUNK, size - position ), channel );
+                if ( transferred <= 0 && position >= ( size = in.size() ) )
+                {
+                    // the source shrunk under us
+                    break;
+                }
+                position += transferred;
+            }
+            BuildReport.file( position - start, position - start );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+
+    /**
+     * Copies a directory tree.  The tree is walked by the calling thread and
+     * the files are copied concurrently.
+     */
+    public static void copyDirectory( File from, File to ) throws IOException
+    {
+        copyDirectory( from, to, new FileCopier()
+        {
+            public void copyFile( File source, File dest ) throws IOException
+            {
+                MojoHelperUtils.copyFile( source, dest );
+            }
+        } );
+    }
+
+
+    /**
+     * Copies a directory tree using the given copier for the files.  The 
+     * copier is called concurrently from several threads.
+     */
+    public static void copyDirectory( File from, File to, final FileCopier copier ) throws IOException
+    {
+        List files = new ArrayList();
+        walk( from, to, files );
+
+        if ( files.size() < PARALLEL_COPY_THRESHOLD )
+        {
+            for ( int ii = 0; ii < files.size(); ii++ )
+            {
+                File[] pair = ( File[] ) files.get( ii );
+                copier.copyFile( pair[0], pair[1] );
+            }
+            return;
+        }
+
+        ExecutorService executor = getCopyExecutor();
+        List futures = new ArrayList( files.size() );
+        for ( int ii = 0; ii < files.size(); ii++ )
+        {
+            final File[] pair = ( File[] ) files.get( ii );
+            futures.add( executor.submit( BuildReport.bind( new Callable()
+            {
+                public Object call() throws Exception
+                {
+                    copier.copyFile( pair[0], pair[1] );
+                    return null;
+                }
+            } ) ) );
+        }
+
+        // wait for all copies even after a failure so none is left running
+        IOException failure = null;
+        for ( int ii = 0; ii < futures.size(); ii++ )
+        {
+            try
+            {
+                ( ( Future ) futures.get( ii ) ).get();
+            }
+            catch ( ExecutionException e )
+            {
+                if ( failure == null )
+                {
+                    Throwable cause = e.getCause();
+                    failure = cause instanceof IOException ? ( IOException ) cause : new IOException( "Failed to copy "
+                        + ( ( File[] ) files.get( ii ) )[0] + ": " + cause );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted while copying " + from + " to " + to );
+            }
+        }
+
+        if ( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Creates the directories of a tree and collects its files as source and
+     * destination pairs.
+     */
+    private static void walk( File from, File to, List files ) throws IOException
+    {
+        if ( !from.exists() )
+        {
+            return;
+        }
+
+        if ( !to.isDirectory() && !to.mkdirs() )
+        {
+            throw new IOException( "Failed to create directory " + to );
+        }
+
+        File[] children = from.listFiles();
+        for ( int ii = 0; children != null && ii < children.length; ii++ )
+        {
+            File dest = new File( to, children[ii].getName() );
+            if ( children[ii].isDirectory() )
+            {
+                walk( children[ii], dest, files );
             }
             else
             {
-                FileOutputStream outstream = new FileOutputStream( to );
-                fileReader = new BufferedReader( new InputStreamReader( from, mymojo.getEncoding() ) );
-                fileWriter = new OutputStreamWriter( outstream, mymojo.getEncoding() );
+                files.add( new File[]
+                    { children[ii], dest } );
             }
+        }
+    }
+
 
-            Reader reader = null;
-            if ( filtering )
+    private static synchronized ExecutorService getCopyExecutor()
+    {
+        if ( copyExecutor == null )
+        {
+            // copies mostly wait on the disk so use a few more threads than cpus
+            int threads = Math.max( 4, Runtime.getRuntime().availableProcessors() * 2 );
+            copyExecutor = Executors.newFixedThreadPool( threads, new ThreadFactory()
             {
-                // support _${token}
-                reader = new InterpolationFilterReader( fileReader, filterProperties, "_${", "}" );
-                // support ${token}
-                reader = new InterpolationFilterReader( reader, filterProperties, "${", "}" );
-                // support @token@
-                reader = new InterpolationFilterReader( reader, filterProperties, "@", "@" );
+                private int count = 0;
+
 
-                boolean isPropertiesFile = false;
-                if ( to.isFile() && to.getName().endsWith( ".properties" ) )
+                public synchronized Thread newThread( Runnable runnable )
                 {
-                    isPropertiesFile = true;
+                    Thread thread = new Thread( runnable, "installers-copy-" + ( ++count ) );
+                    thread.setDaemon( true );
+                    return thread;
                 }
-                reader = new InterpolationFilterReader( reader, new ReflectionProperties( mymojo.getProject(),
-                    isPropertiesFile ), "${", "}" );
+            } );
+        }
+
+        return copyExecutor;
+    }
+
+
+    public static void copyAsciiFile( ServiceInstallersMojo mymojo, Properties filterProperties, InputStream from,
+        File to, boolean filtering ) throws IOException
+    {
+        if ( !filtering )
+        {
+            copyBinaryFile( from, to );
+            return;
+        }
+
+        writeFiltered( mymojo, filterProperties, Template.forStream( from, mymojo.getEncoding() ), to );
+    }
+
+
+    private static void writeFiltered( ServiceInstallersMojo mymojo, Properties filterProperties, Template template,
+        File to ) throws IOException
+    {
+        boolean isPropertiesFile = to.getName().endsWith( ".properties" );
+        String content = template.render( filterProperties, mymojo.getProjectExpressions( isPropertiesFile ) );
+
+        Writer fileWriter = null;
+        try
+        {
+            // the file may be a hard link into the staging store
+            to.delete();
+            if ( mymojo.getEncoding() == null || mymojo.getEncoding().length() < 1 )
+            {
+                fileWriter = new FileWriter( to );
             }
             else
             {
-                reader = fileReader;
+                fileWriter = new OutputStreamWriter( new FileOutputStream( to ), mymojo.getEncoding() );
             }
-            IOUtil.copy( reader, fileWriter );
+            fileWriter.write( content );
         }
         finally
         {
-            IOUtil.close( fileReader );
             IOUtil.close( fileWriter );
         }
     }
@@ -124,16 +416,38 @@ public class MojoHelperUtils
     public static void copyAsciiFile( ServiceInstallersMojo mymojo, Properties filterProperties, File from, File to,
         boolean filtering ) throws IOException
     {
-        copyAsciiFile( mymojo, filterProperties, new FileInputStream( from ), to, filtering );
+        if ( !filtering )
+        {
+            copyFile( from, to );
+            return;
+        }
+
+        writeFiltered( mymojo, filterProperties, Template.forFile( from, mymojo.getEncoding() ), to );
+        BuildReport.file( from.length(), to.length() );
     }
 
 
     public static List copyDependencies( ServiceInstallersMojo mymojo, InstallationLayout layout )
         throws MojoFailureException
+    {
+        return copyDependencies( mymojo, layout, null, Collections.EMPTY_SET );
+    }
+
+
+    /**
+     * Copies the runtime dependencies into the lib directory of an image using
+     * the copy of the given command if one is supplied.
+     *
+     * @param unreachable the groupId:artifactId of dependencies to leave out
+     * because the application never uses them
+     */
+    public static List copyDependencies( ServiceInstallersMojo mymojo, InstallationLayout layout,
+        MojoCommand command, Set unreachable ) throws MojoFailureException
     {
         List libArtifacts = new ArrayList();
         Artifact artifact = null;
         List rejects = new ArrayList();
+        List dropped = new ArrayList();
 
         mymojo.getLog().info( "" );
         mymojo.getLog().info( "    Including artifacts: " );
@@ -164,9 +478,23 @@ public class MojoHelperUtils
                     continue;
                 }
 
+                if ( unreachable.contains( key ) )
+                {
+                    dropped.add( key );
+                    continue;
+                }
+
                 try
                 {
-                    FileUtils.copyFileToDirectory( artifact.getFile(), layout.getLibDirectory() );
+                    File dest = new File( layout.getLibDirectory(), artifact.getFile().getName() );
+                    if ( command == null )
+                    {
+                        copyFile( artifact.getFile(), dest );
+                    }
+                    else
+                    {
+                        command.copyFile( artifact.getFile(), dest );
+                    }
                     libArtifacts.add( artifact );
                     mymojo.getLog().info( "        o " + key );
                 }
@@ -192,54 +520,35 @@ public class MojoHelperUtils
         {
             mymojo.getLog().info( "No artifacts have been excluded." );
         }
-        mymojo.getLog().info( "" );
 
-        return libArtifacts;
-    }
-
-
-    public static void exec( String[] cmd, File workDir, boolean doSudo ) throws MojoFailureException
-    {
-        Execute task = new Execute();
-        task.setCommandline( cmd );
-        task.setSpawn( true );
-        task.setWorkingDirectory( workDir );
-
-        if ( doSudo )
+        if ( !dropped.isEmpty() )
         {
-            String cmdString = " ";
-            for ( int ii = 0; ii < cmd.length; ii++ )
+            mymojo.getLog().info( "" );
+            mymojo.getLog().info( "    Unreachable artifacts: " );
+            mymojo.getLog().info( "    ---------------------" );
+            for ( int ii = 0; ii < dropped.size(); ii++ )
             {
-                System.out.println( "cmd[" + ii + "] = " + cmd[ii] );
-                cmdString += cmd[ii] + " ";
+                mymojo.getLog().info( "        o " + dropped.get( ii ) );
             }
-
-            String[] temp = new String[2];
-            temp[0] = "sudo";
-            temp[1] = cmdString;
-            cmd = temp;
         }
+        mymojo.getLog().info( "" );
 
-        String cmdString = " ";
-        for ( int ii = 0; ii < cmd.length; ii++ )
-        {
-            System.out.println( "cmd[" + ii + "] = " + cmd[ii] );
-            cmdString += cmd[ii] + " ";
-        }
+        return libArtifacts;
+    }
 
-        try
-        {
-            task.execute();
-        }
-        catch ( IOException e )
-        {
-            throw new MojoFailureException( "Failed while trying to execute '" + cmdString + "': " + e.getMessage() );
-        }
 
-        if ( task.getExitValue() != 0 )
-        {
-            throw new MojoFailureException( "Execution of '" + cmdString + "' resulted in a non-zero exit value: "
-                + task.getExitValue() );
-        }
+    /**
+     * Runs an external tool, streaming its output into the given Log.
+     *
+     * @param timeout the seconds the tool may run, 0 for no limit
+     * @see ProcessRunner
+     */
+    public static void exec( String[] cmd, File workDir, boolean doSudo, Log log, long timeout )
+        throws MojoFailureException
+    {
+        ProcessRunner runner = new ProcessRunner( cmd, workDir, log );
+        runner.setSudo( doSudo );
+        runner.setTimeout( timeout );
+        runner.run();
     }
 }
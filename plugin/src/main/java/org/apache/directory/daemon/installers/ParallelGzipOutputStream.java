@@ -0,0 +1,248 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * A gzip stream which compresses blocks of its input on several threads.
+ * Every block becomes a gzip member of its own and the members are written
+ * in order, which gzip, tar and GZIPInputStream read as one stream.  Blocks
+ * are compressed without the history of the previous block so they cost a
+ * little compression, which is negligible at the default block size.  At
+ * most two blocks per thread are held in memory.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ParallelGzipOutputStream extends OutputStream
+{
+    /** the default size of the blocks compressed independently */
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final int level;
+    private final int maxPending;
+    private final ExecutorService executor;
+    private final LinkedList pending = new LinkedList();
+    private byte[] block;
+    private int count;
+    private boolean written;
+    private boolean finished;
+
+
+    /**
+     * @param out the stream the members are written to
+     * @param blockSize the size of the blocks compressed independently
+     * @param threads the number of compressing threads, 0 for one per processor
+     * @param level the compression level as used by {@link Deflater}
+     */
+    public ParallelGzipOutputStream( OutputStream out, int blockSize, int threads, int level )
+    {
+        this.out = out;
+        this.level = level;
+        this.block = new byte[blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE];
+        if ( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.maxPending = threads * 2;
+        this.executor = Executors.newFixedThreadPool( threads, new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "gzip" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+
+    public void write( int b ) throws IOException
+    {
+        block[count++] = ( byte ) b;
+        if ( count == block.length )
+        {
+            submit();
+        }
+    }
+
+
+    public void write( byte[] buf, int off, int len ) throws IOException
+    {
+        while ( len > 0 )
+        {
+            int chunk = Math.min( len, block.length - count );
+            System.arraycopy( buf, off, block, count, chunk );
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+            if ( count == block.length )
+            {
+                submit();
+            }
+        }
+    }
+
+
+    /**
+     * Compresses what is left and writes all members without closing the
+     * underlying stream.
+     */
+    public void finish() throws IOException
+    {
+        if ( finished )
+        {
+            return;
+        }
+
+        // an empty stream still needs a member to be a valid gzip file
+        if ( count > 0 || !written )
+        {
+            submit();
+        }
+        while ( !pending.isEmpty() )
+        {
+            drain();
+        }
+        out.flush();
+        finished = true;
+        executor.shutdown();
+    }
+
+
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            executor.shutdownNow();
+            out.close();
+        }
+    }
+
+
+    private void submit() throws IOException
+    {
+        final byte[] input = block;
+        final int length = count;
+        pending.add( executor.submit( new Callable()
+        {
+            public Object call() throws Exception
+            {
+                return compress( input, length, level );
+            }
+        } ) );
+        written = true;
+        block = new byte[block.length];
+        count = 0;
+
+        while ( pending.size() > maxPending )
+        {
+            drain();
+        }
+    }
+
+
+    private void drain() throws IOException
+    {
+        Future future = ( Future ) pending.removeFirst();
+        try
+        {
+            out.write( ( byte[] ) future.get() );
+        }
+        catch ( InterruptedException e )
+        {
+            throw ( IOException ) new IOException( "Interrupted while compressing" ).initCause( e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw ( IOException ) new IOException( "Failed to compress a block: " + e.getCause() ).initCause(
+                e.getCause() );
+        }
+    }
+
+
+    /**
+     * Compresses a block into a complete gzip member.  The header carries no
+     * name and no time so equal input gives equal output.
+     */
+    static byte[] compress( byte[] input, int length, int level )
+    {
+        ByteArrayOutputStream member = new ByteArrayOutputStream( length / 2 + 64 );
+        member.write( 0x1f );
+        member.write( 0x8b );
+        member.write( Deflater.DEFLATED );
+        for ( int ii = 0; ii < 6; ii++ )
+        {
+            member.write( 0 ); // flags, mtime and extra flags
+        }
+        member.write( 3 ); // unix
+
+        Deflater deflater = new Deflater( level, true );
+        try
+        {
+            deflater.setInput( input, 0, length );
+            deflater.finish();
+            byte[] buf = new byte[65536];
+            while ( !deflater.finished() )
+            {
+                int deflated = deflater.deflate( buf );
+                member.write( buf, 0, deflated );
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( input, 0, length );
+        writeInt( member, crc.getValue() );
+        writeInt( member, length );
+        return member.toByteArray();
+    }
+
+
+    private static void writeInt( ByteArrayOutputStream out, long value )
+    {
+        out.write( ( int ) value & 0xff );
+        out.write( ( int ) ( value >>> 8 ) & 0xff );
+        out.write( ( int ) ( value >>> 16 ) & 0xff );
+        out.write( ( int ) ( value >>> 24 ) & 0xff );
+    }
+}
@@ -28,5 +28,34 @@ package org.apache.directory.daemon.installers;
  */
 public class PkgTarget extends Target
 {
+    private String packageName;
+    private String category = "application";
 
+
+    /**
+     * Sets the package abbreviation, for example APCHds.  It defaults to the
+     * application name prefixed with APCH.
+     */
+    public void setPackageName( String packageName )
+    {
+        this.packageName = packageName;
+    }
+
+
+    public String getPackageName()
+    {
+        return packageName;
+    }
+
+
+    public void setCategory( String category )
+    {
+        this.category = category;
+    }
+
+
+    public String getCategory()
+    {
+        return category;
+    }
 }
@@ -0,0 +1,400 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+
+/**
+ * Runs an external tool and waits for it.  Its output is streamed into a Log
+ * line by line while it runs, standard output as info and standard error as
+ * warnings, and the last lines of standard error are kept for the failure
+ * message.  A tool running longer than its timeout is killed together with
+ * the processes it started, where the JRE can find them.  Runners share no
+ * state so any number of tools can run concurrently.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ProcessRunner
+{
+    /** the default timeout in seconds */
+    public static final long DEFAULT_TIMEOUT = 3600;
+    private static final int ERROR_LINES = 20;
+    /** how long output is still read after the tool exited, in case something it started keeps the pipes open */
+    private static final long PUMP_GRACE = 10000;
+
+    /** java.lang.Process.toHandle() when running on Java 9 or later */
+    private static final Method TO_HANDLE;
+    /** java.lang.ProcessHandle.descendants() when running on Java 9 or later */
+    private static final Method DESCENDANTS;
+    /** java.util.stream.Stream.toArray() when running on Java 9 or later */
+    private static final Method TO_ARRAY;
+    /** java.lang.ProcessHandle.destroyForcibly() when running on Java 9 or later */
+    private static final Method DESTROY_FORCIBLY;
+
+    static
+    {
+        Method toHandle = null;
+        Method descendants = null;
+        Method toArray = null;
+        Method destroyForcibly = null;
+        try
+        {
+            Class handleClass = Class.forName( "java.lang.ProcessHandle" );
+            toHandle = Process.class.getMethod( "toHandle", new Class[0] );
+            descendants = handleClass.getMethod( "descendants", new Class[0] );
+            toArray = Class.forName( "java.util.stream.Stream" ).getMethod( "toArray", new Class[0] );
+            destroyForcibly = handleClass.getMethod( "destroyForcibly", new Class[0] );
+        }
+        catch ( Exception e )
+        {
+            toHandle = null;
+        }
+        TO_HANDLE = toHandle;
+        DESCENDANTS = descendants;
+        TO_ARRAY = toArray;
+        DESTROY_FORCIBLY = destroyForcibly;
+    }
+
+    private final String[] command;
+    private final File workDir;
+    private final Log log;
+    private boolean sudo = false;
+    private long timeout = DEFAULT_TIMEOUT;
+    private final LinkedList errorLines = new LinkedList();
+    private List outputLines;
+
+
+    /**
+     * @param command the tool and its arguments
+     * @param workDir the working directory of the tool
+     * @param log the Log the output of the tool goes to
+     */
+    public ProcessRunner( String[] command, File workDir, Log log )
+    {
+        this.command = command;
+        this.workDir = workDir;
+        this.log = log;
+    }
+
+
+    /**
+     * Runs the tool through sudo.
+     */
+    public void setSudo( boolean sudo )
+    {
+        this.sudo = sudo;
+    }
+
+
+    /**
+     * @param timeout the seconds the tool may run, 0 for no limit
+     */
+    public void setTimeout( long timeout )
+    {
+        this.timeout = timeout;
+    }
+
+
+    /**
+     * Collects the lines of standard output of the tool instead of logging
+     * them, for tools whose output is their result.
+     */
+    public void setOutputLines( List outputLines )
+    {
+        this.outputLines = outputLines;
+    }
+
+
+    /**
+     * Runs the tool and waits for it to finish.
+     *
+     * @throws MojoFailureException if the tool cannot be started, times out
+     * or exits with a non-zero value
+     */
+    public void run() throws MojoFailureException
+    {
+        BuildReport.Step step = BuildReport.beginStep( new File( command[0] ).getName() );
+        try
+        {
+            runTool();
+        }
+        finally
+        {
+            step.end();
+        }
+    }
+
+
+    private void runTool() throws MojoFailureException
+    {
+        String[] cmd = command;
+        if ( sudo )
+        {
+            cmd = new String[command.length + 1];
+            cmd[0] = "sudo";
+            System.arraycopy( command, 0, cmd, 1, command.length );
+        }
+        String cmdString = toString( cmd );
+        log.info( "Running '" + cmdString + "' in " + workDir );
+
+        Process process;
+        try
+        {
+            ProcessBuilder builder = new ProcessBuilder( cmd );
+            builder.directory( workDir );
+            process = builder.start();
+        }
+        catch ( IOException e )
+        {
+            throw new MojoFailureException( "Failed while trying to execute '" + cmdString + "': " + e.getMessage() );
+        }
+
+        // the tool gets no input and must not wait for any
+        try
+        {
+            process.getOutputStream().close();
+        }
+        catch ( IOException e )
+        {
+            // nothing to do about it
+        }
+
+        String name = new File( command[0] ).getName();
+        Thread out = pump( process.getInputStream(), name, false );
+        Thread err = pump( process.getErrorStream(), name, true );
+        Watchdog watchdog = null;
+        if ( timeout > 0 )
+        {
+            watchdog = new Watchdog( process, timeout * 1000 );
+            watchdog.start();
+        }
+
+        int exitValue;
+        try
+        {
+            exitValue = process.waitFor();
+            out.join( PUMP_GRACE );
+            err.join( PUMP_GRACE );
+        }
+        catch ( InterruptedException e )
+        {
+            kill( process );
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException( "Interrupted while waiting for '" + cmdString + "'" );
+        }
+        finally
+        {
+            if ( watchdog != null )
+            {
+                watchdog.interrupt();
+            }
+        }
+
+        if ( watchdog != null && watchdog.isExpired() )
+        {
+            throw new MojoFailureException( "Execution of '" + cmdString + "' did not finish within " + timeout
+                + " seconds and was killed" + getErrorOutput() );
+        }
+
+        if ( exitValue != 0 )
+        {
+            throw new MojoFailureException( "Execution of '" + cmdString + "' resulted in a non-zero exit value: "
+                + exitValue + getErrorOutput() );
+        }
+    }
+
+
+    private Thread pump( final InputStream in, final String name, final boolean error )
+    {
+        Thread thread = new Thread( "pump " + name )
+        {
+            public void run()
+            {
+                BufferedReader reader = new BufferedReader( new InputStreamReader( in ) );
+                try
+                {
+                    String line;
+                    while ( ( line = reader.readLine() ) != null )
+                    {
+                        if ( error )
+                        {
+                            log.warn( "[" + name + "] " + line );
+                            addErrorLine( line );
+                        }
+                        else if ( outputLines != null )
+                        {
+                            addOutputLine( line );
+                        }
+                        else
+                        {
+                            log.info( "[" + name + "] " + line );
+                        }
+                    }
+                }
+                catch ( IOException e )
+                {
+                    // the process went away
+                }
+                finally
+                {
+                    try
+                    {
+                        reader.close();
+                    }
+                    catch ( IOException e )
+                    {
+                        // nothing to do about it
+                    }
+                }
+            }
+        };
+        thread.setDaemon( true );
+        thread.start();
+        return thread;
+    }
+
+
+    private synchronized void addErrorLine( String line )
+    {
+        errorLines.add( line );
+        if ( errorLines.size() > ERROR_LINES )
+        {
+            errorLines.removeFirst();
+        }
+    }
+
+
+    private synchronized void addOutputLine( String line )
+    {
+        outputLines.add( line );
+    }
+
+
+    private synchronized String getErrorOutput()
+    {
+        if ( errorLines.isEmpty() )
+        {
+            return "";
+        }
+
+        StringBuffer buf = new StringBuffer( "\nLast lines of its error output:" );
+        for ( int ii = 0; ii < errorLines.size(); ii++ )
+        {
+            buf.append( "\n\t" ).append( errorLines.get( ii ) );
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * Kills a process and, on Java 9 or later, all processes it started.
+     * Processes run through sudo belong to root and may survive.
+     */
+    static void kill( Process process )
+    {
+        if ( TO_HANDLE != null )
+        {
+            try
+            {
+                Object handle = TO_HANDLE.invoke( process, new Object[0] );
+                Object[] descendants = ( Object[] ) TO_ARRAY.invoke( DESCENDANTS.invoke( handle, new Object[0] ),
+                    new Object[0] );
+                for ( int ii = 0; ii < descendants.length; ii++ )
+                {
+                    DESTROY_FORCIBLY.invoke( descendants[ii], new Object[0] );
+                }
+            }
+            catch ( Exception e )
+            {
+                // fall back to killing the process alone
+            }
+        }
+        process.destroy();
+    }
+
+
+    private static String toString( String[] cmd )
+    {
+        StringBuffer buf = new StringBuffer();
+        for ( int ii = 0; ii < cmd.length; ii++ )
+        {
+            if ( ii > 0 )
+            {
+                buf.append( ' ' );
+            }
+            buf.append( cmd[ii] );
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * Kills the process when its time is up unless interrupted first.
+     */
+    private static class Watchdog extends Thread
+    {
+        private final Process process;
+        private final long millis;
+        private volatile boolean expired = false;
+
+
+        Watchdog( Process process, long millis )
+        {
+            super( "watchdog" );
+            setDaemon( true );
+            this.process = process;
+            this.millis = millis;
+        }
+
+
+        public void run()
+        {
+            try
+            {
+                Thread.sleep( millis );
+            }
+            catch ( InterruptedException e )
+            {
+                return;
+            }
+            expired = true;
+            kill( process );
+        }
+
+
+        boolean isExpired()
+        {
+            return expired;
+        }
+    }
+}
@@ -24,6 +24,8 @@ import org.apache.maven.project.MavenProject;
 import org.codehaus.plexus.util.StringUtils;
 import org.codehaus.plexus.util.introspection.ReflectionValueExtractor;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 
@@ -38,40 +40,135 @@ import java.util.Properties;
 public class ReflectionProperties extends Properties
 {
     private static final long serialVersionUID = -4748409484925117841L;
+
+    /** the cached result of an expression which does not resolve */
+    private static final Object MISS = new Object();
+
+    /** the expressions commonly used in the bundled templates which are resolved up front */
+    static final String[] KNOWN_EXPRESSIONS = new String[]
+        { "project.groupId", "project.artifactId", "project.version", "project.name", "project.description",
+            "project.url", "project.packaging", "project.inceptionYear", "project.basedir",
+            "project.organization.name", "project.organization.url", "project.build.directory",
+            "project.build.finalName", "project.build.outputDirectory", "version" };
+
     private MavenProject project;
     boolean escapedBackslashesInFilePath;
+    /** evaluated expressions shared by both views, also the lock of both views */
+    private final Map evaluated;
+    /** the values handed out by this view */
+    private final Map values;
+    private ReflectionProperties escapedView;
 
 
     public ReflectionProperties(MavenProject aProject, boolean escapedBackslashesInFilePath)
+    {
+        this( aProject, escapedBackslashesInFilePath, new HashMap() );
+    }
+
+
+    private ReflectionProperties(MavenProject aProject, boolean escapedBackslashesInFilePath, Map evaluated)
     {
         super();
         project = aProject;
         this.escapedBackslashesInFilePath = escapedBackslashesInFilePath;
+        this.evaluated = evaluated;
+        this.values = escapedBackslashesInFilePath ? new HashMap() : evaluated;
+    }
+
+
+    /**
+     * Creates the expression resolver of a build: results, including 
+     * expressions which do not resolve, are remembered for the rest of the 
+     * build and the common project expressions are evaluated right away.
+     */
+    public static ReflectionProperties createResolver( MavenProject project )
+    {
+        ReflectionProperties resolver = new ReflectionProperties( project, false );
+        for ( int ii = 0; ii < KNOWN_EXPRESSIONS.length; ii++ )
+        {
+            resolver.get( KNOWN_EXPRESSIONS[ii] );
+        }
+        return resolver;
+    }
+
+
+    /**
+     * Gets the view of the same expressions escaping windows paths for use 
+     * in properties files.  It shares the evaluated expressions with this 
+     * view and caches its escaped values separately.
+     */
+    public ReflectionProperties getEscapedView()
+    {
+        if ( escapedBackslashesInFilePath )
+        {
+            return this;
+        }
+
+        synchronized ( evaluated )
+        {
+            if ( escapedView == null )
+            {
+                escapedView = new ReflectionProperties( project, true, evaluated );
+            }
+            return escapedView;
+        }
     }
 
 
     public Object get( Object key )
     {
-        Object value = null;
-        try
+        String expression = "" + key;
+        synchronized ( evaluated )
         {
-            value = ReflectionValueExtractor.evaluate( "" + key, project );
-            if ( escapedBackslashesInFilePath && value != null
-                && "java.lang.String".equals( value.getClass().getName() ) )
+            Object value = values.get( expression );
+            if ( value == null )
             {
-                String val = ( String ) value;
+                value = evaluated.get( expression );
+                if ( value == null )
+                {
+                    value = evaluate( expression );
+                    evaluated.put( expression, value );
+                }
 
-                // Check if it's a windows path
-                if ( val.indexOf( ":\\" ) == 1 )
+                if ( escapedBackslashesInFilePath )
                 {
-                    value = StringUtils.replace( ( String ) value, "\\", "\\\\" );
-                    value = StringUtils.replace( ( String ) value, ":", "\\:" );
+                    value = escape( value );
+                    values.put( expression, value );
                 }
             }
+
+            return value == MISS ? null : value;
+        }
+    }
+
+
+    private Object evaluate( String expression )
+    {
+        try
+        {
+            Object value = ReflectionValueExtractor.evaluate( expression, project );
+            return value == null ? MISS : value;
         }
         catch ( Exception e )
         {
             //TODO: remove the try-catch block when ReflectionValueExtractor.evaluate() throws no more exceptions
+            return MISS;
+        }
+    }
+
+
+    private static Object escape( Object value )
+    {
+        if ( value != MISS && "java.lang.String".equals( value.getClass().getName() ) )
+        {
+            String val = ( String ) value;
+
+            // Check if it's a windows path
+            if ( val.indexOf( ":\\" ) == 1 )
+            {
+                value = StringUtils.replace( ( String ) value, "\\", "\\\\" );
+                value = StringUtils.replace( ( String ) value, ":", "\\:" );
+            }
         }
         return value;
     }
@@ -0,0 +1,529 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.directory.daemon.InstallationLayout;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+
+/**
+ * Links a Java runtime holding only the modules the application needs into
+ * the {@link InstallationLayout#getRuntimeDirectory() runtime directory} of
+ * an image.  The modules are those jdeps finds in the jars of the image plus
+ * those the target names.  The runtime is linked again only when the jars,
+ * the modules named, the JDK or the jmods change: a marker next to the image
+ * remembers what the last runtime was linked from.
+ * <p>
+ * A runtime for another platform than the one of the build is linked from
+ * the jmods of a JDK for that platform: without them the build fails rather
+ * than bundle a runtime which cannot run on the target.  When the runtime is
+ * for the platform of the build, the default class data sharing archive is
+ * dumped into it as well so the daemon starts faster.
+ * <p>
+ * The jsvc executables the images get predate Java 9 and only look for the
+ * JVM library in a directory named after the arch below lib, where a linked
+ * runtime has none.  Packages therefore install a {@link #getJvmAlias(Target)
+ * link} to the JVM directory where jsvc looks for it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class RuntimeImageBuilder
+{
+    /** what jlink leaves out of the runtime: none of it is needed to run a daemon */
+    private static final String[] JLINK_OPTIONS = new String[]
+        { "--strip-debug", "--no-header-files", "--no-man-pages" };
+    /** the launchers of the JDK which must stay executable when found below lib */
+    private static final String[] LIB_EXECUTABLES = new String[]
+        { "jspawnhelper", "jexec" };
+    /** the prefixes of the os.name of the JVM and of the os names of targets by family */
+    private static final String[][] OS_FAMILIES = new String[][]
+        { { "windows", "windows" }, { "macosx", "macosx" }, { "darwin", "macosx" }, { "solaris", "sunos" } };
+    /** the os.arch names of the JVM and the names targets use for them */
+    private static final String[][] ARCH_ALIASES = new String[][]
+        { { "amd64", "x86_64" }, { "x86", "i386" }, { "i486", "i386" }, { "i586", "i386" }, { "i686", "i386" },
+            { "arm64", "aarch64" }, { "powerpc", "ppc" } };
+
+    /** the directory of a linked runtime holding the JVM library */
+    public static final String JVM_DIRECTORY = "lib/server";
+    /** what the alias of the JVM directory links to, relative to the alias */
+    public static final String JVM_ALIAS_TARGET = "../server";
+    /** the os and arch of the targets which get jsvc and the directory below lib it looks for the JVM in */
+    private static final String[][] JSVC_ARCH_DIRECTORIES = new String[][]
+        { { "linux", "i386", "i386" }, { "linux", "x86_64", "amd64" }, { "linux", "ppc", "powerpc" },
+            { "sunos", "sparc", "sparc" }, { "sunos", "i386", "i386" } };
+
+    private final Target target;
+    private final File markerFile;
+    private final Log log;
+
+
+    /**
+     * @param target the target whose image gets the runtime
+     * @param markerFile where to remember what the runtime was linked from
+     * @param log the Log the tools write to
+     */
+    public RuntimeImageBuilder( Target target, File markerFile, Log log )
+    {
+        this.target = target;
+        this.markerFile = markerFile;
+        this.log = log;
+    }
+
+
+    /**
+     * Links the runtime into the image unless the one there is up to date.
+     */
+    public void build() throws MojoFailureException
+    {
+        File jmods = target.getRuntimeJmods();
+        boolean buildPlatform = isBuildPlatform();
+        if ( jmods == null && !buildPlatform )
+        {
+            throw new MojoFailureException( "Target " + target.getId() + " is for " + target.getOsName() + " "
+                + target.getOsArch() + " but the build runs on " + System.getProperty( "os.name" ) + " "
+                + System.getProperty( "os.arch" ) + ": set its runtimeJmods to the jmods of a JDK for "
+                + target.getOsName() + " " + target.getOsArch() );
+        }
+
+        File jdk = getJdk();
+        Properties release = readRelease( jdk );
+        List jars = findJars();
+
+        File runtime = target.getLayout().getRuntimeDirectory();
+        String description = describe( jdk, release, jmods, jars );
+        if ( new File( runtime, "release" ).exists() && description.equals( readMarker() ) )
+        {
+            log.info( "Runtime in " + runtime + " is up to date" );
+            return;
+        }
+
+        Set modules = findModules( jdk, release, jars );
+        if ( target.getRuntimeModules() != null )
+        {
+            modules.addAll( Arrays.asList( target.getRuntimeModules() ) );
+        }
+
+        markerFile.delete();
+        try
+        {
+            FileUtils.deleteDirectory( runtime );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoFailureException( "Failed to remove the old runtime " + runtime + ": " + e.getMessage() );
+        }
+
+        List cmd = new ArrayList();
+        cmd.add( getTool( jdk, "jlink" ).getPath() );
+        if ( jmods != null )
+        {
+            cmd.add( "--module-path" );
+            cmd.add( jmods.getPath() );
+        }
+        cmd.add( "--add-modules" );
+        cmd.add( join( modules, "," ) );
+        cmd.addAll( Arrays.asList( JLINK_OPTIONS ) );
+        cmd.add( "--output" );
+        cmd.add( runtime.getPath() );
+        MojoHelperUtils.exec( ( String[] ) cmd.toArray( new String[cmd.size()] ), runtime.getParentFile(), false,
+            log, target.getToolTimeout() );
+
+        // only a runtime which can run here can dump its archive
+        if ( buildPlatform )
+        {
+            File java = getTool( runtime, "java" );
+            MojoHelperUtils.exec( new String[]
+                { java.getPath(), "-Xshare:dump" }, runtime, false, log, target.getToolTimeout() );
+        }
+
+        try
+        {
+            PrintWriter out = new PrintWriter( new FileWriter( markerFile ) );
+            try
+            {
+                out.print( description );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Failed to write " + markerFile + ": the runtime will be linked again next time", e );
+        }
+        log.info( "Linked runtime with modules " + join( modules, "," ) + " into " + runtime );
+    }
+
+
+    /**
+     * Tells whether a file of the runtime must be executable.
+     */
+    public static boolean isExecutable( File runtime, File file )
+    {
+        File parent = file.getParentFile();
+        if ( parent == null )
+        {
+            return false;
+        }
+        if ( parent.equals( new File( runtime, "bin" ) ) )
+        {
+            return true;
+        }
+        return parent.equals( new File( runtime, "lib" ) )
+            && Arrays.asList( LIB_EXECUTABLES ).contains( file.getName() );
+    }
+
+
+    /**
+     * Gets the alias of the JVM directory the jsvc executable of a target
+     * needs to load the JVM of the bundled runtime.  The alias must be a
+     * symbolic link: the JVM finds the runtime from the real path of its
+     * library.
+     *
+     * @return the path of the alias relative to the runtime directory or null
+     * if the target gets no jsvc which needs one
+     */
+    public static String getJvmAlias( Target target )
+    {
+        for ( int ii = 0; ii < JSVC_ARCH_DIRECTORIES.length; ii++ )
+        {
+            if ( JSVC_ARCH_DIRECTORIES[ii][0].equals( target.getOsName() )
+                && JSVC_ARCH_DIRECTORIES[ii][1].equals( target.getOsArch() ) )
+            {
+                return "lib/" + JSVC_ARCH_DIRECTORIES[ii][2] + "/server";
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Finds the JDK to link with: the one of the target, else the one running
+     * the build or the one JAVA_HOME points to.
+     */
+    private File getJdk() throws MojoFailureException
+    {
+        if ( target.getRuntimeJdk() != null )
+        {
+            if ( !getTool( target.getRuntimeJdk(), "jlink" ).exists() )
+            {
+                throw new MojoFailureException( "The runtime JDK " + target.getRuntimeJdk() + " of target "
+                    + target.getId() + " has no jlink: it must be a JDK 11 or later" );
+            }
+            return target.getRuntimeJdk();
+        }
+
+        String[] candidates = new String[]
+            { System.getProperty( "java.home" ), System.getenv( "JAVA_HOME" ) };
+        for ( int ii = 0; ii < candidates.length; ii++ )
+        {
+            if ( candidates[ii] != null && getTool( new File( candidates[ii] ), "jlink" ).exists() )
+            {
+                return new File( candidates[ii] );
+            }
+        }
+        throw new MojoFailureException( "No jlink found to build the runtime of target " + target.getId()
+            + ": set its runtimeJdk to a JDK 11 or later" );
+    }
+
+
+    /**
+     * Lists the jars of the image.
+     */
+    private List findJars()
+    {
+        InstallationLayout layout = target.getLayout();
+        List jars = new ArrayList();
+        addJars( layout.getBinDirectory(), jars );
+        addJars( layout.getLibDirectory(), jars );
+        addJars( layout.getExtensionsDirectory(), jars );
+        return jars;
+    }
+
+
+    /**
+     * Lists the modules the jars of the image need according to jdeps.
+     */
+    private Set findModules( File jdk, Properties release, List jars ) throws MojoFailureException
+    {
+        Set modules = new TreeSet();
+        modules.add( "java.base" );
+        if ( jars.isEmpty() )
+        {
+            return modules;
+        }
+
+        // multi-release jars are looked at as the runtime would see them
+        String version = release.getProperty( "JAVA_VERSION", "" ).replaceAll( "\"", "" );
+        version = version.startsWith( "1." ) ? "base" : version.replaceAll( "[^0-9].*", "" );
+
+        List cmd = new ArrayList();
+        cmd.add( getTool( jdk, "jdeps" ).getPath() );
+        cmd.add( "--ignore-missing-deps" );
+        cmd.add( "--print-module-deps" );
+        cmd.add( "--multi-release" );
+        cmd.add( version.length() == 0 ? "base" : version );
+        for ( int ii = 0; ii < jars.size(); ii++ )
+        {
+            cmd.add( ( ( File ) jars.get( ii ) ).getPath() );
+        }
+
+        List output = new ArrayList();
+        ProcessRunner runner = new ProcessRunner( ( String[] ) cmd.toArray( new String[cmd.size()] ), target
+            .getLayout().getBaseDirectory(), log );
+        runner.setTimeout( target.getToolTimeout() );
+        runner.setOutputLines( output );
+        runner.run();
+
+        // the modules are on the last line, anything before are warnings
+        for ( int ii = output.size() - 1; ii >= 0; ii-- )
+        {
+            String line = ( ( String ) output.get( ii ) ).trim();
+            if ( line.length() == 0 )
+            {
+                continue;
+            }
+            if ( !line.matches( "[\\w.]+(,[\\w.]+)*" ) )
+            {
+                throw new MojoFailureException( "Unexpected output of jdeps for target " + target.getId() + ": "
+                    + line );
+            }
+            modules.addAll( Arrays.asList( line.split( "," ) ) );
+            break;
+        }
+        return modules;
+    }
+
+
+    private static void addJars( File dir, List jars )
+    {
+        File[] children = dir.listFiles();
+        if ( children == null )
+        {
+            return;
+        }
+        Arrays.sort( children );
+
+        for ( int ii = 0; ii < children.length; ii++ )
+        {
+            if ( children[ii].isFile() && children[ii].getName().endsWith( ".jar" ) )
+            {
+                jars.add( children[ii] );
+            }
+        }
+    }
+
+
+    /**
+     * Describes what the runtime is linked from for the marker: the JDK, the
+     * jmods, the modules the target names and the jars jdeps looks at.
+     */
+    private String describe( File jdk, Properties release, File jmods, List jars )
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append( "jdk=" ).append( jdk.getAbsolutePath() ).append( "\n" );
+        buf.append( "version=" ).append( release.getProperty( "JAVA_VERSION", "unknown" ) ).append( "\n" );
+        buf.append( "options=" ).append( join( Arrays.asList( JLINK_OPTIONS ), " " ) ).append( "\n" );
+        if ( target.getRuntimeModules() != null )
+        {
+            buf.append( "modules=" ).append( join( Arrays.asList( target.getRuntimeModules() ), "," ) ).append( "\n" );
+        }
+        if ( jmods != null )
+        {
+            buf.append( "jmods=" ).append( jmods.getAbsolutePath() ).append( "\n" );
+            File[] children = jmods.listFiles();
+            if ( children != null )
+            {
+                Arrays.sort( children );
+                describeFiles( Arrays.asList( children ), buf );
+            }
+        }
+        describeFiles( jars, buf );
+        return buf.toString();
+    }
+
+
+    private static void describeFiles( List files, StringBuffer buf )
+    {
+        for ( int ii = 0; ii < files.size(); ii++ )
+        {
+            File file = ( File ) files.get( ii );
+            buf.append( file.getName() ).append( "\t" ).append( file.length() ).append( "\t" );
+            buf.append( file.lastModified() ).append( "\n" );
+        }
+    }
+
+
+    private String readMarker()
+    {
+        if ( !markerFile.exists() )
+        {
+            return null;
+        }
+
+        StringBuffer buf = new StringBuffer();
+        try
+        {
+            BufferedReader in = new BufferedReader( new FileReader( markerFile ) );
+            try
+            {
+                String line;
+                while ( ( line = in.readLine() ) != null )
+                {
+                    buf.append( line ).append( "\n" );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * Reads the release file of a JDK, which names its version.
+     */
+    private static Properties readRelease( File jdk )
+    {
+        Properties release = new Properties();
+        try
+        {
+            InputStream in = new FileInputStream( new File( jdk, "release" ) );
+            try
+            {
+                release.load( in );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            // without it the version is unknown and jdeps looks at the base classes only
+        }
+        return release;
+    }
+
+
+    /**
+     * Tells whether the target is for the platform running the build.  A
+     * target without an os or arch matches any.
+     */
+    private boolean isBuildPlatform()
+    {
+        if ( target.getOsName() != null
+            && !normalizeOs( System.getProperty( "os.name" ) ).equals( normalizeOs( target.getOsName() ) ) )
+        {
+            return false;
+        }
+        return target.getOsArch() == null
+            || normalizeArch( System.getProperty( "os.arch" ) ).equals( normalizeArch( target.getOsArch() ) );
+    }
+
+
+    /**
+     * Gets the family of an os name, for Windows and Mac OS X whatever the
+     * version it names.
+     */
+    private static String normalizeOs( String os )
+    {
+        os = os.toLowerCase( Locale.US ).replaceAll( " ", "" );
+        for ( int ii = 0; ii < OS_FAMILIES.length; ii++ )
+        {
+            if ( os.startsWith( OS_FAMILIES[ii][0] ) )
+            {
+                return OS_FAMILIES[ii][1];
+            }
+        }
+        return os;
+    }
+
+
+    private static String normalizeArch( String arch )
+    {
+        arch = arch.toLowerCase( Locale.US );
+        for ( int ii = 0; ii < ARCH_ALIASES.length; ii++ )
+        {
+            if ( ARCH_ALIASES[ii][0].equals( arch ) )
+            {
+                return ARCH_ALIASES[ii][1];
+            }
+        }
+        return arch;
+    }
+
+
+    /**
+     * Gets a tool of a JDK or runtime run on the build host.
+     */
+    private static File getTool( File jdk, String name )
+    {
+        if ( File.separatorChar == '\\' )
+        {
+            name += ".exe";
+        }
+        return new File( new File( jdk, "bin" ), name );
+    }
+
+
+    private static String join( Collection items, String separator )
+    {
+        StringBuffer buf = new StringBuffer();
+        for ( Iterator ii = items.iterator(); ii.hasNext(); /* */)
+        {
+            buf.append( ii.next() );
+            if ( ii.hasNext() )
+            {
+                buf.append( separator );
+            }
+        }
+        return buf.toString();
+    }
+}
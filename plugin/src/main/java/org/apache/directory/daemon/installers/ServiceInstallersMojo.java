@@ -21,16 +21,31 @@ package org.apache.directory.daemon.installers;
 
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.directory.daemon.installers.archive.ArchiveInstallerCommand;
+import org.apache.directory.daemon.installers.archive.ArchiveTarget;
+import org.apache.directory.daemon.installers.deb.DebInstallerCommand;
+import org.apache.directory.daemon.installers.delta.DeltaPackageCommand;
 import org.apache.directory.daemon.installers.inno.InnoInstallerCommand;
 import org.apache.directory.daemon.installers.inno.InnoTarget;
 import org.apache.directory.daemon.installers.izpack.IzPackInstallerCommand;
 import org.apache.directory.daemon.installers.izpack.IzPackTarget;
+import org.apache.directory.daemon.installers.pkg.PkgInstallerCommand;
 import org.apache.directory.daemon.installers.rpm.RpmInstallerCommand;
 import org.apache.directory.daemon.installers.rpm.RpmTarget;
 
@@ -40,6 +55,7 @@ import org.apache.maven.model.MailingList;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.apache.tools.ant.util.JavaEnvUtils;
 import org.codehaus.plexus.util.FileUtils;
@@ -64,6 +80,8 @@ public class ServiceInstallersMojo extends AbstractMojo
     static final String LOGGER_GROUP_ID = "org.slf4j";
     static final String DAEMON_ARTIFACT_ID = "commons-daemon";
     static final String DAEMON_GROUP_ID = "commons-daemon";
+    /** the build report written into the output directory */
+    static final String REPORT_FILE = "installers-report.json";
 
     /**
      * The target directory into which the mojo creates os and platform 
@@ -111,6 +129,11 @@ public class ServiceInstallersMojo extends AbstractMojo
      */
     private DebTarget[] debTargets;
 
+    /**
+     * @parameter
+     */
+    private ArchiveTarget[] archiveTargets;
+
     /**
      * @parameter 
      * @required
@@ -163,6 +186,81 @@ public class ServiceInstallersMojo extends AbstractMojo
      */
     private Set excludes;
 
+    /**
+     * The number of targets built concurrently.  Defaults to the number of 
+     * available processors.
+     * 
+     * @parameter expression="${installers.threads}"
+     */
+    private int threads;
+
+    /**
+     * Whether files of target images are hard linked to a single staged copy
+     * instead of being copied into every image.
+     * 
+     * @parameter expression="${installers.hardLinkImages}" default-value="true"
+     */
+    private boolean hardLinkImages = true;
+
+    /**
+     * The number of threads expanding each expandable packaged file.  
+     * Defaults to the number of available processors.
+     * 
+     * @parameter expression="${installers.expandThreads}"
+     */
+    private int expandThreads;
+
+    /**
+     * The number of packaged files of a target processed concurrently.
+     * Files writing into the same subtree of the image are always processed
+     * in the order they are declared.  Defaults to the number of available
+     * processors.
+     * 
+     * @parameter expression="${installers.packagedFileThreads}"
+     */
+    private int packagedFileThreads;
+
+    /**
+     * The seconds svn and mvn may run when exporting sources and generating
+     * docs, 0 for no limit.
+     * 
+     * @parameter expression="${installers.toolTimeout}" default-value="3600"
+     */
+    private long toolTimeout = ProcessRunner.DEFAULT_TIMEOUT;
+
+    /**
+     * Whether targets whose inputs did not change since they were last built
+     * are restored from the build cache instead of being built again.
+     * 
+     * @parameter expression="${installers.cache}" default-value="true"
+     */
+    private boolean useCache = true;
+
+    /**
+     * The directory of the build cache, which build agents may share.
+     * Defaults to .cache in the output directory.
+     * 
+     * @parameter expression="${installers.cacheDirectory}"
+     */
+    private File cacheDirectory;
+
+    /**
+     * The megabytes the build cache may take.  The least recently used 
+     * entries are removed at the end of the build to stay below it, 0 for
+     * no limit.
+     * 
+     * @parameter expression="${installers.cacheMaxSize}" default-value="2048"
+     */
+    private long cacheMaxSize = 2048;
+
+    /**
+     * The days an entry of the build cache is kept after it was last saved
+     * or restored, 0 for no limit.
+     * 
+     * @parameter expression="${installers.cacheMaxAge}" default-value="30"
+     */
+    private int cacheMaxAge = 30;
+
     /** daemon bootstrapper */
     private Artifact bootstrapper;
     /** logging API need by bootstraper */
@@ -173,17 +271,38 @@ public class ServiceInstallersMojo extends AbstractMojo
     private File exportedSources;
     private File docsBase;
     private List allTargets;
+    /** snapshot of the system properties the filter properties of targets start from */
+    private Properties systemProperties;
+    /** the buffered Log of the target built by the current thread */
+    private final ThreadLocal targetLog = new ThreadLocal();
+    /** content addressed store shared by the images of all targets */
+    private StagingStore stagingStore;
+    /** resolves project expressions in filtered files, caching the results for the build */
+    private ReflectionProperties projectExpressions;
+    /** the installers of previous builds by the fingerprint of their inputs, null if disabled */
+    private BuildCache buildCache;
+    /** the time and I/O of the steps of this build */
+    private BuildReport report;
 
 
     public void execute() throws MojoExecutionException, MojoFailureException
     {
         FileUtils.mkdir( outputDirectory.getAbsolutePath() );
+        report = new BuildReport();
 
         // collect all targets 
         initializeAllTargets();
 
         // setup exports and docs if specified for installers
-        setupSourcesAndDocs();
+        BuildReport.Step step = report.begin( null, "sources and docs" );
+        try
+        {
+            setupSourcesAndDocs();
+        }
+        finally
+        {
+            step.end();
+        }
 
         // makes sure defaulted values are set to globals
         setDefaults();
@@ -205,42 +324,414 @@ public class ServiceInstallersMojo extends AbstractMojo
         setBootstrapArtifacts();
 
         // generate installers for all targets
+        try
+        {
+            buildTargets();
+        }
+        finally
+        {
+            writeReport();
+        }
+    }
+
+
+    /**
+     * Logs the time and I/O of every step as a table and writes them as JSON
+     * into the output directory so builds can be compared.
+     */
+    private void writeReport()
+    {
+        report.finish();
+        getLog().info( "" );
+        getLog().info( "Build report:" );
+        List lines = report.format();
+        for ( int ii = 0; ii < lines.size(); ii++ )
+        {
+            getLog().info( "    " + lines.get( ii ) );
+        }
+
+        File file = new File( outputDirectory, REPORT_FILE );
+        try
+        {
+            report.write( file, project.getGroupId() + ":" + project.getArtifactId() + ":" + project.getVersion() );
+            getLog().info( "Build report written to " + file );
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to write the build report " + file, e );
+        }
+    }
+
+
+    /**
+     * Builds all targets on a bounded pool of threads.  The output of each 
+     * target is buffered and written out in the order of the targets once it 
+     * is done.  Failures do not stop the other targets: they are reported
+     * together at the end.
+     */
+    private void buildTargets() throws MojoFailureException
+    {
+        // commands get their own copy of these so they must not change under them
+        systemProperties = new Properties();
+        systemProperties.putAll( System.getProperties() );
+
+        projectExpressions = ReflectionProperties.createResolver( project );
+
+        stagingStore = new StagingStore( new File( outputDirectory, ".staging" ), hardLinkImages );
+        try
+        {
+            stagingStore.load();
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to load the staging index: sources will be hashed again", e );
+        }
+
+        if ( useCache )
+        {
+            File dir = cacheDirectory != null ? cacheDirectory : new File( outputDirectory, ".cache" );
+            buildCache = new BuildCache( dir, outputDirectory, sourceDirectory, project.getBasedir(), stagingStore );
+        }
+
+        final Log mojoLog = getLog();
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        poolSize = Math.min( poolSize, allTargets.size() );
+        getLog().info( "Building " + allTargets.size() + " targets using " + poolSize + " threads" );
+
+        ExecutorService executor = Executors.newFixedThreadPool( poolSize );
+        List futures = new ArrayList();
+        List logs = new ArrayList();
         for ( int ii = 0; ii < allTargets.size(); ii++ )
         {
-            Target target = ( Target ) allTargets.get( ii );
+            final Target target = ( Target ) allTargets.get( ii );
+            final BufferedLog log = new BufferedLog( mojoLog );
+            logs.add( log );
+            futures.add( executor.submit( new Callable()
+            {
+                public Object call() throws Exception
+                {
+                    targetLog.set( log );
+                    BuildReport.Step step = report.begin( target.getId(), "target" );
+                    try
+                    {
+                        buildTarget( target );
+                    }
+                    finally
+                    {
+                        step.end();
+                        targetLog.set( null );
+                    }
+                    return null;
+                }
+            } ) );
+        }
 
-            // create the installation image first
-            CreateImageCommand imgCmd = new CreateImageCommand( this, target );
-            imgCmd.execute();
+        List failures = new ArrayList();
+        try
+        {
+            for ( int ii = 0; ii < futures.size(); ii++ )
+            {
+                Target target = ( Target ) allTargets.get( ii );
+                try
+                {
+                    ( ( Future ) futures.get( ii ) ).get();
+                }
+                catch ( ExecutionException e )
+                {
+                    Throwable cause = e.getCause();
+                    failures.add( target.getId() + ": " + cause.getMessage() );
+                    ( ( BufferedLog ) logs.get( ii ) ).error( "Failed to build target " + target.getId(), cause );
+                }
+                finally
+                {
+                    ( ( BufferedLog ) logs.get( ii ) ).flush();
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new MojoFailureException( "Interrupted while building installer targets" );
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        getLog().info( "Staging: " + stagingStore.getStatistics() );
+        try
+        {
+            stagingStore.save();
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to save the staging index", e );
+        }
+        pruneStagingStore();
 
-            // ---------------------------------------------------------------
-            // Generate all installers
-            // ---------------------------------------------------------------
+        if ( buildCache != null )
+        {
+            pruneCache();
+        }
 
-            if ( target instanceof IzPackTarget )
+        if ( !failures.isEmpty() )
+        {
+            StringBuffer buf = new StringBuffer();
+            buf.append( "Failed to build " ).append( failures.size() ).append( " of " );
+            buf.append( allTargets.size() ).append( " targets:" );
+            for ( int ii = 0; ii < failures.size(); ii++ )
             {
-                IzPackInstallerCommand izPackCmd = null;
-                izPackCmd = new IzPackInstallerCommand( this, ( IzPackTarget ) target );
-                izPackCmd.execute();
+                buf.append( "\n\t" ).append( failures.get( ii ) );
             }
+            throw new MojoFailureException( buf.toString() );
+        }
+    }
+
 
-            if ( target instanceof InnoTarget )
+    /**
+     * Keeps the build cache within its size and age limits.  A failure only
+     * leaves the cache larger than it should be so it does not fail the build.
+     */
+    private void pruneCache()
+    {
+        try
+        {
+            int removed = buildCache.prune( cacheMaxSize * 1024 * 1024, cacheMaxAge * 24L * 60 * 60 * 1000 );
+            if ( removed > 0 )
             {
-                InnoInstallerCommand innoCmd = null;
-                innoCmd = new InnoInstallerCommand( this, ( InnoTarget ) target );
-                innoCmd.execute();
+                getLog().info( "Removed " + removed + " entries from the build cache" );
             }
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to prune the build cache", e );
+        }
+    }
 
-            if ( target instanceof RpmTarget )
+
+    /**
+     * Removes the contents of the staging store which no image manifest in
+     * the output directory lists any more.  A failure only leaves the store
+     * larger than it should be so it does not fail the build.
+     */
+    private void pruneStagingStore()
+    {
+        File[] manifests = outputDirectory.listFiles( new FileFilter()
+        {
+            public boolean accept( File pathname )
             {
-                RpmInstallerCommand rpmCmd = null;
-                rpmCmd = new RpmInstallerCommand( this, ( RpmTarget ) target );
-                rpmCmd.execute();
+                return pathname.isFile() && pathname.getName().endsWith( ".manifest" );
             }
+        } );
+        if ( manifests == null )
+        {
+            return;
+        }
+
+        try
+        {
+            Set referenced = new HashSet();
+            for ( int ii = 0; ii < manifests.length; ii++ )
+            {
+                referenced.addAll( ImageManifest.readHashes( manifests[ii] ) );
+            }
+            int removed = stagingStore.prune( referenced );
+            if ( removed > 0 )
+            {
+                getLog().info( "Removed " + removed + " unused files from the staging store" );
+            }
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to prune the staging store", e );
         }
     }
 
 
+    private void buildTarget( Target target ) throws MojoExecutionException, MojoFailureException
+    {
+        String inputs = null;
+        String fingerprint = null;
+        if ( buildCache != null )
+        {
+            BuildReport.Step step = BuildReport.beginStep( "cache lookup" );
+            try
+            {
+                inputs = buildCache.describe( target, getCacheSettings(), getCacheArtifacts() );
+                fingerprint = BuildCache.getFingerprint( inputs );
+                if ( buildCache.restore( target, fingerprint ) )
+                {
+                    getLog().info( "Target " + target.getId() + " is up to date: restored "
+                        + target.getOutputFiles().size() + " installers from the build cache" );
+                    return;
+                }
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Failed to look up target " + target.getId() + " in the build cache", e );
+                fingerprint = null;
+            }
+            finally
+            {
+                step.end();
+            }
+        }
+
+        // create the installation image first
+        execute( "image", target, new CreateImageCommand( this, target ) );
+
+        // ---------------------------------------------------------------
+        // Generate all installers
+        // ---------------------------------------------------------------
+
+        if ( target instanceof IzPackTarget )
+        {
+            execute( "izpack", target, new IzPackInstallerCommand( this, ( IzPackTarget ) target ) );
+        }
+
+        if ( target instanceof InnoTarget )
+        {
+            execute( "inno", target, new InnoInstallerCommand( this, ( InnoTarget ) target ) );
+        }
+
+        if ( target instanceof RpmTarget )
+        {
+            execute( "rpm", target, new RpmInstallerCommand( this, ( RpmTarget ) target ) );
+        }
+
+        if ( target instanceof DebTarget )
+        {
+            execute( "deb", target, new DebInstallerCommand( this, ( DebTarget ) target ) );
+        }
+
+        if ( target instanceof PkgTarget )
+        {
+            execute( "pkg", target, new PkgInstallerCommand( this, ( PkgTarget ) target ) );
+        }
+
+        if ( target instanceof ArchiveTarget )
+        {
+            execute( "archive", target, new ArchiveInstallerCommand( this, ( ArchiveTarget ) target ) );
+        }
+
+        // the delta goes last so it sees what the installers added to the image
+        if ( target.getDeltaBase() != null )
+        {
+            execute( "delta", target, new DeltaPackageCommand( this, target ) );
+        }
+
+        if ( fingerprint != null )
+        {
+            BuildReport.Step step = BuildReport.beginStep( "cache save" );
+            try
+            {
+                if ( !buildCache.save( target, fingerprint, inputs ) )
+                {
+                    getLog().info( "Target " + target.getId() + " has no installers the build cache can keep" );
+                }
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Failed to add target " + target.getId() + " to the build cache", e );
+            }
+            finally
+            {
+                step.end();
+            }
+        }
+    }
+
+
+    /**
+     * Executes a command of a target as a step of the build report.  The
+     * installers it produced count as written by the step.
+     */
+    private void execute( String name, Target target, MojoCommand command ) throws MojoExecutionException,
+        MojoFailureException
+    {
+        int outputs = target.getOutputFiles().size();
+        BuildReport.Step step = BuildReport.beginStep( name );
+        try
+        {
+            command.execute();
+            for ( int ii = outputs; ii < target.getOutputFiles().size(); ii++ )
+            {
+                step.addOutput( ( File ) target.getOutputFiles().get( ii ) );
+            }
+        }
+        finally
+        {
+            step.end();
+        }
+    }
+
+
+    /**
+     * Gets the settings of this mojo going into installers for fingerprints.
+     * Project paths are replaced by a placeholder so they do not depend on
+     * where the project was checked out.
+     */
+    private Map getCacheSettings()
+    {
+        Map settings = new HashMap();
+        settings.put( "applicationClass", applicationClass );
+        settings.put( "encoding", encoding );
+        settings.put( "svnBaseUrl", svnBaseUrl );
+        settings.put( "packageSources", Boolean.valueOf( packageSources ) );
+        settings.put( "packageDocs", Boolean.valueOf( packageDocs ) );
+        settings.put( "sourcesTargetPath", sourcesTargetPath );
+        settings.put( "docsTargetPath", docsTargetPath );
+        settings.put( "packagedFiles", packagedFiles );
+        settings.put( "excludes", excludes );
+        settings.put( "properties", project.getProperties() );
+
+        String basedir = project.getBasedir() == null ? null : project.getBasedir().getAbsolutePath();
+        ReflectionProperties expressions = getProjectExpressions( false );
+        for ( int ii = 0; ii < ReflectionProperties.KNOWN_EXPRESSIONS.length; ii++ )
+        {
+            Object value = expressions.get( ReflectionProperties.KNOWN_EXPRESSIONS[ii] );
+            String text = value == null ? null : value.toString();
+            if ( text != null && basedir != null && text.startsWith( basedir ) )
+            {
+                text = "${basedir}" + text.substring( basedir.length() ).replace( File.separatorChar, '/' );
+            }
+            settings.put( ReflectionProperties.KNOWN_EXPRESSIONS[ii], text );
+        }
+        return settings;
+    }
+
+
+    /**
+     * Gets the artifacts which may go into images for fingerprints.
+     */
+    private List getCacheArtifacts()
+    {
+        List artifacts = new ArrayList( project.getArtifacts() );
+        Artifact[] required = new Artifact[]
+            { bootstrapper, logger, daemon };
+        for ( int ii = 0; ii < required.length; ii++ )
+        {
+            if ( required[ii] != null )
+            {
+                artifacts.add( required[ii] );
+            }
+        }
+        return artifacts;
+    }
+
+
+    /**
+     * Gets the Log of the target built by the calling thread so messages of
+     * concurrently built targets do not get mixed up.
+     */
+    public Log getLog()
+    {
+        Log log = ( Log ) targetLog.get();
+        return log != null ? log : super.getLog();
+    }
+
+
     private void initializeAllTargets()
     {
         allTargets = new ArrayList();
@@ -249,6 +740,7 @@ public class ServiceInstallersMojo extends AbstractMojo
         addAll( allTargets, rpmTargets );
         addAll( allTargets, debTargets );
         addAll( allTargets, pkgTargets );
+        addAll( allTargets, archiveTargets );
     }
 
 
@@ -532,7 +1024,7 @@ public class ServiceInstallersMojo extends AbstractMojo
     {
         String[] cmd = new String[]
             { "svn", "export", svnBaseUrl, exportTarget.getAbsolutePath() };
-        MojoHelperUtils.exec( cmd, outputDirectory, false );
+        MojoHelperUtils.exec( cmd, outputDirectory, false, getLog(), toolTimeout );
     }
 
 
@@ -540,7 +1032,7 @@ public class ServiceInstallersMojo extends AbstractMojo
     {
         try
         {
-            FileUtils.copyDirectoryStructure( exportTarget, docsTarget );
+            MojoHelperUtils.copyDirectory( exportTarget, docsTarget );
         }
         catch ( IOException e )
         {
@@ -559,7 +1051,7 @@ public class ServiceInstallersMojo extends AbstractMojo
             cmd = new String[]
                 { "mvn", "site", "--non-recursive" };
         }
-        MojoHelperUtils.exec( cmd, docsTarget, false );
+        MojoHelperUtils.exec( cmd, docsTarget, false, getLog(), toolTimeout );
     }
 
 
@@ -599,6 +1091,49 @@ public class ServiceInstallersMojo extends AbstractMojo
     }
 
 
+    /**
+     * Gets the system properties as they were when the build of the targets
+     * started.  Commands use these as the defaults of their filter properties.
+     */
+    public Properties getSystemProperties()
+    {
+        return systemProperties;
+    }
+
+
+    public int getExpandThreads()
+    {
+        return expandThreads;
+    }
+
+
+    public int getPackagedFileThreads()
+    {
+        return packagedFileThreads;
+    }
+
+
+    public StagingStore getStagingStore()
+    {
+        return stagingStore;
+    }
+
+
+    /**
+     * Gets the resolver of project expressions shared by all targets.
+     *
+     * @param escaped true to get the view escaping windows paths for properties files
+     */
+    public synchronized ReflectionProperties getProjectExpressions( boolean escaped )
+    {
+        if ( projectExpressions == null )
+        {
+            projectExpressions = ReflectionProperties.createResolver( project );
+        }
+        return escaped ? projectExpressions.getEscapedView() : projectExpressions;
+    }
+
+
     public Set getExcludes()
     {
         return this.excludes;
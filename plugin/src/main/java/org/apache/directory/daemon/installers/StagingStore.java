@@ -0,0 +1,433 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.DigestInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * A content addressed store of the files going into the target images.  Each
+ * distinct content is written once under its MD5 hash and then hard linked 
+ * into every image using it, so building many targets does not copy the same 
+ * dependencies over and over again.  Where hard links are not available, for 
+ * example on a JRE older than 7 or across file systems, files are copied.
+ * <p>
+ * An index remembers the hash of each source file by path, size and 
+ * modification time so unchanged sources are not read again on later runs.
+ * <p>
+ * Image files are shared with the store so they must never be written in 
+ * place: writers delete the destination first.
+ * <p>
+ * Contents no image uses any more are {@link #prune(Set) pruned} after each
+ * build so the store does not keep every dependency version ever staged.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class StagingStore
+{
+    private static final String INDEX_FILE = "index";
+    private static final String SEPARATOR = "\t";
+
+    /** java.io.File.toPath() when running on Java 7 or later */
+    private static final Method TO_PATH;
+    /** java.nio.file.Files.createLink(Path, Path) when running on Java 7 or later */
+    private static final Method CREATE_LINK;
+
+    static
+    {
+        Method toPath = null;
+        Method createLink = null;
+        try
+        {
+            Class pathClass = Class.forName( "java.nio.file.Path" );
+            toPath = File.class.getMethod( "toPath", new Class[0] );
+            createLink = Class.forName( "java.nio.file.Files" ).getMethod( "createLink", new Class[]
+                { pathClass, pathClass } );
+        }
+        catch ( Exception e )
+        {
+            toPath = null;
+            createLink = null;
+        }
+        TO_PATH = toPath;
+        CREATE_LINK = createLink;
+    }
+
+    private final File directory;
+    private final boolean hardLinks;
+    /** source path, size and modification time to content hash */
+    private final Map index = new HashMap();
+    private boolean linkFailed = false;
+    private int linked = 0;
+    private int copied = 0;
+    private int stored = 0;
+
+
+    /**
+     * @param directory the directory of the store
+     * @param hardLinks false to always copy files out of the store
+     */
+    public StagingStore( File directory, boolean hardLinks )
+    {
+        this.directory = directory;
+        this.hardLinks = hardLinks && CREATE_LINK != null;
+    }
+
+
+    /**
+     * Loads the hash index of a previous run.
+     */
+    public synchronized void load() throws IOException
+    {
+        directory.mkdirs();
+        File indexFile = new File( directory, INDEX_FILE );
+        if ( !indexFile.exists() )
+        {
+            return;
+        }
+
+        BufferedReader in = new BufferedReader( new FileReader( indexFile ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                int split = line.lastIndexOf( SEPARATOR );
+                if ( split > 0 )
+                {
+                    index.put( line.substring( 0, split ), line.substring( split + 1 ) );
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Saves the hash index for the next run.
+     */
+    public synchronized void save() throws IOException
+    {
+        PrintWriter out = new PrintWriter( new FileWriter( new File( directory, INDEX_FILE ) ) );
+        try
+        {
+            for ( Iterator ii = index.entrySet().iterator(); ii.hasNext(); /* */)
+            {
+                Map.Entry entry = ( Map.Entry ) ii.next();
+                out.println( entry.getKey() + SEPARATOR + entry.getValue() );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    /**
+     * Removes the stored contents which are not referenced any more and the
+     * temporary files of builds which died while storing.  Images linked to
+     * a removed content keep their own link to it.
+     *
+     * @param referenced the hashes of the contents to keep
+     * @return the number of contents removed
+     */
+    public synchronized int prune( Set referenced ) throws IOException
+    {
+        File[] children = directory.listFiles();
+        if ( children == null )
+        {
+            return 0;
+        }
+
+        int removed = 0;
+        for ( int ii = 0; ii < children.length; ii++ )
+        {
+            if ( !children[ii].isDirectory() )
+            {
+                if ( children[ii].getName().endsWith( ".tmp" ) )
+                {
+                    children[ii].delete();
+                }
+                continue;
+            }
+
+            File[] contents = children[ii].listFiles( new FileFilter()
+            {
+                public boolean accept( File pathname )
+                {
+                    return pathname.isFile();
+                }
+            } );
+            for ( int jj = 0; contents != null && jj < contents.length; jj++ )
+            {
+                if ( referenced.contains( contents[jj].getName() ) )
+                {
+                    continue;
+                }
+                if ( !contents[jj].delete() )
+                {
+                    throw new IOException( "Failed to delete " + contents[jj] );
+                }
+                removed++;
+            }
+
+            // only goes away once it is empty
+            children[ii].delete();
+        }
+
+        return removed;
+    }
+
+
+    /**
+     * Puts the content of a file into an image by linking it to the stored 
+     * copy, adding the content to the store first if needed.  An existing 
+     * destination is deleted rather than overwritten.
+     *
+     * @param source the file to put into the image
+     * @param dest the destination in the image
+     * @return the MD5 hash of the content
+     */
+    public String link( File source, File dest ) throws IOException
+    {
+        String hash = store( source );
+        File stored = getFile( hash );
+
+        dest.getParentFile().mkdirs();
+        if ( dest.exists() && !dest.delete() )
+        {
+            throw new IOException( "Failed to delete " + dest );
+        }
+
+        if ( hardLinks && !isLinkFailed() && createLink( dest, stored ) )
+        {
+            BuildReport.file( 0, 0 );
+            count( true );
+            return hash;
+        }
+
+        MojoHelperUtils.copyFile( stored, dest );
+        count( false );
+        return hash;
+    }
+
+
+    /**
+     * Adds the content of a file to the store unless it is already there.
+     *
+     * @return the MD5 hash of the content
+     */
+    public String store( File source ) throws IOException
+    {
+        String key = source.getAbsolutePath() + SEPARATOR + source.length() + SEPARATOR + source.lastModified();
+        String hash;
+        synchronized ( this )
+        {
+            hash = ( String ) index.get( key );
+        }
+
+        if ( hash != null && getFile( hash ).exists() )
+        {
+            return hash;
+        }
+
+        // copy while hashing into a private file: concurrent targets may
+        // store the same content at the same time
+        File tmp = File.createTempFile( "staging", ".tmp", directory );
+        try
+        {
+            hash = copy( source, tmp );
+        }
+        catch ( IOException e )
+        {
+            tmp.delete();
+            throw e;
+        }
+
+        File stored = getFile( hash );
+        synchronized ( this )
+        {
+            if ( stored.exists() )
+            {
+                tmp.delete();
+            }
+            else
+            {
+                stored.getParentFile().mkdirs();
+                if ( !tmp.renameTo( stored ) )
+                {
+                    tmp.delete();
+                    throw new IOException( "Failed to move " + tmp + " to " + stored );
+                }
+                this.stored++;
+            }
+
+            index.put( key, hash );
+        }
+
+        return hash;
+    }
+
+
+    /**
+     * Gets the hash of the content of a file without adding it to the store,
+     * reading the file only if the index does not know it yet.
+     *
+     * @return the MD5 hash of the content
+     */
+    public String hash( File source ) throws IOException
+    {
+        String key = source.getAbsolutePath() + SEPARATOR + source.length() + SEPARATOR + source.lastModified();
+        synchronized ( this )
+        {
+            String hash = ( String ) index.get( key );
+            if ( hash != null )
+            {
+                return hash;
+            }
+        }
+
+        String hash = ImageManifest.hash( source );
+        synchronized ( this )
+        {
+            index.put( key, hash );
+        }
+        return hash;
+    }
+
+
+    /**
+     * Copies a file hashing its content on the way so it is read only once.
+     *
+     * @return the MD5 hash of the content
+     */
+    private static String copy( File source, File dest ) throws IOException
+    {
+        DigestInputStream in = new DigestInputStream( new FileInputStream( source ), ImageManifest.newDigest() );
+        OutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( dest );
+            byte[] buf = new byte[65536];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                out.write( buf, 0, read );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+            IOUtil.close( out );
+        }
+        BuildReport.file( dest.length(), dest.length() );
+
+        return ImageManifest.toHex( in.getMessageDigest().digest() );
+    }
+
+
+    /**
+     * Gets the file holding the content with the given hash.
+     */
+    public File getFile( String hash )
+    {
+        return new File( new File( directory, hash.substring( 0, 2 ) ), hash );
+    }
+
+
+    public synchronized String getStatistics()
+    {
+        return stored + " files stored, " + linked + " linked and " + copied + " copied into images";
+    }
+
+
+    private synchronized boolean isLinkFailed()
+    {
+        return linkFailed;
+    }
+
+
+    private synchronized void count( boolean link )
+    {
+        if ( link )
+        {
+            linked++;
+        }
+        else
+        {
+            copied++;
+        }
+    }
+
+
+    /**
+     * Creates a hard link.  Gives up on links for the rest of the build the 
+     * first time the file system refuses one.
+     */
+    private boolean createLink( File link, File existing )
+    {
+        try
+        {
+            CREATE_LINK.invoke( null, new Object[]
+                { TO_PATH.invoke( link, new Object[0] ), TO_PATH.invoke( existing, new Object[0] ) } );
+            return true;
+        }
+        catch ( InvocationTargetException e )
+        {
+            synchronized ( this )
+            {
+                linkFailed = true;
+            }
+            return false;
+        }
+        catch ( IllegalAccessException e )
+        {
+            synchronized ( this )
+            {
+                linkFailed = true;
+            }
+            return false;
+        }
+    }
+}
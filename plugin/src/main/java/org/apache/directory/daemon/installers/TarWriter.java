@@ -0,0 +1,290 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Writes a ustar archive.  Entries are owned by root and streamed so archives
+ * of any size can be written without holding file contents in memory.  Names
+ * too long for the ustar name and prefix fields get a GNU long name entry.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class TarWriter
+{
+    private static final int BLOCK = 512;
+    private static final byte REGULAR = '0';
+    private static final byte SYMLINK = '2';
+    private static final byte DIRECTORY = '5';
+    private static final byte GNU_LONG_NAME = 'L';
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[65536];
+    private long length;
+
+
+    public TarWriter( OutputStream out )
+    {
+        this.out = out;
+    }
+
+
+    /**
+     * Writes a directory entry.
+     *
+     * @param name the name of the directory, a trailing slash is added if missing
+     * @param mode the permission bits, type bits are ignored
+     * @param mtime the modification time in milliseconds
+     */
+    public void writeDirectory( String name, int mode, long mtime ) throws IOException
+    {
+        writeHeader( name.endsWith( "/" ) ? name : name + "/", mode, mtime, 0, DIRECTORY );
+    }
+
+
+    /**
+     * Writes a file entry.
+     *
+     * @param name the name of the file
+     * @param mode the permission bits, type bits are ignored
+     * @param mtime the modification time in milliseconds
+     * @param source the content or null for an empty file
+     * @param digest updated with the content if not null
+     */
+    public void writeFile( String name, int mode, long mtime, File source, MessageDigest digest ) throws IOException
+    {
+        long size = source == null ? 0 : source.length();
+        writeHeader( name, mode, mtime, size, REGULAR );
+        if ( source == null )
+        {
+            return;
+        }
+
+        BuildReport.read( size );
+        InputStream in = new FileInputStream( source );
+        try
+        {
+            long remaining = size;
+            while ( remaining > 0 )
+            {
+                int read = in.read( buffer, 0, ( int ) Math.min( buffer.length, remaining ) );
+                if ( read < 0 )
+                {
+                    throw new IOException( source + " was truncated while being archived" );
+                }
+                out.write( buffer, 0, read );
+                if ( digest != null )
+                {
+                    digest.update( buffer, 0, read );
+                }
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+        length += size;
+        pad();
+    }
+
+
+    /**
+     * Writes a file entry from memory.
+     */
+    public void writeFile( String name, int mode, long mtime, byte[] content ) throws IOException
+    {
+        writeHeader( name, mode, mtime, content.length, REGULAR );
+        out.write( content );
+        length += content.length;
+        pad();
+    }
+
+
+    /**
+     * Writes a symbolic link entry.
+     *
+     * @param name the name of the link
+     * @param mtime the modification time in milliseconds
+     * @param target what the link points to, at most 100 bytes
+     */
+    public void writeLink( String name, long mtime, String target ) throws IOException
+    {
+        byte[] targetBytes = target.getBytes( "UTF-8" );
+        if ( targetBytes.length > 100 )
+        {
+            throw new IOException( "tar link targets are limited to 100 bytes: " + target );
+        }
+        writeHeader( name, 0777, mtime, 0, SYMLINK, targetBytes );
+    }
+
+
+    /**
+     * Writes the two empty blocks ending the archive.  The underlying stream
+     * is left open.
+     */
+    public void finish() throws IOException
+    {
+        out.write( new byte[BLOCK * 2] );
+        length += BLOCK * 2;
+        out.flush();
+    }
+
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+
+    private void writeHeader( String name, int mode, long mtime, long size, byte type ) throws IOException
+    {
+        writeHeader( name, mode, mtime, size, type, new byte[0] );
+    }
+
+
+    private void writeHeader( String name, int mode, long mtime, long size, byte type, byte[] linkName )
+        throws IOException
+    {
+        if ( size > 077777777777L )
+        {
+            throw new IOException( "tar entries are limited to 8GB: " + name );
+        }
+
+        byte[] nameBytes = name.getBytes( "UTF-8" );
+        byte[] prefixBytes = new byte[0];
+        if ( nameBytes.length > 100 )
+        {
+            // split at a slash so the name fits the ustar prefix and name fields
+            int split = name.lastIndexOf( '/', name.length() - 2 );
+            while ( split > 0 && name.substring( 0, split ).getBytes( "UTF-8" ).length > 155 )
+            {
+                split = name.lastIndexOf( '/', split - 1 );
+            }
+
+            if ( split > 0 && name.substring( split + 1 ).getBytes( "UTF-8" ).length <= 100 )
+            {
+                prefixBytes = name.substring( 0, split ).getBytes( "UTF-8" );
+                nameBytes = name.substring( split + 1 ).getBytes( "UTF-8" );
+            }
+            else
+            {
+                byte[] longName = new byte[nameBytes.length + 1];
+                System.arraycopy( nameBytes, 0, longName, 0, nameBytes.length );
+                writeBlock( "././@LongLink".getBytes( "US-ASCII" ), new byte[0], 0, 0, longName.length,
+                    GNU_LONG_NAME, new byte[0] );
+                out.write( longName );
+                length += longName.length;
+                pad();
+
+                byte[] truncated = new byte[100];
+                System.arraycopy( nameBytes, 0, truncated, 0, 100 );
+                nameBytes = truncated;
+            }
+        }
+
+        writeBlock( nameBytes, prefixBytes, mode & 07777, mtime / 1000, size, type, linkName );
+    }
+
+
+    private void writeBlock( byte[] name, byte[] prefix, int mode, long mtime, long size, byte type,
+        byte[] linkName ) throws IOException
+    {
+        byte[] header = new byte[BLOCK];
+        System.arraycopy( name, 0, header, 0, Math.min( name.length, 100 ) );
+        putOctal( header, 100, 8, mode );
+        putOctal( header, 108, 8, 0 ); // uid
+        putOctal( header, 116, 8, 0 ); // gid
+        putOctal( header, 124, 12, size );
+        putOctal( header, 136, 12, mtime );
+        header[156] = type;
+        System.arraycopy( linkName, 0, header, 157, linkName.length );
+        putAscii( header, 257, "ustar" );
+        putAscii( header, 263, "00" );
+        putAscii( header, 265, "root" );
+        putAscii( header, 297, "root" );
+        System.arraycopy( prefix, 0, header, 345, Math.min( prefix.length, 155 ) );
+
+        // the checksum is computed with the checksum field set to spaces
+        for ( int ii = 148; ii < 156; ii++ )
+        {
+            header[ii] = ' ';
+        }
+        long checksum = 0;
+        for ( int ii = 0; ii < BLOCK; ii++ )
+        {
+            checksum += header[ii] & 0xff;
+        }
+        putOctal( header, 148, 7, checksum );
+
+        out.write( header );
+        length += BLOCK;
+    }
+
+
+    private void pad() throws IOException
+    {
+        int remainder = ( int ) ( length % BLOCK );
+        if ( remainder != 0 )
+        {
+            out.write( new byte[BLOCK - remainder] );
+            length += BLOCK - remainder;
+        }
+    }
+
+
+    /**
+     * Puts a zero padded octal number followed by a NUL into a field.
+     */
+    private static void putOctal( byte[] header, int offset, int width, long value )
+    {
+        String octal = Long.toOctalString( value );
+        int digits = width - 1;
+        for ( int ii = 0; ii < digits; ii++ )
+        {
+            int index = ii - ( digits - octal.length() );
+            header[offset + ii] = ( byte ) ( index < 0 ? '0' : octal.charAt( index ) );
+        }
+        header[offset + digits] = 0;
+    }
+
+
+    private static void putAscii( byte[] header, int offset, String value )
+    {
+        for ( int ii = 0; ii < value.length(); ii++ )
+        {
+            header[offset + ii] = ( byte ) value.charAt( ii );
+        }
+    }
+}
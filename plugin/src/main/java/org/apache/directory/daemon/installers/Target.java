@@ -21,6 +21,7 @@ package org.apache.directory.daemon.installers;
 
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
@@ -77,9 +78,33 @@ public class Target
     private String sourcesTargetPath;
     private String docsTargetPath;
     private File scriptFile;
-
-    private InstallationLayout layout;
-    private List libArtifacts;
+    /** the seconds external tools building the installer may run, 0 for no limit */
+    private long toolTimeout = ProcessRunner.DEFAULT_TIMEOUT;
+    /** whether runtime dependencies the application never reaches are left out of the image */
+    private boolean shrinkDependencies = false;
+    /** whether the classes nothing reaches are also removed from the dependencies which are kept */
+    private boolean trimDependencies = false;
+    /** classes loaded by reflection which shrinking cannot find: names, package.* or package.** */
+    private String[] keepClasses;
+    /** groupId:artifactId of dependencies shrinking always keeps whole */
+    private String[] keepArtifacts;
+    /** whether a Java runtime linked by jlink is bundled in the image */
+    private boolean bundleRuntime = false;
+    /** the JDK whose jlink and jdeps build the runtime, the one running the build if not set */
+    private File runtimeJdk;
+    /** the jmods of the platform the runtime is for, those of the runtime JDK if not set */
+    private File runtimeJmods;
+    /** modules the runtime needs which jdeps cannot find, like those loaded by reflection */
+    private String[] runtimeModules;
+    /** the image or image manifest of the previous version a delta package upgrades from */
+    private File deltaBase;
+    /** image relative paths, or directories ending in a slash, deltas leave alone */
+    private String[] deltaExcludes;
+
+    // state of the build rather than configuration, left out of fingerprints
+    private transient InstallationLayout layout;
+    private transient List libArtifacts;
+    private transient List outputFiles = new ArrayList();
 
     private Application application;
     
@@ -222,6 +247,25 @@ public class Target
     }
 
 
+    /**
+     * Records an installer written for this target so the build cache can
+     * keep it.
+     */
+    public void addOutputFile( File outputFile )
+    {
+        outputFiles.add( outputFile );
+    }
+
+
+    /**
+     * @return the installers written for this target
+     */
+    public List getOutputFiles()
+    {
+        return outputFiles;
+    }
+
+
     public void setLibArtifacts( List libArtifacts )
     {
         this.libArtifacts = libArtifacts;
@@ -330,6 +374,18 @@ public class Target
     }
 
 
+    public void setToolTimeout( long toolTimeout )
+    {
+        this.toolTimeout = toolTimeout;
+    }
+
+
+    public long getToolTimeout()
+    {
+        return toolTimeout;
+    }
+
+
     public void setScriptFile( File scriptFile )
     {
         this.scriptFile = scriptFile;
@@ -340,4 +396,147 @@ public class Target
     {
         return scriptFile;
     }
+
+
+    /**
+     * Leaves the runtime dependencies out of the image which none of the
+     * start and stop classes, the classes named in the server configuration
+     * and the kept classes reach.
+     */
+    public void setShrinkDependencies( boolean shrinkDependencies )
+    {
+        this.shrinkDependencies = shrinkDependencies;
+    }
+
+
+    public boolean isShrinkDependencies()
+    {
+        return shrinkDependencies;
+    }
+
+
+    /**
+     * Also removes the classes nothing reaches from the dependencies which
+     * are kept when shrinking.  Signed jars are left alone.
+     */
+    public void setTrimDependencies( boolean trimDependencies )
+    {
+        this.trimDependencies = trimDependencies;
+    }
+
+
+    public boolean isTrimDependencies()
+    {
+        return trimDependencies;
+    }
+
+
+    public void setKeepClasses( String[] keepClasses )
+    {
+        this.keepClasses = keepClasses;
+    }
+
+
+    public String[] getKeepClasses()
+    {
+        return keepClasses;
+    }
+
+
+    public void setKeepArtifacts( String[] keepArtifacts )
+    {
+        this.keepArtifacts = keepArtifacts;
+    }
+
+
+    public String[] getKeepArtifacts()
+    {
+        return keepArtifacts;
+    }
+
+
+    /**
+     * Bundles a Java runtime holding only the modules the application needs
+     * in the image, which the init scripts then use in place of a system
+     * Java.  It needs a JDK 11 or later to build.
+     */
+    public void setBundleRuntime( boolean bundleRuntime )
+    {
+        this.bundleRuntime = bundleRuntime;
+    }
+
+
+    public boolean isBundleRuntime()
+    {
+        return bundleRuntime;
+    }
+
+
+    public void setRuntimeJdk( File runtimeJdk )
+    {
+        this.runtimeJdk = runtimeJdk;
+    }
+
+
+    public File getRuntimeJdk()
+    {
+        return runtimeJdk;
+    }
+
+
+    /**
+     * Sets the jmods directory of a JDK for the platform of the target,
+     * needed when it differs from the platform of the build.
+     */
+    public void setRuntimeJmods( File runtimeJmods )
+    {
+        this.runtimeJmods = runtimeJmods;
+    }
+
+
+    public File getRuntimeJmods()
+    {
+        return runtimeJmods;
+    }
+
+
+    public void setRuntimeModules( String[] runtimeModules )
+    {
+        this.runtimeModules = runtimeModules;
+    }
+
+
+    public String[] getRuntimeModules()
+    {
+        return runtimeModules;
+    }
+
+
+    /**
+     * Sets the previous version to write a delta package against: its image
+     * directory, so changed files are patched, or the image manifest kept
+     * next to it, so changed files are included whole.
+     */
+    public void setDeltaBase( File deltaBase )
+    {
+        this.deltaBase = deltaBase;
+    }
+
+
+    public File getDeltaBase()
+    {
+        return deltaBase;
+    }
+
+
+    public void setDeltaExcludes( String[] deltaExcludes )
+    {
+        this.deltaExcludes = deltaExcludes;
+    }
+
+
+    public String[] getDeltaExcludes()
+    {
+        return deltaExcludes;
+    }
 }
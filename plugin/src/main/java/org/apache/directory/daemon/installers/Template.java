@@ -0,0 +1,437 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * A filtered resource parsed once into a list of text and variable tokens.
+ * Rendering a template is a single walk over its tokens which replaces the 
+ * chain of four InterpolationFilterReaders the plugin used to stack for each
+ * copy:
+ * <ol>
+ *   <li><code>_${key}</code> from the filter properties</li>
+ *   <li><code>${key}</code> from the filter properties</li>
+ *   <li><code>@key@</code> from the filter properties</li>
+ *   <li><code>${expression}</code> evaluated against the maven project</li>
+ * </ol>
+ * The delimiters match the way those readers scanned: a broken opening 
+ * delimiter swallows the character it failed on, a variable which is not 
+ * defined is left as it is and a value inserted by one stage is still seen by
+ * the stages after it.  The only difference is that a delimiter formed across
+ * the boundary of an inserted value and the text following it is no longer 
+ * recognized.
+ * <p>
+ * Parsed templates are cached by file, size and modification time, or by 
+ * content for resources read from a stream, so the templates shared by 
+ * several targets are only parsed once per build.  All caches are bounded so
+ * they do not grow for the life of a long running Maven process.
+ * 
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class Template
+{
+    /** the first stage a template is parsed for */
+    private static final int UNDERSCORE = 1;
+    private static final int PROPERTY = 2;
+    private static final int AT = 3;
+    private static final int REFLECTION = 4;
+
+    /** drop cached values past this size so long running builds stay bounded */
+    private static final int MAX_CACHED_VALUES = 4096;
+    /** drop cached templates past this size, they hold the whole text of a file */
+    private static final int MAX_CACHED_TEMPLATES = 256;
+
+    private static final Map FILE_CACHE = new HashMap();
+    private static final Map CONTENT_CACHE = new HashMap();
+    private static final Map VALUE_CACHE = new HashMap();
+
+    /** the stage this template starts at */
+    private final int stage;
+    /** the text as parsed */
+    private final String text;
+    /** String for plain text, Template for text parsed for the next stage, Variable or AtText tokens */
+    private final List tokens = new ArrayList();
+
+
+    private Template( String text, int stage )
+    {
+        this.text = text;
+        this.stage = stage;
+        parse();
+    }
+
+
+    /**
+     * Gets the template for a file, parsing it only if it changed since it 
+     * was last parsed.
+     *
+     * @param file the template file
+     * @param encoding the encoding of the file or null for the platform default
+     */
+    public static Template forFile( File file, String encoding ) throws IOException
+    {
+        String key = file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified() + "|" + encoding;
+        synchronized ( FILE_CACHE )
+        {
+            Template template = ( Template ) FILE_CACHE.get( key );
+            if ( template != null )
+            {
+                return template;
+            }
+        }
+
+        Template template = forContent( read( new FileInputStream( file ), encoding ) );
+        synchronized ( FILE_CACHE )
+        {
+            if ( FILE_CACHE.size() > MAX_CACHED_TEMPLATES )
+            {
+                FILE_CACHE.clear();
+            }
+            FILE_CACHE.put( key, template );
+        }
+        return template;
+    }
+
+
+    /**
+     * Gets the template for a stream, for example a bundled resource.
+     *
+     * @param in the stream which is read and closed
+     * @param encoding the encoding of the stream or null for the platform default
+     */
+    public static Template forStream( InputStream in, String encoding ) throws IOException
+    {
+        return forContent( read( in, encoding ) );
+    }
+
+
+    /**
+     * Gets the template for the given text.
+     */
+    public static Template forContent( String content )
+    {
+        synchronized ( CONTENT_CACHE )
+        {
+            Template template = ( Template ) CONTENT_CACHE.get( content );
+            if ( template == null )
+            {
+                template = new Template( content, UNDERSCORE );
+                if ( CONTENT_CACHE.size() > MAX_CACHED_TEMPLATES )
+                {
+                    CONTENT_CACHE.clear();
+                }
+                CONTENT_CACHE.put( content, template );
+            }
+            return template;
+        }
+    }
+
+
+    /**
+     * Renders the template.
+     *
+     * @param properties the filter properties used by the first three stages
+     * @param expressions the project expressions used by the last stage
+     * @return the filtered text
+     */
+    public String render( Map properties, Map expressions )
+    {
+        StringBuffer out = new StringBuffer( text.length() + 256 );
+        render( out, properties, expressions );
+        return out.toString();
+    }
+
+
+    private void render( StringBuffer out, Map properties, Map expressions )
+    {
+        for ( int ii = 0; ii < tokens.size(); ii++ )
+        {
+            Object token = tokens.get( ii );
+            if ( token instanceof String )
+            {
+                out.append( ( String ) token );
+            }
+            else if ( token instanceof Template )
+            {
+                ( ( Template ) token ).render( out, properties, expressions );
+            }
+            else if ( token instanceof Variable )
+            {
+                ( ( Variable ) token ).render( out, properties, expressions );
+            }
+            else
+            {
+                ( ( AtText ) token ).render( out, properties, expressions );
+            }
+        }
+    }
+
+
+    // -----------------------------------------------------------------------
+    // Parsing
+    // -----------------------------------------------------------------------
+
+    private void parse()
+    {
+        if ( stage == AT )
+        {
+            parseAt();
+            return;
+        }
+
+        String begin = stage == UNDERSCORE ? "_${" : "${";
+        int last = 0;
+        int pos = 0;
+        while ( pos < text.length() )
+        {
+            if ( text.charAt( pos ) != begin.charAt( 0 ) )
+            {
+                pos++;
+                continue;
+            }
+
+            // a broken opening delimiter swallows the character it broke on
+            int matched = 1;
+            while ( matched < begin.length() && pos + matched < text.length()
+                && text.charAt( pos + matched ) == begin.charAt( matched ) )
+            {
+                matched++;
+            }
+            if ( matched < begin.length() )
+            {
+                pos = Math.min( pos + matched + 1, text.length() );
+                continue;
+            }
+
+            int end = text.indexOf( '}', pos + begin.length() );
+            if ( end == -1 )
+            {
+                break;
+            }
+
+            addText( text.substring( last, pos ) );
+            String key = text.substring( pos + begin.length(), end );
+            tokens.add( new Variable( stage, key, text.substring( pos, end + 1 ) ) );
+            pos = end + 1;
+            last = pos;
+        }
+
+        addText( text.substring( last ) );
+    }
+
+
+    /**
+     * Text of the @key@ stage is kept as is: whether a pair of @ forms a 
+     * variable depends on whether the key is defined.
+     */
+    private void parseAt()
+    {
+        if ( text.indexOf( '@' ) == -1 )
+        {
+            tokens.add( get( text, REFLECTION ) );
+            return;
+        }
+
+        tokens.add( new AtText( text ) );
+    }
+
+
+    private void addText( String segment )
+    {
+        if ( segment.length() == 0 )
+        {
+            return;
+        }
+
+        if ( stage == REFLECTION )
+        {
+            tokens.add( segment );
+        }
+        else
+        {
+            tokens.add( get( segment, stage + 1 ) );
+        }
+    }
+
+
+    /**
+     * Gets a parsed template for text starting at the given stage.  Used for
+     * inserted values and text between variables.
+     */
+    private static Template get( String text, int stage )
+    {
+        String key = stage + ":" + text;
+        synchronized ( VALUE_CACHE )
+        {
+            Template template = ( Template ) VALUE_CACHE.get( key );
+            if ( template == null )
+            {
+                if ( VALUE_CACHE.size() > MAX_CACHED_VALUES )
+                {
+                    VALUE_CACHE.clear();
+                }
+                template = new Template( text, stage );
+                VALUE_CACHE.put( key, template );
+            }
+            return template;
+        }
+    }
+
+
+    private static String read( InputStream in, String encoding ) throws IOException
+    {
+        Reader reader = null;
+        try
+        {
+            if ( encoding == null || encoding.length() < 1 )
+            {
+                reader = new InputStreamReader( in );
+            }
+            else
+            {
+                reader = new InputStreamReader( in, encoding );
+            }
+            return IOUtil.toString( reader );
+        }
+        finally
+        {
+            IOUtil.close( reader );
+            IOUtil.close( in );
+        }
+    }
+
+
+    /**
+     * A <code>_${key}</code> or <code>${key}</code> variable.
+     */
+    private static class Variable
+    {
+        private final int stage;
+        private final String key;
+        private final String raw;
+        /** what later stages make of the variable when it is not defined */
+        private final Template undefined;
+
+
+        Variable( int stage, String key, String raw )
+        {
+            this.stage = stage;
+            this.key = key;
+            this.raw = raw;
+            this.undefined = stage == REFLECTION ? null : get( raw, stage + 1 );
+        }
+
+
+        void render( StringBuffer out, Map properties, Map expressions )
+        {
+            Object value = ( stage == REFLECTION ? expressions : properties ).get( key );
+            if ( value == null )
+            {
+                if ( undefined == null )
+                {
+                    out.append( raw );
+                }
+                else
+                {
+                    undefined.render( out, properties, expressions );
+                }
+            }
+            else if ( stage == REFLECTION )
+            {
+                out.append( value.toString() );
+            }
+            else
+            {
+                get( value.toString(), stage + 1 ).render( out, properties, expressions );
+            }
+        }
+    }
+
+
+    /**
+     * Text possibly holding <code>@key@</code> variables.  An @ closing a 
+     * pair which is not defined may open the next pair.
+     */
+    private static class AtText
+    {
+        private final String text;
+        /** the text as rendered when none of its pairs are defined */
+        private final Template undefined;
+
+
+        AtText( String text )
+        {
+            this.text = text;
+            this.undefined = get( text, REFLECTION );
+        }
+
+
+        void render( StringBuffer out, Map properties, Map expressions )
+        {
+            int last = 0;
+            int pos = text.indexOf( '@' );
+            while ( pos != -1 )
+            {
+                int end = text.indexOf( '@', pos + 1 );
+                if ( end == -1 )
+                {
+                    break;
+                }
+
+                Object value = properties.get( text.substring( pos + 1, end ) );
+                if ( value == null )
+                {
+                    // the closing @ may open the next pair
+                    pos = end;
+                    continue;
+                }
+
+                get( text.substring( last, pos ), REFLECTION ).render( out, properties, expressions );
+                get( value.toString(), REFLECTION ).render( out, properties, expressions );
+                last = end + 1;
+                pos = text.indexOf( '@', last );
+            }
+
+            if ( last == 0 )
+            {
+                undefined.render( out, properties, expressions );
+            }
+            else
+            {
+                get( text.substring( last ), REFLECTION ).render( out, properties, expressions );
+            }
+        }
+    }
+}
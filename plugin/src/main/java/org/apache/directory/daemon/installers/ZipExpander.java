@@ -0,0 +1,464 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Expands jar, zip, war and sar archives into an image.  The entries are read
+ * through the random access of {@link ZipFile} and written by several threads,
+ * each reusing its own copy buffer.
+ * <p>
+ * For every archive an extraction manifest records the archive it was
+ * expanded from and the CRC, size and resulting modification time of each
+ * extracted file.  If neither the archive nor the extracted files changed
+ * since, a repeated expansion only looks at the files.  Otherwise only the
+ * entries which changed are extracted again and files of entries which are
+ * no longer in the archive are deleted.
+ * <p>
+ * Extracted files are deleted before they are written since image files may
+ * be hard linked to the staging store.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ZipExpander
+{
+    private static final String SEPARATOR = "\t";
+    private static final String HEADER = "archive";
+    private static final int BUFFER_SIZE = 65536;
+    /** the CRC recorded for directories */
+    private static final long DIRECTORY = -1;
+
+    /** the copy buffer of each extracting thread */
+    private static final ThreadLocal BUFFER = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final File manifestDirectory;
+    private final int threads;
+    private int extracted;
+    private int skipped;
+    private int removed;
+
+
+    /**
+     * @param manifestDirectory the directory the extraction manifests are kept in
+     * @param threads the number of extracting threads, 0 for one per processor
+     */
+    public ZipExpander( File manifestDirectory, int threads )
+    {
+        this.manifestDirectory = manifestDirectory;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+
+    /**
+     * Expands an archive into a directory, skipping entries whose files are
+     * still as the last expansion left them.
+     *
+     * @param archive the archive to expand
+     * @param dest the directory to expand it into
+     */
+    public void expand( File archive, File dest ) throws IOException
+    {
+        extracted = 0;
+        skipped = 0;
+        removed = 0;
+        archive = archive.getAbsoluteFile();
+        dest = dest.getAbsoluteFile();
+
+        File manifestFile = getManifestFile( archive, dest );
+        String header = HEADER + SEPARATOR + archive.getPath() + SEPARATOR + archive.length() + SEPARATOR
+            + archive.lastModified() + SEPARATOR + dest.getPath();
+        Map previous = new HashMap();
+        boolean sameArchive = load( manifestFile, header, previous );
+
+        if ( sameArchive && isIntact( dest, previous ) )
+        {
+            skipped = previous.size();
+            return;
+        }
+
+        // the manifest describes the image only once the expansion completed
+        manifestFile.delete();
+
+        Map current = new TreeMap();
+        ZipFile zip = new ZipFile( archive );
+        try
+        {
+            // the last of duplicate entries wins as with a sequential expansion
+            Map entries = new LinkedHashMap();
+            for ( Enumeration ii = zip.entries(); ii.hasMoreElements(); /* */)
+            {
+                ZipEntry entry = ( ZipEntry ) ii.nextElement();
+                entries.remove( entry.getName() );
+                entries.put( entry.getName(), entry );
+            }
+
+            String destPath = dest.getCanonicalPath() + File.separator;
+            Set directories = new HashSet();
+            List jobs = new ArrayList();
+            for ( Iterator ii = entries.values().iterator(); ii.hasNext(); /* */)
+            {
+                ZipEntry entry = ( ZipEntry ) ii.next();
+                File file = new File( dest, entry.getName() );
+                if ( !( file.getCanonicalPath() + File.separator ).startsWith( destPath ) )
+                {
+                    throw new IOException( "Entry " + entry.getName() + " of " + archive + " is outside of " + dest );
+                }
+
+                if ( entry.isDirectory() )
+                {
+                    mkdirs( file, directories );
+                    current.put( entry.getName(), new Record( DIRECTORY, 0, 0 ) );
+                    continue;
+                }
+
+                Record old = ( Record ) previous.get( entry.getName() );
+                if ( old != null && old.crc == entry.getCrc() && old.size == entry.getSize() && old.isIntact( file ) )
+                {
+                    current.put( entry.getName(), old );
+                    skipped++;
+                    continue;
+                }
+
+                mkdirs( file.getParentFile(), directories );
+                jobs.add( new Object[]
+                    { entry, file } );
+            }
+
+            extract( zip, jobs, current );
+        }
+        finally
+        {
+            zip.close();
+        }
+
+        // delete what the previous expansion left which is gone from the archive
+        for ( Iterator ii = previous.entrySet().iterator(); ii.hasNext(); /* */)
+        {
+            Map.Entry entry = ( Map.Entry ) ii.next();
+            Record old = ( Record ) entry.getValue();
+            File file = new File( dest, ( String ) entry.getKey() );
+            if ( !current.containsKey( entry.getKey() ) && old.crc != DIRECTORY && old.isIntact( file )
+                && file.delete() )
+            {
+                removed++;
+            }
+        }
+
+        save( manifestFile, header, current );
+    }
+
+
+    public int getExtracted()
+    {
+        return extracted;
+    }
+
+
+    public int getSkipped()
+    {
+        return skipped;
+    }
+
+
+    public int getRemoved()
+    {
+        return removed;
+    }
+
+
+    private void extract( final ZipFile zip, List jobs, Map current ) throws IOException
+    {
+        if ( jobs.isEmpty() )
+        {
+            return;
+        }
+
+        int poolSize = Math.min( threads, jobs.size() );
+        ExecutorService executor = Executors.newFixedThreadPool( poolSize, new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "expand" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+
+        try
+        {
+            List futures = new ArrayList( jobs.size() );
+            for ( int ii = 0; ii < jobs.size(); ii++ )
+            {
+                final Object[] job = ( Object[] ) jobs.get( ii );
+                futures.add( executor.submit( BuildReport.bind( new Callable()
+                {
+                    public Object call() throws Exception
+                    {
+                        return extract( zip, ( ZipEntry ) job[0], ( File ) job[1] );
+                    }
+                } ) ) );
+            }
+
+            for ( int ii = 0; ii < futures.size(); ii++ )
+            {
+                ZipEntry entry = ( ZipEntry ) ( ( Object[] ) jobs.get( ii ) )[0];
+                current.put( entry.getName(), ( ( Future ) futures.get( ii ) ).get() );
+                extracted++;
+            }
+        }
+        catch ( ExecutionException e )
+        {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw ( IOException ) cause;
+            }
+            IOException ioe = new IOException( "Failed to expand " + zip.getName() + ": " + cause );
+            ioe.initCause( cause );
+            throw ioe;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while expanding " + zip.getName() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private static Record extract( ZipFile zip, ZipEntry entry, File file ) throws IOException
+    {
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Failed to delete " + file );
+        }
+
+        byte[] buffer = ( byte[] ) BUFFER.get();
+        InputStream in = null;
+        OutputStream out = null;
+        try
+        {
+            in = zip.getInputStream( entry );
+            out = new FileOutputStream( file );
+            int count;
+            while ( ( count = in.read( buffer ) ) != -1 )
+            {
+                out.write( buffer, 0, count );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+            IOUtil.close( out );
+        }
+
+        BuildReport.file( entry.getCompressedSize(), entry.getSize() );
+        if ( entry.getTime() != -1 )
+        {
+            file.setLastModified( entry.getTime() );
+        }
+        return new Record( entry.getCrc(), entry.getSize(), file.lastModified() );
+    }
+
+
+    private static void mkdirs( File directory, Set directories )
+    {
+        if ( directories.add( directory ) )
+        {
+            directory.mkdirs();
+        }
+    }
+
+
+    /**
+     * Checks whether all files recorded by the previous expansion are still
+     * in place and untouched.
+     */
+    private static boolean isIntact( File dest, Map previous )
+    {
+        if ( previous.isEmpty() )
+        {
+            return false;
+        }
+
+        for ( Iterator ii = previous.entrySet().iterator(); ii.hasNext(); /* */)
+        {
+            Map.Entry entry = ( Map.Entry ) ii.next();
+            Record record = ( Record ) entry.getValue();
+            File file = new File( dest, ( String ) entry.getKey() );
+            if ( record.crc == DIRECTORY ? !file.isDirectory() : !record.isIntact( file ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Loads the records of the previous expansion into the map.
+     *
+     * @return true if the previous expansion was of the same archive into the
+     * same directory
+     */
+    private static boolean load( File manifestFile, String header, Map previous ) throws IOException
+    {
+        if ( !manifestFile.exists() )
+        {
+            return false;
+        }
+
+        BufferedReader in = new BufferedReader( new FileReader( manifestFile ) );
+        try
+        {
+            String first = in.readLine();
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                String[] fields = line.split( SEPARATOR, 4 );
+                if ( fields.length != 4 )
+                {
+                    continue;
+                }
+
+                try
+                {
+                    previous.put( fields[3], new Record( Long.parseLong( fields[0] ), Long.parseLong( fields[1] ), Long
+                        .parseLong( fields[2] ) ) );
+                }
+                catch ( NumberFormatException e )
+                {
+                    // a corrupt record only costs us an extraction
+                }
+            }
+            return header.equals( first );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    private static void save( File manifestFile, String header, Map current ) throws IOException
+    {
+        manifestFile.getParentFile().mkdirs();
+        File tmp = new File( manifestFile.getPath() + ".tmp" );
+        PrintWriter out = new PrintWriter( new FileWriter( tmp ) );
+        try
+        {
+            out.println( header );
+            for ( Iterator ii = current.entrySet().iterator(); ii.hasNext(); /* */)
+            {
+                Map.Entry entry = ( Map.Entry ) ii.next();
+                Record record = ( Record ) entry.getValue();
+                out.println( record.crc + SEPARATOR + record.size + SEPARATOR + record.modified + SEPARATOR
+                    + entry.getKey() );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ( !tmp.renameTo( manifestFile ) )
+        {
+            tmp.delete();
+            throw new IOException( "Failed to move " + tmp + " to " + manifestFile );
+        }
+    }
+
+
+    /**
+     * Gets the manifest of expanding an archive into a directory.
+     */
+    private File getManifestFile( File archive, File dest ) throws IOException
+    {
+        String key = archive.getPath() + SEPARATOR + dest.getPath();
+        return new File( manifestDirectory, archive.getName() + "."
+            + ImageManifest.toHex( ImageManifest.newDigest().digest( key.getBytes( "UTF-8" ) ) ) );
+    }
+
+
+    /**
+     * What an entry was extracted as.
+     */
+    private static class Record
+    {
+        final long crc;
+        final long size;
+        final long modified;
+
+
+        Record( long crc, long size, long modified )
+        {
+            this.crc = crc;
+            this.size = size;
+            this.modified = modified;
+        }
+
+
+        boolean isIntact( File file )
+        {
+            return file.isFile() && file.length() == size && file.lastModified() == modified;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Writes a zip archive whose entries are compressed on several threads and
+ * written in the order they were added.  Unlike ZipOutputStream it records
+ * unix modes in the external attributes so unzip restores executables.
+ * Entries are compressed in memory and the compressors run ahead by a
+ * bounded number of bytes.  Archives needing zip64 are refused.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ZipWriter
+{
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int UTF8_NAMES = 0x800;
+    private static final int UNIX = 3;
+    private static final int VERSION = 20;
+
+    private final OutputStream out;
+    private final int level;
+    private final long maxPendingBytes;
+    private final ExecutorService executor;
+    private final LinkedList pending = new LinkedList();
+    private final List written = new ArrayList();
+    private long pendingBytes;
+    private long length;
+
+
+    /**
+     * @param out the stream the archive is written to
+     * @param threads the number of compressing threads, 0 for one per processor
+     * @param level the compression level as used by {@link Deflater}
+     */
+    public ZipWriter( OutputStream out, int threads, int level )
+    {
+        this.out = out;
+        this.level = level;
+        if ( threads <= 0 )
+        {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.maxPendingBytes = threads * 8L * 1024 * 1024;
+        this.executor = Executors.newFixedThreadPool( threads, new ThreadFactory()
+        {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable, "zip" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+    }
+
+
+    /**
+     * Adds a directory entry.
+     *
+     * @param name the name of the directory, a trailing slash is added if missing
+     * @param mode the permission bits, type bits are added
+     * @param mtime the modification time in milliseconds
+     */
+    public void writeDirectory( String name, int mode, long mtime ) throws IOException
+    {
+        Entry entry = new Entry( name.endsWith( "/" ) ? name : name + "/",
+            ImageContents.DIRECTORY_TYPE | ( mode & 07777 ), mtime );
+        entry.method = STORED;
+        add( entry, 0 );
+    }
+
+
+    /**
+     * Adds a file entry which is compressed by one of the threads.
+     *
+     * @param name the name of the file
+     * @param mode the permission bits, type bits are added
+     * @param mtime the modification time in milliseconds
+     * @param source the content or null for an empty file
+     */
+    public void writeFile( String name, int mode, long mtime, final File source ) throws IOException
+    {
+        final Entry entry = new Entry( name, ImageContents.FILE_TYPE | ( mode & 07777 ), mtime );
+        if ( source == null || source.length() == 0 )
+        {
+            entry.method = STORED;
+            add( entry, 0 );
+            return;
+        }
+
+        entry.future = executor.submit( BuildReport.bind( new Callable()
+        {
+            public Object call() throws Exception
+            {
+                compress( entry, source );
+                return null;
+            }
+        } ) );
+        add( entry, source.length() );
+    }
+
+
+    /**
+     * Adds a symbolic link entry: its content is what it points to, which is
+     * how unzip restores links.
+     *
+     * @param name the name of the link
+     * @param mtime the modification time in milliseconds
+     * @param target what the link points to
+     */
+    public void writeLink( String name, long mtime, String target ) throws IOException
+    {
+        Entry entry = new Entry( name, ImageContents.LINK_TYPE | 0777, mtime );
+        entry.method = STORED;
+        entry.data = target.getBytes( "UTF-8" );
+        CRC32 crc = new CRC32();
+        crc.update( entry.data );
+        entry.crc = crc.getValue();
+        entry.compressedSize = entry.data.length;
+        add( entry, entry.data.length );
+    }
+
+
+    /**
+     * Writes the remaining entries and the central directory.  The underlying
+     * stream is left open.
+     */
+    public void finish() throws IOException
+    {
+        try
+        {
+            while ( !pending.isEmpty() )
+            {
+                drain();
+            }
+
+            if ( written.size() > 0xffff )
+            {
+                throw new IOException( "zip archives are limited to 65535 entries without zip64" );
+            }
+
+            long centralOffset = length;
+            for ( int ii = 0; ii < written.size(); ii++ )
+            {
+                Entry entry = ( Entry ) written.get( ii );
+                ByteArrayOutputStream header = new ByteArrayOutputStream( 46 + entry.name.length );
+                writeInt( header, CENTRAL_HEADER );
+                writeShort( header, ( UNIX << 8 ) | VERSION );
+                writeCommon( header, entry );
+                writeShort( header, 0 ); // comment length
+                writeShort( header, 0 ); // disk number
+                writeShort( header, 0 ); // internal attributes
+                writeInt( header, ( ( long ) entry.mode << 16 ) | ( entry.isDirectory() ? 0x10 : 0 ) );
+                writeInt( header, entry.offset );
+                header.write( entry.name );
+                write( header.toByteArray() );
+            }
+            long centralSize = length - centralOffset;
+            checkOffset( length );
+
+            ByteArrayOutputStream end = new ByteArrayOutputStream( 22 );
+            writeInt( end, END_OF_CENTRAL_DIRECTORY );
+            writeShort( end, 0 ); // this disk
+            writeShort( end, 0 ); // disk of the central directory
+            writeShort( end, written.size() );
+            writeShort( end, written.size() );
+            writeInt( end, centralSize );
+            writeInt( end, centralOffset );
+            writeShort( end, 0 ); // comment length
+            write( end.toByteArray() );
+            out.flush();
+        }
+        finally
+        {
+            close();
+        }
+    }
+
+
+    /**
+     * Stops the compressing threads, abandoning the pending entries if the
+     * archive was not finished.  The underlying stream is left open.
+     */
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+
+    private void add( Entry entry, long size ) throws IOException
+    {
+        entry.size = size;
+        pending.add( entry );
+        pendingBytes += size;
+        while ( pending.size() > 1 && pendingBytes > maxPendingBytes )
+        {
+            drain();
+        }
+    }
+
+
+    private void drain() throws IOException
+    {
+        Entry entry = ( Entry ) pending.removeFirst();
+        pendingBytes -= entry.size;
+        if ( entry.future != null )
+        {
+            try
+            {
+                entry.future.get();
+            }
+            catch ( InterruptedException e )
+            {
+                throw ( IOException ) new IOException( "Interrupted while compressing" ).initCause( e );
+            }
+            catch ( ExecutionException e )
+            {
+                throw ( IOException ) new IOException( "Failed to compress " + new String( entry.name, "UTF-8" )
+                    + ": " + e.getCause() ).initCause( e.getCause() );
+            }
+        }
+
+        entry.offset = length;
+        checkOffset( length );
+        ByteArrayOutputStream header = new ByteArrayOutputStream( 30 + entry.name.length );
+        writeInt( header, LOCAL_HEADER );
+        writeCommon( header, entry );
+        header.write( entry.name );
+        write( header.toByteArray() );
+        if ( entry.data != null )
+        {
+            write( entry.data );
+            entry.data = null;
+        }
+        written.add( entry );
+    }
+
+
+    private void write( byte[] bytes ) throws IOException
+    {
+        out.write( bytes );
+        length += bytes.length;
+    }
+
+
+    /**
+     * Writes the fields from the version needed up to the extra field length
+     * which local and central headers share.
+     */
+    private static void writeCommon( ByteArrayOutputStream header, Entry entry )
+    {
+        writeShort( header, VERSION );
+        writeShort( header, UTF8_NAMES );
+        writeShort( header, entry.method );
+        writeShort( header, entry.dosTime );
+        writeShort( header, entry.dosDate );
+        writeInt( header, entry.crc );
+        writeInt( header, entry.compressedSize );
+        writeInt( header, entry.size );
+        writeShort( header, entry.name.length );
+        writeShort( header, 0 ); // extra field length
+    }
+
+
+    private static void compress( Entry entry, File source ) throws IOException
+    {
+        if ( source.length() > 0xffffffffL )
+        {
+            throw new IOException( "zip entries are limited to 4GB without zip64" );
+        }
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater( entry.level, true );
+        ByteArrayOutputStream data = new ByteArrayOutputStream( ( int ) Math.min( source.length() / 2 + 64,
+            Integer.MAX_VALUE ) );
+        BuildReport.read( source.length() );
+        InputStream in = new FileInputStream( source );
+        try
+        {
+            byte[] buf = new byte[65536];
+            byte[] deflated = new byte[65536];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                crc.update( buf, 0, read );
+                deflater.setInput( buf, 0, read );
+                while ( !deflater.needsInput() )
+                {
+                    data.write( deflated, 0, deflater.deflate( deflated ) );
+                }
+            }
+            deflater.finish();
+            while ( !deflater.finished() )
+            {
+                data.write( deflated, 0, deflater.deflate( deflated ) );
+            }
+        }
+        finally
+        {
+            deflater.end();
+            IOUtil.close( in );
+        }
+
+        entry.method = DEFLATED;
+        entry.crc = crc.getValue();
+        entry.data = data.toByteArray();
+        entry.compressedSize = entry.data.length;
+    }
+
+
+    private static void checkOffset( long offset ) throws IOException
+    {
+        if ( offset > 0xffffffffL )
+        {
+            throw new IOException( "zip archives are limited to 4GB without zip64" );
+        }
+    }
+
+
+    private static void writeShort( ByteArrayOutputStream out, int value )
+    {
+        out.write( value & 0xff );
+        out.write( ( value >>> 8 ) & 0xff );
+    }
+
+
+    private static void writeInt( ByteArrayOutputStream out, long value )
+    {
+        writeShort( out, ( int ) value & 0xffff );
+        writeShort( out, ( int ) ( value >>> 16 ) & 0xffff );
+    }
+
+
+    private class Entry
+    {
+        private final byte[] name;
+        private final int mode;
+        private final int dosTime;
+        private final int dosDate;
+        private final int level = ZipWriter.this.level;
+        private int method;
+        private long size;
+        private long crc;
+        private long compressedSize;
+        private long offset;
+        private byte[] data;
+        private Future future;
+
+
+        Entry( String name, int mode, long mtime ) throws IOException
+        {
+            this.name = name.getBytes( "UTF-8" );
+            if ( this.name.length > 0xffff )
+            {
+                throw new IOException( "zip entry name is too long: " + name );
+            }
+            this.mode = mode;
+
+            // dos times have no zone and start in 1980, use UTC so archives do not depend on the host
+            Calendar calendar = Calendar.getInstance( TimeZone.getTimeZone( "UTC" ) );
+            calendar.setTimeInMillis( mtime );
+            if ( calendar.get( Calendar.YEAR ) < 1980 )
+            {
+                calendar.clear();
+                calendar.set( 1980, Calendar.JANUARY, 1 );
+            }
+            dosTime = ( calendar.get( Calendar.HOUR_OF_DAY ) << 11 ) | ( calendar.get( Calendar.MINUTE ) << 5 )
+                | ( calendar.get( Calendar.SECOND ) >> 1 );
+            dosDate = ( ( calendar.get( Calendar.YEAR ) - 1980 ) << 9 ) | ( ( calendar.get( Calendar.MONTH ) + 1 ) << 5 )
+                | calendar.get( Calendar.DAY_OF_MONTH );
+        }
+
+
+        boolean isDirectory()
+        {
+            return ( mode & ImageContents.DIRECTORY_TYPE ) != 0;
+        }
+    }
+}
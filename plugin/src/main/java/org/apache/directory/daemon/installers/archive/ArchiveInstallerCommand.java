@@ -0,0 +1,214 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.archive;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.MojoCommand;
+import org.apache.directory.daemon.installers.ParallelGzipOutputStream;
+import org.apache.directory.daemon.installers.ServiceInstallersMojo;
+import org.apache.directory.daemon.installers.TarWriter;
+import org.apache.directory.daemon.installers.ZipWriter;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Streams the installation image into a tar.gz, tar or zip archive which
+ * unpacks into a directory named after the application and its version.
+ * Compression runs on several threads and the modes of the entries are kept
+ * so executables stay executable.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ArchiveInstallerCommand extends MojoCommand
+{
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
+    private final ArchiveTarget target;
+    private final Log log;
+
+
+    public ArchiveInstallerCommand( ServiceInstallersMojo mymojo, ArchiveTarget target )
+    {
+        super( mymojo );
+        this.target = target;
+        this.log = mymojo.getLog();
+    }
+
+
+    public Properties getFilterProperties()
+    {
+        return filterProperties;
+    }
+
+
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        String format = target.getFormat();
+        if ( !ArchiveTarget.FORMAT_TAR_GZ.equals( format ) && !ArchiveTarget.FORMAT_TAR.equals( format )
+            && !ArchiveTarget.FORMAT_ZIP.equals( format ) )
+        {
+            throw new MojoFailureException( "Unsupported archive format " + format + " for target "
+                + target.getId() + ": use " + ArchiveTarget.FORMAT_TAR_GZ + ", " + ArchiveTarget.FORMAT_TAR
+                + " or " + ArchiveTarget.FORMAT_ZIP );
+        }
+
+        processPackagedFiles( target, target.getPackagedFiles() );
+
+        ImageContents contents = new ImageContents( target, getBaseName() );
+        contents.setInstallInitScript( false );
+        contents.setTimestamp( ImageContents.getDefaultTimestamp() );
+        List entries = contents.scan();
+
+        File archive = getArchiveFile();
+        long start = System.currentTimeMillis();
+        OutputStream out = null;
+        try
+        {
+            out = new BufferedOutputStream( new FileOutputStream( archive ), 65536 );
+            if ( ArchiveTarget.FORMAT_ZIP.equals( format ) )
+            {
+                writeZip( entries, out );
+            }
+            else if ( ArchiveTarget.FORMAT_TAR_GZ.equals( format ) )
+            {
+                ParallelGzipOutputStream gzip = new ParallelGzipOutputStream( out, target.getBlockSize(), target
+                    .getThreads(), target.getCompressionLevel() );
+                out = gzip;
+                writeTar( entries, gzip );
+                gzip.finish();
+            }
+            else
+            {
+                writeTar( entries, out );
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to write archive " + archive, e );
+            throw new MojoFailureException( "Failed to write archive " + archive + ": " + e.getMessage() );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        target.addOutputFile( archive );
+        log.info( "Wrote " + archive + " with " + entries.size() + " entries in "
+            + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+
+    private void writeTar( List entries, OutputStream out ) throws IOException
+    {
+        TarWriter tar = new TarWriter( out );
+        for ( int ii = 0; ii < entries.size(); ii++ )
+        {
+            ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+            if ( entry.isDirectory() )
+            {
+                tar.writeDirectory( entry.getPath(), entry.getMode(), entry.getLastModified() );
+            }
+            else if ( entry.isLink() )
+            {
+                tar.writeLink( entry.getPath(), entry.getLastModified(), entry.getLinkTarget() );
+            }
+            else
+            {
+                tar.writeFile( entry.getPath(), entry.getMode(), entry.getLastModified(), entry.getSource(), null );
+            }
+        }
+        tar.finish();
+    }
+
+
+    private void writeZip( List entries, OutputStream out ) throws IOException
+    {
+        ZipWriter zip = new ZipWriter( out, target.getThreads(), target.getCompressionLevel() );
+        try
+        {
+            for ( int ii = 0; ii < entries.size(); ii++ )
+            {
+                ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+                if ( entry.isDirectory() )
+                {
+                    zip.writeDirectory( entry.getPath(), entry.getMode(), entry.getLastModified() );
+                }
+                else if ( entry.isLink() )
+                {
+                    zip.writeLink( entry.getPath(), entry.getLastModified(), entry.getLinkTarget() );
+                }
+                else
+                {
+                    zip.writeFile( entry.getPath(), entry.getMode(), entry.getLastModified(), entry.getSource() );
+                }
+            }
+            zip.finish();
+        }
+        finally
+        {
+            // the compressing threads are not left running when an entry fails
+            zip.close();
+        }
+    }
+
+
+    private String getBaseName()
+    {
+        String version = target.getApplication().getVersion();
+        return target.getApplication().getName() + ( version == null ? "" : "-" + version );
+    }
+
+
+    private File getArchiveFile()
+    {
+        String finalName = target.getFinalName();
+        if ( finalName == null )
+        {
+            finalName = getBaseName();
+            if ( target.getOsName() != null )
+            {
+                finalName += "-" + target.getOsName();
+            }
+            if ( target.getOsArch() != null )
+            {
+                finalName += "-" + target.getOsArch();
+            }
+        }
+        if ( !finalName.endsWith( "." + target.getFormat() ) )
+        {
+            finalName = finalName + "." + target.getFormat();
+        }
+        return new File( mymojo.getOutputDirectory(), finalName );
+    }
+}
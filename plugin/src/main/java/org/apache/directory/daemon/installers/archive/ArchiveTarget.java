@@ -0,0 +1,104 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.archive;
+
+
+import java.util.zip.Deflater;
+
+import org.apache.directory.daemon.installers.ParallelGzipOutputStream;
+import org.apache.directory.daemon.installers.Target;
+
+
+/**
+ * A target packaging the installation image as a plain archive for hosts
+ * deploying without a package manager.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class ArchiveTarget extends Target
+{
+    /** a gzip compressed tar archive */
+    public static final String FORMAT_TAR_GZ = "tar.gz";
+    /** an uncompressed tar archive, for piping into compressors such as zstd */
+    public static final String FORMAT_TAR = "tar";
+    /** a zip archive */
+    public static final String FORMAT_ZIP = "zip";
+
+    private String format = FORMAT_TAR_GZ;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int blockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+    private int threads = 0;
+
+
+    public void setFormat( String format )
+    {
+        this.format = format;
+    }
+
+
+    public String getFormat()
+    {
+        return format;
+    }
+
+
+    public void setCompressionLevel( int compressionLevel )
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+
+
+    /**
+     * Sets the size of the blocks of a tar.gz archive which are compressed
+     * independently.
+     */
+    public void setBlockSize( int blockSize )
+    {
+        this.blockSize = blockSize;
+    }
+
+
+    public int getBlockSize()
+    {
+        return blockSize;
+    }
+
+
+    /**
+     * Sets the number of compressing threads, 0 uses one per processor.
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+
+    public int getThreads()
+    {
+        return threads;
+    }
+}
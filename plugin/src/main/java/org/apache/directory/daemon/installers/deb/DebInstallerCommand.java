@@ -0,0 +1,382 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.deb;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.directory.daemon.installers.ArWriter;
+import org.apache.directory.daemon.installers.DebTarget;
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.ImageManifest;
+import org.apache.directory.daemon.installers.MojoCommand;
+import org.apache.directory.daemon.installers.MojoHelperUtils;
+import org.apache.directory.daemon.installers.ServiceInstallersMojo;
+import org.apache.directory.daemon.installers.TarWriter;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Builds a Debian package without dpkg-deb: the control and data tar
+ * archives are written directly from the image and wrapped into the ar
+ * container.  All entries get the same timestamp and are written in a fixed
+ * order so the same image always gives the same package.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class DebInstallerCommand extends MojoCommand
+{
+    /** the maintainer scripts generated from the bundled templates */
+    private static final String[] SCRIPTS = new String[]
+        { "postinst", "prerm", "postrm" };
+
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
+    private final DebTarget target;
+    private final File controlDirectory;
+    private final Log log;
+    private final String installBase;
+    private final long timestamp;
+
+
+    public DebInstallerCommand( ServiceInstallersMojo mymojo, DebTarget target )
+    {
+        super( mymojo );
+        this.target = target;
+        this.log = mymojo.getLog();
+        File imagesDir = target.getLayout().getBaseDirectory().getParentFile();
+        controlDirectory = new File( imagesDir, target.getId() + "-control" );
+        String version = target.getApplication().getVersion() == null ? "1.0" : target.getApplication().getVersion();
+        installBase = "/usr/local/" + target.getApplication().getName() + "-" + version;
+        timestamp = ImageContents.getDefaultTimestamp();
+        initializeFiltering();
+    }
+
+
+    public Properties getFilterProperties()
+    {
+        return filterProperties;
+    }
+
+
+    /**
+     * Performs the following:
+     * <ol>
+     *   <li>Bail if target is not for linux</li>
+     *   <li>Filter and copy the init script into the image</li>
+     *   <li>Write the data archive from the image collecting the md5 sums</li>
+     *   <li>Filter the control file and maintainer scripts into the control archive</li>
+     *   <li>Wrap both into the package</li>
+     * </ol>
+     */
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        if ( !target.getOsFamily().equals( "unix" ) || !target.getOsName().equalsIgnoreCase( "Linux" ) )
+        {
+            log.warn( "Debian target " + target.getId() + " cannot be built for an non-linux based machine!" );
+            log.warn( "The target will not be built." );
+            log.warn( "The rest of the build will not fail because of this acceptable situation." );
+            return;
+        }
+
+        copyInitScript();
+        processPackagedFiles( target, target.getPackagedFiles() );
+
+        ImageContents contents = new ImageContents( target, installBase );
+        contents.setTimestamp( timestamp );
+        List entries = contents.scan();
+
+        File debFile = getPackageFile();
+        File dataFile = new File( controlDirectory, "data.tar.gz" );
+        FileUtils.mkdir( controlDirectory.getAbsolutePath() );
+        try
+        {
+            StringBuffer md5sums = new StringBuffer();
+            long installedSize = writeData( entries, dataFile, md5sums );
+            filterProperties.put( "deb.installed.size", String.valueOf( ( installedSize + 1023 ) / 1024 ) );
+            byte[] control = createControl( md5sums.toString() );
+
+            debFile.delete();
+            OutputStream out = new BufferedOutputStream( new FileOutputStream( debFile ) );
+            try
+            {
+                ArWriter ar = new ArWriter( out );
+                ar.addMember( "debian-binary", timestamp, "2.0\n".getBytes( "US-ASCII" ) );
+                ar.addMember( "control.tar.gz", timestamp, control );
+                ar.addMember( "data.tar.gz", timestamp, dataFile );
+            }
+            finally
+            {
+                IOUtil.close( out );
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to write debian package " + debFile, e );
+            throw new MojoFailureException( "Failed to write debian package " + debFile + ": " + e.getMessage() );
+        }
+        finally
+        {
+            dataFile.delete();
+        }
+
+        target.addOutputFile( debFile );
+        log.info( "Wrote " + debFile + " with " + entries.size() + " entries" );
+    }
+
+
+    /**
+     * Writes the data archive: the directories leading to the installation
+     * base and the init script first, then the image entries but the logs.
+     *
+     * @return the installed size in bytes
+     */
+    private long writeData( List entries, File dataFile, StringBuffer md5sums ) throws IOException
+    {
+        MessageDigest md5 = ImageManifest.newDigest();
+        long installedSize = 0;
+        OutputStream out = new GZIPOutputStream( new BufferedOutputStream( new FileOutputStream( dataFile ), 65536 ) );
+        try
+        {
+            TarWriter tar = new TarWriter( new BufferedOutputStream( out, 65536 ) );
+            tar.writeDirectory( "./", 0755, timestamp );
+
+            // parents of the entries which are not part of the image
+            String[] parents = new String[]
+                { "/etc", "/etc/init.d", installBase.substring( 0, installBase.lastIndexOf( '/' ) ) };
+            Set written = new HashSet();
+            for ( int ii = 0; ii < parents.length; ii++ )
+            {
+                String[] segments = parents[ii].substring( 1 ).split( "/" );
+                String path = "";
+                for ( int jj = 0; jj < segments.length; jj++ )
+                {
+                    path += "/" + segments[jj];
+                    if ( written.add( path ) )
+                    {
+                        tar.writeDirectory( "." + path, 0755, timestamp );
+                    }
+                }
+            }
+
+            for ( int ii = 0; ii < entries.size(); ii++ )
+            {
+                ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+                if ( entry.isDirectory() )
+                {
+                    tar.writeDirectory( "." + entry.getPath(), entry.getMode(), entry.getLastModified() );
+                    continue;
+                }
+                if ( entry.isLink() )
+                {
+                    tar.writeLink( "." + entry.getPath(), entry.getLastModified(), entry.getLinkTarget() );
+                    continue;
+                }
+                if ( entry.isGhost() )
+                {
+                    // dpkg has no ghosts: postinst creates the logs and purging removes them
+                    continue;
+                }
+
+                md5.reset();
+                tar.writeFile( "." + entry.getPath(), entry.getMode(), entry.getLastModified(), entry.getSource(),
+                    md5 );
+                md5sums.append( ImageManifest.toHex( md5.digest() ) ).append( "  " );
+                md5sums.append( entry.getPath().substring( 1 ) ).append( "\n" );
+                installedSize += entry.getSize();
+            }
+            tar.finish();
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+        return installedSize;
+    }
+
+
+    /**
+     * Filters the control file and the maintainer scripts into the control
+     * directory and archives them with the md5 sums.
+     */
+    private byte[] createControl( String md5sums ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream( bytes );
+        TarWriter tar = new TarWriter( out );
+        tar.writeDirectory( "./", 0755, timestamp );
+
+        File control = new File( controlDirectory, "control" );
+        MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, getClass().getResourceAsStream( "control" ),
+            control, true );
+        tar.writeFile( "./control", 0644, timestamp, control, null );
+
+        // the init script is the only file in /etc
+        tar.writeFile( "./conffiles", 0644, timestamp, ( "/etc/init.d/" + target.getApplication().getName() + "\n" )
+            .getBytes( "UTF-8" ) );
+        tar.writeFile( "./md5sums", 0644, timestamp, md5sums.getBytes( "UTF-8" ) );
+
+        for ( int ii = 0; ii < SCRIPTS.length; ii++ )
+        {
+            File script = new File( controlDirectory, SCRIPTS[ii] );
+            MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, getClass().getResourceAsStream( SCRIPTS[ii] ),
+                script, true );
+            tar.writeFile( "./" + SCRIPTS[ii], 0755, timestamp, script, null );
+        }
+
+        tar.finish();
+        out.close();
+        return bytes.toByteArray();
+    }
+
+
+    private void copyInitScript()
+    {
+        File initScript = target.getLayout().getInitScript();
+        try
+        {
+            if ( target.getScriptFile() != null && target.getScriptFile().exists() )
+            {
+                log.info( "Using project supplied init script file: " + target.getScriptFile() );
+                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, target.getScriptFile(), initScript, true );
+            }
+            else
+            {
+                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, getClass().getResourceAsStream(
+                    "server.init" ), initScript, true );
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to copy init script into position " + initScript, e );
+        }
+    }
+
+
+    private void initializeFiltering()
+    {
+        String name = target.getApplication().getName();
+        filterProperties.putAll( mymojo.getProject().getProperties() );
+        filterProperties.put( "app", name );
+        filterProperties.put( "app.caps", name.toUpperCase() );
+        filterProperties.put( "app.server.class", mymojo.getApplicationClass() );
+        filterProperties.put( "app.display.name", Character.toUpperCase( name.charAt( 0 ) ) + name.substring( 1 ) );
+        filterProperties.put( "app.install.base", installBase );
+        filterProperties.put( "server.init", target.getLayout().getInitScript().getName() );
+
+        // debian package names are lower case and versions only use '-' before the revision
+        filterProperties.put( "deb.package", name.toLowerCase() );
+        filterProperties.put( "deb.version", getUpstreamVersion() + "-0" );
+        filterProperties.put( "deb.arch", getArchitecture() );
+
+        String author = "Apache Software Foundation";
+        if ( target.getApplication().getAuthors() != null && !target.getApplication().getAuthors().isEmpty() )
+        {
+            author = ( String ) target.getApplication().getAuthors().get( 0 );
+        }
+        String email = target.getApplication().getEmail();
+        filterProperties.put( "deb.maintainer", email == null ? author : author + " <" + email + ">" );
+
+        String url = target.getApplication().getUrl();
+        filterProperties.put( "deb.homepage", url == null ? "" : "Homepage: " + url + "\n" );
+        filterProperties.put( "deb.depends", target.getDepends() == null ? "" : "Depends: " + target.getDepends()
+            + "\n" );
+        filterProperties.put( "deb.description", formatDescription( target.getApplication().getDescription() ) );
+    }
+
+
+    /**
+     * Formats the extended description: each line starts with a space and
+     * empty lines are replaced by a single dot.
+     */
+    static String formatDescription( String description )
+    {
+        if ( description == null || description.trim().length() == 0 )
+        {
+            return " .";
+        }
+
+        StringBuffer buf = new StringBuffer();
+        String[] lines = description.trim().split( "\r?\n" );
+        for ( int ii = 0; ii < lines.length; ii++ )
+        {
+            String line = lines[ii].trim();
+            buf.append( ii == 0 ? " " : "\n " );
+            buf.append( line.length() == 0 ? "." : line );
+        }
+        return buf.toString();
+    }
+
+
+    private String getUpstreamVersion()
+    {
+        String version = target.getApplication().getVersion();
+        return version == null ? "1.0" : version.replace( '-', '~' );
+    }
+
+
+    private String getArchitecture()
+    {
+        String arch = target.getOsArch();
+        if ( "x86_64".equals( arch ) || "amd64".equals( arch ) )
+        {
+            return "amd64";
+        }
+        if ( "ppc".equals( arch ) )
+        {
+            return "powerpc";
+        }
+        return arch;
+    }
+
+
+    private File getPackageFile()
+    {
+        if ( target.getFinalName() == null )
+        {
+            return new File( mymojo.getOutputDirectory(), filterProperties.getProperty( "deb.package" ) + "_"
+                + filterProperties.getProperty( "deb.version" ) + "_" + getArchitecture() + ".deb" );
+        }
+
+        String finalName = target.getFinalName();
+        if ( !finalName.endsWith( ".deb" ) )
+        {
+            finalName = finalName + ".deb";
+        }
+        return new File( mymojo.getOutputDirectory(), finalName );
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.delta;
+
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.directory.daemon.DeltaApplier;
+import org.apache.directory.daemon.installers.ImageManifest;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Computes the patch turning an old file into a new one the way rsync does:
+ * the old file is cut into blocks which are indexed by a weak rolling
+ * checksum and an MD5 hash, and a window rolls over the new file one byte at
+ * a time looking the blocks up.  Matching blocks become copies from the old
+ * file and the bytes in between become literals.  Adjacent copies are merged
+ * so an unchanged stretch of the old file costs a single instruction.
+ * <p>
+ * The patch is written in the format {@link DeltaApplier} reads.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+class BinaryDiff
+{
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 65536;
+
+    private final int blockSize;
+    /** block numbers by weak checksum, an Integer or a List of them */
+    private final Map blocks = new HashMap();
+    private final byte[][] strong;
+    private final MessageDigest digest;
+
+    private long copyOffset = -1;
+    private int copyLength = 0;
+
+
+    /**
+     * Indexes the blocks of the old file.
+     */
+    BinaryDiff( File old ) throws IOException
+    {
+        blockSize = getBlockSize( old.length() );
+        digest = ImageManifest.newDigest();
+        strong = new byte[( int ) ( old.length() / blockSize )][];
+
+        InputStream in = new FileInputStream( old );
+        try
+        {
+            byte[] block = new byte[blockSize];
+            for ( int ii = 0; ii < strong.length; ii++ )
+            {
+                readFully( in, block );
+                strong[ii] = digest.digest( block );
+                index( weak( block, 0, blockSize ), ii );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+    }
+
+
+    /**
+     * Picks a block size growing with the square root of the file like rsync
+     * does so small files get fine grained matches and large ones do not
+     * need too many blocks.
+     */
+    static int getBlockSize( long length )
+    {
+        long size = ( ( long ) Math.sqrt( length ) + 15 ) & ~15L;
+        return ( int ) Math.max( MIN_BLOCK_SIZE, Math.min( MAX_BLOCK_SIZE, size ) );
+    }
+
+
+    /**
+     * Writes the patch turning the old file into the given content.
+     */
+    void write( byte[] data, DataOutputStream out ) throws IOException
+    {
+        copyOffset = -1;
+        copyLength = 0;
+        int literalStart = 0;
+        int pos = 0;
+        int next = -1;
+        int a = 0;
+        int b = 0;
+        if ( strong.length > 0 && data.length >= blockSize )
+        {
+            int weak = weak( data, 0, blockSize );
+            a = weak & 0xffff;
+            b = weak >>> 16;
+        }
+
+        while ( strong.length > 0 && pos + blockSize <= data.length )
+        {
+            int match = find( ( a & 0xffff ) | ( b << 16 ), data, pos, next );
+            if ( match >= 0 )
+            {
+                writeLiteral( data, literalStart, pos - literalStart, out );
+                writeCopy( ( long ) match * blockSize, blockSize, out );
+                pos += blockSize;
+                literalStart = pos;
+                next = match + 1;
+                if ( pos + blockSize <= data.length )
+                {
+                    int weak = weak( data, pos, blockSize );
+                    a = weak & 0xffff;
+                    b = weak >>> 16;
+                }
+                continue;
+            }
+
+            // roll the window one byte on
+            if ( pos + blockSize < data.length )
+            {
+                int leaving = data[pos] & 0xff;
+                int entering = data[pos + blockSize] & 0xff;
+                a = ( a - leaving + entering ) & 0xffff;
+                b = ( b - blockSize * leaving + a ) & 0xffff;
+            }
+            pos++;
+        }
+
+        writeLiteral( data, literalStart, data.length - literalStart, out );
+        flushCopy( out );
+        out.write( DeltaApplier.END );
+    }
+
+
+    /**
+     * Finds an old block with the content of the window, preferring the
+     * block after the last match so runs of blocks merge into one copy.
+     */
+    private int find( int weak, byte[] data, int pos, int next )
+    {
+        Object candidates = blocks.get( new Integer( weak ) );
+        if ( candidates == null )
+        {
+            return -1;
+        }
+
+        digest.update( data, pos, blockSize );
+        byte[] hash = digest.digest();
+        if ( candidates instanceof Integer )
+        {
+            int block = ( ( Integer ) candidates ).intValue();
+            return Arrays.equals( hash, strong[block] ) ? block : -1;
+        }
+
+        List list = ( List ) candidates;
+        if ( next >= 0 && next < strong.length && list.contains( new Integer( next ) )
+            && Arrays.equals( hash, strong[next] ) )
+        {
+            return next;
+        }
+        for ( int ii = 0; ii < list.size(); ii++ )
+        {
+            int block = ( ( Integer ) list.get( ii ) ).intValue();
+            if ( Arrays.equals( hash, strong[block] ) )
+            {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+
+    private void index( int weak, int block )
+    {
+        Integer key = new Integer( weak );
+        Object existing = blocks.get( key );
+        if ( existing == null )
+        {
+            blocks.put( key, new Integer( block ) );
+        }
+        else if ( existing instanceof Integer )
+        {
+            List list = new ArrayList();
+            list.add( existing );
+            list.add( new Integer( block ) );
+            blocks.put( key, list );
+        }
+        else
+        {
+            ( ( List ) existing ).add( new Integer( block ) );
+        }
+    }
+
+
+    private void writeCopy( long offset, int length, DataOutputStream out ) throws IOException
+    {
+        if ( copyOffset >= 0 && copyOffset + copyLength == offset && copyLength <= Integer.MAX_VALUE - length )
+        {
+            copyLength += length;
+            return;
+        }
+
+        flushCopy( out );
+        copyOffset = offset;
+        copyLength = length;
+    }
+
+
+    private void flushCopy( DataOutputStream out ) throws IOException
+    {
+        if ( copyOffset >= 0 )
+        {
+            out.write( DeltaApplier.COPY );
+            out.writeLong( copyOffset );
+            out.writeInt( copyLength );
+            copyOffset = -1;
+            copyLength = 0;
+        }
+    }
+
+
+    private void writeLiteral( byte[] data, int offset, int length, DataOutputStream out ) throws IOException
+    {
+        if ( length == 0 )
+        {
+            return;
+        }
+
+        flushCopy( out );
+        out.write( DeltaApplier.LITERAL );
+        out.writeInt( length );
+        out.write( data, offset, length );
+    }
+
+
+    /**
+     * The rsync checksum: the sum of the bytes in the low and the sum of the
+     * running sums in the high 16 bits.
+     */
+    private static int weak( byte[] data, int offset, int length )
+    {
+        int a = 0;
+        int b = 0;
+        for ( int ii = 0; ii < length; ii++ )
+        {
+            a += data[offset + ii] & 0xff;
+            b += a;
+        }
+        return ( a & 0xffff ) | ( ( b & 0xffff ) << 16 );
+    }
+
+
+    private static void readFully( InputStream in, byte[] buf ) throws IOException
+    {
+        int off = 0;
+        while ( off < buf.length )
+        {
+            int read = in.read( buf, off, buf.length - off );
+            if ( read == -1 )
+            {
+                throw new IOException( "File shrank while it was read" );
+            }
+            off += read;
+        }
+    }
+}
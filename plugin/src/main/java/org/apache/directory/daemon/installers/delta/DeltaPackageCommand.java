@@ -0,0 +1,387 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.delta;
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.directory.daemon.DeltaApplier;
+import org.apache.directory.daemon.installers.BuildReport;
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.MojoCommand;
+import org.apache.directory.daemon.installers.ServiceInstallersMojo;
+import org.apache.directory.daemon.installers.StagingStore;
+import org.apache.directory.daemon.installers.Target;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Writes a delta package upgrading an installation of a previous version to
+ * the image of a target, to be applied on the hosts with the upgrade command
+ * of the bootstrapper.  The previous version is given either as its image
+ * directory or as the image manifest the plugin kept next to it.  With an
+ * image, changed files go into the package as binary patches against their
+ * old content.  A manifest only knows the hashes of the old files, so changed
+ * files go in whole, still naming the hash of their old content so the
+ * upgrade refuses to overwrite a file which is not the one expected.  The 
+ * files generated into the image, which the manifest does not list, are 
+ * always included.
+ * <p>
+ * Files the target excludes, like configuration the administrators edit,
+ * are neither changed nor removed by the delta.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class DeltaPackageCommand extends MojoCommand
+{
+    /** files larger than this are not diffed but included whole */
+    private static final long MAX_DIFF_SIZE = 256L * 1024 * 1024;
+    /** the number of fields of a line of an image manifest */
+    private static final int MANIFEST_FIELDS = 6;
+
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
+    private final Target target;
+    private final Log log;
+    private final StagingStore store;
+    private int added = 0;
+    private int replaced = 0;
+    private int patched = 0;
+    private int removed = 0;
+    private int unchanged = 0;
+
+
+    public DeltaPackageCommand( ServiceInstallersMojo mymojo, Target target )
+    {
+        super( mymojo );
+        this.target = target;
+        this.log = mymojo.getLog();
+        this.store = mymojo.getStagingStore();
+    }
+
+
+    public Properties getFilterProperties()
+    {
+        return filterProperties;
+    }
+
+
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        File base = target.getDeltaBase();
+        if ( !base.exists() )
+        {
+            throw new MojoFailureException( "The delta base " + base + " of target " + target.getId()
+                + " does not exist: it must be a previous image or its manifest" );
+        }
+
+        File delta = new File( mymojo.getOutputDirectory(), target.getId() + "-delta.zip" );
+        long start = System.currentTimeMillis();
+        OutputStream out = null;
+        try
+        {
+            Map oldHashes = base.isDirectory() ? hashImage( base ) : readManifest( base );
+            Map newFiles = listImage();
+            out = new BufferedOutputStream( new FileOutputStream( delta ), 65536 );
+            write( base.isDirectory() ? base : null, oldHashes, newFiles, out );
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to write delta " + delta, e );
+            throw new MojoFailureException( "Failed to write delta " + delta + ": " + e.getMessage() );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        target.addOutputFile( delta );
+        log.info( "Wrote " + delta + " against " + base + ": " + patched + " files patched, " + replaced
+            + " replaced, " + added + " added, " + removed + " removed, " + unchanged + " unchanged in "
+            + ( System.currentTimeMillis() - start ) + " ms" );
+    }
+
+
+    /**
+     * Lists the files of the image of the target by path relative to it.
+     */
+    private Map listImage()
+    {
+        ImageContents contents = new ImageContents( target, "" );
+        contents.setInstallInitScript( false );
+        List entries = contents.scan();
+
+        Map files = new TreeMap();
+        for ( int ii = 0; ii < entries.size(); ii++ )
+        {
+            ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+            if ( entry.isDirectory() || entry.getSource() == null )
+            {
+                continue;
+            }
+
+            String path = entry.getPath().substring( 1 );
+            if ( !isExcluded( path ) )
+            {
+                files.put( path, entry );
+            }
+        }
+        return files;
+    }
+
+
+    /**
+     * Hashes the files of a previous image by path relative to it.
+     */
+    private Map hashImage( File image ) throws IOException
+    {
+        Map hashes = new TreeMap();
+        List pending = new ArrayList();
+        pending.add( image );
+        while ( !pending.isEmpty() )
+        {
+            File dir = ( File ) pending.remove( pending.size() - 1 );
+            File[] children = dir.listFiles();
+            if ( children == null )
+            {
+                continue;
+            }
+            Arrays.sort( children );
+
+            for ( int ii = 0; ii < children.length; ii++ )
+            {
+                if ( children[ii].isDirectory() )
+                {
+                    pending.add( children[ii] );
+                    continue;
+                }
+
+                String path = children[ii].getPath().substring( image.getPath().length() + 1 );
+                path = path.replace( File.separatorChar, '/' );
+                if ( !isExcluded( path ) )
+                {
+                    hashes.put( path, store.hash( children[ii] ) );
+                }
+            }
+        }
+        return hashes;
+    }
+
+
+    /**
+     * Reads the hashes of the files of a previous image from its manifest.
+     */
+    private Map readManifest( File manifest ) throws IOException
+    {
+        Map hashes = new TreeMap();
+        BufferedReader in = new BufferedReader( new FileReader( manifest ) );
+        try
+        {
+            String line;
+            while ( ( line = in.readLine() ) != null )
+            {
+                String[] fields = line.split( "\t" );
+                if ( fields.length == MANIFEST_FIELDS && !isExcluded( fields[0] ) )
+                {
+                    hashes.put( fields[0], fields[MANIFEST_FIELDS - 1] );
+                }
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if ( hashes.isEmpty() )
+        {
+            throw new IOException( manifest + " is not an image manifest" );
+        }
+        return hashes;
+    }
+
+
+    private boolean isExcluded( String path )
+    {
+        String[] excludes = target.getDeltaExcludes();
+        for ( int ii = 0; excludes != null && ii < excludes.length; ii++ )
+        {
+            String exclude = excludes[ii];
+            if ( path.equals( exclude ) || ( exclude.endsWith( "/" ) && path.startsWith( exclude ) ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Writes the data of the added, replaced and patched files and then the
+     * index, which the applier finds wherever it is.  A patch no smaller than
+     * the new file is dropped for the file itself.
+     */
+    private void write( File oldImage, Map oldHashes, Map newFiles, OutputStream out ) throws IOException
+    {
+        long timestamp = ImageContents.getDefaultTimestamp();
+        ZipOutputStream zip = new ZipOutputStream( out );
+        StringBuffer index = new StringBuffer( DeltaApplier.FORMAT ).append( "\n" );
+
+        for ( Iterator ii = newFiles.entrySet().iterator(); ii.hasNext(); /* */)
+        {
+            Map.Entry mapEntry = ( Map.Entry ) ii.next();
+            String path = ( String ) mapEntry.getKey();
+            ImageContents.Entry entry = ( ImageContents.Entry ) mapEntry.getValue();
+            File source = entry.getSource();
+            String newHash = store.hash( source );
+            String oldHash = ( String ) oldHashes.get( path );
+            if ( newHash.equals( oldHash ) )
+            {
+                unchanged++;
+                continue;
+            }
+
+            String executable = ( entry.getMode() & 0111 ) != 0 ? DeltaApplier.EXECUTABLE
+                : DeltaApplier.NOT_EXECUTABLE;
+            ZipEntry zipEntry = new ZipEntry( DeltaApplier.DATA_PREFIX + path );
+            zipEntry.setTime( timestamp );
+            zip.putNextEntry( zipEntry );
+
+            byte[] patch = null;
+            if ( oldHash != null && oldImage != null && source.length() <= MAX_DIFF_SIZE )
+            {
+                patch = diff( new File( oldImage, path ), source );
+            }
+
+            if ( patch != null )
+            {
+                zip.write( patch );
+                index.append( DeltaApplier.PATCH ).append( '\t' ).append( oldHash ).append( '\t' ).append( newHash );
+                patched++;
+            }
+            else
+            {
+                InputStream in = new FileInputStream( source );
+                try
+                {
+                    IOUtil.copy( in, zip );
+                }
+                finally
+                {
+                    IOUtil.close( in );
+                }
+                BuildReport.read( source.length() );
+                if ( oldHash != null )
+                {
+                    index.append( DeltaApplier.REPLACE ).append( '\t' ).append( oldHash ).append( '\t' );
+                    index.append( newHash );
+                    replaced++;
+                }
+                else
+                {
+                    index.append( DeltaApplier.ADD ).append( '\t' ).append( newHash );
+                    added++;
+                }
+            }
+            index.append( '\t' ).append( executable ).append( '\t' ).append( path ).append( '\n' );
+            zip.closeEntry();
+            BuildReport.file( 0, 0 );
+        }
+
+        for ( Iterator ii = oldHashes.entrySet().iterator(); ii.hasNext(); /* */)
+        {
+            Map.Entry mapEntry = ( Map.Entry ) ii.next();
+            if ( !newFiles.containsKey( mapEntry.getKey() ) )
+            {
+                index.append( DeltaApplier.REMOVE ).append( '\t' ).append( mapEntry.getValue() ).append( '\t' );
+                index.append( mapEntry.getKey() ).append( '\n' );
+                removed++;
+            }
+        }
+
+        ZipEntry indexEntry = new ZipEntry( DeltaApplier.INDEX_ENTRY );
+        indexEntry.setTime( timestamp );
+        zip.putNextEntry( indexEntry );
+        zip.write( index.toString().getBytes( "UTF-8" ) );
+        zip.closeEntry();
+        zip.finish();
+    }
+
+
+    /**
+     * Computes the patch from an old file to a new one.
+     *
+     * @return the patch or null if it is no smaller than the new file
+     */
+    private static byte[] diff( File oldFile, File newFile ) throws IOException
+    {
+        byte[] content = read( newFile );
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        new BinaryDiff( oldFile ).write( content, new DataOutputStream( patch ) );
+        BuildReport.read( oldFile.length() + newFile.length() );
+        return patch.size() < content.length ? patch.toByteArray() : null;
+    }
+
+
+    private static byte[] read( File file ) throws IOException
+    {
+        byte[] content = new byte[( int ) file.length()];
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            int off = 0;
+            while ( off < content.length )
+            {
+                int read = in.read( content, off, content.length - off );
+                if ( read == -1 )
+                {
+                    throw new IOException( file + " shrank while it was read" );
+                }
+                off += read;
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+        return content;
+    }
+}
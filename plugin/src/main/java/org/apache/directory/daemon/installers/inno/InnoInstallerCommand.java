@@ -36,10 +36,8 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.tools.ant.Project;
-import org.apache.tools.ant.taskdefs.Execute;
 import org.apache.tools.ant.taskdefs.Touch;
 
-import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.Os;
 
 
@@ -51,7 +49,7 @@ import org.codehaus.plexus.util.Os;
  */
 public class InnoInstallerCommand extends MojoCommand
 {
-    private final Properties filterProperties = new Properties( System.getProperties() );
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
     private final InnoTarget target;
     private final File innoConfigurationFile;
     private final Log log;
@@ -180,7 +178,7 @@ public class InnoInstallerCommand extends MojoCommand
                 mymojo.getLog().info( "Using procrun prunsrv.exe supplied by project: " + override.getAbsolutePath() );
                 try
                 {
-                    FileUtils.copyFile( override, executableTarget );
+                    MojoHelperUtils.copyFile( override, executableTarget );
                 }
                 catch ( IOException e )
                 {
@@ -214,7 +212,7 @@ public class InnoInstallerCommand extends MojoCommand
                 mymojo.getLog().info( "Using procrun prunmgr.exe supplied by project: " + override.getAbsolutePath() );
                 try
                 {
-                    FileUtils.copyFile( override, executableTarget );
+                    MojoHelperUtils.copyFile( override, executableTarget );
                 }
                 catch ( IOException e )
                 {
@@ -238,29 +236,9 @@ public class InnoInstallerCommand extends MojoCommand
 
         processPackagedFiles( target, target.getPackagedFiles() );
 
-        Execute task = new Execute();
-        System.out.println( "innoCompiler = " + innoCompiler );
-        System.out.println( "innoConfigurationFile = " + innoConfigurationFile );
         String[] cmd = new String[]
             { innoCompiler.getAbsolutePath(), innoConfigurationFile.getAbsolutePath() };
-        task.setCommandline( cmd );
-        task.setSpawn( true );
-        task.setWorkingDirectory( target.getLayout().getBaseDirectory() );
-        try
-        {
-            task.execute();
-        }
-        catch ( IOException e )
-        {
-            throw new MojoFailureException( "Failed while trying to execute " + innoCompiler.getAbsolutePath() + ": "
-                + e.getMessage() );
-        }
-
-        if ( task.getExitValue() != 0 )
-        {
-            throw new MojoFailureException( innoCompiler.getAbsolutePath()
-                + " execution resulted in a non-zero exit value: " + task.getExitValue() );
-        }
+        MojoHelperUtils.exec( cmd, target.getLayout().getBaseDirectory(), false, log, target.getToolTimeout() );
     }
 
 
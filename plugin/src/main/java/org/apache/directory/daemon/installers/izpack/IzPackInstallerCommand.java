@@ -22,11 +22,15 @@ package org.apache.directory.daemon.installers.izpack;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Properties;
 
 import org.apache.directory.daemon.InstallationLayout;
+import org.apache.directory.daemon.installers.BuildReport;
+import org.apache.directory.daemon.installers.ImageContents;
 import org.apache.directory.daemon.installers.MojoCommand;
 import org.apache.directory.daemon.installers.MojoHelperUtils;
+import org.apache.directory.daemon.installers.RuntimeImageBuilder;
 import org.apache.directory.daemon.installers.ServiceInstallersMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
@@ -50,8 +54,10 @@ public class IzPackInstallerCommand extends MojoCommand
     private final static String WINDSOWS_SHORTCUTS = "windows_shortcuts.xml";
     private final static String USER_INPUT = "user_input.xml";
     private final static String SHELLLINK_DLL = "ShellLink.dll";
+    /** guards the dll shared by all windows targets and the izpack compiler */
+    private final static Object IZPACK_LOCK = new Object();
 
-    private final Properties filterProperties = new Properties( System.getProperties() );
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
     private final IzPackTarget target;
     private final InstallationLayout layout;
 
@@ -108,7 +114,65 @@ public class IzPackInstallerCommand extends MojoCommand
         task.setInput( izPackInput.getPath() );
         task.setOutput( izPackOutput.getPath() );
         task.setTaskName( "izpack" );
-        task.execute();
+
+        // the compiler is not known to be safe when targets are built concurrently
+        synchronized ( IZPACK_LOCK )
+        {
+            BuildReport.Step step = BuildReport.beginStep( "izpack compiler" );
+            try
+            {
+                task.execute();
+            }
+            finally
+            {
+                step.end();
+            }
+        }
+
+        // the compiler stamps every entry with the time of the build
+        try
+        {
+            MojoHelperUtils.normalizeZip( izPackOutput, ImageContents.getDefaultTimestamp() );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoFailureException( "Failed to normalize the entry times of " + izPackOutput + ": "
+                + e.getMessage() );
+        }
+        target.addOutputFile( izPackOutput );
+    }
+
+
+    /**
+     * Lists the launchers of the bundled runtime, if any, as executables of
+     * the unix installer: izpack does not keep the modes of the image.
+     */
+    private String getRuntimeExecutables()
+    {
+        File runtime = layout.getRuntimeDirectory();
+        File[] dirs = new File[]
+            { new File( runtime, "bin" ), new File( runtime, "lib" ) };
+        StringBuffer buf = new StringBuffer();
+        for ( int ii = 0; ii < dirs.length; ii++ )
+        {
+            File[] children = dirs[ii].listFiles();
+            if ( children == null )
+            {
+                continue;
+            }
+            Arrays.sort( children );
+
+            for ( int jj = 0; jj < children.length; jj++ )
+            {
+                if ( children[jj].isFile() && RuntimeImageBuilder.isExecutable( runtime, children[jj] ) )
+                {
+                    buf.append( "<executable os=\"unix\" targetfile=\"$INSTALL_PATH/" );
+                    buf.append( runtime.getName() ).append( '/' ).append( dirs[ii].getName() ).append( '/' );
+                    buf.append( children[jj].getName() ).append( "\" stage=\"never\" keep=\"true\" />\n" );
+                }
+            }
+        }
+        return buf.toString();
     }
 
 
@@ -212,19 +276,24 @@ public class IzPackInstallerCommand extends MojoCommand
             }
 
             // copy the ShellLink creation dll into the images folder
-            try
-            {
-                MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( SHELLLINK_DLL ), shellLinkDll );
-            }
-            catch ( IOException e )
+            synchronized ( IZPACK_LOCK )
             {
-                mymojo.getLog().error(
-                    "Failed to copy izpack shellLinkDll file " + getClass().getResource( SHELLLINK_DLL )
-                        + " into position " + shellLinkDll, e );
+                try
+                {
+                    MojoHelperUtils.copyBinaryFile( getClass().getResourceAsStream( SHELLLINK_DLL ), shellLinkDll );
+                }
+                catch ( IOException e )
+                {
+                    mymojo.getLog().error(
+                        "Failed to copy izpack shellLinkDll file " + getClass().getResource( SHELLLINK_DLL )
+                            + " into position " + shellLinkDll, e );
+                }
             }
         }
         else if ( target.getOsFamily().equals( "unix" ) || target.getOsFamily().equals( "mac" ) )
         {
+            filterProperties.put( "runtime.executables", getRuntimeExecutables() );
+
             if ( target.getIzPackInstallFile() != null && target.getIzPackInstallFile().exists() )
             {
                 try
@@ -0,0 +1,434 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.pkg;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import org.apache.directory.daemon.installers.BuildReport;
+import org.apache.directory.daemon.installers.CpioWriter;
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.MojoCommand;
+import org.apache.directory.daemon.installers.MojoHelperUtils;
+import org.apache.directory.daemon.installers.PkgTarget;
+import org.apache.directory.daemon.installers.ServiceInstallersMojo;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.logging.Log;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Builds a Solaris package in datastream format without pkgmk and pkgtrans
+ * so packages can be created on any build host.  The pkginfo and pkgmap
+ * files are generated from the image, which already holds the jsvc binary
+ * for the target, and the datastream is written as pkgtrans writes it: a
+ * header block followed by a cpio archive of pkginfo and pkgmap and a cpio
+ * archive of the files, all padded to 512 byte blocks.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class PkgInstallerCommand extends MojoCommand
+{
+    private static final int BLOCK = 512;
+    /** the bundled init script which already handles SunOS */
+    private static final String INIT_SCRIPT = "/org/apache/directory/daemon/installers/rpm/server.init";
+
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
+    private final PkgTarget target;
+    private final File packageDirectory;
+    private final Log log;
+    private final String packageName;
+    private final String installBase;
+    private final long timestamp;
+
+
+    public PkgInstallerCommand( ServiceInstallersMojo mymojo, PkgTarget target )
+    {
+        super( mymojo );
+        this.target = target;
+        this.log = mymojo.getLog();
+        File imagesDir = target.getLayout().getBaseDirectory().getParentFile();
+        packageDirectory = new File( imagesDir, target.getId() + "-pkg" );
+        packageName = target.getPackageName() == null ? getDefaultPackageName() : target.getPackageName();
+        installBase = "/usr/local/" + target.getApplication().getName() + "-" + getVersion();
+        timestamp = ImageContents.getDefaultTimestamp();
+        initializeFiltering();
+    }
+
+
+    public Properties getFilterProperties()
+    {
+        return filterProperties;
+    }
+
+
+    /**
+     * Performs the following:
+     * <ol>
+     *   <li>Bail if target is not for Solaris</li>
+     *   <li>Filter and copy the init script into the image</li>
+     *   <li>Generate pkginfo and the pkgmap of the image</li>
+     *   <li>Write the datastream</li>
+     * </ol>
+     */
+    public void execute() throws MojoExecutionException, MojoFailureException
+    {
+        if ( !target.getOsName().equalsIgnoreCase( "SunOS" ) )
+        {
+            log.warn( "Solaris target " + target.getId() + " cannot be built for an non-solaris based machine!" );
+            log.warn( "The target will not be built." );
+            log.warn( "The rest of the build will not fail because of this acceptable situation." );
+            return;
+        }
+
+        copyInitScript();
+        processPackagedFiles( target, target.getPackagedFiles() );
+
+        ImageContents contents = new ImageContents( target, installBase );
+        contents.setTimestamp( timestamp );
+        List entries = contents.scan();
+
+        File pkgFile = getPackageFile();
+        FileUtils.mkdir( packageDirectory.getAbsolutePath() );
+        File pkginfo = new File( packageDirectory, "pkginfo" );
+        File pkgmap = new File( packageDirectory, "pkgmap" );
+        File prototype = new File( packageDirectory, "prototype" );
+        try
+        {
+            writePkginfo( pkginfo );
+            long blocks = writePkgmap( entries, pkginfo, pkgmap, prototype );
+            writeDatastream( entries, pkginfo, pkgmap, blocks, pkgFile );
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to write solaris package " + pkgFile, e );
+            throw new MojoFailureException( "Failed to write solaris package " + pkgFile + ": " + e.getMessage() );
+        }
+
+        target.addOutputFile( pkgFile );
+        log.info( "Wrote " + pkgFile + " with " + entries.size() + " entries" );
+    }
+
+
+    private void writePkginfo( File pkginfo ) throws IOException
+    {
+        SimpleDateFormat format = new SimpleDateFormat( "yyyyMMddHHmmss" );
+        format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+
+        StringBuffer buf = new StringBuffer();
+        buf.append( "PKG=" ).append( packageName ).append( "\n" );
+        buf.append( "NAME=" ).append( filterProperties.getProperty( "app.display.name" ) ).append( " Server\n" );
+        buf.append( "ARCH=" ).append( target.getOsArch() ).append( "\n" );
+        buf.append( "VERSION=" ).append( getVersion() ).append( "\n" );
+        buf.append( "CATEGORY=" ).append( target.getCategory() ).append( "\n" );
+        buf.append( "VENDOR=" ).append( target.getCompanyName() ).append( "\n" );
+        if ( target.getApplication().getEmail() != null )
+        {
+            buf.append( "EMAIL=" ).append( target.getApplication().getEmail() ).append( "\n" );
+        }
+        if ( target.getApplication().getDescription() != null )
+        {
+            // pkginfo values are single lines
+            buf.append( "DESC=" ).append( target.getApplication().getDescription().trim().replace( '\n', ' ' ) );
+            buf.append( "\n" );
+        }
+        buf.append( "BASEDIR=/\n" );
+        buf.append( "CLASSES=none\n" );
+        buf.append( "PSTAMP=" ).append( format.format( new Date( timestamp ) ) ).append( "\n" );
+        write( buf.toString(), pkginfo );
+    }
+
+
+    /**
+     * Writes the pkgmap: the image entries with their attributes, sizes and
+     * checksums, the logs as volatile files, the run control links of the init script and the pkginfo
+     * file, sorted by path as pkgmk sorts them.  The prototype pkgmk would
+     * have been given is written alongside so the package can be rebuilt
+     * with the native tools.
+     *
+     * @return the size of the installed package in blocks
+     */
+    private long writePkgmap( List entries, File pkginfo, File pkgmap, File prototype ) throws IOException
+    {
+        String app = target.getApplication().getName();
+        List lines = new ArrayList();
+        long blocks = 0;
+
+        for ( int ii = 0; ii < entries.size(); ii++ )
+        {
+            ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+            String mode = "0" + Integer.toOctalString( entry.getMode() & 07777 );
+            if ( entry.isDirectory() )
+            {
+                lines.add( new String[]
+                    { entry.getPath(), "d none " + entry.getPath() + " " + mode + " root bin", "" } );
+                blocks++;
+                continue;
+            }
+            if ( entry.isLink() )
+            {
+                lines.add( new String[]
+                    { entry.getPath(), "s none " + entry.getPath() + "=" + entry.getLinkTarget(), "" } );
+                continue;
+            }
+            if ( entry.isGhost() )
+            {
+                // volatile so pkgchk accepts them growing, and empty as the datastream lacks them
+                lines.add( new String[]
+                    { entry.getPath(), "v none " + entry.getPath() + " " + mode + " root bin",
+                        " 0 0 " + entry.getLastModified() / 1000 } );
+                continue;
+            }
+
+            lines.add( new String[]
+                { entry.getPath(), "f none " + entry.getPath() + " " + mode + " root bin",
+                    " " + entry.getSize() + " " + checksum( entry.getSource() ) + " " + entry.getLastModified() / 1000 } );
+            blocks += ( entry.getSize() + BLOCK - 1 ) / BLOCK;
+        }
+
+        // start in run level 3 and stop when leaving it, as the chkconfig line of the script says
+        String[][] links = new String[][]
+            { { "/etc/rc3.d/S91" + app, "../init.d/" + app }, { "/etc/rc0.d/K35" + app, "../init.d/" + app },
+                { "/etc/rc1.d/K35" + app, "../init.d/" + app }, { "/etc/rcS.d/K35" + app, "../init.d/" + app } };
+        for ( int ii = 0; ii < links.length; ii++ )
+        {
+            lines.add( new String[]
+                { links[ii][0], "s none " + links[ii][0] + "=" + links[ii][1], "" } );
+        }
+
+        Collections.sort( lines, new java.util.Comparator()
+        {
+            public int compare( Object o1, Object o2 )
+            {
+                return ( ( String[] ) o1 )[0].compareTo( ( ( String[] ) o2 )[0] );
+            }
+        } );
+
+        StringBuffer map = new StringBuffer();
+        StringBuffer proto = new StringBuffer();
+        map.append( ": 1 " ).append( blocks ).append( "\n" );
+        proto.append( "i pkginfo\n" );
+        for ( int ii = 0; ii < lines.size(); ii++ )
+        {
+            String[] line = ( String[] ) lines.get( ii );
+            map.append( "1 " ).append( line[1] ).append( line[2] ).append( "\n" );
+            proto.append( line[1] ).append( "\n" );
+        }
+        map.append( "1 i pkginfo " ).append( pkginfo.length() ).append( " " ).append( checksum( pkginfo ) );
+        map.append( " " ).append( timestamp / 1000 ).append( "\n" );
+        write( map.toString(), pkgmap );
+        write( proto.toString(), prototype );
+        return blocks;
+    }
+
+
+    /**
+     * Writes the datastream: the header naming the package, a cpio archive
+     * with pkginfo and pkgmap and a cpio archive with the files of the only
+     * part but the links and logs.  Files installed at absolute paths go
+     * below root.
+     */
+    private void writeDatastream( List entries, File pkginfo, File pkgmap, long blocks, File pkgFile )
+        throws IOException
+    {
+        pkgFile.delete();
+        OutputStream out = new BufferedOutputStream( new FileOutputStream( pkgFile ), 65536 );
+        try
+        {
+            StringBuffer header = new StringBuffer();
+            header.append( "# PaCkAgE DaTaStReAm\n" );
+            header.append( packageName ).append( " 1 " ).append( blocks ).append( "\n" );
+            header.append( "# end of header\n" );
+            byte[] headerBytes = header.toString().getBytes( "US-ASCII" );
+            out.write( headerBytes );
+            out.write( new byte[( BLOCK - headerBytes.length % BLOCK ) % BLOCK] );
+
+            CpioWriter cpio = new CpioWriter( out, CpioWriter.ODC_MAGIC );
+            cpio.writeEntry( packageName + "/pkginfo", ImageContents.FILE_TYPE | 0644, timestamp, 1, pkginfo, null );
+            cpio.writeEntry( packageName + "/pkgmap", ImageContents.FILE_TYPE | 0644, timestamp, 2, pkgmap, null );
+            cpio.finish( BLOCK );
+
+            cpio = new CpioWriter( out, CpioWriter.ODC_MAGIC );
+            for ( int ii = 0; ii < entries.size(); ii++ )
+            {
+                ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+                if ( entry.isLink() || entry.isGhost() )
+                {
+                    // pkgadd makes links and empty volatile files from the pkgmap alone
+                    continue;
+                }
+                cpio.writeEntry( packageName + "/root" + entry.getPath(), entry.getMode(), entry.getLastModified(),
+                    ii + 1, entry.getSource(), null );
+            }
+            cpio.finish( BLOCK );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+
+    /**
+     * Computes the checksum pkgmap uses: the byte sum folded to 16 bits as
+     * the System V sum command computes it.
+     */
+    static long checksum( File file ) throws IOException
+    {
+        long sum = 0;
+        if ( file != null )
+        {
+            BuildReport.read( file.length() );
+            InputStream in = new FileInputStream( file );
+            try
+            {
+                byte[] buf = new byte[65536];
+                int read;
+                while ( ( read = in.read( buf ) ) != -1 )
+                {
+                    for ( int ii = 0; ii < read; ii++ )
+                    {
+                        sum += buf[ii] & 0xff;
+                    }
+                }
+            }
+            finally
+            {
+                IOUtil.close( in );
+            }
+        }
+
+        sum &= 0xffffffffL;
+        long folded = ( sum & 0xffff ) + ( sum >>> 16 );
+        return ( folded & 0xffff ) + ( folded >>> 16 );
+    }
+
+
+    private void copyInitScript()
+    {
+        File initScript = target.getLayout().getInitScript();
+        try
+        {
+            if ( target.getScriptFile() != null && target.getScriptFile().exists() )
+            {
+                log.info( "Using project supplied init script file: " + target.getScriptFile() );
+                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, target.getScriptFile(), initScript, true );
+            }
+            else
+            {
+                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, getClass().getResourceAsStream(
+                    INIT_SCRIPT ), initScript, true );
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( "Failed to copy init script into position " + initScript, e );
+        }
+    }
+
+
+    private void initializeFiltering()
+    {
+        String name = target.getApplication().getName();
+        filterProperties.putAll( mymojo.getProject().getProperties() );
+        filterProperties.put( "app", name );
+        filterProperties.put( "app.caps", name.toUpperCase() );
+        filterProperties.put( "app.server.class", mymojo.getApplicationClass() );
+        filterProperties.put( "app.display.name", Character.toUpperCase( name.charAt( 0 ) ) + name.substring( 1 ) );
+        filterProperties.put( "app.version", getVersion() );
+        filterProperties.put( "app.install.base", installBase );
+        filterProperties.put( "server.init", target.getLayout().getInitScript().getName() );
+    }
+
+
+    /**
+     * Gets APCH followed by the characters of the application name allowed
+     * in package abbreviations, limited to the 32 characters pkgadd accepts.
+     */
+    private String getDefaultPackageName()
+    {
+        StringBuffer buf = new StringBuffer( "APCH" );
+        String name = target.getApplication().getName();
+        for ( int ii = 0; ii < name.length() && buf.length() < 32; ii++ )
+        {
+            char ch = name.charAt( ii );
+            if ( Character.isLetterOrDigit( ch ) || ch == '+' || ch == '-' )
+            {
+                buf.append( ch );
+            }
+        }
+        return buf.toString();
+    }
+
+
+    private String getVersion()
+    {
+        String version = target.getApplication().getVersion();
+        return version == null ? "1.0" : version;
+    }
+
+
+    private File getPackageFile()
+    {
+        String finalName = target.getFinalName();
+        if ( finalName == null )
+        {
+            finalName = target.getApplication().getName() + "-" + getVersion() + "-solaris-" + target.getOsArch();
+        }
+        if ( !finalName.endsWith( ".pkg" ) )
+        {
+            finalName = finalName + ".pkg";
+        }
+        return new File( mymojo.getOutputDirectory(), finalName );
+    }
+
+
+    private static void write( String content, File file ) throws IOException
+    {
+        file.delete();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.rpm;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * An rpm header structure: an index of tagged entries followed by their
+ * data.  Both the signature and the main header of a package use it.  The
+ * entries are written sorted by tag behind a region entry which marks them
+ * as immutable, as rpm itself writes them.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+class RpmHeader
+{
+    static final int INT16 = 3;
+    static final int INT32 = 4;
+    static final int STRING = 6;
+    static final int BIN = 7;
+    static final int STRING_ARRAY = 8;
+    static final int I18NSTRING = 9;
+
+    private static final byte[] MAGIC = new byte[]
+        { ( byte ) 0x8e, ( byte ) 0xad, ( byte ) 0xe8, 0x01, 0, 0, 0, 0 };
+
+    /** the entries by tag: each an Object[] of the type and the value */
+    private final Map entries = new TreeMap();
+
+
+    void addString( int tag, String value )
+    {
+        entries.put( new Integer( tag ), new Object[]
+            { new Integer( STRING ), new String[]
+                { value == null ? "" : value } } );
+    }
+
+
+    void addI18nString( int tag, String value )
+    {
+        entries.put( new Integer( tag ), new Object[]
+            { new Integer( I18NSTRING ), new String[]
+                { value == null ? "" : value } } );
+    }
+
+
+    void addStringArray( int tag, String[] values )
+    {
+        entries.put( new Integer( tag ), new Object[]
+            { new Integer( STRING_ARRAY ), values } );
+    }
+
+
+    void addInt32( int tag, int[] values )
+    {
+        entries.put( new Integer( tag ), new Object[]
+            { new Integer( INT32 ), values } );
+    }
+
+
+    void addInt16( int tag, short[] values )
+    {
+        entries.put( new Integer( tag ), new Object[]
+            { new Integer( INT16 ), values } );
+    }
+
+
+    void addBinary( int tag, byte[] value )
+    {
+        entries.put( new Integer( tag ), new Object[]
+            { new Integer( BIN ), value } );
+    }
+
+
+    /**
+     * Encodes the header.
+     *
+     * @param regionTag the tag of the region entry: 62 for signatures and 63 for main headers
+     */
+    byte[] toByteArray( int regionTag ) throws IOException
+    {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream( indexBytes );
+        ByteArrayOutputStream storeBytes = new ByteArrayOutputStream();
+        DataOutputStream store = new DataOutputStream( storeBytes );
+
+        for ( Iterator ii = entries.entrySet().iterator(); ii.hasNext(); )
+        {
+            Map.Entry entry = ( Map.Entry ) ii.next();
+            int tag = ( ( Integer ) entry.getKey() ).intValue();
+            Object[] typed = ( Object[] ) entry.getValue();
+            int type = ( ( Integer ) typed[0] ).intValue();
+            Object value = typed[1];
+
+            int count;
+            switch ( type )
+            {
+                case INT16:
+                    align( store, 2 );
+                    index.writeInt( tag );
+                    index.writeInt( type );
+                    index.writeInt( store.size() );
+                    short[] shorts = ( short[] ) value;
+                    for ( int jj = 0; jj < shorts.length; jj++ )
+                    {
+                        store.writeShort( shorts[jj] );
+                    }
+                    count = shorts.length;
+                    break;
+                case INT32:
+                    align( store, 4 );
+                    index.writeInt( tag );
+                    index.writeInt( type );
+                    index.writeInt( store.size() );
+                    int[] ints = ( int[] ) value;
+                    for ( int jj = 0; jj < ints.length; jj++ )
+                    {
+                        store.writeInt( ints[jj] );
+                    }
+                    count = ints.length;
+                    break;
+                case BIN:
+                    index.writeInt( tag );
+                    index.writeInt( type );
+                    index.writeInt( store.size() );
+                    byte[] bytes = ( byte[] ) value;
+                    store.write( bytes );
+                    count = bytes.length;
+                    break;
+                default:
+                    index.writeInt( tag );
+                    index.writeInt( type );
+                    index.writeInt( store.size() );
+                    String[] strings = ( String[] ) value;
+                    for ( int jj = 0; jj < strings.length; jj++ )
+                    {
+                        store.write( strings[jj].getBytes( "UTF-8" ) );
+                        store.write( 0 );
+                    }
+                    count = strings.length;
+            }
+            index.writeInt( count );
+        }
+
+        // the region trailer closes the data and points back over the whole index
+        int indexCount = entries.size() + 1;
+        int trailerOffset = store.size();
+        store.writeInt( regionTag );
+        store.writeInt( BIN );
+        store.writeInt( -indexCount * 16 );
+        store.writeInt( 16 );
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream( headerBytes );
+        header.write( MAGIC );
+        header.writeInt( indexCount );
+        header.writeInt( store.size() );
+        header.writeInt( regionTag );
+        header.writeInt( BIN );
+        header.writeInt( trailerOffset );
+        header.writeInt( 16 );
+        header.write( indexBytes.toByteArray() );
+        header.write( storeBytes.toByteArray() );
+        header.flush();
+        return headerBytes.toByteArray();
+    }
+
+
+    private static void align( DataOutputStream store, int boundary ) throws IOException
+    {
+        while ( store.size() % boundary != 0 )
+        {
+            store.write( 0 );
+        }
+    }
+}
@@ -24,12 +24,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
+import org.apache.directory.daemon.InstallationLayout;
+import org.apache.directory.daemon.ReleaseSwitch;
+import org.apache.directory.daemon.installers.ImageContents;
 import org.apache.directory.daemon.installers.MojoCommand;
 import org.apache.directory.daemon.installers.MojoHelperUtils;
+import org.apache.directory.daemon.installers.RuntimeImageBuilder;
 import org.apache.directory.daemon.installers.ServiceInstallersMojo;
 import org.apache.directory.daemon.installers.Target;
 
@@ -40,7 +43,6 @@ import org.apache.maven.plugin.logging.Log;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.taskdefs.Touch;
 
-import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.Os;
 
 
@@ -52,7 +54,10 @@ import org.codehaus.plexus.util.Os;
  */
 public class RpmInstallerCommand extends MojoCommand
 {
-    private final Properties filterProperties = new Properties( System.getProperties() );
+    /** guards the /usr/src/redhat tree which all rpm targets build in */
+    private final static Object RPMBUILD_LOCK = new Object();
+
+    private final Properties filterProperties = new Properties( mymojo.getSystemProperties() );
     private final RpmTarget target;
     private final File rpmConfigurationFile;
     private final Log log;
@@ -101,6 +106,14 @@ public class RpmInstallerCommand extends MojoCommand
             return;
         }
 
+        if ( RpmTarget.MODE_JAVA.equals( target.getMode() ) )
+        {
+            copyInitScript();
+            processPackagedFiles( target, target.getPackagedFiles() );
+            writePackage();
+            return;
+        }
+
         if ( !Os.isName( "linux" ) )
         {
             log.warn( "os name = " + System.getProperty( "os.name" ) );
@@ -135,41 +148,8 @@ public class RpmInstallerCommand extends MojoCommand
         // -------------------------------------------------------------------
 
         String version = target.getApplication().getVersion().replace( '-', '_' );
-        
-        if ( target.getScriptFile() != null && target.getScriptFile().exists() )
-        {
-            try
-            {
-                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, target.getScriptFile(), 
-                    target.getLayout().getInitScript(), true );
-            }
-            catch ( IOException e )
-            {
-                mymojo.getLog().error( "Failed to copy project supplied init script " + target.getScriptFile()
-                    + " into position " + target.getLayout().getInitScript(), e );
-            }
+        copyInitScript();
 
-            if ( mymojo.getLog().isInfoEnabled() )
-            {
-                mymojo.getLog().info( "Using project supplied init script file: "
-                        + target.getScriptFile() );
-            }
-        }
-        else
-        {
-            try
-            {
-                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, getClass().getResourceAsStream(
-                    "server.init" ), target.getLayout().getInitScript(), true );
-            }
-            catch ( IOException e )
-            {
-                mymojo.getLog().error(
-                    "Failed to copy init script " + getClass().getResource( "server.init" ) + " into position "
-                        + target.getLayout().getInitScript(), e );
-            }
-        }
-        
         // check first to see if the default spec file is present in src/main/installers
         File projectRpmFile = new File( mymojo.getSourceDirectory(), "spec.template" );
         if ( target.getRpmSpecificationFile() != null && target.getRpmSpecificationFile().exists() )
@@ -214,38 +194,134 @@ public class RpmInstallerCommand extends MojoCommand
 
         processPackagedFiles( target, target.getPackagedFiles() );
 
-        buildSourceTarball();
-        String[] cmd = new String[]
-            { rpmBuilder.getAbsolutePath(), "-ba", rpmConfigurationFile.getAbsolutePath() };
-        MojoHelperUtils.exec( cmd, target.getLayout().getBaseDirectory().getParentFile(), target.isDoSudo() );
-        String rpmName = target.getApplication().getName() + "-" + version + "-0.i386.rpm";
-        File srcFile = new File( "/usr/src/redhat/RPMS/i386", rpmName );
-        File dstFile = null;
+        synchronized ( RPMBUILD_LOCK )
+        {
+            buildSourceTarball();
+            String[] cmd = new String[]
+                { rpmBuilder.getAbsolutePath(), "-ba", rpmConfigurationFile.getAbsolutePath() };
+            MojoHelperUtils.exec( cmd, target.getLayout().getBaseDirectory().getParentFile(), target.isDoSudo(), log,
+                target.getToolTimeout() );
+            String rpmName = target.getApplication().getName() + "-" + version + "-0.i386.rpm";
+            File srcFile = new File( "/usr/src/redhat/RPMS/i386", rpmName );
+            File dstFile = getPackageFile( rpmName );
 
-        if ( target.getFinalName() == null )
+            try
+            {
+                MojoHelperUtils.copyFile( srcFile, dstFile );
+                target.addOutputFile( dstFile );
+            }
+            catch ( IOException e )
+            {
+                // if this happens we don't stop since RPM could be somewhere else
+                e.printStackTrace();
+            }
+        }
+    }
+
+
+    private void copyInitScript()
+    {
+        if ( target.getScriptFile() != null && target.getScriptFile().exists() )
         {
-            dstFile = new File( mymojo.getOutputDirectory(), rpmName );
+            try
+            {
+                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, target.getScriptFile(), 
+                    target.getLayout().getInitScript(), true );
+            }
+            catch ( IOException e )
+            {
+                mymojo.getLog().error( "Failed to copy project supplied init script " + target.getScriptFile()
+                    + " into position " + target.getLayout().getInitScript(), e );
+            }
+
+            if ( mymojo.getLog().isInfoEnabled() )
+            {
+                mymojo.getLog().info( "Using project supplied init script file: "
+                        + target.getScriptFile() );
+            }
         }
         else
         {
-            String finalName = target.getFinalName();
-            if ( !finalName.endsWith( ".rpm" ) )
+            try
             {
-                finalName = finalName + ".rpm";
+                MojoHelperUtils.copyAsciiFile( mymojo, filterProperties, getClass().getResourceAsStream(
+                    "server.init" ), target.getLayout().getInitScript(), true );
+            }
+            catch ( IOException e )
+            {
+                mymojo.getLog().error(
+                    "Failed to copy init script " + getClass().getResource( "server.init" ) + " into position "
+                        + target.getLayout().getInitScript(), e );
             }
+        }
+    }
 
-            dstFile = new File( mymojo.getOutputDirectory(), finalName );
+
+    /**
+     * Gets the file the package goes to: the final name of the target if set
+     * or else the name rpm gives to the package.
+     */
+    private File getPackageFile( String rpmName )
+    {
+        if ( target.getFinalName() == null )
+        {
+            return new File( mymojo.getOutputDirectory(), rpmName );
         }
 
+        String finalName = target.getFinalName();
+        if ( !finalName.endsWith( ".rpm" ) )
+        {
+            finalName = finalName + ".rpm";
+        }
+        return new File( mymojo.getOutputDirectory(), finalName );
+    }
+
+
+    /**
+     * Writes the package straight from the image, installing it where the
+     * bundled spec file would.
+     */
+    private void writePackage() throws MojoFailureException
+    {
+        String name = target.getApplication().getName();
+        String version = filterProperties.getProperty( "app.version" );
+        String release = filterProperties.getProperty( "app.release" );
+        String arch = target.getOsArch();
+        File rpmFile = getPackageFile( name + "-" + version + "-" + release + "." + arch + ".rpm" );
+
+        long timestamp = ImageContents.getDefaultTimestamp();
+        ImageContents contents = new ImageContents( target, getInstallBase( version ) );
+        contents.setTimestamp( timestamp );
+        if ( target.isSideBySide() )
+        {
+            contents.setVarBase( getInstallRoot() + "/var" );
+            contents.setInstallInitScript( false );
+        }
+        List entries = contents.scan();
+
+        RpmWriter writer = new RpmWriter( name, version, release, arch );
+        writer.setBuildTime( timestamp );
+        writer.setSummary( filterProperties.getProperty( "app.display.name" ) + " Server" );
+        writer.setDescription( target.getApplication().getDescription() );
+        writer.setLicense( target.getApplication().getLicenseType() );
+        writer.setUrl( target.getApplication().getUrl() );
+        if ( target.isSideBySide() )
+        {
+            writer.setPostInstall( getSwitchScript( version ) );
+            writer.setPostUninstall( getSwitchBackScript() );
+        }
         try
         {
-            FileUtils.copyFile( srcFile, dstFile );
+            writer.write( entries, rpmFile );
         }
         catch ( IOException e )
         {
-            // if this happens we don't stop since RPM could be somewhere else
-            e.printStackTrace();
+            log.error( "Failed to write rpm package " + rpmFile, e );
+            throw new MojoFailureException( "Failed to write rpm package " + rpmFile + ": " + e.getMessage() );
         }
+
+        target.addOutputFile( rpmFile );
+        log.info( "Wrote " + rpmFile + " with " + entries.size() + " entries" );
     }
 
 
@@ -319,47 +395,67 @@ public class RpmInstallerCommand extends MojoCommand
         filterProperties.put( "verify.append.libs", getVerifyLibraryJars() );
         filterProperties.put( "installer.output.directory", target.getLayout().getBaseDirectory().getParent() );
         filterProperties.put( "server.init", target.getLayout().getInitScript().getName() );
-        filterProperties.put( "app.install.base", "/usr/local/" + target.getApplication().getName() + "-" + version );
-
-        if ( target.getDocsDirectory() != null )
-        {
-            File docRoot = new File( target.getLayout().getBaseDirectory(), target.getDocsTargetPath() );
-            ArrayList docList = new ArrayList( 200 );
-            listFiles( docList, docRoot );
-            filterProperties.put( "mk.docs.dirs", getMkDocsDirs( docList, target ) );
-            filterProperties.put( "install.docs", getInstallDocs( docList, target ) );
-            filterProperties.put( "verify.docs", getVerifyDocs( docList, target ) );
+        String installBase = getInstallBase( "%{version}" );
+        String initScript = target.getLayout().getInitScript().getPath();
+        filterProperties.put( "install.base", installBase );
+        if ( target.isSideBySide() )
+        {
+            // the init script starts the installation which resolves the current release
+            filterProperties.put( "app.install.base", getInstallRoot() );
+            filterProperties.put( "install.var", getInstallRoot() + "/var" );
+            filterProperties.put( "install.init.script", "install -m 755 " + initScript + " $RPM_BUILD_ROOT"
+                + installBase + "/bin/" + target.getLayout().getInitScript().getName() );
+            filterProperties.put( "verify.init.script", installBase + "/bin/"
+                + target.getLayout().getInitScript().getName() );
+            filterProperties.put( "post.install", "%post\n" + getSwitchScript( "%{version}" ) );
+            filterProperties.put( "post.uninstall", "%postun\n" + getSwitchBackScript() );
         }
         else
         {
-            filterProperties.put( "mk.docs.dirs", "" );
-            filterProperties.put( "install.docs", "" );
-            filterProperties.put( "verify.docs", "" );
+            filterProperties.put( "app.install.base", getInstallBase( version ) );
+            filterProperties.put( "install.var", installBase + "/var" );
+            filterProperties.put( "install.init.script", "install -m 744 " + initScript
+                + " $RPM_BUILD_ROOT/etc/init.d/" + target.getApplication().getName() );
+            filterProperties.put( "verify.init.script", "/etc/init.d/" + target.getApplication().getName() );
+            filterProperties.put( "post.install", "" );
+            filterProperties.put( "post.uninstall", "" );
         }
+        SpecTree docs = null;
+        if ( target.getDocsDirectory() != null )
+        {
+            docs = new SpecTree( target.getLayout().getBaseDirectory(), target.getDocsTargetPath(), installBase );
+        }
+        putTree( docs, "docs" );
 
+        SpecTree sources = null;
         if ( target.getSourcesDirectory() != null )
         {
-            File srcRoot = new File( target.getLayout().getBaseDirectory(), target.getSourcesTargetPath() );
-            ArrayList srcList = new ArrayList( 200 );
-            listFiles( srcList, srcRoot );
-            filterProperties.put( "mk.sources.dirs", getMkSourcesDirs( srcList, target ) );
-            filterProperties.put( "install.sources", getInstallSources( srcList, target ) );
-            filterProperties.put( "verify.sources", getVerifySources( srcList, target ) );
+            sources = new SpecTree( target.getLayout().getBaseDirectory(), target.getSourcesTargetPath(),
+                installBase );
         }
-        else
+        putTree( sources, "sources" );
+
+        SpecTree runtime = null;
+        if ( target.isBundleRuntime() )
         {
-            filterProperties.put( "mk.sources.dirs", "" );
-            filterProperties.put( "install.sources", "" );
-            filterProperties.put( "verify.sources", "" );
+            runtime = new SpecTree( target.getLayout().getBaseDirectory(), target.getLayout().getRuntimeDirectory()
+                .getName(), installBase );
+            runtime.setKeepModes( true );
+            String jvmAlias = RuntimeImageBuilder.getJvmAlias( target );
+            File jvmDirectory = new File( target.getLayout().getRuntimeDirectory(), RuntimeImageBuilder.JVM_DIRECTORY );
+            if ( jvmAlias != null && jvmDirectory.isDirectory() )
+            {
+                runtime.setLink( jvmAlias, RuntimeImageBuilder.JVM_ALIAS_TARGET );
+            }
         }
+        putTree( runtime, "runtime" );
 
         File noticeFile = new File( target.getLayout().getBaseDirectory(), "NOTICE.txt" );
         if ( noticeFile.exists() )
         {
             filterProperties.put( "install.notice.file", "install -m 644 " + target.getLayout().getBaseDirectory()
-                + "/NOTICE.txt $RPM_BUILD_ROOT/usr/local/" + target.getApplication().getName() + "-%{version}" );
-            filterProperties.put( "verify.notice.file", "/usr/local/" + target.getApplication().getName()
-                + "-%{version}/NOTICE.txt" );
+                + "/NOTICE.txt $RPM_BUILD_ROOT" + installBase );
+            filterProperties.put( "verify.notice.file", installBase + "/NOTICE.txt" );
         }
         else
         {
@@ -369,219 +465,153 @@ public class RpmInstallerCommand extends MojoCommand
     }
 
 
-    static String getMkSourcesDirs( List srcList, Target target )
-    {
-        StringBuffer buf = new StringBuffer();
-        File srcBase = target.getLayout().getBaseDirectory();
-        srcBase = new File( srcBase, target.getSourcesTargetPath() );
-        // +1 for '/' char 
-        int basePathSize = target.getLayout().getBaseDirectory().getAbsolutePath().length() + 1;
-
-        for ( int ii = 0; ii < srcList.size(); ii++ )
-        {
-            File file = ( File ) srcList.get( ii );
-            if ( file.isFile() )
-            {
-                continue;
-            }
-
-            String path = file.getAbsolutePath().substring( basePathSize );
-            buf.append( "mkdir -p $RPM_BUILD_ROOT/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/" );
-            buf.append( path );
-            buf.append( "\n" );
-        }
-        return buf.toString();
-    }
-
-
-    static String getMkDocsDirs( List docList, Target target )
-    {
-        StringBuffer buf = new StringBuffer();
-        File docsBase = target.getLayout().getBaseDirectory();
-        docsBase = new File( docsBase, target.getDocsTargetPath() );
-        // +1 for '/' char 
-        int basePathSize = target.getLayout().getBaseDirectory().getAbsolutePath().length() + 1;
-
-        for ( int ii = 0; ii < docList.size(); ii++ )
-        {
-            File file = ( File ) docList.get( ii );
-            if ( file.isFile() )
-            {
-                continue;
-            }
-
-            String path = file.getAbsolutePath().substring( basePathSize );
-            buf.append( "mkdir -p $RPM_BUILD_ROOT/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/" );
-            buf.append( path );
-            buf.append( "\n" );
-        }
-        return buf.toString();
-    }
-
-
-    static void listFiles( List fileList, File dir )
+    /**
+     * Puts the spec entries of a tree into the filter properties.  The 
+     * tree is installed with a single copy and listed with a directory and 
+     * a glob entry so the size of the spec does not depend on its content.
+     */
+    private void putTree( SpecTree tree, String name )
     {
-        if ( dir.isFile() )
+        if ( tree == null )
         {
+            filterProperties.put( "mk." + name + ".dirs", "" );
+            filterProperties.put( "install." + name, "" );
+            filterProperties.put( "verify." + name, "" );
             return;
         }
 
-        fileList.add( dir );
-        File[] files = dir.listFiles();
-        for ( int ii = 0; ii < files.length; ii++ )
+        tree.scan();
+        if ( log.isDebugEnabled() )
         {
-            if ( files[ii].isFile() )
-            {
-                fileList.add( files[ii] );
-            }
-
-            listFiles( fileList, files[ii] );
+            log.debug( "Packaging " + name + " " + tree );
         }
+
+        filterProperties.put( "mk." + name + ".dirs", tree.getMkDirs() );
+        filterProperties.put( "install." + name, tree.getInstall() );
+        filterProperties.put( "verify." + name, tree.getFiles() );
     }
 
 
-    static String getInstallDocs( List docList, Target target )
+    private Object getVerifyLibraryJars()
     {
         StringBuffer buf = new StringBuffer();
-        File docsBase = target.getLayout().getBaseDirectory();
-        docsBase = new File( docsBase, target.getDocsTargetPath() );
-        // +1 for '/' char 
-        int basePathSize = target.getLayout().getBaseDirectory().getAbsolutePath().length() + 1;
-
-        for ( int ii = 0; ii < docList.size(); ii++ )
+        List artifacts = target.getLibArtifacts();
+        for ( int ii = 0; ii < artifacts.size(); ii++ )
         {
-            File file = ( File ) docList.get( ii );
-            if ( file.isDirectory() )
-            {
-                continue;
-            }
-
-            String path = file.getAbsolutePath().substring( basePathSize );
-            buf.append( "install -m 644 " );
-            buf.append( target.getLayout().getBaseDirectory() ).append( "/" );
-            buf.append( path );
-            buf.append( " $RPM_BUILD_ROOT/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/" );
-            buf.append( path );
+            File artifact = ( ( Artifact ) artifacts.get( ii ) ).getFile();
+            buf.append( getInstallBase( "%{version}" ) );
+            buf.append( "/lib/" );
+            buf.append( artifact.getName() );
             buf.append( "\n" );
         }
+
         return buf.toString();
     }
 
 
-    static String getVerifyDocs( List docList, Target target )
+    private String getInstallLibraryJars() throws MojoFailureException
     {
         StringBuffer buf = new StringBuffer();
-        File docBase = target.getLayout().getBaseDirectory();
-        docBase = new File( docBase, target.getDocsTargetPath() );
-        // +1 for '/' char 
-        int basePathSize = target.getLayout().getBaseDirectory().getAbsolutePath().length() + 1;
-
-        for ( int ii = 0; ii < docList.size(); ii++ )
-        {
-            File file = ( File ) docList.get( ii );
-            String path = file.getAbsolutePath().substring( basePathSize );
-            buf.append( "/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/" );
-            buf.append( path );
+        List artifacts = target.getLibArtifacts();
+        for ( int ii = 0; ii < artifacts.size(); ii++ )
+        {
+            buf.append( "install -m 644 " );
+            File artifact = ( ( Artifact ) artifacts.get( ii ) ).getFile();
+            buf.append( artifact.getAbsoluteFile() );
+            buf.append( " $RPM_BUILD_ROOT" );
+            buf.append( getInstallBase( "%{version}" ) );
+            buf.append( "/lib/" );
+            buf.append( artifact.getName() );
             buf.append( "\n" );
         }
+
         return buf.toString();
     }
 
 
-    static String getInstallSources( List sourceList, Target target )
+    /**
+     * Gets the directory a release is installed into: its own directory 
+     * below /usr/local or, side by side, a directory below the releases of
+     * the installation.
+     */
+    private String getInstallBase( String version )
     {
-        StringBuffer buf = new StringBuffer();
-        File srcBase = target.getLayout().getBaseDirectory();
-        srcBase = new File( srcBase, target.getSourcesTargetPath() );
-        // +1 for '/' char 
-        int basePathSize = target.getLayout().getBaseDirectory().getAbsolutePath().length() + 1;
-
-        for ( int ii = 0; ii < sourceList.size(); ii++ )
+        if ( target.isSideBySide() )
         {
-            File file = ( File ) sourceList.get( ii );
-            if ( file.isDirectory() )
-            {
-                continue;
-            }
-
-            String path = file.getAbsolutePath().substring( basePathSize );
-            buf.append( "install -m 644 " );
-            buf.append( target.getLayout().getBaseDirectory() ).append( "/" );
-            buf.append( path );
-            buf.append( " $RPM_BUILD_ROOT/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/" );
-            buf.append( path );
-            buf.append( "\n" );
+            return getInstallRoot() + "/" + InstallationLayout.RELEASES_DIRECTORY + "/" + version;
         }
-        return buf.toString();
+        return "/usr/local/" + target.getApplication().getName() + "-" + version;
     }
 
 
-    static String getVerifySources( List sourceList, Target target )
+    private String getInstallRoot()
     {
-        StringBuffer buf = new StringBuffer();
-        File srcBase = target.getLayout().getBaseDirectory();
-        srcBase = new File( srcBase, target.getSourcesTargetPath() );
-        // +1 for '/' char 
-        int basePathSize = target.getLayout().getBaseDirectory().getAbsolutePath().length() + 1;
-
-        for ( int ii = 0; ii < sourceList.size(); ii++ )
-        {
-            File file = ( File ) sourceList.get( ii );
-            String path = file.getAbsolutePath().substring( basePathSize );
-            buf.append( "/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/" );
-            buf.append( path );
-            buf.append( "\n" );
-        }
-        return buf.toString();
+        return "/usr/local/" + target.getApplication().getName();
     }
 
 
-    private Object getVerifyLibraryJars()
+    /**
+     * Gets the script switching the current link of a side by side
+     * installation to the release the package installed, the way the
+     * {@link ReleaseSwitch} of the bootstrapper does it: the links are made
+     * next to the old ones and renamed over them.  The init script is linked
+     * through the current link so it switches along with the release.
+     */
+    private String getSwitchScript( String version )
     {
+        String release = InstallationLayout.RELEASES_DIRECTORY + "/" + version;
+        String current = InstallationLayout.CURRENT_LINK;
+        String previous = ReleaseSwitch.PREVIOUS_LINK;
+        String suffix = ReleaseSwitch.NEW_SUFFIX;
         StringBuffer buf = new StringBuffer();
-        List artifacts = target.getLibArtifacts();
-        for ( int ii = 0; ii < artifacts.size(); ii++ )
-        {
-            File artifact = ( ( Artifact ) artifacts.get( ii ) ).getFile();
-            buf.append( "/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/lib/" );
-            buf.append( artifact.getName() );
-            buf.append( "\n" );
-        }
-
+        buf.append( "cd " ).append( getInstallRoot() ).append( " || exit 1\n" );
+        buf.append( "if [ -e " ).append( current ).append( " ] && [ \"`readlink " ).append( current );
+        buf.append( "`\" != " ).append( release ).append( " ] ; then\n" );
+        buf.append( "  ln -sfn \"`readlink " ).append( current ).append( "`\" " ).append( previous ).append( suffix );
+        buf.append( " && mv -Tf " ).append( previous ).append( suffix ).append( " " ).append( previous );
+        buf.append( "\n" );
+        buf.append( "fi\n" );
+        buf.append( "ln -sfn " ).append( release ).append( " " ).append( current ).append( suffix );
+        buf.append( " && mv -Tf " ).append( current ).append( suffix ).append( " " ).append( current );
+        buf.append( "\n" );
+        buf.append( "ln -sfn " ).append( getInstallRoot() ).append( "/" ).append( current ).append( "/bin/" );
+        buf.append( target.getLayout().getInitScript().getName() ).append( " /etc/init.d/" );
+        buf.append( target.getApplication().getName() ).append( "\n" );
         return buf.toString();
     }
 
 
-    private String getInstallLibraryJars() throws MojoFailureException
+    /**
+     * Gets the script run after a release was erased.  When the current link
+     * no longer leads to a complete release it is switched back to the 
+     * previous one or, without one, removed along with the init script link.
+     * A previous link left dangling or equal to current is removed.  Upgrades
+     * and reinstalls keep the files the links lead to so they change nothing.
+     */
+    private String getSwitchBackScript()
     {
+        String current = InstallationLayout.CURRENT_LINK;
+        String previous = ReleaseSwitch.PREVIOUS_LINK;
+        String suffix = ReleaseSwitch.NEW_SUFFIX;
+        String bootstrapper = "/bin/bootstrapper.jar";
         StringBuffer buf = new StringBuffer();
-        List artifacts = target.getLibArtifacts();
-        for ( int ii = 0; ii < artifacts.size(); ii++ )
-        {
-            buf.append( "install -m 644 " );
-            File artifact = ( ( Artifact ) artifacts.get( ii ) ).getFile();
-            buf.append( artifact.getAbsoluteFile() );
-            buf.append( " $RPM_BUILD_ROOT/usr/local/" );
-            buf.append( target.getApplication().getName() );
-            buf.append( "-%{version}/lib/" );
-            buf.append( artifact.getName() );
-            buf.append( "\n" );
-        }
-
+        buf.append( "cd " ).append( getInstallRoot() ).append( " || exit 0\n" );
+        buf.append( "if [ -L " ).append( current ).append( " ] && [ ! -f " ).append( current ).append( bootstrapper );
+        buf.append( " ] ; then\n" );
+        buf.append( "  if [ -f " ).append( previous ).append( bootstrapper ).append( " ] ; then\n" );
+        buf.append( "    ln -sfn \"`readlink " ).append( previous ).append( "`\" " ).append( current ).append( suffix );
+        buf.append( " && mv -Tf " ).append( current ).append( suffix ).append( " " ).append( current );
+        buf.append( "\n" );
+        buf.append( "  else\n" );
+        buf.append( "    rm -f " ).append( current ).append( " /etc/init.d/" );
+        buf.append( target.getApplication().getName() ).append( "\n" );
+        buf.append( "  fi\n" );
+        buf.append( "fi\n" );
+        buf.append( "if [ ! -f " ).append( previous ).append( bootstrapper ).append( " ] || [ \"`readlink " );
+        buf.append( previous ).append( "`\" = \"`readlink " ).append( current ).append( "`\" ] ; then\n" );
+        buf.append( "  rm -f " ).append( previous ).append( "\n" );
+        buf.append( "fi\n" );
+        buf.append( "exit 0\n" );
         return buf.toString();
     }
 
@@ -602,7 +632,7 @@ public class RpmInstallerCommand extends MojoCommand
         File sourcesDir = new File( target.getLayout().getBaseDirectory().getParentFile(), dirname );
         try
         {
-            FileUtils.copyDirectoryStructure( target.getLayout().getBaseDirectory(), sourcesDir );
+            MojoHelperUtils.copyDirectory( target.getLayout().getBaseDirectory(), sourcesDir );
         }
         catch ( IOException e1 )
         {
@@ -615,6 +645,7 @@ public class RpmInstallerCommand extends MojoCommand
                 "/usr/src/redhat/SOURCES/" + target.getApplication().getName() + "-" + version + ".tar.gz",
                 sourcesDir.getAbsolutePath() };
 
-        MojoHelperUtils.exec( cmd, target.getLayout().getBaseDirectory().getParentFile(), target.isDoSudo() );
+        MojoHelperUtils.exec( cmd, target.getLayout().getBaseDirectory().getParentFile(), target.isDoSudo(), log,
+            target.getToolTimeout() );
     }
 }
@@ -33,9 +33,33 @@ import org.apache.directory.daemon.installers.Target;
  */
 public class RpmTarget extends Target
 {
+    /** builds the package by running rpmbuild on the generated spec file */
+    public static final String MODE_RPMBUILD = "rpmbuild";
+    /** writes the package directly from the image without external tools */
+    public static final String MODE_JAVA = "java";
+
+    private String mode = MODE_RPMBUILD;
     private File rpmBuilder = new File( "/usr/bin/rpmbuild" );
     private File rpmSpecificationFile;
     private boolean doSudo = false;
+    private boolean sideBySide = false;
+
+
+    /**
+     * Sets how the package is built: {@link #MODE_RPMBUILD} needs rpmbuild,
+     * root or sudo and a linux build host while {@link #MODE_JAVA} writes the
+     * package in process on any host.
+     */
+    public void setMode( String mode )
+    {
+        this.mode = mode;
+    }
+
+
+    public String getMode()
+    {
+        return mode;
+    }
 
 
     public void setRpmBuilder( File rpmBuilder )
@@ -72,4 +96,25 @@ public class RpmTarget extends Target
     {
         return doSudo;
     }
+
+
+    /**
+     * Sets whether the package installs a release of a side by side
+     * installation: the image goes to /usr/local/app/releases/version, the
+     * var directory to /usr/local/app/var where all releases share it, and
+     * the package switches the current link to its release when installed.
+     * Releases installed with rpm -i stay side by side so the bootstrapper
+     * can roll back to the previous one with a single rename, while rpm -U
+     * removes the old release.
+     */
+    public void setSideBySide( boolean sideBySide )
+    {
+        this.sideBySide = sideBySide;
+    }
+
+
+    public boolean isSideBySide()
+    {
+        return sideBySide;
+    }
 }
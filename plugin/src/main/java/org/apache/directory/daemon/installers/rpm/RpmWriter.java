@@ -0,0 +1,471 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.rpm;
+
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.directory.daemon.installers.BuildReport;
+import org.apache.directory.daemon.installers.CpioWriter;
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.ImageManifest;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Writes a binary rpm package without rpmbuild: the lead, the signature
+ * header with the size and digests, the main header and a gzip compressed
+ * cpio payload.  The payload is streamed into a temporary file first since
+ * the headers describe it, so no file content is ever held in memory.
+ * Ghost entries are only listed in the header, as %ghost files of a spec.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+class RpmWriter
+{
+    // signature tags
+    private static final int SIGTAG_SHA1 = 269;
+    private static final int SIGTAG_SIZE = 1000;
+    private static final int SIGTAG_MD5 = 1004;
+    private static final int SIGTAG_PAYLOADSIZE = 1007;
+
+    // header tags
+    private static final int HEADERI18NTABLE = 100;
+    private static final int NAME = 1000;
+    private static final int VERSION = 1001;
+    private static final int RELEASE = 1002;
+    private static final int SUMMARY = 1004;
+    private static final int DESCRIPTION = 1005;
+    private static final int BUILDTIME = 1006;
+    private static final int BUILDHOST = 1007;
+    private static final int SIZE = 1009;
+    private static final int LICENSE = 1014;
+    private static final int GROUP = 1016;
+    private static final int URL = 1020;
+    private static final int OS = 1021;
+    private static final int ARCH = 1022;
+    private static final int POSTIN = 1024;
+    private static final int POSTUN = 1026;
+    private static final int FILESIZES = 1028;
+    private static final int FILEMODES = 1030;
+    private static final int FILERDEVS = 1033;
+    private static final int FILEMTIMES = 1034;
+    private static final int FILEDIGESTS = 1035;
+    private static final int FILELINKTOS = 1036;
+    private static final int FILEFLAGS = 1037;
+    private static final int FILEUSERNAME = 1039;
+    private static final int FILEGROUPNAME = 1040;
+    private static final int SOURCERPM = 1044;
+    private static final int FILEVERIFYFLAGS = 1045;
+    private static final int PROVIDENAME = 1047;
+    private static final int REQUIREFLAGS = 1048;
+    private static final int REQUIRENAME = 1049;
+    private static final int REQUIREVERSION = 1050;
+    private static final int RPMVERSION = 1064;
+    private static final int POSTINPROG = 1086;
+    private static final int POSTUNPROG = 1088;
+    private static final int FILEDEVICES = 1095;
+    private static final int FILEINODES = 1096;
+    private static final int FILELANGS = 1097;
+    private static final int PROVIDEFLAGS = 1112;
+    private static final int PROVIDEVERSION = 1113;
+    private static final int DIRINDEXES = 1116;
+    private static final int BASENAMES = 1117;
+    private static final int DIRNAMES = 1118;
+    private static final int PAYLOADFORMAT = 1124;
+    private static final int PAYLOADCOMPRESSOR = 1125;
+    private static final int PAYLOADFLAGS = 1126;
+
+    private static final int RPMFILE_DOC = 1 << 1;
+    private static final int RPMFILE_GHOST = 1 << 6;
+    private static final int RPMSENSE_LESS = 1 << 1;
+    private static final int RPMSENSE_EQUAL = 1 << 3;
+    private static final int RPMSENSE_RPMLIB = 1 << 24;
+
+    private static final byte[] LEAD_MAGIC = new byte[]
+        { ( byte ) 0xed, ( byte ) 0xab, ( byte ) 0xee, ( byte ) 0xdb };
+    private static final Map ARCH_NUMBERS = new HashMap();
+
+    static
+    {
+        ARCH_NUMBERS.put( "i386", new Integer( 1 ) );
+        ARCH_NUMBERS.put( "x86_64", new Integer( 1 ) );
+        ARCH_NUMBERS.put( "sparc", new Integer( 3 ) );
+        ARCH_NUMBERS.put( "ppc", new Integer( 5 ) );
+    }
+
+    private final String name;
+    private final String version;
+    private final String release;
+    private final String arch;
+    private String summary;
+    private String description;
+    private String license;
+    private String group = "System Environment/Daemons";
+    private String url;
+    private String postInstall;
+    private String postUninstall;
+    private long buildTime = System.currentTimeMillis();
+
+
+    RpmWriter( String name, String version, String release, String arch )
+    {
+        this.name = name;
+        this.version = version;
+        this.release = release;
+        this.arch = arch;
+    }
+
+
+    void setSummary( String summary )
+    {
+        this.summary = summary;
+    }
+
+
+    void setDescription( String description )
+    {
+        this.description = description;
+    }
+
+
+    void setLicense( String license )
+    {
+        this.license = license;
+    }
+
+
+    void setGroup( String group )
+    {
+        this.group = group;
+    }
+
+
+    void setUrl( String url )
+    {
+        this.url = url;
+    }
+
+
+    void setBuildTime( long buildTime )
+    {
+        this.buildTime = buildTime;
+    }
+
+
+    /**
+     * Sets the shell script rpm runs after installing the package.
+     *
+     * @param postInstall the script or null for none
+     */
+    void setPostInstall( String postInstall )
+    {
+        this.postInstall = postInstall;
+    }
+
+
+    /**
+     * Sets the shell script rpm runs after erasing the package.
+     *
+     * @param postUninstall the script or null for none
+     */
+    void setPostUninstall( String postUninstall )
+    {
+        this.postUninstall = postUninstall;
+    }
+
+
+    /**
+     * Writes the package.
+     *
+     * @param entries the {@link ImageContents.Entry}s sorted by path
+     * @param rpmFile the package file to write
+     */
+    void write( List entries, File rpmFile ) throws IOException
+    {
+        File payload = new File( rpmFile.getPath() + ".payload" );
+        try
+        {
+            String[] digests = new String[entries.size()];
+            long payloadSize = writePayload( entries, payload, digests );
+
+            byte[] header = createHeader( entries, digests ).toByteArray( 63 );
+            byte[] signature = createSignature( header, payload, payloadSize ).toByteArray( 62 );
+
+            rpmFile.delete();
+            FileOutputStream out = new FileOutputStream( rpmFile );
+            try
+            {
+                out.write( createLead() );
+                out.write( signature );
+                // the signature is padded to a multiple of 8 bytes
+                out.write( new byte[( 8 - signature.length % 8 ) % 8] );
+                out.write( header );
+                transfer( payload, out );
+            }
+            finally
+            {
+                IOUtil.close( out );
+            }
+        }
+        finally
+        {
+            payload.delete();
+        }
+    }
+
+
+    private long writePayload( List entries, File payload, String[] digests ) throws IOException
+    {
+        MessageDigest md5 = ImageManifest.newDigest();
+        OutputStream out = new BufferedOutputStream( new GZIPOutputStream( new BufferedOutputStream(
+            new FileOutputStream( payload ), 65536 ) ), 65536 );
+        try
+        {
+            CpioWriter cpio = new CpioWriter( out );
+            for ( int ii = 0; ii < entries.size(); ii++ )
+            {
+                ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+                if ( entry.isGhost() )
+                {
+                    digests[ii] = "";
+                    continue;
+                }
+                if ( entry.isLink() )
+                {
+                    cpio.writeLink( "." + entry.getPath(), entry.getLastModified(), ii + 1, entry.getLinkTarget() );
+                    digests[ii] = "";
+                    continue;
+                }
+                md5.reset();
+                cpio.writeEntry( "." + entry.getPath(), entry.getMode(), entry.getLastModified(), ii + 1, entry
+                    .getSource(), md5 );
+                digests[ii] = entry.isDirectory() ? "" : ImageManifest.toHex( md5.digest() );
+            }
+            cpio.finish();
+            return cpio.getLength();
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+    }
+
+
+    private RpmHeader createHeader( List entries, String[] digests )
+    {
+        int count = entries.size();
+        int[] sizes = new int[count];
+        short[] modes = new short[count];
+        short[] rdevs = new short[count];
+        int[] mtimes = new int[count];
+        String[] linktos = new String[count];
+        int[] flags = new int[count];
+        String[] users = new String[count];
+        String[] groups = new String[count];
+        int[] verifyFlags = new int[count];
+        int[] devices = new int[count];
+        int[] inodes = new int[count];
+        String[] langs = new String[count];
+        int[] dirIndexes = new int[count];
+        String[] baseNames = new String[count];
+        List dirNames = new ArrayList();
+        Map dirIndexMap = new HashMap();
+        long totalSize = 0;
+
+        for ( int ii = 0; ii < count; ii++ )
+        {
+            ImageContents.Entry entry = ( ImageContents.Entry ) entries.get( ii );
+            sizes[ii] = ( int ) entry.getSize();
+            totalSize += entry.getSize();
+            modes[ii] = ( short ) entry.getMode();
+            mtimes[ii] = ( int ) ( entry.getLastModified() / 1000 );
+            linktos[ii] = entry.isLink() ? entry.getLinkTarget() : "";
+            flags[ii] = ( entry.isDocumentation() ? RPMFILE_DOC : 0 ) | ( entry.isGhost() ? RPMFILE_GHOST : 0 );
+            users[ii] = "root";
+            groups[ii] = "root";
+            verifyFlags[ii] = -1;
+            devices[ii] = 1;
+            inodes[ii] = ii + 1;
+            langs[ii] = "";
+
+            String path = entry.getPath();
+            int slash = path.lastIndexOf( '/' );
+            String dirName = path.substring( 0, slash + 1 );
+            baseNames[ii] = path.substring( slash + 1 );
+            Integer dirIndex = ( Integer ) dirIndexMap.get( dirName );
+            if ( dirIndex == null )
+            {
+                dirIndex = new Integer( dirNames.size() );
+                dirNames.add( dirName );
+                dirIndexMap.put( dirName, dirIndex );
+            }
+            dirIndexes[ii] = dirIndex.intValue();
+        }
+
+        RpmHeader header = new RpmHeader();
+        header.addStringArray( HEADERI18NTABLE, new String[]
+            { "C" } );
+        header.addString( NAME, name );
+        header.addString( VERSION, version );
+        header.addString( RELEASE, release );
+        header.addI18nString( SUMMARY, summary );
+        header.addI18nString( DESCRIPTION, description == null ? summary : description );
+        header.addInt32( BUILDTIME, new int[]
+            { ( int ) ( buildTime / 1000 ) } );
+        header.addString( BUILDHOST, "localhost" );
+        header.addInt32( SIZE, new int[]
+            { ( int ) totalSize } );
+        header.addString( LICENSE, license );
+        header.addI18nString( GROUP, group );
+        if ( url != null )
+        {
+            header.addString( URL, url );
+        }
+        header.addString( OS, "linux" );
+        header.addString( ARCH, arch );
+        if ( postInstall != null )
+        {
+            header.addString( POSTIN, postInstall );
+            header.addString( POSTINPROG, "/bin/sh" );
+        }
+        if ( postUninstall != null )
+        {
+            header.addString( POSTUN, postUninstall );
+            header.addString( POSTUNPROG, "/bin/sh" );
+        }
+        header.addInt32( FILESIZES, sizes );
+        header.addInt16( FILEMODES, modes );
+        header.addInt16( FILERDEVS, rdevs );
+        header.addInt32( FILEMTIMES, mtimes );
+        header.addStringArray( FILEDIGESTS, digests );
+        header.addStringArray( FILELINKTOS, linktos );
+        header.addInt32( FILEFLAGS, flags );
+        header.addStringArray( FILEUSERNAME, users );
+        header.addStringArray( FILEGROUPNAME, groups );
+        header.addString( SOURCERPM, name + "-" + version + "-" + release + ".src.rpm" );
+        header.addInt32( FILEVERIFYFLAGS, verifyFlags );
+        header.addStringArray( PROVIDENAME, new String[]
+            { name } );
+        header.addInt32( PROVIDEFLAGS, new int[]
+            { RPMSENSE_EQUAL } );
+        header.addStringArray( PROVIDEVERSION, new String[]
+            { version + "-" + release } );
+        header.addStringArray( REQUIRENAME, new String[]
+            { "rpmlib(CompressedFileNames)", "rpmlib(PayloadFilesHavePrefix)" } );
+        header.addInt32( REQUIREFLAGS, new int[]
+            { RPMSENSE_RPMLIB | RPMSENSE_LESS | RPMSENSE_EQUAL, RPMSENSE_RPMLIB | RPMSENSE_LESS | RPMSENSE_EQUAL } );
+        header.addStringArray( REQUIREVERSION, new String[]
+            { "3.0.4-1", "4.0-1" } );
+        header.addString( RPMVERSION, "4.4.2" );
+        header.addInt32( FILEDEVICES, devices );
+        header.addInt32( FILEINODES, inodes );
+        header.addStringArray( FILELANGS, langs );
+        header.addInt32( DIRINDEXES, dirIndexes );
+        header.addStringArray( BASENAMES, baseNames );
+        header.addStringArray( DIRNAMES, ( String[] ) dirNames.toArray( new String[dirNames.size()] ) );
+        header.addString( PAYLOADFORMAT, "cpio" );
+        header.addString( PAYLOADCOMPRESSOR, "gzip" );
+        header.addString( PAYLOADFLAGS, "6" );
+        return header;
+    }
+
+
+    private RpmHeader createSignature( byte[] header, File payload, long payloadSize ) throws IOException
+    {
+        MessageDigest md5 = ImageManifest.newDigest();
+        md5.update( header );
+        FileInputStream in = new FileInputStream( payload );
+        try
+        {
+            byte[] buf = new byte[65536];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                md5.update( buf, 0, read );
+            }
+        }
+        finally
+        {
+            IOUtil.close( in );
+        }
+
+        RpmHeader signature = new RpmHeader();
+        byte[] sha1 = ImageManifest.newDigest( "SHA-1" ).digest( header );
+        signature.addString( SIGTAG_SHA1, ImageManifest.toHex( sha1 ) );
+        signature.addInt32( SIGTAG_SIZE, new int[]
+            { ( int ) ( header.length + payload.length() ) } );
+        signature.addBinary( SIGTAG_MD5, md5.digest() );
+        signature.addInt32( SIGTAG_PAYLOADSIZE, new int[]
+            { ( int ) payloadSize } );
+        return signature;
+    }
+
+
+    private byte[] createLead() throws IOException
+    {
+        byte[] lead = new byte[96];
+        System.arraycopy( LEAD_MAGIC, 0, lead, 0, 4 );
+        lead[4] = 3; // major
+        lead[5] = 0; // minor
+        // type 0 is a binary package
+        Integer archNumber = ( Integer ) ARCH_NUMBERS.get( arch );
+        lead[9] = ( byte ) ( archNumber == null ? 0 : archNumber.intValue() );
+        byte[] nameBytes = ( name + "-" + version + "-" + release ).getBytes( "UTF-8" );
+        System.arraycopy( nameBytes, 0, lead, 10, Math.min( nameBytes.length, 65 ) );
+        lead[77] = 1; // os linux
+        lead[79] = 5; // header style signature
+        return lead;
+    }
+
+
+    private static void transfer( File source, FileOutputStream out ) throws IOException
+    {
+        BuildReport.read( source.length() );
+        FileChannel in = new FileInputStream( source ).getChannel();
+        try
+        {
+            FileChannel channel = out.getChannel();
+            long position = 0;
+            long size = in.size();
+            while ( position < size )
+            {
+                position += in.transferTo( position, size - position, channel );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
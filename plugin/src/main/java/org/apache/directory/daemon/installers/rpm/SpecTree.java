@@ -0,0 +1,209 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.rpm;
+
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A tree of the image, like the docs or the sources, which the spec file 
+ * installs with a single copy and lists as a whole in its files section 
+ * rather than file by file.  The tree is walked once to collect the counts 
+ * the spec entries and the build log depend on.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+class SpecTree
+{
+    private final File root;
+    private final String installPath;
+    private int files;
+    private int directories;
+    private long size;
+    private boolean keepModes = false;
+    private String linkPath;
+    private String linkTarget;
+
+
+    /**
+     * @param imageBase the base directory of the image
+     * @param path the path of the tree relative to the image base
+     * @param installBase the directory the image is installed into
+     */
+    SpecTree( File imageBase, String path, String installBase )
+    {
+        this.root = new File( imageBase, path );
+        this.installPath = installBase + "/" + path.replace( File.separatorChar, '/' );
+    }
+
+
+    /**
+     * Keeps the modes the files have in the image instead of making them
+     * all 644, for trees holding executables.
+     */
+    void setKeepModes( boolean keepModes )
+    {
+        this.keepModes = keepModes;
+    }
+
+
+    /**
+     * Adds a symbolic link to the tree when it is installed, which the glob
+     * of the files section then takes along.
+     *
+     * @param path the path of the link relative to the tree
+     * @param target what the link points to
+     */
+    void setLink( String path, String target )
+    {
+        this.linkPath = path;
+        this.linkTarget = target;
+    }
+
+
+    /**
+     * Walks the tree without recursion so deep trees do not matter.
+     */
+    void scan()
+    {
+        files = 0;
+        directories = 0;
+        size = 0;
+
+        List pending = new ArrayList();
+        if ( root.isDirectory() )
+        {
+            pending.add( root );
+        }
+
+        while ( !pending.isEmpty() )
+        {
+            File dir = ( File ) pending.remove( pending.size() - 1 );
+            File[] children = dir.listFiles();
+            if ( children == null )
+            {
+                continue;
+            }
+
+            for ( int ii = 0; ii < children.length; ii++ )
+            {
+                if ( children[ii].isDirectory() )
+                {
+                    directories++;
+                    pending.add( children[ii] );
+                }
+                else
+                {
+                    files++;
+                    size += children[ii].length();
+                }
+            }
+        }
+    }
+
+
+    boolean exists()
+    {
+        return root.isDirectory();
+    }
+
+
+    boolean isEmpty()
+    {
+        return files == 0 && directories == 0;
+    }
+
+
+    /**
+     * Gets the commands creating the root of the tree in the build root.
+     */
+    String getMkDirs()
+    {
+        if ( !exists() )
+        {
+            return "";
+        }
+
+        return "mkdir -p $RPM_BUILD_ROOT" + installPath + "\n";
+    }
+
+
+    /**
+     * Gets the commands copying the whole tree into the build root and 
+     * setting the modes the spec used to give each file: 755 for 
+     * directories and 644 for files unless their modes are kept.
+     */
+    String getInstall()
+    {
+        if ( !exists() || isEmpty() )
+        {
+            return "";
+        }
+
+        StringBuffer buf = new StringBuffer();
+        buf.append( "cp -pR " ).append( root.getAbsolutePath() ).append( "/. $RPM_BUILD_ROOT" );
+        buf.append( installPath ).append( "\n" );
+        buf.append( "find $RPM_BUILD_ROOT" ).append( installPath ).append( " -type d -exec chmod 755 {} +\n" );
+        if ( !keepModes )
+        {
+            buf.append( "find $RPM_BUILD_ROOT" ).append( installPath ).append( " -type f -exec chmod 644 {} +\n" );
+        }
+        if ( linkPath != null )
+        {
+            String link = installPath + "/" + linkPath;
+            buf.append( "mkdir -p $RPM_BUILD_ROOT" ).append( link.substring( 0, link.lastIndexOf( '/' ) ) );
+            buf.append( "\n" );
+            buf.append( "ln -sfn " ).append( linkTarget ).append( " $RPM_BUILD_ROOT" ).append( link ).append( "\n" );
+        }
+        return buf.toString();
+    }
+
+
+    /**
+     * Gets the entries of the files section: the root as a directory and 
+     * a glob for its content, which rpm expands recursively.  An empty tree
+     * gets no glob since rpmbuild fails on globs matching nothing.
+     */
+    String getFiles()
+    {
+        if ( !exists() )
+        {
+            return "";
+        }
+
+        StringBuffer buf = new StringBuffer();
+        buf.append( "%dir " ).append( installPath ).append( "\n" );
+        if ( !isEmpty() )
+        {
+            buf.append( installPath ).append( "/*\n" );
+        }
+        return buf.toString();
+    }
+
+
+    public String toString()
+    {
+        return root + ": " + files + " files in " + directories + " directories, " + size + " bytes";
+    }
+}
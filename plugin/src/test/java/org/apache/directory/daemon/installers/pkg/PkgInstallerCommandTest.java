@@ -0,0 +1,338 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *  
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License. 
+ *  
+ */
+package org.apache.directory.daemon.installers.pkg;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.apache.directory.daemon.InstallationLayout;
+import org.apache.directory.daemon.installers.Application;
+import org.apache.directory.daemon.installers.CpioWriter;
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.PkgTarget;
+import org.apache.directory.daemon.installers.ServiceInstallersMojo;
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Checks the Solaris packages of the {@link PkgInstallerCommand} against 
+ * output known to be good: the checksums against the System V sum command,
+ * the pkgmap of a small image line by line and the layout of the datastream
+ * as pkgtrans writes it.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class PkgInstallerCommandTest extends TestCase
+{
+    private static final int BLOCK = 512;
+    private static final String BASE = "/usr/local/apacheds-1.0.0";
+
+    private File dir;
+    private File image;
+    private File packageDirectory;
+    private File pkgFile;
+
+
+    protected void setUp() throws Exception
+    {
+        dir = File.createTempFile( "pkginstaller", "" );
+        dir.delete();
+        image = new File( dir, "image" );
+        write( "bin/apacheds", "run\n" );
+        write( "bin/bootstrapper.jar", "boot" );
+        write( "conf/server.xml", "<server/>" );
+        write( "LICENSE.txt", "license\n" );
+        byte[] big = new byte[70000];
+        Arrays.fill( big, ( byte ) 0xff );
+        write( "lib/big.jar", big );
+        File script = new File( dir, "server.init" );
+        write( script, "#!/bin/sh\necho ${app}\n".getBytes( "US-ASCII" ) );
+
+        Model model = new Model();
+        model.setGroupId( "org.apache.directory.server" );
+        model.setArtifactId( "apacheds" );
+        model.setVersion( "1.0.0" );
+        MavenProject project = new MavenProject( model );
+        project.setArtifacts( new HashSet() );
+        project.setDependencyArtifacts( new HashSet() );
+
+        // the fields maven injects and the output directory the mojo creates
+        File output = new File( dir, "output" );
+        output.mkdirs();
+        ServiceInstallersMojo mojo = new ServiceInstallersMojo();
+        setField( mojo, "project", project );
+        setField( mojo, "outputDirectory", output );
+        setField( mojo, "systemProperties", new Properties() );
+        setField( mojo, "applicationClass", "org.apache.directory.server.Service" );
+
+        PkgTarget target = new PkgTarget();
+        target.setId( "solaris" );
+        Application application = new Application();
+        application.setName( "apacheds" );
+        application.setVersion( "1.0.0" );
+        target.setApplication( application );
+        target.setLayout( new InstallationLayout( image ) );
+        target.setOsName( "SunOS" );
+        target.setOsArch( "sparc" );
+        target.setScriptFile( script );
+
+        new PkgInstallerCommand( mojo, target ).execute();
+        packageDirectory = new File( dir, "solaris-pkg" );
+        pkgFile = new File( output, "apacheds-1.0.0-solaris-sparc.pkg" );
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+
+    /**
+     * The sums of sum -s, folded from 32 to 16 bits.
+     */
+    public void testChecksum() throws Exception
+    {
+        assertEquals( 0, PkgInstallerCommand.checksum( null ) );
+        assertEquals( 542, PkgInstallerCommand.checksum( write( "hello", "hello\n" ) ) );
+        assertEquals( 0, PkgInstallerCommand.checksum( write( "empty", "" ) ) );
+        assertEquals( 24480, PkgInstallerCommand.checksum( new File( image, "lib/big.jar" ) ) );
+    }
+
+
+    public void testPkgmap() throws Exception
+    {
+        String time = " " + ImageContents.getDefaultTimestamp() / 1000;
+        File pkginfo = new File( packageDirectory, "pkginfo" );
+        String[] expected = new String[]
+            {
+                ": 1 151",
+                "1 f none /etc/init.d/apacheds 0744 root bin 24 1986" + time,
+                "1 s none /etc/rc0.d/K35apacheds=../init.d/apacheds",
+                "1 s none /etc/rc1.d/K35apacheds=../init.d/apacheds",
+                "1 s none /etc/rc3.d/S91apacheds=../init.d/apacheds",
+                "1 s none /etc/rcS.d/K35apacheds=../init.d/apacheds",
+                "1 d none " + BASE + " 0755 root bin",
+                "1 f none " + BASE + "/LICENSE.txt 0644 root bin 8 749" + time,
+                "1 d none " + BASE + "/bin 0755 root bin",
+                "1 f none " + BASE + "/bin/apacheds 0755 root bin 4 351" + time,
+                "1 f none " + BASE + "/bin/bootstrapper.jar 0644 root bin 4 436" + time,
+                "1 d none " + BASE + "/conf 0755 root bin",
+                "1 f none " + BASE + "/conf/server.xml 0600 root bin 9 832" + time,
+                "1 d none " + BASE + "/lib 0755 root bin",
+                "1 f none " + BASE + "/lib/big.jar 0644 root bin 70000 24480" + time,
+                "1 d none " + BASE + "/lib/ext 0755 root bin",
+                "1 d none " + BASE + "/var 0755 root bin",
+                "1 d none " + BASE + "/var/log 0755 root bin",
+                "1 v none " + BASE + "/var/log/apacheds-stderr.log 0644 root bin 0 0" + time,
+                "1 v none " + BASE + "/var/log/apacheds-stdout.log 0644 root bin 0 0" + time,
+                "1 d none " + BASE + "/var/partitions 0755 root bin",
+                "1 d none " + BASE + "/var/run 0755 root bin",
+                "1 i pkginfo " + pkginfo.length() + " " + PkgInstallerCommand.checksum( pkginfo ) + time
+            };
+        assertEquals( join( expected ), read( new File( packageDirectory, "pkgmap" ) ) );
+    }
+
+
+    public void testDatastream() throws Exception
+    {
+        byte[] pkg = toBytes( pkgFile );
+        assertEquals( 0, pkg.length % BLOCK );
+
+        String header = "# PaCkAgE DaTaStReAm\nAPCHapacheds 1 151\n# end of header\n";
+        assertEquals( header, new String( pkg, 0, header.length(), "US-ASCII" ) );
+        for ( int ii = header.length(); ii < BLOCK; ii++ )
+        {
+            assertEquals( 0, pkg[ii] );
+        }
+
+        // the package information archive
+        List members = new ArrayList();
+        int pos = readArchive( pkg, BLOCK, members );
+        assertEquals( 2, members.size() );
+        assertMember( ( Object[] ) members.get( 0 ), "APCHapacheds/pkginfo", 0100644, new File( packageDirectory,
+            "pkginfo" ) );
+        assertMember( ( Object[] ) members.get( 1 ), "APCHapacheds/pkgmap", 0100644, new File( packageDirectory,
+            "pkgmap" ) );
+
+        // the archive of the files ending the datastream
+        members.clear();
+        assertEquals( pkg.length, readArchive( pkg, pos, members ) );
+        String[] paths = new String[]
+            { "/etc/init.d/apacheds", BASE, BASE + "/LICENSE.txt", BASE + "/bin", BASE + "/bin/apacheds",
+                BASE + "/bin/bootstrapper.jar", BASE + "/conf", BASE + "/conf/server.xml", BASE + "/lib",
+                BASE + "/lib/big.jar", BASE + "/lib/ext", BASE + "/var", BASE + "/var/log", BASE + "/var/partitions",
+                BASE + "/var/run" };
+        assertEquals( paths.length, members.size() );
+        int lastInode = 0;
+        for ( int ii = 0; ii < paths.length; ii++ )
+        {
+            Object[] member = ( Object[] ) members.get( ii );
+            assertEquals( "APCHapacheds/root" + paths[ii], member[0] );
+            assertTrue( paths[ii], ( ( Integer ) member[2] ).intValue() > lastInode );
+            lastInode = ( ( Integer ) member[2] ).intValue();
+        }
+        assertMember( ( Object[] ) members.get( 2 ), "APCHapacheds/root" + BASE + "/LICENSE.txt", 0100644, new File(
+            image, "LICENSE.txt" ) );
+        assertMember( ( Object[] ) members.get( 3 ), "APCHapacheds/root" + BASE + "/bin", 040755, null );
+        assertMember( ( Object[] ) members.get( 9 ), "APCHapacheds/root" + BASE + "/lib/big.jar", 0100644, new File(
+            image, "lib/big.jar" ) );
+        assertEquals( "#!/bin/sh\necho apacheds\n", new String( ( byte[] ) ( ( Object[] ) members.get( 0 ) )[3],
+            "US-ASCII" ) );
+    }
+
+
+    /**
+     * Reads an odc archive up to its trailer and checks it is padded to a 
+     * block.
+     *
+     * @return the offset following the archive
+     */
+    private static int readArchive( byte[] data, int pos, List members ) throws IOException
+    {
+        while ( true )
+        {
+            String header = new String( data, pos, 76, "US-ASCII" );
+            assertEquals( CpioWriter.ODC_MAGIC, header.substring( 0, 6 ) );
+            int inode = Integer.parseInt( header.substring( 12, 18 ), 8 );
+            int mode = Integer.parseInt( header.substring( 18, 24 ), 8 );
+            long mtime = Long.parseLong( header.substring( 48, 59 ), 8 );
+            int nameSize = Integer.parseInt( header.substring( 59, 65 ), 8 );
+            int size = Integer.parseInt( header.substring( 65, 76 ), 8 );
+            String name = new String( data, pos + 76, nameSize - 1, "UTF-8" );
+            assertEquals( 0, data[pos + 76 + nameSize - 1] );
+            pos += 76 + nameSize;
+
+            if ( name.equals( CpioWriter.TRAILER ) )
+            {
+                assertEquals( 0, size );
+                break;
+            }
+
+            assertEquals( name, ImageContents.getDefaultTimestamp() / 1000, mtime );
+            byte[] body = new byte[size];
+            System.arraycopy( data, pos, body, 0, size );
+            pos += size;
+            members.add( new Object[]
+                { name, new Integer( mode ), new Integer( inode ), body } );
+        }
+
+        int end = ( pos + BLOCK - 1 ) / BLOCK * BLOCK;
+        for ( ; pos < end; pos++ )
+        {
+            assertEquals( 0, data[pos] );
+        }
+        return end;
+    }
+
+
+    private static void assertMember( Object[] member, String name, int mode, File content ) throws IOException
+    {
+        assertEquals( name, member[0] );
+        assertEquals( name, mode, ( ( Integer ) member[1] ).intValue() );
+        byte[] expected = content == null ? new byte[0] : toBytes( content );
+        assertTrue( name, Arrays.equals( expected, ( byte[] ) member[3] ) );
+    }
+
+
+    private static void setField( Object object, String name, Object value ) throws Exception
+    {
+        Field field = object.getClass().getDeclaredField( name );
+        field.setAccessible( true );
+        field.set( object, value );
+    }
+
+
+    private File write( String path, String content ) throws IOException
+    {
+        return write( path, content.getBytes( "US-ASCII" ) );
+    }
+
+
+    private File write( String path, byte[] content ) throws IOException
+    {
+        File file = new File( image, path );
+        file.getParentFile().mkdirs();
+        write( file, content );
+        return file;
+    }
+
+
+    private static void write( File file, byte[] content ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    private static String join( String[] lines )
+    {
+        StringBuffer buf = new StringBuffer();
+        for ( int ii = 0; ii < lines.length; ii++ )
+        {
+            buf.append( lines[ii] ).append( "\n" );
+        }
+        return buf.toString();
+    }
+
+
+    private static String read( File file ) throws IOException
+    {
+        return new String( toBytes( file ), "UTF-8" );
+    }
+
+
+    private static byte[] toBytes( File file ) throws IOException
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            return IOUtil.toByteArray( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package org.apache.directory.daemon.installers.rpm;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.directory.daemon.InstallationLayout;
+import org.apache.directory.daemon.installers.Application;
+import org.apache.directory.daemon.installers.CpioWriter;
+import org.apache.directory.daemon.installers.ImageContents;
+import org.apache.directory.daemon.installers.ImageManifest;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+
+/**
+ * Checks the packages of the {@link RpmWriter} against the rpm file format:
+ * the lead, the signature and main header structures with their region
+ * entries, the digests the signature holds and the cpio payload against the
+ * file lists of the header, which also list the ghost logs the payload lacks
+ * and the link jsvc finds the JVM of the bundled runtime by.
+ *
+ * @author <a href="mailto:dev@directory.apache.org">Apache Directory Project</a>
+ * @version $Rev$
+ */
+public class RpmWriterTest extends TestCase
+{
+    private static final int STRING = 6;
+    private static final int BIN = 7;
+    private static final int STRING_ARRAY = 8;
+    private static final int I18NSTRING = 9;
+    private static final int INT16 = 3;
+    private static final int INT32 = 4;
+
+    private static final int HEADER_SIGNATURES = 62;
+    private static final int HEADER_IMMUTABLE = 63;
+
+    private File dir;
+    private File image;
+    private byte[] rpm;
+
+
+    protected void setUp() throws Exception
+    {
+        dir = File.createTempFile( "rpmwriter", "" );
+        dir.delete();
+        image = new File( dir, "image" );
+        write( "bin/apacheds", "#!/bin/sh\n" );
+        write( "bin/bootstrapper.jar", "bootstrapper" );
+        write( "bin/server.init", "#!/bin/sh\necho init\n" );
+        write( "conf/server.xml", "<server/>\n" );
+        write( "lib/dependency.jar", "dependency of three bytes and then some" );
+        write( "LICENSE.txt", "license\n" );
+        write( "README.txt", "" );
+        write( "jre/lib/server/libjvm.so", "jvm" );
+
+        RpmTarget target = new RpmTarget();
+        Application application = new Application();
+        application.setName( "apacheds" );
+        application.setVersion( "1.0.0" );
+        target.setApplication( application );
+        target.setLayout( new InstallationLayout( image ) );
+        target.setOsName( "linux" );
+        target.setOsArch( "i386" );
+
+        ImageContents contents = new ImageContents( target, "/usr/local/apacheds-1.0.0" );
+        contents.setTimestamp( 0 );
+        List entries = contents.scan();
+
+        RpmWriter writer = new RpmWriter( "apacheds", "1.0.0", "0", "i386" );
+        writer.setSummary( "Apacheds Server" );
+        writer.setLicense( "ASL" );
+        writer.setBuildTime( 0 );
+        writer.setPostInstall( "true\n" );
+        writer.setPostUninstall( "exit 0\n" );
+        File rpmFile = new File( dir, "apacheds-1.0.0-0.i386.rpm" );
+        writer.write( entries, rpmFile );
+        InputStream in = new FileInputStream( rpmFile );
+        try
+        {
+            rpm = IOUtil.toByteArray( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        FileUtils.deleteDirectory( dir );
+    }
+
+
+    public void testLead() throws Exception
+    {
+        assertEquals( 0xedabeedb, readInt( 0 ) );
+        assertEquals( 3, rpm[4] );
+        assertEquals( 0, rpm[5] );
+        assertEquals( 0, readShort( 6 ) );
+        assertEquals( 1, readShort( 8 ) );
+        assertEquals( "apacheds-1.0.0-0", readString( 10 ) );
+        assertEquals( 1, readShort( 76 ) );
+        assertEquals( 5, readShort( 78 ) );
+    }
+
+
+    public void testSignature() throws Exception
+    {
+        Header signature = new Header( 96, HEADER_SIGNATURES );
+        int headerStart = align8( signature.end );
+        Header header = new Header( headerStart, HEADER_IMMUTABLE );
+
+        assertEquals( rpm.length - headerStart, ( ( int[] ) signature.get( 1000, INT32 ) )[0] );
+        byte[] md5 = MessageDigest.getInstance( "MD5" ).digest( slice( headerStart, rpm.length ) );
+        assertTrue( Arrays.equals( md5, ( byte[] ) signature.get( 1004, BIN ) ) );
+        byte[] sha1 = MessageDigest.getInstance( "SHA-1" ).digest( slice( headerStart, header.end ) );
+        assertEquals( ImageManifest.toHex( sha1 ), signature.get( 269, STRING ) );
+        assertEquals( payload( header ).length, ( ( int[] ) signature.get( 1007, INT32 ) )[0] );
+    }
+
+
+    public void testHeader() throws Exception
+    {
+        Header header = new Header( align8( new Header( 96, HEADER_SIGNATURES ).end ), HEADER_IMMUTABLE );
+        assertEquals( "apacheds", header.get( 1000, STRING ) );
+        assertEquals( "1.0.0", header.get( 1001, STRING ) );
+        assertEquals( "0", header.get( 1002, STRING ) );
+        assertEquals( "Apacheds Server", ( ( String[] ) header.get( 1004, I18NSTRING ) )[0] );
+        assertEquals( "i386", header.get( 1022, STRING ) );
+        assertEquals( "true\n", header.get( 1024, STRING ) );
+        assertEquals( "/bin/sh", header.get( 1086, STRING ) );
+        assertEquals( "exit 0\n", header.get( 1026, STRING ) );
+        assertEquals( "/bin/sh", header.get( 1088, STRING ) );
+        assertEquals( "cpio", header.get( 1124, STRING ) );
+        assertEquals( "gzip", header.get( 1125, STRING ) );
+
+        int count = ( ( String[] ) header.get( 1117, STRING_ARRAY ) ).length;
+        int[] arrays = new int[]
+            { 1028, 1030, 1033, 1034, 1035, 1036, 1037, 1039, 1040, 1045, 1095, 1096, 1097, 1116 };
+        for ( int ii = 0; ii < arrays.length; ii++ )
+        {
+            assertEquals( "entries of tag " + arrays[ii], count, header.count( arrays[ii] ) );
+        }
+    }
+
+
+    public void testPayload() throws Exception
+    {
+        Header header = new Header( align8( new Header( 96, HEADER_SIGNATURES ).end ), HEADER_IMMUTABLE );
+        String[] dirNames = ( String[] ) header.get( 1118, STRING_ARRAY );
+        String[] baseNames = ( String[] ) header.get( 1117, STRING_ARRAY );
+        int[] dirIndexes = ( int[] ) header.get( 1116, INT32 );
+        int[] sizes = ( int[] ) header.get( 1028, INT32 );
+        short[] modes = ( short[] ) header.get( 1030, INT16 );
+        int[] inodes = ( int[] ) header.get( 1096, INT32 );
+        String[] digests = ( String[] ) header.get( 1035, STRING_ARRAY );
+        int[] flags = ( int[] ) header.get( 1037, INT32 );
+        String[] linkTos = ( String[] ) header.get( 1036, STRING_ARRAY );
+
+        byte[] cpio = payload( header );
+        List members = new ArrayList();
+        int pos = 0;
+        while ( true )
+        {
+            String magic = new String( cpio, pos, 6, "US-ASCII" );
+            assertEquals( CpioWriter.NEWC_MAGIC, magic );
+            int[] fields = new int[13];
+            for ( int ii = 0; ii < fields.length; ii++ )
+            {
+                fields[ii] = ( int ) Long.parseLong( new String( cpio, pos + 6 + 8 * ii, 8, "US-ASCII" ), 16 );
+            }
+            int nameSize = fields[11];
+            String name = new String( cpio, pos + 110, nameSize - 1, "US-ASCII" );
+            assertEquals( 0, cpio[pos + 110 + nameSize - 1] );
+            pos = ( pos + 110 + nameSize + 3 ) & ~3;
+            if ( name.equals( CpioWriter.TRAILER ) )
+            {
+                assertEquals( 0, fields[6] );
+                break;
+            }
+
+            byte[] body = slice( cpio, pos, pos + fields[6] );
+            pos = ( pos + fields[6] + 3 ) & ~3;
+            members.add( new Object[]
+                { name, new Integer( fields[1] ), new Integer( fields[0] ), body } );
+        }
+        assertTrue( "padding after the trailer", cpio.length - pos < 512 );
+
+        boolean license = false;
+        boolean jvmAlias = false;
+        int ghosts = 0;
+        int next = 0;
+        for ( int ii = 0; ii < baseNames.length; ii++ )
+        {
+            String path = dirNames[dirIndexes[ii]] + baseNames[ii];
+            if ( ( flags[ii] & 64 ) != 0 )
+            {
+                ghosts++;
+                assertTrue( path, path.startsWith( "/usr/local/apacheds-1.0.0/var/log/apacheds-std" ) );
+                assertEquals( path, ImageContents.FILE_TYPE | 0644, modes[ii] & 0xffff );
+                assertEquals( path, 0, sizes[ii] );
+                assertEquals( path, "", digests[ii] );
+                continue;
+            }
+
+            Object[] member = ( Object[] ) members.get( next++ );
+            int mode = ( ( Integer ) member[1] ).intValue();
+            byte[] body = ( byte[] ) member[3];
+            assertEquals( "." + path, member[0] );
+            assertEquals( path, modes[ii] & 0xffff, mode & 0xffff );
+            assertEquals( path, inodes[ii], ( ( Integer ) member[2] ).intValue() );
+            assertEquals( path, sizes[ii], body.length );
+
+            if ( ( mode & ImageContents.DIRECTORY_TYPE ) != 0 )
+            {
+                assertEquals( path, "", digests[ii] );
+                continue;
+            }
+            if ( ( mode & 0170000 ) == ImageContents.LINK_TYPE )
+            {
+                jvmAlias = true;
+                assertEquals( "/usr/local/apacheds-1.0.0/jre/lib/i386/server", path );
+                assertEquals( ImageContents.LINK_TYPE | 0777, mode );
+                assertEquals( "../server", linkTos[ii] );
+                assertEquals( "../server", new String( body, "US-ASCII" ) );
+                assertEquals( path, "", digests[ii] );
+                continue;
+            }
+            assertEquals( path, "", linkTos[ii] );
+            assertEquals( path, ImageManifest.toHex( MessageDigest.getInstance( "MD5" ).digest( body ) ),
+                digests[ii] );
+
+            if ( path.equals( "/usr/local/apacheds-1.0.0/LICENSE.txt" ) )
+            {
+                license = true;
+                assertEquals( "license\n", new String( body, "US-ASCII" ) );
+                assertTrue( "license is documentation", ( flags[ii] & 2 ) != 0 );
+            }
+            else if ( path.equals( "/etc/init.d/apacheds" ) )
+            {
+                assertEquals( ImageContents.FILE_TYPE | 0744, mode );
+            }
+            else if ( path.equals( "/usr/local/apacheds-1.0.0/conf/server.xml" ) )
+            {
+                assertEquals( ImageContents.FILE_TYPE | 0600, mode );
+            }
+        }
+        assertEquals( members.size(), next );
+        assertEquals( 2, ghosts );
+        assertTrue( license );
+        assertTrue( jvmAlias );
+    }
+
+
+    /**
+     * Gets the uncompressed payload following the main header.
+     */
+    private byte[] payload( Header header ) throws IOException
+    {
+        InputStream in = new GZIPInputStream( new ByteArrayInputStream( rpm, header.end, rpm.length - header.end ) );
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                out.write( buf, 0, read );
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    private void write( String path, String content ) throws IOException
+    {
+        File file = new File( image, path );
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( "US-ASCII" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+
+    private int readInt( int off ) throws IOException
+    {
+        return new DataInputStream( new ByteArrayInputStream( rpm, off, 4 ) ).readInt();
+    }
+
+
+    private int readShort( int off ) throws IOException
+    {
+        return new DataInputStream( new ByteArrayInputStream( rpm, off, 2 ) ).readShort();
+    }
+
+
+    private String readString( int off ) throws IOException
+    {
+        int end = off;
+        while ( rpm[end] != 0 )
+        {
+            end++;
+        }
+        return new String( rpm, off, end - off, "UTF-8" );
+    }
+
+
+    private byte[] slice( int from, int to )
+    {
+        return slice( rpm, from, to );
+    }
+
+
+    private static byte[] slice( byte[] data, int from, int to )
+    {
+        byte[] slice = new byte[to - from];
+        System.arraycopy( data, from, slice, 0, slice.length );
+        return slice;
+    }
+
+
+    private static int align8( int offset )
+    {
+        return 96 + ( ( offset - 96 + 7 ) & ~7 );
+    }
+
+
+    /**
+     * A header structure parsed from the package, checking its magic, its
+     * region entry and trailer and that the index is sorted by tag.
+     */
+    private class Header
+    {
+        /** the type and value by tag */
+        private final Map entries = new TreeMap();
+        private final int end;
+
+
+        Header( int off, int region ) throws IOException
+        {
+            assertEquals( 0x8eade801, readInt( off ) );
+            assertEquals( 0, readInt( off + 4 ) );
+            int count = readInt( off + 8 );
+            int dataLength = readInt( off + 12 );
+            int index = off + 16;
+            int store = index + count * 16;
+            end = store + dataLength;
+
+            int lastTag = -1;
+            for ( int ii = 0; ii < count; ii++ )
+            {
+                int tag = readInt( index + ii * 16 );
+                int type = readInt( index + ii * 16 + 4 );
+                int offset = readInt( index + ii * 16 + 8 );
+                int items = readInt( index + ii * 16 + 12 );
+                assertTrue( "offset of tag " + tag, offset >= 0 && offset < dataLength );
+
+                if ( ii == 0 )
+                {
+                    // the region entry comes first and its trailer closes the data
+                    assertEquals( region, tag );
+                    assertEquals( BIN, type );
+                    assertEquals( 16, items );
+                    assertEquals( dataLength, offset + 16 );
+                    assertEquals( region, readInt( store + offset ) );
+                    assertEquals( BIN, readInt( store + offset + 4 ) );
+                    assertEquals( -count * 16, readInt( store + offset + 8 ) );
+                    assertEquals( 16, readInt( store + offset + 12 ) );
+                    continue;
+                }
+
+                assertTrue( "tags sorted at " + tag, tag > lastTag );
+                lastTag = tag;
+                entries.put( new Integer( tag ), new Object[]
+                    { new Integer( type ), read( type, store + offset, items, store + dataLength ) } );
+            }
+        }
+
+
+        private Object read( int type, int off, int items, int limit ) throws IOException
+        {
+            switch ( type )
+            {
+                case INT16:
+                    short[] shorts = new short[items];
+                    for ( int ii = 0; ii < items; ii++ )
+                    {
+                        shorts[ii] = ( short ) readShort( off + ii * 2 );
+                    }
+                    return shorts;
+                case INT32:
+                    int[] ints = new int[items];
+                    for ( int ii = 0; ii < items; ii++ )
+                    {
+                        ints[ii] = readInt( off + ii * 4 );
+                    }
+                    return ints;
+                case BIN:
+                    return slice( off, off + items );
+                case STRING:
+                    return readString( off );
+                default:
+                    String[] strings = new String[items];
+                    for ( int ii = 0; ii < items; ii++ )
+                    {
+                        strings[ii] = readString( off );
+                        off += strings[ii].getBytes( "UTF-8" ).length + 1;
+                        assertTrue( off <= limit );
+                    }
+                    return strings;
+            }
+        }
+
+
+        Object get( int tag, int type )
+        {
+            Object[] entry = ( Object[] ) entries.get( new Integer( tag ) );
+            assertNotNull( "tag " + tag, entry );
+            assertEquals( "type of tag " + tag, type, ( ( Integer ) entry[0] ).intValue() );
+            return entry[1];
+        }
+
+
+        int count( int tag )
+        {
+            Object[] entry = ( Object[] ) entries.get( new Integer( tag ) );
+            assertNotNull( "tag " + tag, entry );
+            Object value = entry[1];
+            if ( value instanceof int[] )
+            {
+                return ( ( int[] ) value ).length;
+            }
+            if ( value instanceof short[] )
+            {
+                return ( ( short[] ) value ).length;
+            }
+            return ( ( String[] ) value ).length;
+        }
+    }
+}